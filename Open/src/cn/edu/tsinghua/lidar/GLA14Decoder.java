@@ -0,0 +1,352 @@
+package cn.edu.tsinghua.lidar;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Decodes the shots of a GLA14 file, many records at a time.
+ *
+ * Blocks of records are read from a FileChannel into one buffer, and the 40 shot arrays of each
+ * record are copied into primitive columns through IntBuffer and ShortBuffer views of it, instead
+ * of a RandomAccessFile read for every value.  The shots that pass the quality screen of the
+ * release (see screen()) are returned by next(), in the order of the file.  Offsets are in bytes
+ * from the start of a record, big endian, as in the GLA14 data dictionary.
+ *
+ * @author nclinton
+ */
+public class GLA14Decoder implements Iterator<GLA14Decoder.Shot>, Closeable {
+
+	// bytes read at once, rounded down to whole records
+	private static final int BLOCK_BYTES = 1 << 22;
+	private static final int SHOTS = 40;
+	private static final int PEAKS = 6;
+
+	/**
+	 * A shot that passed the screen, in the units of the file.
+	 */
+	public static class Shot {
+		int rec_ndx;
+		// UTC of the 1st shot of the record, referenced to noon on Jan 1, 2000, seconds and microseconds
+		int utcTime0;
+		int utcTime1;
+		// microseconds from the 1st shot of the record, 0 for the 1st
+		int dShotTime;
+		// micro-degrees
+		int lat;
+		int lon;
+		// mm, uncorrected
+		int elev;
+		// mm, range increments
+		int SigBegOff;
+		int SigEndOff;
+		int[] gpCntRngOff = new int[PEAKS];
+		// 0.01 volts, 0 if bad
+		int[] gAmp = new int[PEAKS];
+		// 0.01 volts * ns, 0 if bad
+		int[] gArea = new int[PEAKS];
+	}
+
+	private final FileChannel channel;
+	private final String fileName;
+	private final int recl;
+	private final long start;
+	private final long numRecords;
+	private final int release;
+	private int minPeaks = 1;
+	private boolean error;
+	private boolean position;
+
+	private final ByteBuffer block;
+	private final int blockRecords;
+	private int blockCount; // records in the block
+	private int blockIndex; // the next record of the block
+	private long record; // records decoded
+
+	// the columns of the current record
+	private int i_rec_ndx;
+	private int utcTime0;
+	private int utcTime1;
+	private final int[] i_dShotTime = new int[SHOTS];
+	private final int[] i_lat = new int[SHOTS];
+	private final int[] i_lon = new int[SHOTS];
+	private final int[] i_elev = new int[SHOTS];
+	private final int[] i_SigBegOff = new int[SHOTS];
+	private final int[] i_sigmaatt = new int[SHOTS];
+	private final int[] i_SigEndOff = new int[SHOTS];
+	private final int[] i_gpCntRngOff = new int[SHOTS*PEAKS];
+	private final int[] i_Gamp = new int[SHOTS*PEAKS];
+	private final int[] i_Garea = new int[SHOTS*PEAKS];
+	private final int[] i_nPeaks1 = new int[SHOTS];
+	private final int[] i_LandVar = new int[SHOTS];
+	private final int[] i_satCorrFlg = new int[SHOTS];
+	private final int[] i_gval_rcv = new int[SHOTS];
+	private final int[] i_FRir_qaFlag = new int[SHOTS];
+	private int i_atm_char_flag;
+	private int i_atm_char_conf;
+	private final int[] i_maxRecAmp = new int[SHOTS];
+	private final int[] i_noise = new int[SHOTS];
+	private final short[] shorts = new short[SHOTS];
+	private final boolean[] write = new boolean[SHOTS];
+	private int shot = SHOTS; // the next shot of the current record
+
+	/**
+	 * @param fileName the GLA14 file
+	 * @param recl record length in bytes
+	 * @param start length of the header in bytes
+	 * @param release GLA14BatchProcess.GLA14_R31 or GLA14_R33, for the offsets and the screen
+	 * @throws IOException
+	 */
+	public GLA14Decoder(String fileName, int recl, int start, int release) throws IOException {
+		this.fileName = fileName;
+		this.recl = recl;
+		this.start = start;
+		this.release = release;
+		channel = new RandomAccessFile(fileName, "r").getChannel();
+		// as the readers always did, a record is read if more than recl bytes are left from its start
+		numRecords = Math.max(0, (channel.size() - start - 1) / recl);
+		blockRecords = Math.max(1, BLOCK_BYTES / recl);
+		block = ByteBuffer.allocate(blockRecords * recl).order(ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * The minimum number of peaks of a shot, 1 by default.
+	 * @param minPeaks
+	 */
+	public void setMinPeaks(int minPeaks) {
+		this.minPeaks = minPeaks;
+	}
+
+	/**
+	 * Print the reasons shots are screened out.  Off is default.
+	 * @param err
+	 */
+	public void setError(boolean err) {
+		error = err;
+	}
+
+	/**
+	 * Print the number of each record.  Off is default.
+	 * @param pos
+	 */
+	public void setPosition(boolean pos) {
+		position = pos;
+	}
+
+	/**
+	 * @return the number of records that are decoded
+	 */
+	public long getNumRecords() {
+		return numRecords;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (true) {
+			for (; shot < SHOTS; shot++) {
+				if (write[shot]) {
+					return true;
+				}
+			}
+			if (record == numRecords) {
+				return false;
+			}
+			try {
+				nextRecord();
+			} catch (IOException e) {
+				throw new RuntimeException("Can't read " + fileName, e);
+			}
+		}
+	}
+
+	@Override
+	public Shot next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		int i = shot++;
+		Shot s = new Shot();
+		s.rec_ndx = i_rec_ndx;
+		s.utcTime0 = utcTime0;
+		s.utcTime1 = utcTime1;
+		s.dShotTime = i_dShotTime[i];
+		s.lat = i_lat[i];
+		s.lon = i_lon[i];
+		s.elev = i_elev[i];
+		s.SigBegOff = i_SigBegOff[i];
+		s.SigEndOff = i_SigEndOff[i];
+		for (int g=0; g<PEAKS; g++) {
+			s.gpCntRngOff[g] = i_gpCntRngOff[i*PEAKS+g];
+			s.gAmp[g] = i_Gamp[i*PEAKS+g] == GLA14Reader.badInt ? 0 : i_Gamp[i*PEAKS+g];
+			s.gArea[g] = i_Garea[i*PEAKS+g] == GLA14Reader.badInt ? 0 : i_Garea[i*PEAKS+g];
+		}
+		return s;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Decode the next record, reading the next block if this one is used up.
+	 */
+	private void nextRecord() throws IOException {
+		if (blockIndex == blockCount) {
+			blockCount = (int) Math.min(blockRecords, numRecords - record);
+			block.clear();
+			block.limit(blockCount * recl);
+			long pos = start + record * recl;
+			while (block.hasRemaining()) {
+				if (channel.read(block, pos + block.position()) < 0) {
+					throw new EOFException(fileName);
+				}
+			}
+			blockIndex = 0;
+		}
+		if (position) { System.out.println("\t" + fileName + ": " + record); }
+		int base = blockIndex * recl;
+		i_rec_ndx = block.getInt(base);
+		utcTime0 = block.getInt(base + 4);
+		utcTime1 = block.getInt(base + 8);
+		// the time delta for the first shot is 0
+		i_dShotTime[0] = 0;
+		ints(base + 20, i_dShotTime, 1, SHOTS-1);
+		ints(base + 176, i_lat, 0, SHOTS);
+		ints(base + 336, i_lon, 0, SHOTS);
+		ints(base + 496, i_elev, 0, SHOTS);
+		ints(base + (release == GLA14BatchProcess.GLA14_R33 ? 1256 : 3112), i_SigBegOff, 0, SHOTS);
+		ushorts(base + 2576, i_sigmaatt);
+		ints(base + 3432, i_SigEndOff, 0, SHOTS);
+		ints(base + 3592, i_gpCntRngOff, 0, SHOTS*PEAKS);
+		ints(base + 5236, i_Gamp, 0, SHOTS*PEAKS);
+		ints(base + 6196, i_Garea, 0, SHOTS*PEAKS);
+		// after the SD of the Gaussians
+		ubytes(base + 8116, i_nPeaks1);
+		ushorts(base + 8156, i_LandVar);
+		ubytes(base + 8708, i_satCorrFlg);
+		ushorts(base + 8908, i_gval_rcv);
+		ubytes(base + 9148, i_FRir_qaFlag);
+		i_atm_char_flag = block.get(base + 9188) & 0xff;
+		i_atm_char_conf = block.get(base + 9189) & 0xff;
+		ushorts(base + 9434, i_maxRecAmp);
+		ushorts(base + 9514, i_noise);
+		blockIndex++;
+		record++;
+		screen();
+		shot = 0;
+	}
+
+	private void ints(int offset, int[] column, int from, int n) {
+		block.position(offset);
+		block.asIntBuffer().get(column, from, n);
+	}
+
+	private void ushorts(int offset, int[] column) {
+		block.position(offset);
+		block.asShortBuffer().get(shorts);
+		for (int i=0; i<SHOTS; i++) {
+			column[i] = shorts[i] & 0xffff;
+		}
+	}
+
+	private void ubytes(int offset, int[] column) {
+		for (int i=0; i<SHOTS; i++) {
+			column[i] = block.get(offset + i) & 0xff;
+		}
+	}
+
+	/**
+	 * The quality screen of GLA14Reader.write() (R31) or r33write() (R33).  If a flag is bad,
+	 * the shot is not written.
+	 */
+	private void screen() {
+		for (int i=0; i<SHOTS; i++) {
+			write[i] = i_lat[i] != GLA14Reader.badInt && i_lon[i] != GLA14Reader.badInt && i_elev[i] != GLA14Reader.badInt;
+			if (i_SigBegOff[i]==GLA14Reader.badInt || i_SigBegOff[i]>0) {
+				write[i] = false;
+			}
+			// QA/QC Attitude Quality Indicator
+			if (i_sigmaatt[i] != 0) {
+				if (error) { System.err.println("\t Bad Attitude, i= "+i+": "+i_sigmaatt[i]); }
+				write[i] = false;
+			}
+			if (i_SigEndOff[i]==GLA14Reader.badInt || i_SigEndOff[i]>0) {
+				write[i] = false;
+			}
+			// if there is no first Gaussian, don't write
+			int i_gpCntRngOff_0 = i_gpCntRngOff[i*PEAKS];
+			if (i_gpCntRngOff_0==GLA14Reader.badInt || i_gpCntRngOff_0>0) {
+				write[i] = false;
+			}
+			if (i_Gamp[i*PEAKS]==GLA14Reader.badInt || i_Garea[i*PEAKS]==GLA14Reader.badInt) {
+				write[i] = false;
+			}
+			// number of peaks
+			if (i_nPeaks1[i] < minPeaks) {
+				if (error) { System.err.println("\t No peaks, i= "+i+": "+i_nPeaks1[i]); }
+				write[i] = false;
+			}
+			// QA/QC SD of the land fit
+			if (i_LandVar[i] > 20000) { // anything close to the badShort is bad
+				if (error) { System.err.println("\t SD of land Gaussian fit too high, i= "+i+": "+i_LandVar[i]); }
+				write[i] = false;
+			}
+			// QA/QC Saturation, low order nibble, 4 bits.  2 is correction needed, which is OK
+			int loNibble = i_satCorrFlg[i] & 0xf;
+			if (loNibble > 2) { // saturated
+				write[i] = false; //don't use
+				if (error) { System.err.println("\t Saturated, i= "+i+": "+loNibble); }
+			}
+			// QA/QC gain
+			if (i_gval_rcv[i] > 200) {
+				write[i] = false; // don't use
+				if (error) { System.err.println("\t Gain is too high, i= "+i+": "+i_gval_rcv[i]); }
+			}
+			// QA/QC clouds
+			if (release == GLA14BatchProcess.GLA14_R33) {
+				// "i_FRir_qaFlag: obsolete in R33 with the introduction of the i_atm_char_flag" ??
+				if (i_FRir_qaFlag[i] <= 12) { // clouds
+					if (i_atm_char_conf == 1) { // low confidence ATM corr
+						write[i] = false;
+						if (error) { System.err.println("\t Low confidence atmospheric correction, i= "+i+": "+i_atm_char_conf); }
+					}
+					// Not obvious whether shots should be thrown out based on optical depth.
+					else if (i_atm_char_flag == 2 || i_atm_char_flag == 4 || i_atm_char_flag == 6 || i_atm_char_flag == 8) {
+						write[i] = false;
+						if (error) { System.err.println("\t High optical depth, i= "+i+": "+i_atm_char_flag); }
+					}
+				}
+			}
+			else if (i_FRir_qaFlag[i] <= 12) {
+				write[i] = false;
+				if (error) { System.err.println("\t Too cloudy, i= "+i+": "+i_FRir_qaFlag[i]); }
+			}
+			// QA/QC snr
+			double snr = 0;
+			// to prevent divide by zero, simply squash the SNR :: ERROR condition
+			if (i_noise[i] == 0) {
+				if (error) { System.err.println ("\t zero noise, i= "+i+": "+i_noise[i]); }
+			}
+			else {
+				snr = i_maxRecAmp[i]/i_noise[i]; // divide by noise
+			}
+			// sort of arbitrary snr thresholds
+			if (snr < (release == GLA14BatchProcess.GLA14_R33 ? 20 : 15)) {
+				write[i] = false; // don't use
+				if (error) { System.err.println ("\t SNR too low, i= "+i+": "+snr); }
+			}
+		}
+	}
+}
@@ -10,7 +10,6 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 /**
  * @author nclinton
@@ -24,7 +23,6 @@ public class GLA14Reader {
 	public static float badFloat = Float.MAX_VALUE;
 	public static double badDouble = Double.MAX_VALUE;
 	
-	protected RandomAccessFile glasFile;
 	protected String fileName;
 	protected int recl; // record length in bytes
 	protected int start; // length of header in bytes
@@ -53,7 +51,6 @@ public class GLA14Reader {
 		start = numhead*recl;
 		reader.close();
 		
-		glasFile = new RandomAccessFile(fileName, "r");
 		error = false;
 		position = false;
 	}
@@ -67,272 +64,33 @@ public class GLA14Reader {
 	}
 	
 	/**
-	 * Set the positions to display.  Off is default.
-	 * @param err
+	 * Set the record numbers to display.  Off is default.
+	 * @param pos
 	 */
 	public void setPosition (boolean pos) {
 		position = pos;
 	}
 	
+	/**
+	 * Decode the shots that pass the quality screen of a release.
+	 * @param release GLA14BatchProcess.GLA14_R31 or GLA14_R33
+	 * @return the shots, to be closed when done
+	 * @throws IOException
+	 */
+	public GLA14Decoder shots(int release) throws IOException {
+		GLA14Decoder decoder = new GLA14Decoder(fileName, recl, start, release);
+		decoder.setError(error);
+		decoder.setPosition(position);
+		return decoder;
+	}
+	
 	/**
 	 * Write the .csv formatted output.
 	 * @param outName
 	 * @throws Exception
 	 */
 	public void write(String outName) throws Exception {
-		
-		// array of lines, each line representing one shot
-		String[] lines = new String[40];
-		
-		BufferedWriter writer = new BufferedWriter(new FileWriter(outName));
-		String header = "rec_ndx,lat,lon,elev,SigEndOff," +
-				"SigBegHt,gpCntRngOff2,gpCntRngOff3,gpCntRngOff4,gpCntRngOff5,gpCntRngOff6," +
-				"gAmp1,gAmp2,gAmp3,gAmp4,gAmp5,gAmp6," +
-				"gArea1,gArea2,gArea3,gArea4,gArea5,gArea6";
-		writer.write(header+"\n");
-		
-		glasFile.seek(0);
-		glasFile.skipBytes(start); // skip the header
-		
-		boolean[] write = new boolean[40]; // if one of the quality flags is bad, reset this
-		
-		// while there are still records to read,
-		while ( (glasFile.length() - glasFile.getFilePointer()) > recl) {
-			
-			System.out.println("\t" + fileName + ": "+Math.floor((glasFile.getFilePointer()-start)/recl));
-			
-			// initialize write array
-			for (int b=0; b<lines.length; b++) {
-				write[b] = true;
-			}
-			
-			// initialize with index
-			int i_rec_ndx = glasFile.readInt();
-			for (int s=0; s<lines.length; s++) {
-				lines[s] = i_rec_ndx+",";
-			}
-			
-			// go to latitude
-			glasFile.skipBytes(176-4);
-			if (position) { System.out.println("should be 176: "+(glasFile.getFilePointer()-start)%recl); }
-			// i_lat micro-degrees
-			for (int i=0; i<40; i++) {
-				int i_lat = glasFile.readInt();
-				if (i_lat == badInt) {
-					write[i] = false;
-				}
-				lines[i] += (String.format("%.5f", i_lat*Math.pow(10, -6))+",");
-			}
-			// i_lon micro-degrees
-			for (int i=0; i<40; i++) {
-				int i_lon = glasFile.readInt();
-				if (i_lon == badInt) {
-					write[i] = false;
-				}
-				lines[i] += (String.format("%.5f", i_lon*Math.pow(10, -6))+",");
-			}
-			// i_elev mm, uncorrected
-			for (int i=0; i<40; i++) {
-				int i_elev = glasFile.readInt();
-				if (i_elev == badInt) {
-					write[i] = false;
-				}
-				lines[i] += (String.format("%.1f", i_elev*Math.pow(10, -3))+",");
-			}
-			
-			// QA/QC Attitude Quality Indicator
-			glasFile.skipBytes(2576-656);
-			if (position) { System.out.println("Should be 2576: "+(glasFile.getFilePointer()-start)%recl); }
-			for (int i=0; i<40; i++) {
-				int i_sigmaatt = glasFile.readUnsignedShort();
-				if (i_sigmaatt != 0) {
-					if (error) { System.err.println("\t Bad Attitude, i= "+i+": "+i_sigmaatt); }
-					write[i] = false; 
-				}
-			}
-			
-			// skip to Signal Begin Range Increment
-			glasFile.skipBytes(3112-2656);
-			if (position) { System.out.println("Should be 3112: "+(glasFile.getFilePointer()-start)%recl); }
-			// i_SigBegOff mm
-			int[] i_SigBegOff = new int[40];
-			for (int i=0; i<40; i++) {
-				i_SigBegOff[i] = glasFile.readInt();
-				if (i_SigBegOff[i]==badInt || i_SigBegOff[i]>0) {
-					write[i] = false;
-				}
-			}
-			
-			// skip to i_SigEndOff
-			glasFile.skipBytes(3432-3272);
-			if (position) { System.out.println("Should be 3432: "+(glasFile.getFilePointer()-start)%recl); }
-			// i_SigEndOff mm
-			for (int i=0; i<40; i++) {
-				int i_SigEndOff = glasFile.readInt();
-				if (i_SigEndOff==badInt || i_SigEndOff>0) {
-					write[i] = false;
-				}
-				// compute height, convert to meters, write
-				lines[i] += ( String.format("%.2f",(i_SigEndOff - i_SigBegOff[i])*0.001) + ",");
-			}
-			
-			// at the Gaussian peaks
-			if (position) { System.out.println("Should be 3592: "+(glasFile.getFilePointer()-start)%recl); }
-			// i_gpCntRngOff mm, Centroid range increment for all six peaks
-			for (int i=0; i<40; i++) {
-				double height; // computed relative to first Gaussian return
-				// g==0, first Gaussian, assumed ground
-				int i_gpCntRngOff_0 = glasFile.readInt();
-				// if there is no first Gaussian, don't write
-				if (i_gpCntRngOff_0==badInt || i_gpCntRngOff_0>0) {
-					write[i] = false;
-				}
-				else { // compute height from first Gaussian to the beginning of the waveform
-					height = ((i_gpCntRngOff_0 - i_SigBegOff[i])*0.001);
-					lines[i] += (height < 0 ? 0 : String.format("%.2f", height)) +",";
-				}
-				// other, possible Gaussians
-				for (int g=1; g<6; g++) {
-					int i_gpCntRngOff = glasFile.readInt();
-					// if bad, write a zero
-					if (i_gpCntRngOff==badInt || i_gpCntRngOff>0) {
-						lines[i] += 0 + ",";
-					}
-					else { // compute the height from the first Gaussian to this one
-						height = ((i_gpCntRngOff_0 - i_gpCntRngOff)*0.001);
-						lines[i] += (height < 0 ? 0 : String.format("%.2f", height)) +",";
-					}
-				}
-			}
-			
-			// amplitude of Gaussian peaks
-			glasFile.skipBytes(5236-4552);
-			if (position) { System.out.println("Should be 5236: "+(glasFile.getFilePointer()-start)%recl); }
-			// i_Gamp 0.01 volts
-			for (int i=0; i<40; i++) {
-				for (int g=0; g<6; g++) {
-					int i_Gamp = glasFile.readInt();
-					if (i_Gamp==badInt) {
-						if (g==0) {
-							write[i] = false;
-						}
-						i_Gamp=0;
-					}
-					lines[i] += i_Gamp+",";
-				}
-			}
-			
-			// area under Gaussian peaks
-			// i_Garea 0.01 volts * ns
-			for (int i=0; i<40; i++) {
-				for (int g=0; g<6; g++) {
-					int i_Garea = glasFile.readInt();
-					if (i_Garea==badInt) {
-						if (g==0) {
-							write[i] = false;
-						}
-						i_Garea=0;
-					}
-					lines[i] += i_Garea+",";
-				}
-			} // at 7156
-			
-			// skip the SD of Gaussians
-			glasFile.skipBytes(960);
-			// number of peaks
-			if (position) { System.out.println("Should be 8116: "+(glasFile.getFilePointer()-start)%recl); }
-			for (int i=0; i<40; i++) {
-				int i_nPeaks1 = glasFile.readUnsignedByte();
-				if (i_nPeaks1 < 1) {
-					if (error) { System.err.println("\t No peaks, i= "+i+": "+i_nPeaks1); }
-					write[i] = false; 
-				}
-			}
-			
-			// QA/QC SD of the land fit
-			if (position) { System.out.println("Should be 8156: "+(glasFile.getFilePointer()-start)%recl); }
-			for (int i=0; i<40; i++) {
-				int i_LandVar = glasFile.readUnsignedShort();
-				if (i_LandVar > 20000) { // anything close to the badShort is bad
-					if (error) { System.err.println("\t SD of land Gaussian fit too high, i= "+i+": "+i_LandVar); }
-					write[i] = false; 
-				}
-			}
-			
-			// QA/QC Saturation
-			glasFile.skipBytes(8708-8236);
-			if (position) { System.out.println("Should be 8708: "+(glasFile.getFilePointer()-start)%recl); }
-			for (int i=0; i<40; i++) {
-				int i_satCorrFlg = glasFile.readUnsignedByte();
-				// get low order nibble, 4 bits.
-				int loNibble = i_satCorrFlg & 0xf;
-				if (loNibble < 2) { } // ok
-				else if (loNibble == 2) { // correction needed
-					// do something??
-					//System.err.println("Saturation correction needed, i= "+i+": "+loNibble);
-				}
-				else { // saturated
-					write[i] = false; //don't use
-					if (error) { System.err.println("\t Saturated, i= "+i+": "+loNibble); }
-				}
-			}
-			
-			// QA/QC gain
-			glasFile.skipBytes(8908-8748);
-			if (position) { System.out.println("Should be 8908: "+(glasFile.getFilePointer()-start)%recl); }
-			for (int i=0; i<40; i++) {
-				int i_gval_rcv = glasFile.readUnsignedShort();
-				if (i_gval_rcv > 200) {
-					write[i] = false; // don't use
-					if (error) { System.err.println("\t Gain is too high, i= "+i+": "+i_gval_rcv); }
-				}
-			}
-			
-			// QA/QC clouds
-			glasFile.skipBytes(9148-8988);
-			if (position) { System.out.println("Should be 9148: "+(glasFile.getFilePointer()-start)%recl); }
-			for (int i=0; i<40; i++) {
-				int i_FRir_qaFlag = glasFile.readUnsignedByte();
-				if (i_FRir_qaFlag <= 12) {
-					write[i] = false; 
-					if (error) { System.err.println("\t Too cloudy, i= "+i+": "+i_FRir_qaFlag); }
-				}
-			}
-			
-			// QA/QC snr
-			int[] i_maxRecAmp = new int[40];
-			glasFile.skipBytes(9434-9188);
-			//System.out.println("Should be 9434: "+(glasFile.getFilePointer()-start)%recl);
-			for (int i=0; i<40; i++) {
-				i_maxRecAmp[i] = glasFile.readUnsignedShort(); // fill with signal
-			}
-			for (int i=0; i<40; i++) {
-				int noise = glasFile.readUnsignedShort();
-				// to prevent divide by zero, simply squash the SNR :: ERROR condition
-				if (noise == 0) {
-					noise = Integer.MAX_VALUE;
-					if (error) { System.err.println ("\t zero noise, i= "+i+": "+noise); }
-				}
-				double snr = i_maxRecAmp[i]/noise; // divide by noise
-				//System.out.println ("SNR, i= "+i+": "+snr);
-				if (snr < 15) { // sort of arbitrary snr threshold
-					write[i] = false; // don't use
-					if (error) { System.err.println ("\t SNR too low, i= "+i+": "+snr); }
-				}
-			}
-			
-			// skip to end of record
-			if (position) { glasFile.skipBytes((int)(recl-(glasFile.getFilePointer()-start)%recl)); }
-			
-			// write
-			for (int l=0; l<40; l++) {
-				if (write[l]) {
-					//System.out.println(lines[l]);
-					writer.write(lines[l]+"\n");
-				}
-			}
-		} // end while
-		writer.close();
+		writeCSV(shots(GLA14BatchProcess.GLA14_R31), outName, false);
 	}
 
 	/**
@@ -341,275 +99,112 @@ public class GLA14Reader {
 	 * @throws Exception
 	 */
 	public void r33write(String outName) throws Exception {
-		
-		// array of lines, each line representing one shot
-		String[] lines = new String[40];
-		
-		BufferedWriter writer = new BufferedWriter(new FileWriter(outName));
-		String header = "rec_ndx,lat,lon,elev,SigEndOff," +
-				"SigBegHt,gpCntRngOff2,gpCntRngOff3,gpCntRngOff4,gpCntRngOff5,gpCntRngOff6," +
-				"gAmp1,gAmp2,gAmp3,gAmp4,gAmp5,gAmp6," +
-				"gArea1,gArea2,gArea3,gArea4,gArea5,gArea6";
-		writer.write(header+"\n");
-		
-		glasFile.seek(0);
-		glasFile.skipBytes(start); // skip the header
-		
-		boolean[] write = new boolean[40]; // if one of the quality flags is bad, reset this
-		
-		// while there are still records to read,
-		while ( (glasFile.length() - glasFile.getFilePointer()) > recl) {
-			
-			System.out.println("\t" + fileName + ": "+Math.floor((glasFile.getFilePointer()-start)/recl));
-			
-			// initialize write array
-			for (int b=0; b<lines.length; b++) {
-				write[b] = true;
-			}
-			
-			// initialize with index
-			int i_rec_ndx = glasFile.readInt();
-			for (int s=0; s<lines.length; s++) {
-				lines[s] = i_rec_ndx+",";
-			}
-			
-			// go to latitude
-			glasFile.skipBytes(176-4);
-			if (position) { System.out.println("should be 176: "+(glasFile.getFilePointer()-start)%recl); }
-			// i_lat micro-degrees
-			for (int i=0; i<40; i++) {
-				int i_lat = glasFile.readInt();
-				if (i_lat == badInt) {
-					write[i] = false;
-				}
-				lines[i] += (String.format("%.5f", i_lat*Math.pow(10, -6))+",");
-			}
-			// i_lon micro-degrees
-			for (int i=0; i<40; i++) {
-				int i_lon = glasFile.readInt();
-				if (i_lon == badInt) {
-					write[i] = false;
-				}
-				lines[i] += (String.format("%.5f", i_lon*Math.pow(10, -6))+",");
-			}
-			// i_elev mm, uncorrected
-			for (int i=0; i<40; i++) {
-				int i_elev = glasFile.readInt();
-				if (i_elev == badInt) {
-					write[i] = false;
-				}
-				lines[i] += (String.format("%.1f", i_elev*Math.pow(10, -3))+",");
-			}
-			
-			// skip to Signal Begin Range Increment
-			glasFile.skipBytes(1256-656);
-			if (position) { System.out.println("Should be 1256: "+(glasFile.getFilePointer()-start)%recl); }
-			// i_SigBegOff mm
-			int[] i_SigBegOff = new int[40];
-			for (int i=0; i<40; i++) {
-				i_SigBegOff[i] = glasFile.readInt();
-				if (i_SigBegOff[i]==badInt || i_SigBegOff[i]>0) {
-					write[i] = false;
-				}
-			}
-			
-			// QA/QC Attitude Quality Indicator
-			glasFile.skipBytes(2576-1416);
-			//System.out.println("Should be 2576: "+(glasFile.getFilePointer()-start)%recl);
-			for (int i=0; i<40; i++) {
-				int i_sigmaatt = glasFile.readUnsignedShort();
-				if (i_sigmaatt != 0) {
-					if (error) { System.err.println("\t Bad Attitude, i= "+i+": "+i_sigmaatt); }
-					write[i] = false; 
-				}
-			}
-			
-			// skip to i_SigEndOff
-			glasFile.skipBytes(3432-2656);
-			if (position) { System.out.println("Should be 3432: "+(glasFile.getFilePointer()-start)%recl); }
-			// i_SigEndOff mm
-			for (int i=0; i<40; i++) {
-				int i_SigEndOff = glasFile.readInt();
-				if (i_SigEndOff==badInt || i_SigEndOff>0) {
-					write[i] = false;
-				}
-				// compute height, convert to meters, write
-				lines[i] += ( String.format("%.2f",(i_SigEndOff - i_SigBegOff[i])*0.001) + ",");
-			}
-			
-			// at the Gaussian peaks
-			if (position) { System.out.println("Should be 3592: "+(glasFile.getFilePointer()-start)%recl); }
-			// i_gpCntRngOff mm, Centroid range increment for all six peaks
-			for (int i=0; i<40; i++) {
-				double height; // computed relative to first Gaussian return
-				// g==0, first Gaussian, assumed ground
-				int i_gpCntRngOff_0 = glasFile.readInt();
-				// if there is no first Gaussian, don't write
-				if (i_gpCntRngOff_0==badInt || i_gpCntRngOff_0>0) {
-					write[i] = false;
-				}
-				else { // compute height from first Gaussian to the beginning of the waveform
-					height = ((i_gpCntRngOff_0 - i_SigBegOff[i])*0.001);
-					lines[i] += (height < 0 ? 0 : String.format("%.2f", height)) +",";
-				}
-				// other, possible Gaussians
+		writeCSV(shots(GLA14BatchProcess.GLA14_R33), outName, false);
+	}
+	
+	/**
+	 * Write a line for each shot.  Heights are relative to the first Gaussian, assumed ground.
+	 * @param shots closed when written
+	 * @param outName
+	 * @param utc also write the UTC of the record and the shot
+	 * @throws IOException
+	 */
+	protected static void writeCSV(GLA14Decoder shots, String outName, boolean utc) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(outName), 1 << 16);
+		try {
+			String header = "rec_ndx," + (utc ? "UTCTime1,UTCTime2,dShotTimePlusUTC2," : "") + "lat,lon,elev,SigEndOff," +
+					"SigBegHt,gpCntRngOff2,gpCntRngOff3,gpCntRngOff4,gpCntRngOff5,gpCntRngOff6," +
+					"gAmp1,gAmp2,gAmp3,gAmp4,gAmp5,gAmp6," +
+					"gArea1,gArea2,gArea3,gArea4,gArea5,gArea6";
+			writer.write(header+"\n");
+			StringBuilder line = new StringBuilder(256);
+			// digits are appended directly only if String.format() writes them the same way
+			boolean direct = String.format("%.2f", -1.25).equals("-1.25");
+			while (shots.hasNext()) {
+				GLA14Decoder.Shot s = shots.next();
+				line.setLength(0);
+				line.append(s.rec_ndx).append(',');
+				if (utc) {
+					line.append(s.utcTime0).append(',');
+					line.append(s.utcTime1).append(',');
+					line.append(s.dShotTime + s.utcTime1).append(',');
+				}
+				fixed(line, direct, s.lat, s.lat*Math.pow(10, -6), 6, 5).append(',');
+				fixed(line, direct, s.lon, s.lon*Math.pow(10, -6), 6, 5).append(',');
+				fixed(line, direct, s.elev, s.elev*Math.pow(10, -3), 3, 1).append(',');
+				// signal end to begin, meters
+				int mm = s.SigEndOff - s.SigBegOff;
+				fixed(line, direct, mm, mm*0.001, 3, 2).append(',');
+				// height from the first Gaussian to the beginning of the waveform, then to the other Gaussians
+				int i_gpCntRngOff_0 = s.gpCntRngOff[0];
+				height(line, direct, i_gpCntRngOff_0 - s.SigBegOff);
 				for (int g=1; g<6; g++) {
-					int i_gpCntRngOff = glasFile.readInt();
 					// if bad, write a zero
-					if (i_gpCntRngOff==badInt || i_gpCntRngOff>0) {
-						lines[i] += 0 + ",";
+					if (s.gpCntRngOff[g]==badInt || s.gpCntRngOff[g]>0) {
+						line.append("0,");
 					}
-					else { // compute the height from the first Gaussian to this one
-						height = ((i_gpCntRngOff_0 - i_gpCntRngOff)*0.001);
-						lines[i] += (height < 0 ? 0 : String.format("%.2f", height)) +",";
+					else {
+						height(line, direct, i_gpCntRngOff_0 - s.gpCntRngOff[g]);
 					}
 				}
-			}
-			
-			// amplitude of Gaussian peaks
-			glasFile.skipBytes(5236-4552);
-			if (position) { System.out.println("Should be 5236: "+(glasFile.getFilePointer()-start)%recl); }
-			// i_Gamp 0.01 volts
-			for (int i=0; i<40; i++) {
 				for (int g=0; g<6; g++) {
-					int i_Gamp = glasFile.readInt();
-					if (i_Gamp==badInt) {
-						if (g==0) {
-							write[i] = false;
-						}
-						i_Gamp=0;
-					}
-					lines[i] += i_Gamp+",";
+					line.append(s.gAmp[g]).append(',');
 				}
-			}
-			
-			// area under Gaussian peaks
-			// i_Garea 0.01 volts * ns
-			for (int i=0; i<40; i++) {
 				for (int g=0; g<6; g++) {
-					int i_Garea = glasFile.readInt();
-					if (i_Garea==badInt) {
-						if (g==0) {
-							write[i] = false;
-						}
-						i_Garea=0;
-					}
-					lines[i] += i_Garea+",";
-				}
-			} // at 7156
-			
-			// skip the SD of Gaussians
-			glasFile.skipBytes(960);
-			// number of peaks
-			if (position) { System.out.println("Should be 8116: "+(glasFile.getFilePointer()-start)%recl); }
-			for (int i=0; i<40; i++) {
-				int i_nPeaks1 = glasFile.readUnsignedByte();
-				if (i_nPeaks1 < 1) {
-					if (error) { System.err.println("\t No peaks, i= "+i+": "+i_nPeaks1); }
-					write[i] = false; 
+					line.append(s.gArea[g]).append(',');
 				}
+				line.append('\n');
+				writer.append(line);
 			}
-			
-			// QA/QC SD of the land fit
-			if (position) { System.out.println("Should be 8156: "+(glasFile.getFilePointer()-start)%recl); }
-			for (int i=0; i<40; i++) {
-				int i_LandVar = glasFile.readUnsignedShort();
-				if (i_LandVar > 20000) { // anything close to the badShort is bad
-					if (error) { System.err.println("\t SD of land Gaussian fit too high, i= "+i+": "+i_LandVar); }
-					write[i] = false; 
-				}
-			}
-			
-			// QA/QC Saturation
-			glasFile.skipBytes(8708-8236);
-			if (position) { System.out.println("Should be 8708: "+(glasFile.getFilePointer()-start)%recl); }
-			for (int i=0; i<40; i++) {
-				int i_satCorrFlg = glasFile.readUnsignedByte();
-				// get low order nibble, 4 bits.
-				int loNibble = i_satCorrFlg & 0xf;
-				if (loNibble < 2) { } // ok
-				else if (loNibble == 2) { // correction needed
-					// do something??
-					//System.err.println("Saturation correction needed, i= "+i+": "+loNibble);
-				}
-				else { // saturated
-					write[i] = false; //don't use
-					if (error) { System.err.println("\t Saturated, i= "+i+": "+loNibble); }
-				}
-			}
-			
-			// QA/QC gain
-			glasFile.skipBytes(8908-8748);
-			if (position) { System.out.println("Should be 8908: "+(glasFile.getFilePointer()-start)%recl); }
-			for (int i=0; i<40; i++) {
-				int i_gval_rcv = glasFile.readUnsignedShort();
-				if (i_gval_rcv > 200) {
-					write[i] = false; // don't use
-					if (error) { System.err.println("\t Gain is too high, i= "+i+": "+i_gval_rcv); }
-				}
-			}
-			
-			// QA/QC clouds
-			// "i_FRir_qaFlag: obsolete in R33 with the introduction of the i_atm_char_flag" ??
-			glasFile.skipBytes(9148-8988);
-			if (position) { System.out.println("Should be 9148: "+(glasFile.getFilePointer()-start)%recl); }
-			int[] i_FRir_qaFlag = new int[40];
-			for (int i=0; i<40; i++) {
-				i_FRir_qaFlag[i] = glasFile.readUnsignedByte();
-			}
-			
-			// QA/QC atm corr
-			int i_atm_char_flag = glasFile.readUnsignedByte();
-			int i_atm_char_conf = glasFile.readUnsignedByte();
-			for (int i=0; i<40; i++) {
-				if (i_FRir_qaFlag[i] <= 12) { // clouds
-					if (i_atm_char_conf == 1) { // low confidence ATM corr
-						write[i] = false;
-						if (error) { System.err.println("\t Low confidence atmospheric correction, i= "+i+": "+i_atm_char_conf); }
-						continue;
-					}
-					// Not obvious whether shots should be thrown out based on optical depth.
-					if (i_atm_char_flag == 2 || i_atm_char_flag == 4 || i_atm_char_flag == 6 || i_atm_char_flag == 8) {
-						write[i] = false;
-						if (error) { System.err.println("\t High optical depth, i= "+i+": "+i_atm_char_flag); }
-					}
-				}
-			}
-			
-			// QA/QC snr
-			int[] i_maxRecAmp = new int[40];
-			glasFile.skipBytes(9434-9192);
-			if (position) { System.out.println("Should be 9434: "+(glasFile.getFilePointer()-start)%recl); }
-			for (int i=0; i<40; i++) {
-				i_maxRecAmp[i] = glasFile.readUnsignedShort(); // fill with signal
-			}
-			for (int i=0; i<40; i++) {
-				int noise = glasFile.readUnsignedShort();
-				// to prevent divide by zero, simply squash the SNR :: ERROR condition
-				if (noise == 0) {
-					noise = Integer.MAX_VALUE;
-					if (error) { System.err.println ("\t zero noise, i= "+i+": "+noise); }
-				}
-				double snr = i_maxRecAmp[i]/noise; // divide by noise
-				//System.out.println ("SNR, i= "+i+": "+snr);
-				if (snr < 20) { // sort of arbitrary snr threshold
-					write[i] = false; // don't use
-					if (error) { System.err.println ("\t SNR too low, i= "+i+": "+snr); }
-				}
-			}
-			
-			// skip to end of record
-			glasFile.skipBytes((int)(recl-(glasFile.getFilePointer()-start)%recl));
-			
-			// write
-			for (int l=0; l<40; l++) {
-				if (write[l]) {
-					//System.out.println(lines[l]);
-					writer.write(lines[l]+"\n");
-				}
-			}
-		} // end while
-		writer.close();
+		} finally {
+			shots.close();
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Meters, zero if negative.
+	 */
+	private static void height(StringBuilder line, boolean direct, int mm) {
+		if (mm < 0) {
+			line.append("0,");
+		}
+		else {
+			fixed(line, direct, mm, mm*0.001, 3, 2).append(',');
+		}
+	}
+	
+	private static final long[] POW10 = {1, 10, 100, 1000, 10000, 100000, 1000000};
+	
+	/**
+	 * Append value/10^scale with the given number of digits, as String.format("%.<digits>f", scaled)
+	 * would, without parsing a format for every value.
+	 * @param direct false to always use String.format(), e.g. for a locale with a decimal comma
+	 * @param value the integer in the file
+	 * @param scaled value*10^-scale, as computed for String.format()
+	 */
+	private static StringBuilder fixed(StringBuilder line, boolean direct, int value, double scaled, int scale, int digits) {
+		long mag = Math.abs((long) value);
+		long div = POW10[scale-digits];
+		if (!direct || (div > 1 && mag % div == div/2)) {
+			// or a tie, which String.format() rounds by the decimal digits of the double
+			return line.append(String.format("%."+digits+"f", scaled));
+		}
+		long r = (mag + div/2) / div;
+		if (value < 0) {
+			line.append('-');
+		}
+		long p = POW10[digits];
+		line.append(r / p);
+		if (digits > 0) {
+			line.append('.');
+			long f = r % p;
+			for (long q = p/10; q > 1 && f < q; q /= 10) {
+				line.append('0');
+			}
+			line.append(f);
+		}
+		return line;
 	}
 	
 	/**
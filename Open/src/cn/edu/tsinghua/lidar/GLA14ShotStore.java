@@ -0,0 +1,469 @@
+package cn.edu.tsinghua.lidar;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
+
+/**
+ * Decoded shots in columns, in a binary file, instead of the text of a GLA14Reader table.
+ *
+ * The columns are those of the table, as integers: micro-degrees, mm, 0.01 volts (*ns).  The
+ * shots are in chunks of CHUNK.  Each chunk is one int array per column, and the directory at
+ * the end of the file has the offset, the number of shots and the min and max of every column
+ * of each chunk.  A chunk is memory mapped when it's read, so a scan of a latitude band only
+ * reads the chunks whose min and max latitudes overlap it.  Shots are in the order of the orbit,
+ * so the chunks are short stretches of latitude.
+ *
+ * Layout, big endian: MAGIC, VERSION, COLUMNS, CHUNK, number of shots (long), number of
+ * chunks, directory offset (long), the chunks, the directory.
+ *
+ * @author nclinton
+ */
+public class GLA14ShotStore implements Closeable {
+
+	public static final String EXTENSION = ".shots";
+
+	public static final int REC_NDX = 0;
+	// micro-degrees
+	public static final int LAT = 1;
+	public static final int LON = 2;
+	// mm
+	public static final int ELEV = 3;
+	public static final int SIG_END_OFF = 4;
+	public static final int SIG_BEG_HT = 5;
+	// mm, gpCntRngOff2 to gpCntRngOff6, 0 if none
+	public static final int GP_CNT_RNG_OFF = 6;
+	// 0.01 volts, gAmp1 to gAmp6
+	public static final int G_AMP = 11;
+	// 0.01 volts * ns, gArea1 to gArea6
+	public static final int G_AREA = 17;
+	public static final int COLUMNS = 23;
+
+	// shots per chunk
+	public static final int CHUNK = 1 << 16;
+
+	private static final int MAGIC = 0x474c3134; // "GL14"
+	private static final int VERSION = 1;
+	private static final int HEADER = 36;
+	private static final int ENTRY = 12 + 8*COLUMNS;
+
+	/**
+	 * Writes shots to a store, a chunk at a time.
+	 */
+	public static class Writer implements Closeable {
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final int[][] columns = new int[COLUMNS][CHUNK];
+		private final ByteBuffer buffer = ByteBuffer.allocate(4*CHUNK).order(ByteOrder.BIG_ENDIAN);
+		private int n; // shots in the chunk
+		private long numShots;
+		// {offset, count, mins, maxes} of each chunk
+		private ByteBuffer directory = ByteBuffer.allocate(64*ENTRY).order(ByteOrder.BIG_ENDIAN);
+		private int numChunks;
+
+		/**
+		 * @param storeName overwritten if it exists
+		 * @throws IOException
+		 */
+		public Writer(String storeName) throws IOException {
+			file = new RandomAccessFile(storeName, "rw");
+			file.setLength(0);
+			channel = file.getChannel();
+			channel.position(HEADER);
+		}
+
+		/**
+		 * @param row a value for each column
+		 * @throws IOException
+		 */
+		public void add(int[] row) throws IOException {
+			for (int c=0; c<COLUMNS; c++) {
+				columns[c][n] = row[c];
+			}
+			if (++n == CHUNK) {
+				flush();
+			}
+		}
+
+		/**
+		 * Add a shot, with the heights of GLA14Reader.writeCSV().
+		 * @param s
+		 * @throws IOException
+		 */
+		public void add(GLA14Decoder.Shot s) throws IOException {
+			int[] row = new int[COLUMNS];
+			row[REC_NDX] = s.rec_ndx;
+			row[LAT] = s.lat;
+			row[LON] = s.lon;
+			row[ELEV] = s.elev;
+			row[SIG_END_OFF] = s.SigEndOff - s.SigBegOff;
+			// heights relative to the first Gaussian, zero if negative
+			row[SIG_BEG_HT] = Math.max(0, s.gpCntRngOff[0] - s.SigBegOff);
+			for (int g=1; g<6; g++) {
+				if (s.gpCntRngOff[g]!=GLA14Reader.badInt && s.gpCntRngOff[g]<=0) {
+					row[GP_CNT_RNG_OFF+g-1] = Math.max(0, s.gpCntRngOff[0] - s.gpCntRngOff[g]);
+				}
+			}
+			for (int g=0; g<6; g++) {
+				row[G_AMP+g] = s.gAmp[g];
+				row[G_AREA+g] = s.gArea[g];
+			}
+			add(row);
+		}
+
+		private void flush() throws IOException {
+			if (n == 0) {
+				return;
+			}
+			if (directory.remaining() < ENTRY) {
+				directory = ByteBuffer.allocate(2*directory.capacity()).order(ByteOrder.BIG_ENDIAN).put((ByteBuffer) directory.flip());
+			}
+			directory.putLong(channel.position());
+			directory.putInt(n);
+			int[] min = new int[COLUMNS];
+			int[] max = new int[COLUMNS];
+			for (int c=0; c<COLUMNS; c++) {
+				min[c] = Integer.MAX_VALUE;
+				max[c] = Integer.MIN_VALUE;
+				buffer.clear();
+				for (int i=0; i<n; i++) {
+					int v = columns[c][i];
+					min[c] = Math.min(min[c], v);
+					max[c] = Math.max(max[c], v);
+					buffer.putInt(v);
+				}
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+			for (int c=0; c<COLUMNS; c++) {
+				directory.putInt(min[c]);
+			}
+			for (int c=0; c<COLUMNS; c++) {
+				directory.putInt(max[c]);
+			}
+			numShots += n;
+			numChunks++;
+			n = 0;
+		}
+
+		/**
+		 * Write the last chunk, the directory and the header.
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+				long dirOffset = channel.position();
+				directory.flip();
+				while (directory.hasRemaining()) {
+					channel.write(directory);
+				}
+				ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.BIG_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION).putInt(COLUMNS).putInt(CHUNK);
+				header.putLong(numShots).putInt(numChunks).putLong(dirOffset);
+				header.flip();
+				channel.position(0);
+				while (header.hasRemaining()) {
+					channel.write(header);
+				}
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * Store the shots of a decoder.
+	 * @param shots closed when written
+	 * @param storeName
+	 * @throws IOException
+	 */
+	public static void write(GLA14Decoder shots, String storeName) throws IOException {
+		Writer writer = new Writer(storeName);
+		try {
+			while (shots.hasNext()) {
+				writer.add(shots.next());
+			}
+		} finally {
+			shots.close();
+			writer.close();
+		}
+	}
+
+	/**
+	 * Store the shots of a table written by GLA14Reader or GLA14Overlay.  Only the first 23
+	 * columns are read.  Lines that can't be parsed are skipped.
+	 * @param csvName
+	 * @param storeName
+	 * @throws IOException
+	 */
+	public static void fromCSV(String csvName, String storeName) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(csvName));
+		Writer writer = new Writer(storeName);
+		try {
+			int[] row = new int[COLUMNS];
+			// skip the header
+			String line = reader.readLine();
+			while ((line = reader.readLine()) != null) {
+				try {
+					String[] toks = line.split(",");
+					row[REC_NDX] = Integer.parseInt(toks[0]);
+					row[LAT] = (int) Math.round(Double.parseDouble(toks[1])*1e6);
+					row[LON] = (int) Math.round(Double.parseDouble(toks[2])*1e6);
+					for (int c=ELEV; c<G_AMP; c++) {
+						row[c] = (int) Math.round(Double.parseDouble(toks[c])*1e3);
+					}
+					for (int c=G_AMP; c<COLUMNS; c++) {
+						row[c] = Integer.parseInt(toks[c]);
+					}
+					writer.add(row);
+				} catch (Exception e) {
+					System.err.println("Skipping "+line+": "+e);
+				}
+			}
+		} finally {
+			reader.close();
+			writer.close();
+		}
+	}
+
+	private final String storeName;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long numShots;
+	private final long[] offsets;
+	private final int[] counts;
+	private final int[][] mins;
+	private final int[][] maxes;
+	private MappedByteBuffer mapped;
+	private int mappedChunk = -1;
+
+	/**
+	 * Read the header and the directory of a store.
+	 * @param storeName
+	 * @throws IOException if it isn't a store
+	 */
+	public GLA14ShotStore(String storeName) throws IOException {
+		this.storeName = storeName;
+		file = new RandomAccessFile(storeName, "r");
+		try {
+			channel = file.getChannel();
+			ByteBuffer header = read(0, HEADER);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION
+					|| header.getInt() != COLUMNS || header.getInt() != CHUNK) {
+				throw new IOException("Not a shot store: "+storeName);
+			}
+			numShots = header.getLong();
+			int numChunks = header.getInt();
+			ByteBuffer directory = read(header.getLong(), numChunks*ENTRY);
+			offsets = new long[numChunks];
+			counts = new int[numChunks];
+			mins = new int[numChunks][COLUMNS];
+			maxes = new int[numChunks][COLUMNS];
+			for (int k=0; k<numChunks; k++) {
+				offsets[k] = directory.getLong();
+				counts[k] = directory.getInt();
+				for (int c=0; c<COLUMNS; c++) {
+					mins[k][c] = directory.getInt();
+				}
+				for (int c=0; c<COLUMNS; c++) {
+					maxes[k][c] = directory.getInt();
+				}
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.BIG_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Truncated shot store: "+storeName);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	public long getNumShots() {
+		return numShots;
+	}
+
+	public int getNumChunks() {
+		return counts.length;
+	}
+
+	/**
+	 * @param chunk
+	 * @return the number of shots in the chunk
+	 */
+	public int getCount(int chunk) {
+		return counts[chunk];
+	}
+
+	/**
+	 * @param chunk
+	 * @param column e.g. LAT
+	 * @return the smallest value of the column in the chunk
+	 */
+	public int getMin(int chunk, int column) {
+		return mins[chunk][column];
+	}
+
+	/**
+	 * @param chunk
+	 * @param column e.g. LAT
+	 * @return the largest value of the column in the chunk
+	 */
+	public int getMax(int chunk, int column) {
+		return maxes[chunk][column];
+	}
+
+	/**
+	 * @param chunk
+	 * @param minLat degrees
+	 * @param maxLat degrees
+	 * @return whether any shot of the chunk could be in [minLat, maxLat]
+	 */
+	public boolean overlaps(int chunk, double minLat, double maxLat) {
+		return maxes[chunk][LAT]/1e6 >= minLat && mins[chunk][LAT]/1e6 <= maxLat;
+	}
+
+	/**
+	 * @param chunk
+	 * @param column e.g. LAT
+	 * @return the values of the column in the chunk
+	 * @throws IOException
+	 */
+	public int[] column(int chunk, int column) throws IOException {
+		if (mappedChunk != chunk) {
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, offsets[chunk], 4L*COLUMNS*counts[chunk]);
+			mappedChunk = chunk;
+		}
+		int[] values = new int[counts[chunk]];
+		mapped.position(4*column*counts[chunk]);
+		mapped.asIntBuffer().get(values);
+		return values;
+	}
+
+	/**
+	 * @param chunk
+	 * @return column(chunk, c) for every column
+	 * @throws IOException
+	 */
+	public int[][] chunk(int chunk) throws IOException {
+		int[][] columns = new int[COLUMNS][];
+		for (int c=0; c<COLUMNS; c++) {
+			columns[c] = column(chunk, c);
+		}
+		return columns;
+	}
+
+	/**
+	 * The shots in a band of latitude.  Chunks outside the band aren't read.  The store is
+	 * closed when they have all been returned, or when they are closed.
+	 * @param minLat degrees
+	 * @param maxLat degrees
+	 * @return the shots with minLat <= lat <= maxLat, in the order they were stored
+	 */
+	public GLA14shot.Shots shots(final double minLat, final double maxLat) {
+		return new GLA14shot.Shots() {
+			private int chunk = -1;
+			private int[][] columns;
+			private int i;
+			private int next = -1;
+
+			@Override
+			public boolean hasNext() {
+				try {
+					while (next < 0) {
+						if (columns != null && i < columns[LAT].length) {
+							double lat = columns[LAT][i]/1e6;
+							if (lat >= minLat && lat <= maxLat) {
+								next = i;
+							}
+							i++;
+							continue;
+						}
+						columns = null;
+						do {
+							chunk++;
+						} while (chunk < counts.length && !overlaps(chunk, minLat, maxLat));
+						if (chunk >= counts.length) {
+							GLA14ShotStore.this.close();
+							return false;
+						}
+						columns = chunk(chunk);
+						i = 0;
+					}
+					return true;
+				} catch (IOException e) {
+					throw new RuntimeException("Can't read "+storeName, e);
+				}
+			}
+
+			@Override
+			public GLA14shot next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				GLA14shot shot = new GLA14shot(columns, next);
+				next = -1;
+				return shot;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() throws IOException {
+				chunk = counts.length;
+				columns = null;
+				GLA14ShotStore.this.close();
+			}
+		};
+	}
+
+	/**
+	 * Unmapping is left to the garbage collector.
+	 */
+	@Override
+	public void close() throws IOException {
+		mapped = null;
+		mappedChunk = -1;
+		file.close();
+	}
+
+	/**
+	 * @param args is a String array (space separated strings) or arguments
+	 * 			args[0] is the full path of a table written by GLA14Reader or GLA14Overlay
+	 * 			args[1] is the full path of the store, usually ending in EXTENSION
+	 */
+	public static void main(String[] args) {
+		try {
+			fromCSV(args[0], args[1]);
+			GLA14ShotStore store = new GLA14ShotStore(args[1]);
+			System.out.println(store.getNumShots()+" shots in "+store.getNumChunks()+" chunks");
+			for (int k=0; k<store.getNumChunks(); k++) {
+				System.out.println("\t"+k+": "+store.getCount(k)+" shots, lat "
+						+store.getMin(k, LAT)/1e6+" to "+store.getMax(k, LAT)/1e6);
+			}
+			store.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -3,10 +3,8 @@
  */
 package cn.edu.tsinghua.lidar;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.util.Calendar;
 import java.util.Enumeration;
@@ -24,6 +22,7 @@ import com.berkenviro.imageprocessing.JAIUtils;
  * This class summarizes shots within pixels of the supplied image, writing various tables
  * of the averaged parameters of choice. The various methods average different things.  Uses 
  * a Hashtable to store a GLA14Summarizer.Pixel key with a double[][] of the interesting parameters.
+ * The files are tables of shots, or GLA14ShotStores, which are read much faster (see GLA14shot.read()).
  *
  */
 public class GLA14Summarizer {
@@ -62,36 +61,36 @@ public class GLA14Summarizer {
 		// iterate over the input files
 		for (int f=0; f<files.length; f++) {
 			System.out.println("Processing file "+files[f].getName());
-			BufferedReader reader = new BufferedReader(new FileReader(files[f]));
-			// skip the header
-			String line = reader.readLine();
-			while ((line = reader.readLine()) != null) {
-				try {
-					GLA14shot shot = new GLA14shot(line);
-					// don't bother with high latitudes
-					if (shot.lat < -60.0 || shot.lat > 70) { continue; }
-					
-					// get the pixel coordinates
-					int[] pixelXY = JAIUtils.getPixelXY(new double[] {shot.lon, shot.lat}, image);
-					Pixel pixel = new Pixel();
-					pixel.x = pixelXY[0];
-					pixel.y = pixelXY[1];
-					double[][] vals;
-					if (pixels.containsKey(pixel)) {
-						//System.out.println("Yay! I found "+pixel);
-						vals = pixels.get(pixel);
+			// don't bother with high latitudes
+			GLA14shot.Shots shots = GLA14shot.read(files[f], -60.0, 70.0);
+			try {
+				while (shots.hasNext()) {
+					try {
+						GLA14shot shot = shots.next();
+						
+						// get the pixel coordinates
+						int[] pixelXY = JAIUtils.getPixelXY(new double[] {shot.lon, shot.lat}, image);
+						Pixel pixel = new Pixel();
+						pixel.x = pixelXY[0];
+						pixel.y = pixelXY[1];
+						double[][] vals;
+						if (pixels.containsKey(pixel)) {
+							//System.out.println("Yay! I found "+pixel);
+							vals = pixels.get(pixel);
+						}
+						else {
+							vals = new double[2][files.length];
+							pixels.put(pixel, vals);
+						}
+						vals[0][f]++;
+						vals[1][f]+=shot.SigBegHt;
+					} catch (Exception e) {
+						e.printStackTrace();
 					}
-					else {
-						vals = new double[2][files.length];
-						pixels.put(pixel, vals);
-					}
-					vals[0][f]++;
-					vals[1][f]+=shot.SigBegHt;
-				} catch (Exception e) {
-					e.printStackTrace();
 				}
+			} finally {
+				shots.close();
 			}
-		reader.close();
 		}
 	}
 	
@@ -135,69 +134,69 @@ public class GLA14Summarizer {
 		// iterate over the input files
 		for (int f=0; f<files.length; f++) {
 			System.out.println("Processing file "+files[f].getName());
-			BufferedReader reader = new BufferedReader(new FileReader(files[f]));
-			// skip the header
-			String line = reader.readLine();
-			while ((line = reader.readLine()) != null) {
-				try {
-					
-					GLA14shot shot = new GLA14shot(line);
-					// don't bother with high latitudes
-					if (shot.lat < -60.0 || shot.lat > 70) { continue; }
+			// don't bother with high latitudes
+			GLA14shot.Shots shots = GLA14shot.read(files[f], -60.0, 70.0);
+			try {
+				while (shots.hasNext()) {
+					try {
+						
+						GLA14shot shot = shots.next();
 
-					// get the pixel coordinates
-					int[] pixelXY = JAIUtils.getPixelXY(new double[] {shot.lon, shot.lat}, image);
-					Pixel pixel = new Pixel();
-					pixel.x = pixelXY[0];
-					pixel.y = pixelXY[1];
-					
-					// vals is the array of running sums
-					double[][] vals;
-					if (pixels.containsKey(pixel)) {
-						//System.out.println("Yay! I found "+pixel);
-						vals = pixels.get(pixel);
-					}
-					else {
-						// column 1 is n, column 2 is parameter sum, column 3 is sum of weights
-						vals = new double[3][7];
-						pixels.put(pixel, vals);
+						// get the pixel coordinates
+						int[] pixelXY = JAIUtils.getPixelXY(new double[] {shot.lon, shot.lat}, image);
+						Pixel pixel = new Pixel();
+						pixel.x = pixelXY[0];
+						pixel.y = pixelXY[1];
+						
+						// vals is the array of running sums
+						double[][] vals;
+						if (pixels.containsKey(pixel)) {
+							//System.out.println("Yay! I found "+pixel);
+							vals = pixels.get(pixel);
+						}
+						else {
+							// column 1 is n, column 2 is parameter sum, column 3 is sum of weights
+							vals = new double[3][7];
+							pixels.put(pixel, vals);
+						}
+						
+						// these will always exist, no weight possible
+						vals[0][0]++;
+						vals[1][0]+=shot.SigBegHt;
+						// the following may or may not exist
+						// top
+						vals[0][1]+=shot.hasTop();
+						vals[1][1]+=shot.getTop();
+						vals[2][1]+=shot.topWeight();
+						// second
+						vals[0][2]+=shot.hasSecond();
+						vals[1][2]+=shot.getSecond();
+						vals[2][2]+=shot.secondWeight();
+						// third
+						vals[0][3]+=shot.hasThird();
+						vals[1][3]+=shot.getThird();
+						vals[2][3]+=shot.thirdWeight();
+						// weighted
+						// top
+						vals[0][4]+=shot.hasTop();
+						vals[1][4]+=shot.getTop()*shot.topWeight();
+						vals[2][4]+=shot.topWeight();
+						// second
+						vals[0][5]+=shot.hasSecond();
+						vals[1][5]+=shot.getSecond()*shot.secondWeight();
+						vals[2][5]+=shot.secondWeight();
+						// third
+						vals[0][6]+=shot.hasThird();
+						vals[1][6]+=shot.getThird()*shot.thirdWeight();
+						vals[2][6]+=shot.thirdWeight();
+						
+					} catch (Exception e) {
+						e.printStackTrace();
 					}
-					
-					// these will always exist, no weight possible
-					vals[0][0]++;
-					vals[1][0]+=shot.SigBegHt;
-					// the following may or may not exist
-					// top
-					vals[0][1]+=shot.hasTop();
-					vals[1][1]+=shot.getTop();
-					vals[2][1]+=shot.topWeight();
-					// second
-					vals[0][2]+=shot.hasSecond();
-					vals[1][2]+=shot.getSecond();
-					vals[2][2]+=shot.secondWeight();
-					// third
-					vals[0][3]+=shot.hasThird();
-					vals[1][3]+=shot.getThird();
-					vals[2][3]+=shot.thirdWeight();
-					// weighted
-					// top
-					vals[0][4]+=shot.hasTop();
-					vals[1][4]+=shot.getTop()*shot.topWeight();
-					vals[2][4]+=shot.topWeight();
-					// second
-					vals[0][5]+=shot.hasSecond();
-					vals[1][5]+=shot.getSecond()*shot.secondWeight();
-					vals[2][5]+=shot.secondWeight();
-					// third
-					vals[0][6]+=shot.hasThird();
-					vals[1][6]+=shot.getThird()*shot.thirdWeight();
-					vals[2][6]+=shot.thirdWeight();
-					
-				} catch (Exception e) {
-					e.printStackTrace();
 				}
+			} finally {
+				shots.close();
 			}
-		reader.close();
 		}
 	}
 	
@@ -271,68 +270,68 @@ public class GLA14Summarizer {
 		// iterate over the input files
 		for (int f=0; f<files.length; f++) {
 			System.out.println("Processing file "+files[f].getName());
-			BufferedReader reader = new BufferedReader(new FileReader(files[f]));
-			// skip the header
-			String line = reader.readLine();
-			while ((line = reader.readLine()) != null) {
-				try {
-					GLA14shot shot = new GLA14shot(line);
-					// don't bother with high latitudes
-					if (shot.lat < -60.0 || shot.lat > 70) { continue; }
-					//System.out.println("lat "+shot.lat+" lon "+shot.lon);
-					// get the pixel coordinates
-					int[] pixelXY = JAIUtils.getPixelXY(new double[] {shot.lon<0 ? shot.lon+360 : shot.lon, shot.lat}, image);
-					Pixel pixel = new Pixel();
-					pixel.x = pixelXY[0];
-					pixel.y = pixelXY[1];
-					pixel.id = iter.getSample(pixel.x, pixel.y, 0);
-					
-					double[][] vals;
-					if (pixels.containsKey(pixel)) {
-						//System.out.println("Yay! I found "+pixel);
-						vals = pixels.get(pixel);
-					}
-					else {
-						vals = new double[2][6];
-						pixels.put(pixel, vals);
-					}
-					
-					// retrieval of lidar parameters /*******************/
-					if (shot.SigBegHt != 0) {
-						vals[1][0]+=shot.SigBegHt;
-						vals[0][0]++;
-					}
-					double ht1 = shot.getWeightedHt1();
-					if(ht1 != 0) {
-						vals[1][1]+=ht1;
-						vals[0][1]++;
-					}
-					double ht2 = shot.getWeightedHt2();
-					if (ht2 != 0) {
-						vals[1][2]+=ht2;
-						vals[0][2]++;
-					}
-					double density = shot.getDensity();
-					if (density != 0) {
-						vals[1][3]+=density;
-						vals[0][3]++;
-					}
-					double hw1 = shot.hw1();
-					if (hw1 != 0) {
-						vals[1][4]+=hw1;
-						vals[0][4]++;
-					}
-					double hw2 = shot.hw2();
-					if (hw2 != 0) {
-						vals[1][5]+=hw2;
-						vals[0][5]++;
+			// don't bother with high latitudes
+			GLA14shot.Shots shots = GLA14shot.read(files[f], -60.0, 70.0);
+			try {
+				while (shots.hasNext()) {
+					try {
+						GLA14shot shot = shots.next();
+						//System.out.println("lat "+shot.lat+" lon "+shot.lon);
+						// get the pixel coordinates
+						int[] pixelXY = JAIUtils.getPixelXY(new double[] {shot.lon<0 ? shot.lon+360 : shot.lon, shot.lat}, image);
+						Pixel pixel = new Pixel();
+						pixel.x = pixelXY[0];
+						pixel.y = pixelXY[1];
+						pixel.id = iter.getSample(pixel.x, pixel.y, 0);
+						
+						double[][] vals;
+						if (pixels.containsKey(pixel)) {
+							//System.out.println("Yay! I found "+pixel);
+							vals = pixels.get(pixel);
+						}
+						else {
+							vals = new double[2][6];
+							pixels.put(pixel, vals);
+						}
+						
+						// retrieval of lidar parameters /*******************/
+						if (shot.SigBegHt != 0) {
+							vals[1][0]+=shot.SigBegHt;
+							vals[0][0]++;
+						}
+						double ht1 = shot.getWeightedHt1();
+						if(ht1 != 0) {
+							vals[1][1]+=ht1;
+							vals[0][1]++;
+						}
+						double ht2 = shot.getWeightedHt2();
+						if (ht2 != 0) {
+							vals[1][2]+=ht2;
+							vals[0][2]++;
+						}
+						double density = shot.getDensity();
+						if (density != 0) {
+							vals[1][3]+=density;
+							vals[0][3]++;
+						}
+						double hw1 = shot.hw1();
+						if (hw1 != 0) {
+							vals[1][4]+=hw1;
+							vals[0][4]++;
+						}
+						double hw2 = shot.hw2();
+						if (hw2 != 0) {
+							vals[1][5]+=hw2;
+							vals[0][5]++;
+						}
+						
+					} catch (Exception e) {
+						e.printStackTrace();
 					}
-					
-				} catch (Exception e) {
-					e.printStackTrace();
 				}
+			} finally {
+				shots.close();
 			}
-		reader.close();
 		}
 	}
 	
@@ -3,6 +3,14 @@
  */
 package cn.edu.tsinghua.lidar;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
 /**
  * @author Nicholas
  *
@@ -78,6 +86,126 @@ public class GLA14shot {
 		third = third();
 	}
 	
+	/**
+	 * Initialize with a shot of a GLA14ShotStore.
+	 * @param columns of a chunk
+	 * @param i the shot in the chunk
+	 */
+	public GLA14shot(int[][] columns, int i) {
+		rec_ndx = columns[GLA14ShotStore.REC_NDX][i];
+		lat = columns[GLA14ShotStore.LAT][i]/1e6;
+		lon = columns[GLA14ShotStore.LON][i]/1e6;
+		// convert to [-180, 180] scale
+		if (lon > 180.0) { lon = lon-360.0; }
+		
+		elev = columns[GLA14ShotStore.ELEV][i]/1e3;
+		SigEndOff = columns[GLA14ShotStore.SIG_END_OFF][i]/1e3;
+		SigBegHt = columns[GLA14ShotStore.SIG_BEG_HT][i]/1e3;
+		heights = new double[6]; // heights[0] is the dummy placeholder
+		amplitudes = new double[6];
+		areas = new double[6];
+		for (int g=0; g<6; g++) {
+			if (g > 0) {
+				heights[g] = columns[GLA14ShotStore.GP_CNT_RNG_OFF+g-1][i]/1e3;
+			}
+			amplitudes[g] = columns[GLA14ShotStore.G_AMP+g][i];
+			areas[g] = columns[GLA14ShotStore.G_AREA+g][i];
+		}
+		
+		top = top();
+		second = second();
+		third = third();
+	}
+	
+	/**
+	 * Shots read from a file, which is closed when they have all been returned.  Close them
+	 * to stop reading early.
+	 */
+	public interface Shots extends Iterator<GLA14shot>, Closeable {
+	}
+	
+	/**
+	 * The shots of a table written by GLA14Reader or GLA14Overlay, or of a GLA14ShotStore if the
+	 * name ends with GLA14ShotStore.EXTENSION.  A line that can't be parsed is thrown by next(),
+	 * after which the rest can still be read.
+	 * @param file
+	 * @param minLat degrees
+	 * @param maxLat degrees
+	 * @return the shots with minLat <= lat <= maxLat, in the order of the file, to be closed in a finally
+	 * @throws IOException
+	 */
+	public static Shots read(File file, final double minLat, final double maxLat) throws IOException {
+		if (file.getName().endsWith(GLA14ShotStore.EXTENSION)) {
+			return new GLA14ShotStore(file.getPath()).shots(minLat, maxLat);
+		}
+		final BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			// skip the header
+			reader.readLine();
+		} catch (IOException e) {
+			reader.close();
+			throw e;
+		}
+		return new Shots() {
+			private GLA14shot next;
+			private RuntimeException bad;
+			private boolean done;
+
+			@Override
+			public boolean hasNext() {
+				try {
+					while (next == null && bad == null && !done) {
+						String line = reader.readLine();
+						if (line == null) {
+							reader.close();
+							done = true;
+							break;
+						}
+						try {
+							GLA14shot shot = new GLA14shot(line);
+							if (shot.lat >= minLat && shot.lat <= maxLat) {
+								next = shot;
+							}
+						} catch (RuntimeException e) {
+							bad = e;
+						}
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				return next != null || bad != null;
+			}
+
+			@Override
+			public GLA14shot next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				if (bad != null) {
+					RuntimeException e = bad;
+					bad = null;
+					throw e;
+				}
+				GLA14shot shot = next;
+				next = null;
+				return shot;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() throws IOException {
+				next = null;
+				bad = null;
+				done = true;
+				reader.close();
+			}
+		};
+	}
+	
 	private int top() {
 		for (int i=5; i>0; i--) {
 			if(heights[i] != 0) {
@@ -106,6 +234,16 @@ public class GLA14shot {
 	}
 
 	public void print() {
+		if (toks == null) { // from a store
+			toks = new String[] {String.valueOf(rec_ndx), String.valueOf(lat), String.valueOf(lon),
+					String.valueOf(elev), String.valueOf(SigEndOff), String.valueOf(SigBegHt),
+					String.valueOf(heights[1]), String.valueOf(heights[2]), String.valueOf(heights[3]),
+					String.valueOf(heights[4]), String.valueOf(heights[5]),
+					String.valueOf(amplitudes[0]), String.valueOf(amplitudes[1]), String.valueOf(amplitudes[2]),
+					String.valueOf(amplitudes[3]), String.valueOf(amplitudes[4]), String.valueOf(amplitudes[5]),
+					String.valueOf(areas[0]), String.valueOf(areas[1]), String.valueOf(areas[2]),
+					String.valueOf(areas[3]), String.valueOf(areas[4]), String.valueOf(areas[5])};
+		}
 		String[] head = header.split(",");
 		for (int s=4; s<head.length; s++) {
 			System.out.print(head[s]+"\t");
@@ -3,9 +3,7 @@
  */
 package cn.edu.tsinghua.lidar;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -94,52 +92,50 @@ public class Glas2KML {
 		
 	/**
 	 * 
-	 * @param file
+	 * @param csvName a table written by GLA14Reader, or a GLA14ShotStore
 	 * @throws Exception
 	 */
 	public void processFile(String csvName) throws Exception {
 		File file = new File(csvName);
-		BufferedReader reader = new BufferedReader(new FileReader(file));
-		// skip the header
-		String line = reader.readLine();
-		while ((line = reader.readLine()) != null) {
-			try {
-				/*
-				 * 0       1   2   3    4         5        6            7            8            9            10           11    12    13    14    15    16    17     18     19     20     21     22
-				 * rec_ndx,lat,lon,elev,SigEndOff,SigBegHt,gpCntRngOff2,gpCntRngOff3,gpCntRngOff4,gpCntRngOff5,gpCntRngOff6,gAmp1,gAmp2,gAmp3,gAmp4,gAmp5,gAmp6,gArea1,gArea2,gArea3,gArea4,gArea5,gArea6
-				 */
-				String[] toks = line.split(",");
-				double rec_ndx = Double.parseDouble(toks[0]);
-				double lat = Double.parseDouble(toks[1]);
-				double lon = Double.parseDouble(toks[2]);
-				double height = Double.parseDouble(toks[5]);
-				List<Coordinate> outercoord = linearRing(lat, lon, height);
-				
-				final Placemark placemark = new Placemark();
-				document.getFeature().add(placemark);
-				placemark.setStyleUrl("#PolyStyle");
-				placemark.setName("rec_ndx: "+rec_ndx);
-				placemark.setDescription("Height: "+height+" meters");
-				
-				final Polygon polygon = new Polygon();
-				placemark.setGeometry(polygon);
+		GLA14shot.Shots shots = GLA14shot.read(file, -90.0, 90.0);
+		try {
+			while (shots.hasNext()) {
+				try {
+					GLA14shot shot = shots.next();
+					double rec_ndx = shot.rec_ndx;
+					double lat = shot.lat;
+					// back to [0, 360], as in the table
+					double lon = shot.lon<0 ? shot.lon+360 : shot.lon;
+					double height = shot.SigBegHt;
+					List<Coordinate> outercoord = linearRing(lat, lon, height);
+					
+					final Placemark placemark = new Placemark();
+					document.getFeature().add(placemark);
+					placemark.setStyleUrl("#PolyStyle");
+					placemark.setName("rec_ndx: "+rec_ndx);
+					placemark.setDescription("Height: "+height+" meters");
+					
+					final Polygon polygon = new Polygon();
+					placemark.setGeometry(polygon);
 
-				polygon.setExtrude(true);
-				polygon.setAltitudeMode(AltitudeMode.RELATIVE_TO_GROUND);
+					polygon.setExtrude(true);
+					polygon.setAltitudeMode(AltitudeMode.RELATIVE_TO_GROUND);
 
-				final Boundary outerboundary = new Boundary();
-				polygon.setOuterBoundaryIs(outerboundary);
+					final Boundary outerboundary = new Boundary();
+					polygon.setOuterBoundaryIs(outerboundary);
 
-				final LinearRing outerlinearring = new LinearRing();
-				outerboundary.setLinearRing(outerlinearring);
+					final LinearRing outerlinearring = new LinearRing();
+					outerboundary.setLinearRing(outerlinearring);
 
-				outerlinearring.setCoordinates(outercoord);	
-				
-			} catch (Exception e) {
-				e.printStackTrace();
+					outerlinearring.setCoordinates(outercoord);	
+					
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
 			}
+		} finally {
+			shots.close();
 		}
-		reader.close();
 	}
 	/**
 	 * @param args
@@ -31,6 +31,7 @@ import cn.edu.tsinghua.timeseries.DatedQCImage;
 import cn.edu.tsinghua.timeseries.ImageLoadr2;
 
 import com.berkenviro.gis.GISUtils;
+import com.berkenviro.gis.PolygonRasterizer;
 import com.berkenviro.imageprocessing.GDALUtils;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
@@ -82,53 +83,56 @@ public class PCA {
 		int threads = Runtime.getRuntime().availableProcessors()-1;
 		ExecutorService service = Executors.newFixedThreadPool(threads);
 		// Give it to a completion service
-		CompletionService<Boolean> ecs = new ExecutorCompletionService<Boolean>(service);
+		CompletionService<double[]> ecs = new ExecutorCompletionService<double[]>(service);
 		
-		// iterate over pixels in the bounding box
+		// iterate over pixels in the polygon
+		int[][] spans = PolygonRasterizer.spans(poly, GDALUtils.raster2proj(image), minX, minY, maxX, maxY);
 		int count = 0;
-		for (int x=minX; x<=maxX; x++) {
-			for (int y=minY; y<=maxY; y++) {
-				try {
-					// pixel centroid in projected coords
-					double[] coords = GDALUtils.getProjectedXY(new int[] {x, y}, image);
-					final Point pt = GISUtils.makePoint(coords[0], coords[1]);
-					if (poly.intersects(pt)) {
+		for (int y=minY; y<=maxY; y++) {
+			int[] row = spans[y-minY];
+			for (int s=0; s<row.length; s+=2) {
+				for (int x=row[s]; x<=row[s+1]; x++) {
+					try {
+						// pixel centroid in projected coords
+						double[] coords = GDALUtils.getProjectedXY(new int[] {x, y}, image);
+						final Point pt = GISUtils.makePoint(coords[0], coords[1]);
 						//System.out.println("processing pt: "+pt);
 						
 						// synchronous way, unbearably slow, no memory leak
 						//cov.increment(loadr.getY(pt));
 						//System.gc();  // will leak w/o this
 						
-						// DUMB!! Same as synchronous since the Loadr read methods are synchronized.  Must decouple read and update.
-						// asynchronous way, runs only the data getting, which is synchronized
+						// asynchronous way, the Loadr reads run concurrently.
+						// The covariance is not thread safe, so it is updated as the reads complete.
 						count++;
-						ecs.submit(new Callable<Boolean>() {
+						ecs.submit(new Callable<double[]>() {
 							@Override
-							public Boolean call() {
+							public double[] call() {
 								try {
-									cov.increment(loadr.getY(pt));
-									System.gc();
+									return loadr.getY(pt);
 								} catch (Exception e) {
 									e.printStackTrace();
-									return new Boolean(false);
+									return null;
 								}
-								return new Boolean(true);
 							}
 							
 						});
 						
+					} catch (Exception e) {
+						e.printStackTrace();
 					}
-				} catch (Exception e) {
-					e.printStackTrace();
 				}
 			}
 		}
 		int check = 0;
 		for (int i=0; i<count; i++) {
-			if(ecs.take().get().booleanValue()) {
+			double[] y = ecs.take().get();
+			if (y != null) {
+				cov.increment(y);
 				check++;
 			}
 		}
+		service.shutdown();
 		if (cov.getN() != check) {
 			System.out.println("Jackass! N="+cov.getN()+", check="+check);
 		}
@@ -3,13 +3,14 @@
  */
 package cn.edu.tsinghua.modis;
 
-import java.awt.Rectangle;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 
 import javax.media.jai.PlanarImage;
 import javax.media.jai.iterator.RandomIter;
@@ -26,12 +27,12 @@ import org.opengis.feature.simple.SimpleFeatureType;
 import cn.edu.tsinghua.lidar.BitChecker;
 
 import com.berkenviro.gis.GISUtils;
+import com.berkenviro.gis.PolygonRasterizer;
+import com.berkenviro.gis.ZonalStatistics;
 import com.berkenviro.imageprocessing.GDALUtils;
 import com.berkenviro.imageprocessing.JAIUtils;
-import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
 
 /**
@@ -53,6 +54,8 @@ public class UrbanHeatOverlay {
 //	PlanarImage qc;
 	Dataset data;
 	Dataset qc;
+	String dataName;
+	String qcName;
 	FeatureCollection<SimpleFeatureType, SimpleFeature> polys;
 	FeatureCollection<SimpleFeatureType, SimpleFeature> id;
 	File tempTable;
@@ -72,6 +75,8 @@ public class UrbanHeatOverlay {
 //		JAIUtils.register(qc);
 		data = GDALUtils.getDataset(dataName);
 		qc = GDALUtils.getDataset(qcName);
+		this.dataName = dataName;
+		this.qcName = qcName;
 		polys =  GISUtils.getFeatureCollection(new File(polygonName));
 	}
 	
@@ -172,42 +177,94 @@ public class UrbanHeatOverlay {
 	}
 	
 	/**
-	 * 
-	 * @param fc
+	 * The mean of polygonStatsMasked() for every polygon, from one pass over the images.
+	 * A polygon that isn't inside the image is NaN.
 	 * @param outName
-	 * @param image
-	 * @param band
-	 * @param mask
-	 * @param maskValue
 	 */
 	public void polygonStatsTable(String outName) throws Exception {
 		
-		BufferedWriter writer = new BufferedWriter(new FileWriter(outName));
-		writer.write("id,avg"+"\n");
-		
+		// the zones, in the order of the features
+		List<String> ids = new ArrayList<String>();
+		List<Geometry> zones = new ArrayList<Geometry>();
 		FeatureIterator<SimpleFeature> iter=polys.features();
 		//System.out.println("Iterating over features...");
 		while (iter.hasNext()) {
-			String line = "";
 			SimpleFeature feature = iter.next();
 			// Id = FID ?= feature.getID()-1
-			line+=feature.getAttribute("ID");
-			Geometry p = (Geometry) feature.getDefaultGeometry();
-			SummaryStatistics stats = null;
-			try {
-				stats = polygonStatsMasked(p);
-			} catch (Exception e) {
-				e.printStackTrace();
-				stats = new SummaryStatistics();
+			ids.add(String.valueOf(feature.getAttribute("ID")));
+			zones.add((Geometry) feature.getDefaultGeometry());
+		}
+		iter.close();
+		
+		ZonalStatistics zonal = new ZonalStatistics(zones, GDALUtils.raster2proj(data), 
+				data.getRasterXSize(), data.getRasterYSize());
+		// GDAL datasets can't be shared, so each thread opens its own
+		ZonalStatistics.Accumulator[] stats = zonal.run(new ZonalStatistics.Source() {
+			@Override
+			public ZonalStatistics.Reader open() throws Exception {
+				return maskedReader();
 			}
-			line+=","+stats.getMean();
-			//System.out.println(stats);
-			writer.write(line);
+		}, Runtime.getRuntime().availableProcessors());
+		
+		BufferedWriter writer = new BufferedWriter(new FileWriter(outName));
+		writer.write("id,avg"+"\n");
+		for (int z=0; z<stats.length; z++) {
+			writer.write(ids.get(z)+","+stats[z].getMean());
 			writer.newLine();
 		}
 		writer.close();
 	}
 	
+	/**
+	 * Called by each thread of polygonStatsTable().  Override along with polygonStatsMasked().
+	 * @return a reader of the temperatures polygonStatsMasked() counts, with datasets of its own
+	 * @throws Exception
+	 */
+	protected ZonalStatistics.Reader maskedReader() throws Exception {
+		return new MaskedReader(dataName, qcName);
+	}
+	
+	/**
+	 * Temperatures with the mask of polygonStatsMasked(): NaN where the QC or the temperature is bad.
+	 */
+	static class MaskedReader implements ZonalStatistics.Reader {
+		
+		final Dataset data;
+		final Dataset qc;
+		private double[] qcRow = new double[0];
+		
+		MaskedReader(String dataName, String qcName) throws Exception {
+			data = GDALUtils.getDataset(dataName);
+			qc = GDALUtils.getDataset(qcName);
+			if (data == null || qc == null) {
+				throw new Exception("Can't open "+dataName+" or "+qcName);
+			}
+		}
+		
+		@Override
+		public void read(int y, int x0, int n, double[] values) throws Exception {
+			if (qcRow.length < n) {
+				qcRow = new double[n];
+			}
+			GDALUtils.readWindow(qc.GetRasterBand(1), x0, y, n, 1, qcRow);
+			GDALUtils.readWindow(data.GetRasterBand(1), x0, y, n, 1, values);
+			for (int i=0; i<n; i++) {
+				double temp = values[i]*0.02;
+				if (BitChecker.mod11ok((int)qcRow[i]) && temp > 183.95 && temp < 343.55) {
+					values[i] = temp;
+				} else {
+					values[i] = Double.NaN;
+				}
+			}
+		}
+		
+		@Override
+		public void close() {
+			data.delete();
+			qc.delete();
+		}
+	}
+	
 	/**
 	 * 
 	 * @param p
@@ -230,32 +287,26 @@ public class UrbanHeatOverlay {
 //		int maxY = Math.min(lr[1]+1, data.getHeight()-1);
 		int maxX = Math.min(lr[0]+1, data.getRasterXSize()-1);
 		int maxY = Math.min(lr[1]+1, data.getRasterYSize()-1);
-		Rectangle bounds = new Rectangle(minX, minY, maxX-minX+1, maxY-minY+1);
-//		RandomIter iter = RandomIterFactory.create(data, bounds);
-//		RandomIter qcIter = RandomIterFactory.create(qc, bounds);
-		GeometryFactory ptMakr = new GeometryFactory();
-		for (int x=minX; x<=maxX; x++) {
-			for (int y=minY; y<=maxY; y++) {
-				// pixel centroid in projected coords
-//				double[] coords = JAIUtils.getProjectedXY(new int[] {x, y}, data);
-				double[] coords = GDALUtils.getProjectedXY(new int[] {x, y}, data);
-				Point check = ptMakr.createPoint(new Coordinate(coords[0], coords[1]));
-				//System.out.println("\t "+check);
-				// if the pixel centroid is in the polygon, count it
-				if (p.intersects(check)) {
-					//int qc = qcIter.getSample(x, y, 0);
-					int qcVal = (int)GDALUtils.pixelValue(qc, x, y, 1);
+		// read the bounding box of each image at once
+		int width = maxX-minX+1;
+		int height = maxY-minY+1;
+		double[] qcWindow = GDALUtils.scratch(0, width*height);
+		double[] dataWindow = GDALUtils.scratch(1, width*height);
+		GDALUtils.readWindow(qc.GetRasterBand(1), minX, minY, width, height, qcWindow);
+		GDALUtils.readWindow(data.GetRasterBand(1), minX, minY, width, height, dataWindow);
+		// the pixels whose centroids are in the polygon, row by row
+		int[][] spans = PolygonRasterizer.spans(p, GDALUtils.raster2proj(data), minX, minY, maxX, maxY);
+		for (int y=minY; y<=maxY; y++) {
+			int[] row = spans[y-minY];
+			for (int s=0; s<row.length; s+=2) {
+				for (int x=row[s]; x<=row[s+1]; x++) {
+					int qcVal = (int)qcWindow[(y-minY)*width + (x-minX)];
 					if (BitChecker.mod11ok(qcVal)) {
-						//double temp = iter.getSampleDouble(x, y, 0)*0.02;
-						double temp = GDALUtils.pixelValue(data, x, y, 1)*0.02;
+						double temp = dataWindow[(y-minY)*width + (x-minX)]*0.02;
 						if (temp > 183.95 && temp < 343.55) { // min and max surface temperatures
 							stats.addValue(temp);
 						}
-						//System.out.println("\t\t Adding: "+temp);
 					}
-//					else {
-//						System.err.println("\t\t Bad data: "+maskIter.getSampleDouble(x, y, 0));
-//					}
 				}
 			}
 		}
@@ -28,7 +28,8 @@ import org.opengis.feature.simple.SimpleFeature;
 
 import cn.edu.tsinghua.lidar.BitChecker;
 
-import com.berkenviro.gis.GISUtils;
+import com.berkenviro.gis.PolygonRasterizer;
+import com.berkenviro.gis.ZonalStatistics;
 import com.berkenviro.imageprocessing.GDALUtils;
 import com.berkenviro.imageprocessing.JAIUtils;
 import com.vividsolutions.jts.geom.Coordinate;
@@ -36,6 +37,7 @@ import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.util.AffineTransformation;
 
 /**
  * @author Nicholas
@@ -44,6 +46,7 @@ import com.vividsolutions.jts.geom.Point;
 public class UrbanHeatOverlayH2O extends UrbanHeatOverlay {
 
 	Dataset water;
+	String waterName;
 	
 	/**
 	 * @param dataName
@@ -54,6 +57,7 @@ public class UrbanHeatOverlayH2O extends UrbanHeatOverlay {
 	public UrbanHeatOverlayH2O(String dataName, String qcName, String polygonName, String waterName) throws Exception {
 		super(dataName, qcName, polygonName);
 		water = GDALUtils.getDataset(waterName);
+		this.waterName = waterName;
 	}
 
 	/**
@@ -65,6 +69,7 @@ public class UrbanHeatOverlayH2O extends UrbanHeatOverlay {
 	public UrbanHeatOverlayH2O(String dataName, String qcName, String latticeName, String tableName,  String waterName) {
 		super(dataName, qcName, latticeName, tableName);
 		water = GDALUtils.getDataset(waterName);
+		this.waterName = waterName;
 	}
 
 	
@@ -149,6 +154,51 @@ public class UrbanHeatOverlayH2O extends UrbanHeatOverlay {
 	}
 	
 	
+	/**
+	 * Overridden for the water check of polygonStatsMasked().  A pixel that isn't in the
+	 * water image is not counted.
+	 */
+	@Override
+	protected ZonalStatistics.Reader maskedReader() throws Exception {
+		final MaskedReader masked = new MaskedReader(dataName, qcName);
+		final Dataset waterData = GDALUtils.getDataset(waterName);
+		if (waterData == null) {
+			masked.close();
+			throw new Exception("Can't open "+waterName);
+		}
+		final AffineTransformation at = GDALUtils.raster2proj(masked.data);
+		return new ZonalStatistics.Reader() {
+			@Override
+			public void read(int y, int x0, int n, double[] values) throws Exception {
+				masked.read(y, x0, n, values);
+				Coordinate coords = new Coordinate();
+				for (int i=0; i<n; i++) {
+					if (Double.isNaN(values[i])) {
+						continue;
+					}
+					// pixel centroid in projected coords
+					at.transform(new Coordinate(x0+i+0.5, y+0.5), coords);
+					// water check 20120510
+					double h2o;
+					try {
+						h2o = GDALUtils.imageValue(waterData, coords.x, coords.y, 1);
+					} catch (Exception e) {
+						h2o = 0;
+					}
+					if (h2o == 0) {
+						values[i] = Double.NaN;
+					}
+				}
+			}
+			
+			@Override
+			public void close() {
+				masked.close();
+				waterData.delete();
+			}
+		};
+	}
+	
 	/**
 	 * 
 	 * @param p
@@ -168,21 +218,28 @@ public class UrbanHeatOverlayH2O extends UrbanHeatOverlay {
 		int minY = Math.max(ul[1]-1, 0);
 		int maxX = Math.min(lr[0]+1, data.getRasterXSize()-1);
 		int maxY = Math.min(lr[1]+1, data.getRasterYSize()-1);
+		// read the bounding box of each image at once
+		int width = maxX-minX+1;
+		int height = maxY-minY+1;
+		double[] qcWindow = GDALUtils.scratch(0, width*height);
+		double[] dataWindow = GDALUtils.scratch(1, width*height);
+		GDALUtils.readWindow(qc.GetRasterBand(1), minX, minY, width, height, qcWindow);
+		GDALUtils.readWindow(data.GetRasterBand(1), minX, minY, width, height, dataWindow);
 
-		for (int x=minX; x<=maxX; x++) {
-			for (int y=minY; y<=maxY; y++) {
-				// pixel centroid in projected coords
-				double[] coords = GDALUtils.getProjectedXY(new int[] {x, y}, data);
-				// projected point
-				Point check = GISUtils.makePoint(coords[0], coords[1]);
-				// if the pixel centroid is in the polygon, count it
-				if (p.intersects(check)) {
-					int qcVal = (int)GDALUtils.pixelValue(qc, x, y, 1);
+		// the pixels whose centroids are in the polygon, row by row
+		int[][] spans = PolygonRasterizer.spans(p, GDALUtils.raster2proj(data), minX, minY, maxX, maxY);
+		for (int y=minY; y<=maxY; y++) {
+			int[] row = spans[y-minY];
+			for (int s=0; s<row.length; s+=2) {
+				for (int x=row[s]; x<=row[s+1]; x++) {
+					int qcVal = (int)qcWindow[(y-minY)*width + (x-minX)];
 					if (BitChecker.mod11ok(qcVal)) {
-						double temp = GDALUtils.pixelValue(data, x, y, 1)*0.02;
+						double temp = dataWindow[(y-minY)*width + (x-minX)]*0.02;
 						if (temp > 183.95 && temp < 343.55) { // min and max surface temperatures
+							// pixel centroid in projected coords
+							double[] coords = GDALUtils.getProjectedXY(new int[] {x, y}, data);
 							// water check 20120510
-							double h2o = GDALUtils.imageValue(water, check, 1);
+							double h2o = GDALUtils.imageValue(water, coords[0], coords[1], 1);
 							if (h2o != 0) {
 								stats.addValue(temp);
 							}
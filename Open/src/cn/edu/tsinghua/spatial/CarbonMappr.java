@@ -3,20 +3,20 @@
  */
 package cn.edu.tsinghua.spatial;
 
-import java.awt.Point;
-import java.awt.image.DataBuffer;
-import java.awt.image.WritableRaster;
+import java.io.IOException;
 import java.util.Arrays;
 
 import javax.media.jai.PlanarImage;
-import javax.media.jai.RasterFactory;
 import javax.media.jai.iterator.RandomIter;
 import javax.media.jai.iterator.RandomIterFactory;
 
+import org.gdal.gdalconst.gdalconst;
+
 import cn.edu.tsinghua.timeseries.ImageLoadr5;
 
 import com.berkenviro.imageprocessing.GDALUtils;
 import com.berkenviro.imageprocessing.JAIUtils;
+import com.berkenviro.imageprocessing.TiledRasterJob;
 
 /**
  * @author nclinton
@@ -61,29 +61,58 @@ public class CarbonMappr {
 	 * @param output
 	 */
 	public void map(Crosswalkr cw, String output) {
-		
-		RandomIter iterElev = RandomIterFactory.create(pimgElev , null);
-		RandomIter iterPET = RandomIterFactory.create(pimgPET , null);
-		RandomIter iterLC = RandomIterFactory.create(pimgLC , null);
-
+		map(cw, output, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * The output is committed a tile at a time and journaled, so if this is stopped, 
+	 * running it again with the same output resumes where it stopped.
+	 * @param cw
+	 * @param output
+	 * @param nThreads
+	 */
+	public void map(final Crosswalkr cw, String output, int nThreads) {
 		// China
 //		int startX = 30430;
 //		int startY = 4350;
 //		int endX = 37800;
 //		int endY = 8650;
-		int startX = 0;
-		int startY = 0;
-		int endX = pimgLC.getWidth();
-		int endY = pimgLC.getHeight();
-		
 
+		// register before the workers need it
+		for (PlanarImage image : new PlanarImage[] {pimgLC, pimgPET, pimgElev}) {
+			if (!JAIUtils.isRegistered(image)) {
+				JAIUtils.register(image);
+			}
+		}
 		//Output carbon	raster
-		WritableRaster rasterCarbon = RasterFactory.createBandedRaster(DataBuffer.TYPE_BYTE, pimgLC.getWidth(),pimgLC.getHeight() , 1, new Point(0,0));
-
-		for (int y=startY; y<endY; y++) {
-			for (int x=startX; x<endX; x++) {
+		TiledRasterJob job = new TiledRasterJob(new String[] {output}, new int[] {gdalconst.GDT_Byte}, 
+				pimgLC.getWidth(), pimgLC.getHeight(), TiledRasterJob.DEFAULT_TILE_SIZE);
+		try {
+			job.run(new TiledRasterJob.TileProcessor() {
+				@Override
+				public void process(int x0, int y0, int w, int h, int[][] out) {
+					mapTile(cw, x0, y0, w, h, out[0]);
+				}
+			}, nThreads);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Carbon of a tile.
+	 * @param out is the row-major tile
+	 */
+	private void mapTile(Crosswalkr cw, int x0, int y0, int w, int h, int[] out) {
+		// not thread safe, so one per tile
+		RandomIter iterElev = RandomIterFactory.create(pimgElev , null);
+		RandomIter iterPET = RandomIterFactory.create(pimgPET , null);
+		RandomIter iterLC = RandomIterFactory.create(pimgLC , null);
+		
+		for (int y=y0; y<y0+h; y++) {
+			for (int x=x0; x<x0+w; x++) {
 				int[] xy = new int[] {x, y};
-				System.out.println("Processing pixel: "+Arrays.toString(xy));
+				int i = (y-y0)*w + (x-x0);
 				try {
 					double[] projXY = JAIUtils.getProjectedXY(xy, pimgLC);
 					//System.out.println("Processing coordinate:" + Arrays.toString(projXY));
@@ -100,8 +129,8 @@ public class CarbonMappr {
 					//System.out.println("Landcover: "+igbp2ipcc(lcigbp));
 					
 					double tmean[] = loadrTmean.getY(projXY[0], projXY[1]);
-					for (int i=0;i<tmean.length;i++) {
-						tmean[i] = tmean[i]/10.0;
+					for (int t=0;t<tmean.length;t++) {
+						tmean[t] = tmean[t]/10.0;
 					}
 					double prec[] = loadrPrec.getY(projXY[0], projXY[1]);
 
@@ -120,16 +149,19 @@ public class CarbonMappr {
 					//					double soil = soilReferenceStock(ecoregion);
 					double soil = IPCCcarbon.soilReferenceStock(ecoregion, lc);
 
-					rasterCarbon.setSample(x,y,0, (byte)Math.round(biomass+dead+soil));
-					System.out.println("\t Estimated TOTAL CARBON " + (biomass+dead+soil));
+					out[i] = (byte)Math.round(biomass+dead+soil);
+					//System.out.println("\t Estimated TOTAL CARBON " + (biomass+dead+soil));
 
 				} catch (Exception e) {
+					System.err.println("Failed at: "+Arrays.toString(xy));
 					e.printStackTrace();
-					rasterCarbon.setSample(x,y,0, (byte)0);
+					out[i] = 0;
 				}
 			}
 		}
-		JAIUtils.writeTiff(rasterCarbon, output);
+		iterElev.done();
+		iterPET.done();
+		iterLC.done();
 	}
  	
  	/**
@@ -8,6 +8,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.media.jai.PlanarImage;
@@ -96,6 +97,7 @@ public class Overlay {
 			writer.newLine();
 			
 		}
+		features.close();
 		writer.close();
 	}
 	
@@ -148,6 +150,7 @@ public class Overlay {
 			writer.newLine();
 			
 		}
+		reader.close();
 		writer.close();
 	}
 	
@@ -182,6 +185,9 @@ public class Overlay {
 		// iterate over the lattice
 		FeatureIterator<SimpleFeature> features = pts.features();
 		System.out.println("Iterating over pts..."+pts.toString());
+		// the lines up to the rainfall, and the points to sample the series, in feature order
+		List<String> lines = new ArrayList<String>();
+		List<double[]> ptXY = new ArrayList<double[]>();
 		while (features.hasNext()) {
 			SimpleFeature feature = features.next();
 			String line = "";
@@ -214,24 +220,34 @@ public class Overlay {
 				e.printStackTrace();
 			}
 			line += ",";
-			// sample the rainfall series
-			try {
-				double rain = 0;
-				List<double[]> rains = loadr.getSeries((Point)pt);
-				for (double[] d : rains) {
-					if (d[1] > 6.0) {
-						rain+=d[1];
-					}
+			lines.add(line);
+			ptXY.add(new double[] {pt.getCoordinate().x, pt.getCoordinate().y});
+		}
+		features.close();
+		
+		// sample the rainfall series of all the points at once, in an order local to the images
+		double[] xs = new double[ptXY.size()];
+		double[] ys = new double[ptXY.size()];
+		for (int p=0; p<xs.length; p++) {
+			xs[p] = ptXY.get(p)[0];
+			ys[p] = ptXY.get(p)[1];
+		}
+		System.out.println("Sampling the series at "+xs.length+" pts...");
+		List<List<double[]>> series = loadr.getSeries(xs, ys);
+		
+		for (int p=0; p<xs.length; p++) {
+			String line = lines.get(p);
+			double rain = 0;
+			for (double[] d : series.get(p)) {
+				if (d[1] > 6.0) {
+					rain+=d[1];
 				}
-				line += rain;	
-			} catch (Exception e) {
-				e.printStackTrace();
 			}
+			line += rain;	
 			// sample the 
 			System.out.println(line);
 			writer.write(line);
 			writer.newLine();
-			
 		}
 		writer.close();
 	}
@@ -272,6 +288,14 @@ public class Overlay {
 		writer.write(header);
 		writer.newLine();
 		
+		// the monthly temperatures, opened once rather than for every point
+		Dataset[] months = new Dataset[12];
+		for (File f : directory.listFiles()) {
+			if (!f.getName().endsWith(".tif")) { continue; }
+			int index = Integer.parseInt(f.getName().substring(f.getName().length()-6, f.getName().length()-4))-1;
+			months[index] = GDALUtils.getDataset(f.getAbsolutePath());
+		}
+		
 		// iterate over the lattice
 		FeatureIterator<SimpleFeature> features = pts.features();
 		System.out.println("Iterating over pts..."+pts.toString());
@@ -309,11 +333,10 @@ public class Overlay {
 			
 			// sample the temperatures
 			double[] temps = new double[12];
-			for (File f : directory.listFiles()) {
-				if (!f.getName().endsWith(".tif")) { continue; }
-				int index = Integer.parseInt(f.getName().substring(f.getName().length()-6, f.getName().length()-4))-1;
-				Dataset d = GDALUtils.getDataset(f.getAbsolutePath());
-				temps[index] = GDALUtils.imageValue(d, GISUtils.makePoint(xy[0], xy[1]), 1);
+			for (int m=0; m<months.length; m++) {
+				if (months[m] != null) {
+					temps[m] = GDALUtils.imageValue(months[m], xy[0], xy[1], 1);
+				}
 			}
 			for (int m=0; m<temps.length; m++) {
 				if (temps[m] == -32768.0) { // no data
@@ -336,6 +359,11 @@ public class Overlay {
 			
 		}
 		writer.close();
+		for (Dataset d : months) {
+			if (d != null) {
+				d.delete();
+			}
+		}
 	}
 	
 	/**
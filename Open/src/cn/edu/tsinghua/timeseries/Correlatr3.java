@@ -3,33 +3,23 @@
  */
 package cn.edu.tsinghua.timeseries;
 
-import java.awt.image.DataBuffer;
-import java.awt.image.WritableRaster;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import javax.media.jai.PlanarImage;
-import javax.media.jai.RasterFactory;
 import javax.media.jai.iterator.RandomIter;
 import javax.media.jai.iterator.RandomIterFactory;
 
 import org.apache.commons.math3.distribution.TDistribution;
-import org.apache.commons.math3.stat.correlation.StorelessCovariance;
+import org.gdal.gdalconst.gdalconst;
 
 import cn.edu.tsinghua.lidar.BitChecker;
 import cn.edu.tsinghua.modis.BitCheck;
 
 import com.berkenviro.imageprocessing.JAIUtils;
+import com.berkenviro.imageprocessing.TiledRasterJob;
 
 /**
  * The same functionality is available from Correlatr2 with longestSum=0.
@@ -55,10 +45,10 @@ public class Correlatr3 {
 	final int height_begin;
 	final int height_end;
 	
-	BlockingQueue<Pixel> pixels; // reusable objects
-	BlockingQueue<Pixel> queue; // read, but not processed
-	ThreadPoolExecutor service;
-	ExecutorCompletionService<Pixel> ecs; // processing
+	/**
+	 * Default width and height, in pixels, of the tiles processed by writeImagesParallel().
+	 */
+	public static final int TILE_SIZE = TiledRasterJob.DEFAULT_TILE_SIZE;
 	
 	/**
 	 * 
@@ -124,36 +114,40 @@ public class Correlatr3 {
 	
 
 	/**
-	 * 
+	 * Tiles of TILE_SIZE.
 	 * @param base is the base filename for output files
 	 * @param nThreads is the number of compute threads to use
 	 */
 	public void writeImagesParallel(String base, int nThreads) {
+		writeImagesParallel(base, nThreads, TILE_SIZE);
+	}
 
-		// object pool of pixels
-		int numPixels = 5*nThreads;
-		pixels = new ArrayBlockingQueue<Pixel>(numPixels);
-		for (int p = 0; p < numPixels; p++) {
-			pixels.add(new Pixel(false));
+	/**
+	 * The reference grid is split into square tiles, each of which is read, correlated and 
+	 * written by one worker of a fork/join pool.  Returns when every tile has been written.
+	 * Both Loadrs are read concurrently by every worker, so they must not be synchronized.
+	 * The outputs are committed a tile at a time and journaled, so if the job is stopped, 
+	 * running it again with the same base resumes from the last tile committed.
+	 * @param base is the base filename for output files
+	 * @param nThreads is the number of compute threads to use
+	 * @param tileSize is the width and height of a tile, in pixels
+	 */
+	public void writeImagesParallel(String base, int nThreads, int tileSize) {
+		TiledRasterJob job = new TiledRasterJob(
+				new String[] {base + "_corr.tif", base + "_days.tif", base + "_sum.tif", base + "_p.tif"}, 
+				new int[] {gdalconst.GDT_Int16, gdalconst.GDT_Int16, gdalconst.GDT_Int16, gdalconst.GDT_Byte}, 
+				width_end - width_begin, height_end - height_begin, tileSize);
+		double deltaX = (Double) ref.getProperty("deltaX");
+		double deltaY = (Double) ref.getProperty("deltaY");
+		job.setGeoreference(new double[] {
+				(Double) ref.getProperty("ulX") + width_begin * deltaX, deltaX, 0, 
+				(Double) ref.getProperty("ulY") + height_begin * deltaY, 0, deltaY}, null);
+		try {
+			job.run(new CorrelationTiles(), nThreads);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-		queue = new ArrayBlockingQueue<Pixel>(nThreads);
-		service = new ThreadPoolExecutor(nThreads, nThreads, 0L,
-				TimeUnit.MILLISECONDS, 
-				new ArrayBlockingQueue<Runnable>(nThreads), 
-				new ThreadPoolExecutor.DiscardPolicy());
-		ecs = new ExecutorCompletionService<Pixel>(service);
-
-		// read thread
-		PixelEnumeration enumerator = new PixelEnumeration();
-		new Thread(enumerator).start();
-
-		// compute thread
-		PixelCompute computer = new PixelCompute();
-		new Thread(computer).start();
-
-		// write thread
-		PixelWrite write = new PixelWrite(base);
-		new Thread(write).start();
+		close();
 	}
 
 	
@@ -164,145 +158,44 @@ public class Correlatr3 {
 	 */
 	class Pixel implements Callable<Pixel> {
 
-		List<double[]> response, covariate;
+		// copies, so the readers can refill theirs for the next pixel
+		TimeSeries response = new TimeSeries();
+		TimeSeries covariate = new TimeSeries();
 		int x, y;
 		double[] correlation;
-		boolean dummy;
+		// scratch of the search, reused by every pixel this object computes
+		LagCorrelation kernel = new LagCorrelation();
 
-		public Pixel(boolean dummy) {
-			this.dummy = dummy;
-		}
+		public Pixel() {}
 
-		public void set(List<double[]> response, List<double[]> covariate, int x,
+		public void set(TimeSeries response, TimeSeries covariate, int x,
 				int y) {
-			this.response = response;
-			this.covariate = covariate;
+			this.response.set(response);
+			this.covariate.set(covariate);
 			this.x = x;
 			this.y = y;
-			dummy = false;
 		}
 
 		public void clear() {
-			response = null;
-			covariate = null;
+			response.clear();
+			covariate.clear();
 			correlation = null;
 			x = -1;
 			y = -1;
 		}
 
+		/**
+		 * @see LagCorrelation#maxCorrelation(TimeSeries, TimeSeries, int, int)
+		 * @return {correlation, lag, sum, n}
+		 */
 		public double[] maxCorrelation() {
-			// get a Map for the response
-			Double[] rDoub = new Double[(int)response.get(response.size()-1)[0]+1];
-			for (double[] tr : response) {
-				rDoub[(int)tr[0]] = tr[1];
-			}
-			// get a Map for the covariate
-			Double[] cDoub = new Double[
-			         Math.max((int)covariate.get(covariate.size()-1)[0]+1,
-			        		  (int)response.get(response.size()-1)[0]+1)];
-			for (double[] tc : covariate) {
-				cDoub[(int)tc[0]] = tc[1];
-			}
-
-			double minCorr = 1.0;
-			double maxCorr = -1.0;
-			int minLag = 0;
-			int maxLag = 0;
-			int minSum = 0;
-			int maxSum = 0;
-			int minN = 0;
-			int maxN = 0;
-			for (int sum=0; sum<=longestSum; sum+=8) {
-				//System.out.print("sum="+sum+", ");
-				for (int l=0; l<=longestLag; l+=8) {
-					//System.out.println("l="+l);
-					StorelessCovariance cov = new StorelessCovariance(2, false);
-					int n = 0;
-					for (double[] rt : response) { // iterate over every t for the response
-						double t = rt[0];
-						//System.out.println("\t t="+t);
-						if (t - l - sum < 0) {
-							//System.err.println("\t\t out of bounds: "+(t - l - sum));
-							continue; // don't go out of bounds
-						}
-						try {
-							// response---------------
-							double r = rDoub[(int)t];
-							if (r < 0) { // want only EVI greater than zero
-								//System.err.println("\t\t EVI<0.");
-								continue;
-							}
-							// summation
-							double cSum = 0;
-							int index = (int) t - l;
-							//System.out.println("\t\t Summing from "+(t - lags[l])+"...");
-							
-							for (int s=0; s<=sum; s++) { // DAILY time step on the covariate
-								//System.out.println("\t\t\t time="+index);
-								Double cDouble = cDoub[index];
-								if (cDouble == null) { // index was a no data point
-									//System.err.println("\t\t\t"+index+" was no data.");
-									continue;
-								}
-								//System.out.println("\t\t\t adding: "+cDouble.doubleValue());
-								cSum += cDouble.doubleValue();
-								index--;
-							}
-							if (index < (t - l)) { // don't increment a false zero (all no-data)
-								//System.out.println("\t\t incrementing: "+t+","+r+","+cSum);
-								cov.increment(new double[] { r, cSum });
-								n++;
-							}
-							
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
-
-					} // end responses
-
-					// if not enough data (arbitrary number)
-					if (n < 5) {
-						//System.err.println("\t Not enough data. n="+n);
-						continue;
-					}
-					// if either variable is constant...
-					if (cov.getCovariance(0, 0) == 0 || cov.getCovariance(1, 1) == 0) {
-						//System.err.println("\t No variance: var(r)="+cov.getCovariance(0, 0)+", var(c)="+cov.getCovariance(1, 1));
-						continue;
-					}
-					// normalize by SD
-					double correlation = cov.getCovariance(0, 1)
-							/ Math.sqrt(cov.getCovariance(0, 0) * cov.getCovariance(1, 1));
-					if (correlation < minCorr) {
-						minCorr = correlation;
-						minLag = l;
-						minSum = sum;
-						minN = n;
-					}
-					if (correlation > maxCorr) {
-						maxCorr = correlation;
-						maxLag = l;
-						maxSum = sum;
-						maxN = n;
-					}
-
-				} // end lags
-			} // end summations
-			
-			if (maxCorr < 0) {
-				return new double[] {minCorr, minLag, minSum, minN};
-			}
-			return new double[] {maxCorr, maxLag, maxSum, maxN};
+			return kernel.maxCorrelation(response, covariate, longestLag, longestSum);
 		}
 		
 		@Override
 		public Pixel call() {
 			//long start = System.nanoTime();
-			// DUMMY, nothing to do
-			if (dummy) {
-				return this;
-			}
-			// sort of arbitrary, but if size=0, below throws an exception and the write thread will stop
+			// sort of arbitrary, but if size=0, below throws an exception
 			if (response.size() < 9 || covariate.size() < 9) {
 				//System.err.println("Not enough data. Response="+response.size()+", Covariate="+covariate.size());
 				correlation = new double[] {0, 0, 0, 0};
@@ -348,12 +241,8 @@ public class Correlatr3 {
 			return this;
 		}
 
-		private String toString(List<double[]> list) {
-			String listString = "";
-			for (double[] arr : list) {
-				listString+=(Arrays.toString(arr)+",");
-			}
-			return listString;
+		private String toString(TimeSeries series) {
+			return series.toString();
 		}
 		
 		@Override
@@ -365,348 +254,61 @@ public class Correlatr3 {
 
 	
 	/**
-	 * A Runnable reading object.
-	 * @author Nicholas
-	 * 
-	 */
-	class ReadRunner implements Runnable {
-		double x;
-		double y;
-		Loadr loadr;
-		List<double[]> list;
-
-		public ReadRunner(double x, double y, Loadr loadr) {
-			this.x = x;
-			this.y = y;
-			this.loadr = loadr;
-		}
-
-		public ReadRunner() {
-			// wait for instance variables to be set
-		}
-
-		@Override
-		public void run() {
-			//long start = System.nanoTime();
-			list = loadr.getSeries(x, y);
-			//long stop = System.nanoTime();
-			//System.out.println("\t read time: " + (double)(stop - start) / 1000.0);
-			//print();
-		}
-
-		private void print() {
-			for (int i = 0; i < list.size(); i++) {
-				// print the array
-				System.out.println(Arrays.toString(list.get(i)));
-			}
-			System.out.println();
-		}
-	}
-
-	/**
-	 * A Thread that does the reading.
+	 * Reads, correlates and writes a tile of the outputs: {corr, days, sum, p}.
 	 * 
 	 * @author Nicholas
 	 * 
 	 */
-	class PixelEnumeration implements Runnable {
-		ExecutorService es;
-		RandomIter iter;
+	class CorrelationTiles implements TiledRasterJob.TileProcessor {
 
 		/**
-		 * 
-		 * @param queue
-		 * @param reference
+		 * Pixels that are skipped or fail are left zero, like pixels without enough data.
 		 */
-		public PixelEnumeration() {
-			// two read threads
-			es = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
-					new ArrayBlockingQueue<Runnable>(2),
-					new ThreadPoolExecutor.DiscardPolicy());
-			iter = RandomIterFactory.create(ref, null);
-		}
-
 		@Override
-		public void run() {
-			long start = System.currentTimeMillis();
-			try {
-				enumerate();
-				System.out.println("Adding a dummy pixel into the queue...");
-				// when we finish enumeration, we add a dummy  Pixel into the queue
-				// to mark the end of the program
-				queue.put(new Pixel(true)); // DUMMY
-				System.out.println("Finished enumerating.");
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-			long stop = System.currentTimeMillis();
-			long time_elapsed_millis = stop - start;
-			System.out.println("Time used: " + time_elapsed_millis + " milliseconds");
-			System.out.println("Read Times: " + PERSIANNFile.READ_TIMES);
-			
-			// shut down the reading service
-			es.shutdown();
-			System.out.println("The ExecutorService has been issued a shutdown command.");
-			try {
-				if (!es.awaitTermination(120, TimeUnit.SECONDS)) {
-					System.err.println("Pool did not terminate");
-				}
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
-
-		/**
-		 * 
-		 */
-		public void enumerate() {
+		public void process(int tx, int ty, int w, int h, int[][] out) {
+			// tile origin on the reference
+			int x0 = width_begin + tx;
+			int y0 = height_begin + ty;
 			// center coords
-//			final double delta = 0.008365178679831331;
 			final double delta = (Double) ref.getProperty("deltaX");
-			// center
-//			final double ulx = -179.9815962788889;
-//			final double uly = 69.99592926598972;
 			double ulx = (Double) ref.getProperty("ulX") + (Double) ref.getProperty("deltaX") / 2.0;
 			double uly = (Double) ref.getProperty("ulY") + (Double) ref.getProperty("deltaY") / 2.0;
-			
-			ReadRunner responseReader = new ReadRunner();
-			ReadRunner covariateReader = new ReadRunner();
-			
-			for (int  y = height_begin; y < height_end; y++) {
-				for (int x = width_begin; x < width_end; x++) {
+			// not thread safe, so one per tile
+			RandomIter iter = RandomIterFactory.create(ref, new java.awt.Rectangle(x0, y0, w, h));
+			Pixel pix = new Pixel();
+			for (int y = y0; y < y0 + h; y++) {
+				for (int x = x0; x < x0 + w; x++) {
 					double _x = ulx + x * delta;
 					double _y = uly - y * delta;
-					// System.out.println(x+","+y);
-					// System.out.println(_x+","+_y);
 					if (Math.abs(_y) > 60.0) {
-						//System.out.println("PERSIANN out of bounds.");
 						continue; // outside bounds of PERSIANN
 					}
 					if (iter.getSample(x, y, 0) == 0) {
-//						System.out.println("Not land.");
 						continue; // not land
 					}
-
-					responseReader.x = _x;
-					responseReader.y = _y;
-					responseReader.loadr = responseLoadr;
-					//covariateReader.x = (_x < 0 ? _x + 360.0 : _x); // PERSIANN
-					covariateReader.x = _x; // LST
-					covariateReader.y = _y;
-					covariateReader.loadr = predictLoadr;
-
 					try {
-						// watch out for memory leak here
-						// also watch out for simultaneous reads
-						Future f1 = es.submit(responseReader); 
-						Future f2 = es.submit(covariateReader);
-						while (true) {
-							if (f1.get()==null && f2.get()==null) {
-								break;
-							}
-						}
-						// synchronous reads make sense when the data are on the same physical disk (raid5)?
-//						es.submit(responseReader).get();
-//						es.submit(covariateReader).get();
-						// re-use these pixels
-						Pixel p = pixels.take();
-						//System.out.println("\t\t pixels pool: "+pixels.size());
-						p.set(responseReader.list, covariateReader.list, x, y);
-						queue.put(p);
-						//System.out.println("\t\t queue size: "+queue.size());
-					} catch (InterruptedException  e) {
-						e.printStackTrace();
-					} catch (ExecutionException e) {
+						responseLoadr.getSeries(_x, _y, pix.response);
+						//predictLoadr.getSeries((_x < 0 ? _x + 360.0 : _x), _y, pix.covariate); // PERSIANN
+						predictLoadr.getSeries(_x, _y, pix.covariate); // LST
+						pix.x = x;
+						pix.y = y;
+						pix.call();
+					} catch (Exception e) {
+						System.err.println("Failed at (" + x + "," + y + ")");
 						e.printStackTrace();
+						continue;
 					}
+					int i = (y - y0) * w + (x - x0);
+					out[0][i] = (short)(255*pix.correlation[0]);
+					out[1][i] = (short) pix.correlation[1];
+					out[2][i] = (short) pix.correlation[2];
+					out[3][i] = (byte)(255*pix.correlation[3]);
 				}
 			}
+			iter.done();
 		}
 	}
 
-	/**
-	 * A Thread that initiates the correlation calculation.
-	 * 
-	 * @author Nicholas
-	 * 
-	 */
-	class PixelCompute implements Runnable {
-
-		public PixelCompute() {}
-
-		@Override
-		public void run() {
-			compute();
-			System.out.println("Finished computing!!");
-			ecs.submit(new Pixel(true)); // DUMMY
-		}
-
-		/**
-		 * Simply move the pixels from the read queue to the completion service.
-		 * 
-		 * @throws InterruptedException
-		 * @throws Exception
-		 */
-		public void compute() {
-			while (true) {
-				Pixel pix;
-				try {
-					// take off the first queue, read, but unprocessed
-					pix = queue.take();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-					continue;
-				}
-				if (pix.dummy) { // DUMMY
-					break; // done, exit the loop
-				}
-				ecs.submit(pix);
-			}
-		}
-	} // end compute class
-
-	/**
-	 * A Thread that runs the writing operation. Operations on the databuffers
-	 * are synchronized.
-	 * 
-	 * @author Nicholas
-	 * 
-	 */
-	class PixelWrite implements Runnable {
-
-		WritableRaster corr, days, sum, p;
-		String base;
-
-		/**
-		 * 
-		 * @param base is the base name of the output images
-		 */
-		public PixelWrite(String base) {
-			this.base = base;
-			// initialize outputs
-			int width = width_end - width_begin;
-			int height = height_end - height_begin;
-			
-			corr = RasterFactory.createBandedRaster(DataBuffer.TYPE_SHORT, // signed short
-					width, height, 1, // bands
-					new java.awt.Point(0, 0)); // origin
-			days = RasterFactory.createBandedRaster(DataBuffer.TYPE_SHORT, // signed short
-					width, height, 1, // bands
-					new java.awt.Point(0, 0)); // origin
-			sum = RasterFactory.createBandedRaster(DataBuffer.TYPE_SHORT, // signed short
-					width, height, 1, // bands
-					new java.awt.Point(0, 0)); // origin
-			p = RasterFactory.createBandedRaster(DataBuffer.TYPE_BYTE, // unsigned byte
-					width, height, 1, // bands
-					new java.awt.Point(0, 0)); // origin
-		}
-
-		/**
-		 * 
-		 */
-		@Override
-		public void run() {
-			write();
-			System.out.println("Finished writing!!");
-			
-			// shut down the computing service
-			service.shutdown();
-			System.out.println("The ThreadPoolExector has been issued a shutdown command.");
-			try {
-				if (!service.awaitTermination(120, TimeUnit.SECONDS)) {
-					System.err.println("The service did not terminate");
-				}
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-			close();
-		}
-
-		/**
-		 * 
-		 * @throws InterruptedException
-		 * @throws ExecutionException
-		 */
-		public void write() {
-			int interval = 1000000; // frequency of write, original value 10000000
-			int counter = 0;
-			long now = System.currentTimeMillis();
-			while (true) {
-				Pixel finishedPix;
-				try {
-					finishedPix = ecs.take().get();
-				} catch (InterruptedException | ExecutionException e) {
-					e.printStackTrace();
-					continue;
-				}
-				
-				if (finishedPix.dummy) { // DUMMY
-					break;
-				}
-				
-				//System.out.println(finishedPix);
-
-				writeCorr((short)(255*finishedPix.correlation[0]), finishedPix);
-				writeDays((short) finishedPix.correlation[1], finishedPix);
-				writeSum((short) finishedPix.correlation[2], finishedPix);
-				writeP((byte)(255*finishedPix.correlation[3]), finishedPix);
-
-				// periodically write to disk
-				counter++;
-				if (counter > interval) {
-					System.out.println(Calendar.getInstance().getTime());
-					System.out.println("\t Free memory: "
-							+ Runtime.getRuntime().freeMemory());
-					System.out.println("\t Max memory: "
-							+ Runtime.getRuntime().maxMemory());
-					System.out.println("\t Last pixel written: " + finishedPix);
-					System.out.println("\t Time per pixel: "
-							+ ((System.currentTimeMillis() - now) / interval));
-
-					// write it to the file in case of disaster
-					diskWrite();
-					counter = 0;
-					now = System.currentTimeMillis();
-					System.gc();
-					System.gc();
-					System.gc();
-				}
-
-				// re-use the finished pixel
-				finishedPix.clear();
-				pixels.add(finishedPix);
-			}
-			diskWrite();
-		}
-
-		/**
-		 * 
-		 */
-		private void diskWrite() {
-			JAIUtils.writeTiff(corr, base + "_corr.tif");
-			JAIUtils.writeTiff(days, base + "_days.tif");
-			JAIUtils.writeTiff(sum, base + "_sum.tif");
-			JAIUtils.writeTiff(p, base + "_p.tif");
-		}
-
-		public synchronized void writeCorr(double val, Pixel pix) {
-			corr.setSample(pix.x - width_begin, pix.y - height_begin, 0, val);
-		}
-
-		public synchronized void writeDays(double val, Pixel pix) {
-			days.setSample(pix.x - width_begin, pix.y - height_begin, 0, val);
-		}
-		
-		public synchronized void writeSum(double val, Pixel pix) {
-			sum.setSample(pix.x - width_begin, pix.y - height_begin, 0, val);
-		}
-
-		public synchronized void writeP(double val, Pixel pix) {
-			p.setSample(pix.x - width_begin, pix.y - height_begin, 0, val);
-		}
-
-	} // end writing class
-
 	
 	/**
 	 * Debugging helper
@@ -715,17 +317,13 @@ public class Correlatr3 {
 	 * @return
 	 */
 	public double[] correlation(double lat, double lon) {
-		List<double[]> response = responseLoadr.getSeries(lon, lat);
-		for (double[] d : response) {
-			System.out.print(Arrays.toString(d)+", ");
-		}
-		System.out.println();
-		List<double[]> covariate = predictLoadr.getSeries(lon, lat);
-		for (double[] d : covariate) {
-			System.out.print(Arrays.toString(d)+", ");
-		}
-		System.out.println();
-		Pixel testPixel = new Pixel(false);
+		TimeSeries response = new TimeSeries();
+		responseLoadr.getSeries(lon, lat, response);
+		System.out.println(response);
+		TimeSeries covariate = new TimeSeries();
+		predictLoadr.getSeries(lon, lat, covariate);
+		System.out.println(covariate);
+		Pixel testPixel = new Pixel();
 		testPixel.set(response, covariate, -9, -9);
 		return testPixel.maxCorrelation();
 	}
@@ -0,0 +1,432 @@
+/**
+ *
+ */
+package cn.edu.tsinghua.timeseries;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import cn.edu.tsinghua.lidar.BitChecker;
+import cn.edu.tsinghua.modis.BitCheck;
+
+import com.berkenviro.gis.GISUtils;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.util.AffineTransformation;
+
+/**
+ * @author Nicholas Clinton
+ *
+ * Loadr on top of a pixel-major time series cube written by {@link CubeMakr}.
+ * The cube holds the data, QC and (optionally) DOY series of every pixel in one
+ * contiguous record, so a series is a single read from a memory mapped file instead
+ * of 3xN random reads from N GeoTIFFs.  Produces the same output as ImageLoadr6
+ * (with DOY) or ImageLoadr4 (without DOY) over the same stack.
+ *
+ * Format (little-endian):
+ *   header: magic, version, header size, width, height, tile size, n, flags,
+ *     geotransform (6 doubles, GDAL order), n nominal dates (millis),
+ *     projection WKT (int length + UTF-8 bytes), padded to 8 bytes.
+ *   body: tiles of tileSize x tileSize pixels in row-major tile order, pixels
+ *     in row-major order within a tile.  Edge tiles are padded to full size.
+ *     Each pixel record is float data[n], int qc[n], short doy[n].
+ *
+ * Reads use absolute gets on read-only mappings, so getSeries() is not synchronized.
+ */
+public class CubeLoadr implements Loadr {
+
+	static final byte[] MAGIC = {'T', 'S', 'C', 'U', 'B', 'E', '0', '1'};
+	static final int VERSION = 1;
+	static final int FLAG_DOY = 1;
+	// offset of the geotransform in the header
+	static final int FIXED_HEADER = 40;
+
+	private int width, height, tileSize, tilesAcross, n, headerSize;
+	private boolean hasDOY;
+	private long recordBytes;
+	private Calendar[] cals;
+	private double[] t;
+	private Calendar date0;
+	private double[] geo;
+	private String projection;
+	private AffineTransformation inv;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer[] segments;
+	private long recordsPerSegment;
+
+	private BitCheck bitChecker;
+
+	/**
+	 *
+	 * @param cubeName is the name of a cube file written by CubeMakr
+	 * @param bitChecker is used to evaluate the QC data
+	 * @throws Exception
+	 */
+	public CubeLoadr(String cubeName, BitCheck bitChecker) throws Exception {
+		System.out.println("Initializing cube loader...");
+		this.bitChecker = bitChecker;
+
+		file = new RandomAccessFile(new File(cubeName), "r");
+		FileChannel channel = file.getChannel();
+		readHeader(channel);
+
+		// map the body in segments that do not split a pixel record
+		recordsPerSegment = Integer.MAX_VALUE / recordBytes;
+		long totalRecords = (long)tilesAcross * tileSize * tilesDown() * tileSize;
+		int nSegments = (int)((totalRecords + recordsPerSegment - 1) / recordsPerSegment);
+		segments = new MappedByteBuffer[nSegments];
+		for (int s=0; s<nSegments; s++) {
+			long start = headerSize + s * recordsPerSegment * recordBytes;
+			long size = Math.min(recordsPerSegment, totalRecords - s * recordsPerSegment) * recordBytes;
+			segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+			segments[s].order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		// reference to the first image, unless otherwise specified
+		date0 = cals[0];
+		t = new double[n];
+		setDateZero(date0);
+		System.out.println("\t Done! "+width+"x"+height+", "+n+" images, DOY="+hasDOY);
+	}
+
+	/**
+	 * Parse the header.
+	 * @param channel
+	 * @throws Exception
+	 */
+	private void readHeader(FileChannel channel) throws Exception {
+		ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER + 48);
+		fixed.order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(fixed, 0);
+		fixed.flip();
+		byte[] magic = new byte[MAGIC.length];
+		fixed.get(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new Exception("Not a time series cube!");
+		}
+		int version = fixed.getInt();
+		if (version != VERSION) {
+			throw new Exception("Unsupported cube version: "+version);
+		}
+		headerSize = fixed.getInt();
+		width = fixed.getInt();
+		height = fixed.getInt();
+		tileSize = fixed.getInt();
+		n = fixed.getInt();
+		hasDOY = (fixed.getInt() & FLAG_DOY) != 0;
+		fixed.getInt(); // pad
+		geo = new double[6];
+		for (int g=0; g<6; g++) {
+			geo[g] = fixed.getDouble();
+		}
+
+		ByteBuffer rest = ByteBuffer.allocate(headerSize - fixed.capacity());
+		rest.order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(rest, fixed.capacity());
+		rest.flip();
+		cals = new Calendar[n];
+		for (int i=0; i<n; i++) {
+			cals[i] = Calendar.getInstance();
+			cals[i].setTimeInMillis(rest.getLong());
+		}
+		byte[] wkt = new byte[rest.getInt()];
+		rest.get(wkt);
+		projection = new String(wkt, "UTF-8");
+
+		tilesAcross = (width + tileSize - 1) / tileSize;
+		recordBytes = recordBytes(n);
+		// pixel to projected, GDAL order
+		AffineTransformation at = new AffineTransformation(geo[1], geo[2], geo[0], geo[4], geo[5], geo[3]);
+		inv = GISUtils.proj2raster(at);
+	}
+
+	/**
+	 * @param n is the length of the series
+	 * @return the size of one pixel record, in bytes
+	 */
+	static long recordBytes(int n) {
+		return (long)n * (4 + 4 + 2);
+	}
+
+	private int tilesDown() {
+		return (height + tileSize - 1) / tileSize;
+	}
+
+	/**
+	 * Optionally set the zero reference for the time series, i.e. the reference time compared
+	 * to which the t-coordinate of the images will be computed.
+	 * @param cal
+	 */
+	public void setDateZero(Calendar cal) {
+		date0 = cal;
+		// rebuild t
+		for (int i=0; i<n; i++) {
+			t[i] = ImageLoadr4.diffDays(date0, cals[i]);
+		}
+	}
+
+	/**
+	 *
+	 * @return the GDAL geotransform of the cube
+	 */
+	public double[] getGeoTransform() {
+		return geo;
+	}
+
+	/**
+	 *
+	 * @return the WKT of the source images
+	 */
+	public String getProjection() {
+		return projection;
+	}
+
+	/**
+	 * Return size of the stack.
+	 * @return
+	 */
+	public int getLengthImages() {
+		return n;
+	}
+
+	/**
+	 *
+	 * @param projXY is a georeferenced {x,y}
+	 * @return zero-referenced {pixel, line}
+	 * @throws Exception if outside the cube
+	 */
+	public int[] getPixelXY(double[] projXY) throws Exception {
+		Coordinate pix = new Coordinate();
+		inv.transform(new Coordinate(projXY[0], projXY[1]), pix);
+		if ((int)pix.x < 0 || (int)pix.x >= width || (int)pix.y < 0 || (int)pix.y >= height) {
+			throw new Exception("Impossible coordinates: "+pix);
+		}
+		return new int[] {(int)pix.x, (int)pix.y};
+	}
+
+	/**
+	 * @param x is the zero-referenced pixel
+	 * @param y is the zero-referenced line
+	 * @return the index of the pixel record in the body
+	 */
+	private long recordIndex(int x, int y) {
+		long tile = (long)(y / tileSize) * tilesAcross + (x / tileSize);
+		return tile * tileSize * tileSize + (y % tileSize) * tileSize + (x % tileSize);
+	}
+
+	/**
+	 *
+	 * @param pt is a georeferenced Point
+	 * @return a list of {t, value} double arrays.
+	 */
+	public List<double[]> getSeries(Point pt) {
+		return getSeries(pt.getX(), pt.getY());
+	}
+
+	/**
+	 * @param x is a georeferenced coordinate
+	 * @param y is a georeferenced coordinate
+	 * @return a list of {t, value} double arrays with t=NaN if the DOY is not in [0,366]
+	 */
+	public List<double[]> getSeries(double x, double y) {
+		TimeSeries series = new TimeSeries(n);
+		getSeries(x, y, series);
+		return series.toList();
+	}
+
+	/**
+	 * Fill the series under the point, without allocating a List.
+	 * @param x is a georeferenced coordinate
+	 * @param y is a georeferenced coordinate
+	 * @param series is cleared, then filled with the series
+	 */
+	public void getSeries(double x, double y, TimeSeries series) {
+		series.clear();
+		try {
+			int[] pixelXY = getPixelXY(new double[] {x, y});
+			getSeries(pixelXY[0], pixelXY[1], series);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * The points are read in tile order, so records that are near in the cube are 
+	 * read together.
+	 * @param xs are georeferenced coordinates
+	 * @param ys are georeferenced coordinates
+	 * @return the series of each point, in the order of xs and ys
+	 */
+	public List<List<double[]>> getSeries(double[] xs, double[] ys) {
+		int[] order = TSUtils.localOrder(xs, ys, geo, tileSize, tileSize);
+		return TSUtils.getSeries(this, xs, ys, order);
+	}
+
+	/**
+	 *
+	 * @param px is the zero-referenced pixel
+	 * @param py is the zero-referenced line
+	 * @return a list of {t, value} double arrays with t=NaN if the DOY is not in [0,366]
+	 */
+	public List<double[]> getSeries(int px, int py) {
+		TimeSeries series = new TimeSeries(n);
+		getSeries(px, py, series);
+		return series.toList();
+	}
+
+	/**
+	 *
+	 * @param px is the zero-referenced pixel
+	 * @param py is the zero-referenced line
+	 * @param out is cleared, then filled with the series
+	 * @throws IllegalArgumentException if the pixel is outside the cube
+	 */
+	public void getSeries(int px, int py, TimeSeries out) {
+		if (px < 0 || px >= width || py < 0 || py >= height) {
+			throw new IllegalArgumentException("Pixel outside the cube: "+px+", "+py);
+		}
+		out.clear();
+		long record = recordIndex(px, py);
+		ByteBuffer buffer = segments[(int)(record / recordsPerSegment)];
+		int dataOffset = (int)((record % recordsPerSegment) * recordBytes);
+		int qcOffset = dataOffset + 4*n;
+		int doyOffset = qcOffset + 4*n;
+
+		for (int i=0; i<n; i++) {
+			int qc = buffer.getInt(qcOffset + 4*i);
+			if (!bitChecker.isOK(qc)) {
+				continue;
+			}
+			double t;
+			if (hasDOY) {
+				// time
+				Calendar cal = (Calendar)cals[i].clone();
+				int doy = buffer.getShort(doyOffset + 2*i);
+				// account for annual roll-overs
+				if ((cal.get(Calendar.DAY_OF_YEAR) - doy) > 16) {
+					cal.set(Calendar.YEAR, cal.get(Calendar.YEAR)+1);
+					cal.set(Calendar.DAY_OF_YEAR, doy);
+				}
+				else if ((cal.get(Calendar.DAY_OF_YEAR) - doy) < -16) {
+					cal.set(Calendar.YEAR, cal.get(Calendar.YEAR)-1);
+					cal.set(Calendar.DAY_OF_YEAR, doy);
+				} else {
+					cal.set(Calendar.DAY_OF_YEAR, doy);
+				}
+				t = ImageLoadr4.diffDays(date0, cal);
+				// check the input
+				if (doy < 0 || doy > 366) { // undefined
+					t = Double.NaN;
+				}
+				// check if this is a duplicate data point
+				// can happen at the annual boundary of composites
+				if (out.size() > 0 && out.lastT() == t) {
+					continue; // already have this data point.
+				}
+			} else {
+				t = this.t[i];
+			}
+			out.add(t, buffer.getFloat(dataOffset + 4*i));
+		}
+	}
+
+	/**
+	 * Get a complete X vector for the time series.
+	 * @return
+	 */
+	public double[] getX() {
+		return t;
+	}
+
+	/**
+	 * Fit a thin plate spline to the series and interpolate missing values.
+	 * This will fail if first and/or last values are missing, i.e. there is no extrapolation.
+	 * @param pt is a georeferenced point with the same coordinate system as the images.
+	 * @return a vector of Y values where missing values are interpolated
+	 */
+	public double[] getY(Point pt) throws Exception {
+		// get the time series under the point
+		TimeSeries series = new TimeSeries(t.length);
+		getSeries(pt.getX(), pt.getY(), series);
+		if (series.size() == n) {
+			double[] y = new double[series.size()];
+			for (int t=0; t<series.size(); t++) {
+				y[t] = series.v(t);
+			}
+			return y;
+		}
+		else if (series.size() < 4) {  // not enough points to do an interpolation, 4 is arbitrary
+			throw new Exception("Not enough data!  n="+series.size());
+		}
+		else if (series.t(0) > t[0]) { // do not extrapolate in the beginning
+			throw new Exception("Start of series out of range: "+series.t(0));
+		}
+		else if (series.lastT() < t[t.length-1]) { // do not extrapolate at the end
+			throw new Exception("End of series out of range: "+series.lastT());
+		}
+		// fit a spline to interpolate
+		DuchonSplineFunction spline = new DuchonSplineFunction(series);
+		return TSUtils.evaluateSpline(spline, t);
+	}
+
+	/**
+	 * Release the mapping.  The buffers are unmapped when garbage collected.
+	 */
+	public void close() {
+		segments = null;
+		try {
+			file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		System.gc();
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		// compare to the source stack
+		String[] evi = new String[] {"/data/MOD13A2/2010", "/data/MOD13A2/2011"};
+		String eviDir = "EVI";
+		String eviQCDir = "VI_QC";
+		String doyDir = "DOY";
+		BitCheck mod13Checker = new BitCheck() {
+			@Override
+			public boolean isOK(int check) {
+				return BitChecker.mod13ok(check);
+			}
+		};
+		try {
+			ImageLoadr6 loadr6 = new ImageLoadr6(evi, eviDir, eviQCDir, doyDir, mod13Checker);
+			CubeLoadr cube = new CubeLoadr("/data/MOD13A2/MOD13A2_2010_2011.cube", mod13Checker);
+			Calendar cal = Calendar.getInstance();
+			cal.set(2010, 0, 1);
+			loadr6.setDateZero(cal);
+			cube.setDateZero(cal);
+			double x = 133.4;
+			double y = -13.3;
+			List<double[]> series6 = loadr6.getSeries(x,y);
+			List<double[]> seriesC = cube.getSeries(x,y);
+			System.out.println("Point: "+Arrays.toString(new double[] {x,y})
+					+" Length 6 = "+series6.size()+" Length cube = "+seriesC.size());
+			for (int i=0; i<Math.min(series6.size(), seriesC.size()); i++) {
+				System.out.println(Arrays.toString(series6.get(i))+" : "+Arrays.toString(seriesC.get(i)));
+			}
+			loadr6.close();
+			cube.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,228 @@
+/**
+ *
+ */
+package cn.edu.tsinghua.timeseries;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gdal.gdal.Band;
+import org.gdal.gdal.Dataset;
+import org.gdal.gdalconst.gdalconst;
+
+import cn.edu.tsinghua.lidar.BitChecker;
+import cn.edu.tsinghua.modis.BitCheck;
+
+import com.berkenviro.imageprocessing.GDALUtils;
+
+/**
+ * @author Nicholas Clinton
+ *
+ * Transpose a stack of DatedQCImages (as loaded by ImageLoadr4 or ImageLoadr6) into
+ * a pixel-major time series cube that can be read by {@link CubeLoadr}.  This is a
+ * one-time conversion.  The stack is read one strip of tiles at a time with windowed
+ * reads, so memory use is bounded by the strip buffer, not by the size of the stack.
+ */
+public class CubeMakr {
+
+	/**
+	 * Write a cube from the stack.  All images must be on the same grid.
+	 * @param stack is a chronologically sorted list of images.  If dateName is null,
+	 * 	no DOY is written and the CubeLoadr uses the nominal image dates.
+	 * @param cubeName is the output file name
+	 * @param tileSize is the width and height of a tile, in pixels
+	 * @param maxBuffer is the maximum size of the strip buffer, in bytes
+	 * @throws Exception
+	 */
+	public static void makeCube(List<DatedQCImage> stack, String cubeName, int tileSize, long maxBuffer) throws Exception {
+		int n = stack.size();
+		boolean hasDOY = stack.get(0).dateName != null;
+		Dataset[] data = new Dataset[n];
+		Dataset[] qc = new Dataset[n];
+		Dataset[] doy = new Dataset[n];
+		for (int i=0; i<n; i++) {
+			DatedQCImage dImage = stack.get(i);
+			data[i] = GDALUtils.getDataset(dImage.imageName);
+			qc[i] = GDALUtils.getDataset(dImage.qcImageName);
+			if (hasDOY) {
+				doy[i] = GDALUtils.getDataset(dImage.dateName);
+			}
+		}
+		int width = data[0].getRasterXSize();
+		int height = data[0].getRasterYSize();
+		for (int i=1; i<n; i++) {
+			if (data[i].getRasterXSize() != width || data[i].getRasterYSize() != height) {
+				throw new Exception("Not co-registered: "+stack.get(i));
+			}
+		}
+		int tilesAcross = (width + tileSize - 1) / tileSize;
+		int tilesDown = (height + tileSize - 1) / tileSize;
+		long recordBytes = CubeLoadr.recordBytes(n);
+		long tileBytes = recordBytes * tileSize * tileSize;
+		// as many tiles as fit in the buffer, at least one
+		long bufferBytes = Math.min(maxBuffer, Integer.MAX_VALUE);
+		if (tileBytes > bufferBytes) {
+			throw new Exception("Tile size too large for the buffer: "+tileBytes+" bytes per tile.");
+		}
+		int tilesPerPass = (int)Math.min(tilesAcross, bufferBytes / tileBytes);
+		System.out.println("Writing cube: "+cubeName+" "+width+"x"+height+", "+n+" images, "
+				+tilesPerPass+" tiles per pass");
+
+		RandomAccessFile file = new RandomAccessFile(new File(cubeName), "rw");
+		FileChannel channel = file.getChannel();
+		try {
+			int headerSize = writeHeader(channel, stack, data[0], width, height, tileSize, hasDOY);
+			ByteBuffer strip = ByteBuffer.allocate((int)(tileBytes * tilesPerPass));
+			strip.order(ByteOrder.LITTLE_ENDIAN);
+			// window read buffers
+			ByteBuffer window = ByteBuffer.allocateDirect(4 * tileSize * tileSize * tilesPerPass);
+			window.order(ByteOrder.nativeOrder());
+
+			for (int tr=0; tr<tilesDown; tr++) {
+				int y0 = tr * tileSize;
+				int ySize = Math.min(tileSize, height - y0);
+				for (int tc=0; tc<tilesAcross; tc+=tilesPerPass) {
+					int tiles = Math.min(tilesPerPass, tilesAcross - tc);
+					int x0 = tc * tileSize;
+					int xSize = Math.min(tiles * tileSize, width - x0);
+					strip.clear();
+					// fill, so that padding is no-data
+					Arrays.fill(strip.array(), (byte)0xff);
+					for (int i=0; i<n; i++) {
+						readWindow(data[i], x0, y0, xSize, ySize, gdalconst.GDT_Float32, window);
+						scatter(window, strip, xSize, ySize, tileSize, recordBytes, 4*i, 4);
+						readWindow(qc[i], x0, y0, xSize, ySize, gdalconst.GDT_Int32, window);
+						scatter(window, strip, xSize, ySize, tileSize, recordBytes, 4*n + 4*i, 4);
+						if (hasDOY) {
+							readWindow(doy[i], x0, y0, xSize, ySize, gdalconst.GDT_Int16, window);
+							scatter(window, strip, xSize, ySize, tileSize, recordBytes, 8*n + 2*i, 2);
+						}
+					}
+					// tiles in a strip are contiguous in the file
+					long position = headerSize + ((long)tr * tilesAcross + tc) * tileBytes;
+					strip.limit((int)(tiles * tileBytes));
+					while (strip.hasRemaining()) {
+						position += channel.write(strip, position);
+					}
+				}
+				System.out.println("\t Wrote tile row "+(tr+1)+" of "+tilesDown);
+			}
+		} finally {
+			channel.close();
+			file.close();
+			for (int i=0; i<n; i++) {
+				data[i].delete();
+				qc[i].delete();
+				if (hasDOY) {
+					doy[i].delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read a window of band 1 into the buffer, converted to the buffer type.
+	 */
+	private static void readWindow(Dataset dataset, int x0, int y0, int xSize, int ySize, int bufType, ByteBuffer window) {
+		Band band = dataset.GetRasterBand(1);
+		window.clear();
+		band.ReadRaster_Direct(x0, y0, xSize, ySize, xSize, ySize, bufType, window);
+	}
+
+	/**
+	 * Copy a window of values into their pixel records.
+	 * @param window holds xSize*ySize values of size bytes in native order
+	 * @param strip is the strip of tiles under construction
+	 * @param offset is the offset of the value within a pixel record
+	 * @param size is the number of bytes per value
+	 */
+	private static void scatter(ByteBuffer window, ByteBuffer strip, int xSize, int ySize,
+			int tileSize, long recordBytes, int offset, int size) {
+		int tilePixels = tileSize * tileSize;
+		for (int y=0; y<ySize; y++) {
+			for (int x=0; x<xSize; x++) {
+				int w = (y * xSize + x) * size;
+				long record = (long)(x / tileSize) * tilePixels + y * tileSize + (x % tileSize);
+				int s = (int)(record * recordBytes) + offset;
+				if (size == 4) {
+					strip.putInt(s, window.getInt(w));
+				} else {
+					strip.putShort(s, window.getShort(w));
+				}
+			}
+		}
+	}
+
+	/**
+	 * See CubeLoadr for the layout.
+	 * @return the size of the header, in bytes
+	 */
+	private static int writeHeader(FileChannel channel, List<DatedQCImage> stack, Dataset ref,
+			int width, int height, int tileSize, boolean hasDOY) throws IOException {
+		byte[] wkt = ref.GetProjectionRef().getBytes("UTF-8");
+		int n = stack.size();
+		int size = CubeLoadr.FIXED_HEADER + 48 + 8*n + 4 + wkt.length;
+		size = (size + 7) / 8 * 8;
+		ByteBuffer header = ByteBuffer.allocate(size);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		header.put(CubeLoadr.MAGIC);
+		header.putInt(CubeLoadr.VERSION);
+		header.putInt(size);
+		header.putInt(width);
+		header.putInt(height);
+		header.putInt(tileSize);
+		header.putInt(n);
+		header.putInt(hasDOY ? CubeLoadr.FLAG_DOY : 0);
+		header.putInt(0); // pad
+		for (double g : ref.GetGeoTransform()) {
+			header.putDouble(g);
+		}
+		for (DatedQCImage dImage : stack) {
+			header.putLong(dImage.cal.getTimeInMillis());
+		}
+		header.putInt(wkt.length);
+		header.put(wkt);
+		header.clear();
+		long position = 0;
+		while (header.hasRemaining()) {
+			position += channel.write(header, position);
+		}
+		return size;
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String[] evi = new String[] {"/data/MOD13A2/2010", "/data/MOD13A2/2011"};
+		String eviDir = "EVI";
+		String eviQCDir = "VI_QC";
+		String doyDir = "DOY";
+		BitCheck mod13Checker = new BitCheck() {
+			@Override
+			public boolean isOK(int check) {
+				return BitChecker.mod13ok(check);
+			}
+		};
+		try {
+			ImageLoadr6 loadr6 = new ImageLoadr6(evi, eviDir, eviQCDir, doyDir, mod13Checker);
+			List<DatedQCImage> stack = new ArrayList<DatedQCImage>();
+			for (int i=0; i<loadr6.getLengthImages(); i++) {
+				stack.add(loadr6.getI(i));
+			}
+			loadr6.close();
+			// 64x64 tiles, 1 GB strip buffer
+			makeCube(stack, "/data/MOD13A2/MOD13A2_2010_2011.cube", 64, 1L<<30);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -53,6 +53,14 @@ public class DuchonSplineFunction implements UnivariateRealFunction {
 		spline = TSUtils.duchonSpline(array[0], array[1]);
 	}
 	
+	/**
+	 * Constructor initializes a spline on the series
+	 * @param series
+	 */
+	public DuchonSplineFunction(TimeSeries series) {
+		this(series.toArray());
+	}
+	
 	/**
 	 * @param x is the point at which to evaluate the spline function
 	 * @return interpolated y at x
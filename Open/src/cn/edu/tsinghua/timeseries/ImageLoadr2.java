@@ -7,7 +7,6 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 
 import org.gdal.gdal.Dataset;
@@ -20,6 +19,7 @@ import com.berkenviro.gis.GISUtils;
 import com.berkenviro.imageprocessing.ArrayFunction;
 import com.berkenviro.imageprocessing.GDALUtils;
 import com.berkenviro.imageprocessing.ImageData;
+import com.berkenviro.imageprocessing.ImageDataStack;
 import com.vividsolutions.jts.geom.Point;
 
 /**
@@ -31,8 +31,9 @@ public class ImageLoadr2 implements Loadr {
 	private ArrayList<DatedQCImage> imageList;
 	private double[] t;
 	private Calendar date0;
-	private Dataset[] images;
-	private Dataset[] qcImages;
+	private ImageDataStack images;
+	private ImageDataStack qcImages;
+	private boolean sameGrid; // every image is on one grid, so a point is one pixel index
 	
 	/**
 	 * 
@@ -87,8 +88,8 @@ public class ImageLoadr2 implements Loadr {
 		// reference to the first image, unless otherwise specified
 		date0 = imageList.get(0).cal;
 		
-		images = new Dataset[imageList.size()];
-		qcImages = new Dataset[imageList.size()];
+		String[] imageNames = new String[imageList.size()];
+		String[] qcImageNames = new String[imageList.size()];
 		
 		// set the time vector
 		t = new double[imageList.size()];
@@ -96,10 +97,13 @@ public class ImageLoadr2 implements Loadr {
 			DatedQCImage dImage = imageList.get(i);
 			t[i] = diffDays(dImage);
 
-			images[i] = GDALUtils.getDataset(dImage.imageName);
-			qcImages[i] = GDALUtils.getDataset(dImage.qcImageName);
-
+			imageNames[i] = dImage.imageName;
+			qcImageNames[i] = dImage.qcImageName;
 		}
+		// opened per reading thread
+		images = new ImageDataStack(imageNames, 1);
+		qcImages = new ImageDataStack(qcImageNames, 1);
+		sameGrid = images.sameGrid(qcImages);
 	}
 	
 	
@@ -190,21 +194,21 @@ public class ImageLoadr2 implements Loadr {
 	}
 	
 	/**
-	 * Due to disk read loads, synchronized, so multiple this.getSeries() requests don't occur.
+	 * Not synchronized.  Each calling thread reads with its own image handles.
 	 * @param pt
 	 * @return
 	 */
-	public synchronized List<double[]> getSeries(Point pt) {		
+	public List<double[]> getSeries(Point pt) {		
 		return getSeries(pt.getX(), pt.getY());
 	}
 	
 	/**
-	 * Due to disk read loads, synchonized, so multiple this.getSeries() requests don't occur.
+	 * Not synchronized.  Each calling thread reads with its own image handles.
 	 * @param pt
 	 * @return
 	 */
-	public synchronized List<double[]> getSeries(double x, double y) {		
-		LinkedList<double[]> out = new LinkedList<double[]>();
+	public List<double[]> getSeries(double x, double y) {		
+		TimeSeries out = new TimeSeries(imageList.size());
 		// iterate over images
 		// the inefficient way:
 //		for (int i=0; i<imageList.size(); i++) {
@@ -231,25 +235,130 @@ public class ImageLoadr2 implements Loadr {
 //			}
 //		}
 		//---------------------------------------------------
-		// the slightly less inefficient way
-		for (int i=0; i<imageList.size(); i++) {
+		// the slightly less inefficient way, one pixel index for the stack if it's on one grid
+		getSeries(x, y, out);
+		//---------------------------------------------------
+		return out.toList();
+	}
+	
+	/**
+	 * Fill the series under the point, without allocating a List.  Not synchronized.
+	 * @param x is a georeferenced coordinate
+	 * @param y is a georeferenced coordinate
+	 * @param series is cleared, then filled with the series
+	 */
+	public void getSeries(double x, double y, TimeSeries series) {
+		series.clear();
+		int[] pixelXY = null;
+		if (sameGrid) {
+			// convert once for the whole stack
 			try {
-				int qc = (int)GDALUtils.imageValue(qcImages[i], x, y, 1);
-				if (!BitChecker.mod13ok(qc)) {
-					//System.err.println("Bad data at "+pt+" t="+dImage.cal.getTime());
-					continue;
+				pixelXY = images.get(0).getPixelXY(x, y);
+			} catch (Exception e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+		for (int i=0; i<imageList.size(); i++) {
+			addValue(i, x, y, pixelXY, series);
+		}
+	}
+
+	/**
+	 * Not synchronized.
+	 * @param px is the zero-indexed pixel of the first image
+	 * @param py is the zero-indexed line of the first image
+	 * @return a list of {t, value} double arrays.
+	 */
+	public List<double[]> getSeries(int px, int py) {
+		TimeSeries series = new TimeSeries(imageList.size());
+		getSeries(px, py, series);
+		return series.toList();
+	}
+
+	/**
+	 * Fill the series of a pixel.  If the images are all on one grid, there is no 
+	 * geographic conversion at all.  Otherwise, this is the series at the center of the pixel.
+	 * @param px is the zero-indexed pixel of the first image
+	 * @param py is the zero-indexed line of the first image
+	 * @param series is cleared, then filled with the series
+	 * @throws IllegalArgumentException if the pixel is outside the first image
+	 */
+	public void getSeries(int px, int py, TimeSeries series) {
+		ImageData ref = images.get(0);
+		if (px < 0 || px >= ref.getXSize() || py < 0 || py >= ref.getYSize()) {
+			throw new IllegalArgumentException("Pixel outside the images: "+px+", "+py);
+		}
+		if (!sameGrid) {
+			double[] xy = ref.getProjectedXY(px, py);
+			getSeries(xy[0], xy[1], series);
+			return;
+		}
+		series.clear();
+		int[] pixelXY = new int[] {px, py};
+		for (int i=0; i<imageList.size(); i++) {
+			addValue(i, Double.NaN, Double.NaN, pixelXY, series);
+		}
+	}
+	
+	/**
+	 * Not synchronized.  The images are read one at a time, with the points in block 
+	 * order, so each block of each image is read once.
+	 * @param xs are georeferenced coordinates
+	 * @param ys are georeferenced coordinates
+	 * @return the series of each point, in the order of xs and ys
+	 */
+	public List<List<double[]>> getSeries(double[] xs, double[] ys) {
+		ImageData ref = images.get(0);
+		int[] order = TSUtils.localOrder(xs, ys, ref.getGeoTransform(), ref.getBlockXSize(), ref.getBlockYSize());
+		TimeSeries[] series = new TimeSeries[xs.length];
+		for (int p=0; p<series.length; p++) {
+			series[p] = new TimeSeries(imageList.size());
+		}
+		// pixel of each point, if the stack is on one grid
+		int[][] pixels = new int[xs.length][];
+		if (sameGrid) {
+			for (int p=0; p<xs.length; p++) {
+				try {
+					pixels[p] = ref.getPixelXY(xs[p], ys[p]);
+				} catch (Exception e) {
+					e.printStackTrace();
 				}
-				// else, write the time offset and the image data
-				double data = GDALUtils.imageValue(images[i], x, y, 1);
-				out.add(new double[] {t[i], data});
-			} catch (Exception e1) {
-				e1.printStackTrace();
-			} 
+			}
+		}
+		for (int i=0; i<imageList.size(); i++) {
+			for (int p : order) {
+				if (sameGrid && pixels[p] == null) {
+					continue; // outside the images
+				}
+				addValue(i, xs[p], ys[p], pixels[p], series[p]);
+			}
+		}
+		List<List<double[]>> out = new ArrayList<List<double[]>>(xs.length);
+		for (TimeSeries s : series) {
+			out.add(s.toList());
 		}
-		//---------------------------------------------------
 		return out;
 	}
 	
+	/**
+	 * Add the value of the i'th image to the series, if it passes the QC check.
+	 */
+	private void addValue(int i, double x, double y, int[] pixelXY, TimeSeries out) {
+		try {
+			int qc = (int)qcImages.value(i, x, y, pixelXY);
+			if (!BitChecker.mod13ok(qc)) {
+				//System.err.println("Bad data at "+pt+" t="+dImage.cal.getTime());
+				return;
+			}
+			// else, write the time offset and the image data
+			double data = images.value(i, x, y, pixelXY);
+			out.add(t[i], data);
+		} catch (Exception e1) {
+			e1.printStackTrace();
+		} 
+	}
+	
 	
 	/**
 	 * Get a complete X vector for the time series.
@@ -263,12 +372,8 @@ public class ImageLoadr2 implements Loadr {
 	 * 
 	 */
 	public void close() {
-		for (int i=0; i<imageList.size(); i++) {
-			images[i].delete();
-			images[i] = null;
-			qcImages[i].delete();
-			qcImages[i] = null;
-		}
+		images.close();
+		qcImages.close();
 		System.gc();
 	}
 	
@@ -278,29 +383,29 @@ public class ImageLoadr2 implements Loadr {
 	 * @param pt is a georeferenced point with the same coordinate system as the images.
 	 * @return a vector of Y values where missing values are interpolated
 	 */
-	public synchronized double[] getY(Point pt) throws Exception {
+	public double[] getY(Point pt) throws Exception {
 		// get the time series under the point
-		List<double[]> series = getSeries(pt);
+		TimeSeries series = new TimeSeries(t.length);
+		getSeries(pt.getX(), pt.getY(), series);
 		if (series.size() == imageList.size()) {
 			double[] y = new double[series.size()];
 			for (int t=0; t<series.size(); t++) {
-				y[t] = series.get(t)[1];
+				y[t] = series.v(t);
 			}
 			return y;
 		}
 		else if (series.size() < 4) {  // not enough points to do an interpolation, 4 is arbitrary
 			throw new Exception("Not enough data!  n="+series.size());
 		}
-		else if (series.get(0)[0] > t[0]) { // do not extrapolate in the beginning
-			throw new Exception("Start of series out of range: "+series.get(0)[0]);
+		else if (series.t(0) > t[0]) { // do not extrapolate in the beginning
+			throw new Exception("Start of series out of range: "+series.t(0));
 		}
-		else if (series.get(series.size()-1)[0] < t[t.length-1]) { // do not extrapolate at the end
-			throw new Exception("End of series out of range: "+series.get(series.size()-1)[0]);
+		else if (series.lastT() < t[t.length-1]) { // do not extrapolate at the end
+			throw new Exception("End of series out of range: "+series.lastT());
 		}
-		double[][] xy = TSUtils.getSeriesAsArray(series);
 		// fit a spline to interpolate
 		//Spline spline = TSUtils.duchonSpline(xy[0], xy[1]);
-		DuchonSplineFunction spline = new DuchonSplineFunction(xy);
+		DuchonSplineFunction spline = new DuchonSplineFunction(series);
 		return TSUtils.evaluateSpline(spline, t);
 	}
 	
@@ -7,7 +7,6 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 
 import javax.media.jai.PlanarImage;
@@ -228,7 +227,19 @@ public class ImageLoadr3 implements Loadr {
 	 * @return
 	 */
 	public synchronized List<double[]> getSeries(double x, double y) {		
-		LinkedList<double[]> out = new LinkedList<double[]>();
+		TimeSeries out = new TimeSeries(imageList.size());
+		getSeries(x, y, out);
+		return out.toList();
+	}
+	
+	/**
+	 * Fill the series under the point, without allocating a List.
+	 * @param x
+	 * @param y
+	 * @param series is cleared, then filled with the series
+	 */
+	public synchronized void getSeries(double x, double y, TimeSeries series) {
+		series.clear();
 		// iterate over images
 		for (int i=0; i<imageList.size(); i++) {
 			DatedQCImage dImage = imageList.get(i);
@@ -242,12 +253,23 @@ public class ImageLoadr3 implements Loadr {
 				// else, write the time offset and the image data
 				double t = diffDays(dImage);
 				double data = JAIUtils.imageValue(x, y, images[i][1], iters[i][1]);
-				out.add(new double[] {t, data});
+				series.add(t, data);
 			} catch (Exception e1) {
 				e1.printStackTrace();
 			}
 		}
-		return out;
+	}
+	
+	/**
+	 * The points are read north to south, then west to east, so the tiles of 
+	 * the images are used together.
+	 * @param xs are georeferenced coordinates
+	 * @param ys are georeferenced coordinates
+	 * @return the series of each point, in the order of xs and ys
+	 */
+	public List<List<double[]>> getSeries(double[] xs, double[] ys) {
+		int[] order = TSUtils.localOrder(xs, ys, null, 0, 0);
+		return TSUtils.getSeries(this, xs, ys, order);
 	}
 	
 	/**
@@ -8,7 +8,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 
 import org.gdal.gdal.Dataset;
@@ -19,6 +18,7 @@ import cn.edu.tsinghua.modis.BitCheck;
 
 import com.berkenviro.imageprocessing.GDALUtils;
 import com.berkenviro.imageprocessing.ImageData;
+import com.berkenviro.imageprocessing.ImageDataStack;
 import com.vividsolutions.jts.geom.Point;
 
 /**
@@ -33,7 +33,8 @@ public class ImageLoadr5 implements Loadr  {
 	private ArrayList<DatedQCImage> imageList;
 	private double[] t;
 	private Calendar date0;
-	private ImageData[] _image_data;
+	private ImageDataStack _image_data;
+	private boolean sameGrid; // every image is on one grid, so a point is one pixel index
 	
 	/**
 	 * 
@@ -72,17 +73,18 @@ public class ImageLoadr5 implements Loadr  {
 		// reference to the first image, unless otherwise specified
 		date0 = imageList.get(0).cal;
 
-		_image_data = new ImageData[imageList.size()];
+		String[] imageNames = new String[imageList.size()];
 
 		// set the time vector
 		t = new double[imageList.size()];
 		for (int i=0; i<imageList.size(); i++) {
 			DatedQCImage dImage = imageList.get(i);
 			t[i] = diffDays(dImage);
-			// set Image Data
-			_image_data[i] = new ImageData(dImage.imageName, 1);
-			//System.out.println("Loaded: "+t[i]+" : "+_image_data[i]);
+			imageNames[i] = dImage.imageName;
 		}
+		// set Image Data, opened per reading thread
+		_image_data = new ImageDataStack(imageNames, 1);
+		sameGrid = _image_data.sameGrid();
 	}
 
 
@@ -173,11 +175,11 @@ public class ImageLoadr5 implements Loadr  {
 	}
 
 	/**
-	 * Due to disk read loads, synchonized, so multiple this.getSeries() requests don't occur.
+	 * Not synchronized.  Each calling thread reads with its own image handles.
 	 * @param pt is a georeferenced Point
 	 * @return a list of {t, value} double arrays.
 	 */
-	public synchronized List<double[]> getSeries(Point pt) {		
+	public List<double[]> getSeries(Point pt) {		
 		return getSeries(pt.getX(), pt.getY());
 	}
 
@@ -187,20 +189,124 @@ public class ImageLoadr5 implements Loadr  {
 	 * @param y is a georeferenced coordinate
 	 * @return a list of {t, value} double arrays.
 	 */
-	public synchronized List<double[]> getSeries(double x, double y) {		
-		LinkedList<double[]> out = new LinkedList<double[]>();
+	public List<double[]> getSeries(double x, double y) {		
+		TimeSeries series = new TimeSeries(imageList.size());
+		getSeries(x, y, series);
+		return series.toList();
+	}
 
-		for (int i=0; i<imageList.size(); i++) {
+	/**
+	 * Fill the series under the point, without allocating a List.  Not synchronized.
+	 * @param x is a georeferenced coordinate
+	 * @param y is a georeferenced coordinate
+	 * @param series is cleared, then filled with the series
+	 */
+	public void getSeries(double x, double y, TimeSeries series) {
+		series.clear();
+		int[] pixelXY = null;
+		if (sameGrid) {
+			// convert once for the whole stack
 			try {
-				// else, write the time offset and the image data
-				double data = _image_data[i].imageValue(x, y, 1);
-				out.add(new double[] {t[i], data});
-			} catch (Exception e1) {
-				e1.printStackTrace();
-			} 
+				pixelXY = _image_data.get(0).getPixelXY(x, y);
+			} catch (Exception e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+		for (int i=0; i<imageList.size(); i++) {
+			addValue(i, x, y, pixelXY, series);
+		}
+	}
+
+	/**
+	 * Not synchronized.
+	 * @param px is the zero-indexed pixel of the first image
+	 * @param py is the zero-indexed line of the first image
+	 * @return a list of {t, value} double arrays.
+	 */
+	public List<double[]> getSeries(int px, int py) {
+		TimeSeries series = new TimeSeries(imageList.size());
+		getSeries(px, py, series);
+		return series.toList();
+	}
+
+	/**
+	 * Fill the series of a pixel.  If the images are all on one grid, there is no 
+	 * geographic conversion at all.  Otherwise, this is the series at the center of the pixel.
+	 * @param px is the zero-indexed pixel of the first image
+	 * @param py is the zero-indexed line of the first image
+	 * @param series is cleared, then filled with the series
+	 * @throws IllegalArgumentException if the pixel is outside the first image
+	 */
+	public void getSeries(int px, int py, TimeSeries series) {
+		ImageData ref = _image_data.get(0);
+		if (px < 0 || px >= ref.getXSize() || py < 0 || py >= ref.getYSize()) {
+			throw new IllegalArgumentException("Pixel outside the images: "+px+", "+py);
+		}
+		if (!sameGrid) {
+			double[] xy = ref.getProjectedXY(px, py);
+			getSeries(xy[0], xy[1], series);
+			return;
+		}
+		series.clear();
+		int[] pixelXY = new int[] {px, py};
+		for (int i=0; i<imageList.size(); i++) {
+			addValue(i, Double.NaN, Double.NaN, pixelXY, series);
+		}
+	}
+
+	/**
+	 * Not synchronized.  The images are read one at a time, with the points in block 
+	 * order, so each block of each image is read once.
+	 * @param xs are georeferenced coordinates
+	 * @param ys are georeferenced coordinates
+	 * @return the series of each point, in the order of xs and ys
+	 */
+	public List<List<double[]>> getSeries(double[] xs, double[] ys) {
+		ImageData ref = _image_data.get(0);
+		int[] order = TSUtils.localOrder(xs, ys, ref.getGeoTransform(), ref.getBlockXSize(), ref.getBlockYSize());
+		TimeSeries[] series = new TimeSeries[xs.length];
+		for (int p=0; p<series.length; p++) {
+			series[p] = new TimeSeries(imageList.size());
+		}
+		// pixel of each point, if the stack is on one grid
+		int[][] pixels = new int[xs.length][];
+		if (sameGrid) {
+			for (int p=0; p<xs.length; p++) {
+				try {
+					pixels[p] = ref.getPixelXY(xs[p], ys[p]);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		for (int i=0; i<imageList.size(); i++) {
+			for (int p : order) {
+				if (sameGrid && pixels[p] == null) {
+					continue; // outside the images
+				}
+				addValue(i, xs[p], ys[p], pixels[p], series[p]);
+			}
+		}
+		List<List<double[]>> out = new ArrayList<List<double[]>>(xs.length);
+		for (TimeSeries s : series) {
+			out.add(s.toList());
 		}
 		return out;
 	}
+
+	/**
+	 * Add the value of the i'th image to the series.
+	 */
+	private void addValue(int i, double x, double y, int[] pixelXY, TimeSeries out) {
+		try {
+			// else, write the time offset and the image data
+			double data = _image_data.value(i, x, y, pixelXY);
+			out.add(t[i], data);
+		} catch (Exception e1) {
+			e1.printStackTrace();
+		} 
+	}
 	
 	/**
 	 * Get a Y-vector from WorldClim.  Should be length 12 (months).
@@ -208,12 +314,22 @@ public class ImageLoadr5 implements Loadr  {
 	 * @param y is a georeferenced coordinate
 	 * @return a vector of Y values with NaN for missing data
 	 */
-	public synchronized double[] getY(double x, double y) {		
+	public double[] getY(double x, double y) {		
 		double[] y_vec = new double[imageList.size()];
+		int[] pixelXY = null;
+		if (sameGrid) {
+			try {
+				pixelXY = _image_data.get(0).getPixelXY(x, y);
+			} catch (Exception e) {
+				e.printStackTrace();
+				Arrays.fill(y_vec, Double.NaN);
+				return y_vec;
+			}
+		}
 		for (int i=0; i<imageList.size(); i++) {
 			try {
 				// else, write the time offset and the image data
-				y_vec[i] = _image_data[i].imageValue(x, y, 1);
+				y_vec[i] = _image_data.value(i, x, y, pixelXY);
 			} catch (Exception e1) {
 				y_vec[i] = Double.NaN;
 				e1.printStackTrace();
@@ -234,9 +350,7 @@ public class ImageLoadr5 implements Loadr  {
 	 * 
 	 */
 	public void close() {
-		for (int i=0; i<imageList.size(); i++) {
-			_image_data[i].deleteDataSet();
-		}
+		_image_data.close();
 	}
 
 	/**
@@ -245,29 +359,29 @@ public class ImageLoadr5 implements Loadr  {
 	 * @param pt is a georeferenced point with the same coordinate system as the images.
 	 * @return a vector of Y values where missing values are interpolated
 	 */
-	public synchronized double[] getY(Point pt) throws Exception {
+	public double[] getY(Point pt) throws Exception {
 		// get the time series under the point
-		List<double[]> series = getSeries(pt);
+		TimeSeries series = new TimeSeries(t.length);
+		getSeries(pt.getX(), pt.getY(), series);
 		if (series.size() == imageList.size()) {
 			double[] y = new double[series.size()];
 			for (int t=0; t<series.size(); t++) {
-				y[t] = series.get(t)[1];
+				y[t] = series.v(t);
 			}
 			return y;
 		}
 		else if (series.size() < 4) {  // not enough points to do an interpolation, 4 is arbitrary
 			throw new Exception("Not enough data!  n="+series.size());
 		}
-		else if (series.get(0)[0] > t[0]) { // do not extrapolate in the beginning
-			throw new Exception("Start of series out of range: "+series.get(0)[0]);
+		else if (series.t(0) > t[0]) { // do not extrapolate in the beginning
+			throw new Exception("Start of series out of range: "+series.t(0));
 		}
-		else if (series.get(series.size()-1)[0] < t[t.length-1]) { // do not extrapolate at the end
-			throw new Exception("End of series out of range: "+series.get(series.size()-1)[0]);
+		else if (series.lastT() < t[t.length-1]) { // do not extrapolate at the end
+			throw new Exception("End of series out of range: "+series.lastT());
 		}
-		double[][] xy = TSUtils.getSeriesAsArray(series);
 		// fit a spline to interpolate
 		//Spline spline = TSUtils.duchonSpline(xy[0], xy[1]);
-		DuchonSplineFunction spline = new DuchonSplineFunction(xy);
+		DuchonSplineFunction spline = new DuchonSplineFunction(series);
 		return TSUtils.evaluateSpline(spline, t);
 	}
 
@@ -8,7 +8,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.TreeMap;
 
@@ -19,6 +18,7 @@ import cn.edu.tsinghua.modis.BitCheck;
 
 import com.berkenviro.imageprocessing.ArrayFunction;
 import com.berkenviro.imageprocessing.ImageData;
+import com.berkenviro.imageprocessing.ImageDataStack;
 import com.berkenviro.imageprocessing.SplineFunction;
 import com.vividsolutions.jts.geom.Point;
 
@@ -34,9 +34,10 @@ import flanagan.complex.ComplexMatrix;
 public class ImageLoadr6 implements Loadr {
 
 	private ArrayList<DatedQCImage> imageList;
-	private ImageData[] _image_data;
-	private ImageData[] _qc_image_data;
-	private ImageData[] _doy_image_data;
+	private ImageDataStack _image_data;
+	private ImageDataStack _qc_image_data;
+	private ImageDataStack _doy_image_data;
+	private boolean sameGrid; // every image is on one grid, so a point is one pixel index
 	
 	private BitCheck bitChecker;
 	private Calendar date0;
@@ -103,17 +104,21 @@ public class ImageLoadr6 implements Loadr {
 		Collections.sort(imageList);
 		System.out.println("\t Done!");
 
-		_image_data = new ImageData[imageList.size()];
-		_qc_image_data = new ImageData[imageList.size()];
-		_doy_image_data = new ImageData[imageList.size()];
+		String[] imageNames = new String[imageList.size()];
+		String[] qcImageNames = new String[imageList.size()];
+		String[] doyImageNames = new String[imageList.size()];
 
 		for (int i=0; i<imageList.size(); i++) {
 			DatedQCImage dImage = imageList.get(i);
-			// set Image Data
-			_qc_image_data[i] = new ImageData(dImage.qcImageName, 1);
-			_image_data[i] = new ImageData(dImage.imageName, 1);
-			_doy_image_data[i] = new ImageData(dImage.dateName, 1);
+			imageNames[i] = dImage.imageName;
+			qcImageNames[i] = dImage.qcImageName;
+			doyImageNames[i] = dImage.dateName;
 		}
+		// set Image Data, opened per reading thread
+		_qc_image_data = new ImageDataStack(qcImageNames, 1);
+		_image_data = new ImageDataStack(imageNames, 1);
+		_doy_image_data = new ImageDataStack(doyImageNames, 1);
+		sameGrid = _image_data.sameGrid(_qc_image_data, _doy_image_data);
 	}
 
 
@@ -180,11 +185,11 @@ public class ImageLoadr6 implements Loadr {
 	}
 
 	/**
-	 * Due to disk read loads, synchonized, so multiple this.getSeries() requests don't occur.
+	 * Not synchronized.  Each calling thread reads with its own image handles.
 	 * @param pt is a georeferenced Point
 	 * @return a list of {t, value} double arrays.
 	 */
-	public synchronized List<double[]> getSeries(Point pt) {		
+	public List<double[]> getSeries(Point pt) {		
 		return getSeries(pt.getX(), pt.getY());
 	}
 
@@ -194,71 +199,174 @@ public class ImageLoadr6 implements Loadr {
 	 * @param y is a georeferenced coordinate
 	 * @return a list of {t, value} double arrays with t=NaN if the DOY is not in [0,366]
 	 */
-	public synchronized List<double[]> getSeries(double x, double y) {		
-		LinkedList<double[]> out = new LinkedList<double[]>();
-		
-		for (int i=0; i<imageList.size(); i++) {
+	public List<double[]> getSeries(double x, double y) {		
+		TimeSeries series = new TimeSeries(imageList.size());
+		getSeries(x, y, series);
+		return series.toList();
+	}
+
+	/**
+	 * Fill the series under the point, without allocating a List.  Not synchronized.
+	 * @param x is a georeferenced coordinate
+	 * @param y is a georeferenced coordinate
+	 * @param series is cleared, then filled with the series
+	 */
+	public void getSeries(double x, double y, TimeSeries series) {
+		series.clear();
+		int[] pixelXY = null;
+		if (sameGrid) {
+			// convert once for the whole stack
 			try {
-				int qc = (int)_qc_image_data[i].imageValue(x, y, 1);
-				if (!bitChecker.isOK(qc)) {
-//					System.err.println("Bad data: " + qc);
-					continue;
-				}
-				
-				// time
-				Calendar cal = (Calendar)imageList.get(i).cal.clone();
-				int doy = (int)_doy_image_data[i].imageValue(x, y, 1);
-				// account for annual roll-overs
-				if ((cal.get(Calendar.DAY_OF_YEAR) - doy) > 16) {
-					cal.set(Calendar.YEAR, cal.get(Calendar.YEAR)+1);
-					cal.set(Calendar.DAY_OF_YEAR, doy);
-				}
-				else if ((cal.get(Calendar.DAY_OF_YEAR) - doy) < -16) {
-					cal.set(Calendar.YEAR, cal.get(Calendar.YEAR)-1);
-					cal.set(Calendar.DAY_OF_YEAR, doy);
-				} else {
-					cal.set(Calendar.DAY_OF_YEAR, doy);
-				}
-				double t;
-				if (date0 == null) {
-					// use the first date as the reference point
-					System.err.println("WARNING: No zero time reference for the time series!");
-					t = diffDays(imageList.get(0).cal, cal);
-				} else {
-					t = diffDays(date0, cal);
-				}
-				// check the input
-				if (doy < 0 || doy > 366) { // undefined
-					t = Double.NaN;
+				pixelXY = _image_data.get(0).getPixelXY(x, y);
+			} catch (Exception e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+		for (int i=0; i<imageList.size(); i++) {
+			addValue(i, x, y, pixelXY, series);
+		}
+	}
+
+	/**
+	 * Not synchronized.
+	 * @param px is the zero-indexed pixel of the first image
+	 * @param py is the zero-indexed line of the first image
+	 * @return a list of {t, value} double arrays.
+	 */
+	public List<double[]> getSeries(int px, int py) {
+		TimeSeries series = new TimeSeries(imageList.size());
+		getSeries(px, py, series);
+		return series.toList();
+	}
+
+	/**
+	 * Fill the series of a pixel.  If the images are all on one grid, there is no 
+	 * geographic conversion at all.  Otherwise, this is the series at the center of the pixel.
+	 * @param px is the zero-indexed pixel of the first image
+	 * @param py is the zero-indexed line of the first image
+	 * @param series is cleared, then filled with the series
+	 * @throws IllegalArgumentException if the pixel is outside the first image
+	 */
+	public void getSeries(int px, int py, TimeSeries series) {
+		ImageData ref = _image_data.get(0);
+		if (px < 0 || px >= ref.getXSize() || py < 0 || py >= ref.getYSize()) {
+			throw new IllegalArgumentException("Pixel outside the images: "+px+", "+py);
+		}
+		if (!sameGrid) {
+			double[] xy = ref.getProjectedXY(px, py);
+			getSeries(xy[0], xy[1], series);
+			return;
+		}
+		series.clear();
+		int[] pixelXY = new int[] {px, py};
+		for (int i=0; i<imageList.size(); i++) {
+			addValue(i, Double.NaN, Double.NaN, pixelXY, series);
+		}
+	}
+
+	/**
+	 * Not synchronized.  The images are read one at a time, with the points in block 
+	 * order, so each block of each image is read once.
+	 * @param xs are georeferenced coordinates
+	 * @param ys are georeferenced coordinates
+	 * @return the series of each point, in the order of xs and ys
+	 */
+	public List<List<double[]>> getSeries(double[] xs, double[] ys) {
+		ImageData ref = _image_data.get(0);
+		int[] order = TSUtils.localOrder(xs, ys, ref.getGeoTransform(), ref.getBlockXSize(), ref.getBlockYSize());
+		TimeSeries[] series = new TimeSeries[xs.length];
+		for (int p=0; p<series.length; p++) {
+			series[p] = new TimeSeries(imageList.size());
+		}
+		// pixel of each point, if the stack is on one grid
+		int[][] pixels = new int[xs.length][];
+		if (sameGrid) {
+			for (int p=0; p<xs.length; p++) {
+				try {
+					pixels[p] = ref.getPixelXY(xs[p], ys[p]);
+				} catch (Exception e) {
+					e.printStackTrace();
 				}
-				// check if this is a duplicate data point
-				// can happen at the annual boundary of composites
-				if (out.size() > 0) {
-					double[] last = out.getLast();
-					if (last[0] == t) {
-						continue; // already have this data point.
-					}
+			}
+		}
+		for (int i=0; i<imageList.size(); i++) {
+			for (int p : order) {
+				if (sameGrid && pixels[p] == null) {
+					continue; // outside the images
 				}
-				double data = _image_data[i].imageValue(x, y, 1);
-				// write the time offset and the image data
-				out.add(new double[] {t, data});
-				
-			} catch (Exception e1) {
-				e1.printStackTrace();
-			} 
+				addValue(i, xs[p], ys[p], pixels[p], series[p]);
+			}
+		}
+		List<List<double[]>> out = new ArrayList<List<double[]>>(xs.length);
+		for (TimeSeries s : series) {
+			out.add(s.toList());
 		}
 		return out;
 	}
 
+	/**
+	 * Add the value of the i'th image to the series, if it passes the QC check and 
+	 * is not a duplicate of the last value in the series.
+	 */
+	private void addValue(int i, double x, double y, int[] pixelXY, TimeSeries out) {
+		try {
+			int qc = (int)_qc_image_data.value(i, x, y, pixelXY);
+			if (!bitChecker.isOK(qc)) {
+//					System.err.println("Bad data: " + qc);
+				return;
+			}
+			
+			// time
+			Calendar cal = (Calendar)imageList.get(i).cal.clone();
+			int doy = (int)_doy_image_data.value(i, x, y, pixelXY);
+			// account for annual roll-overs
+			if ((cal.get(Calendar.DAY_OF_YEAR) - doy) > 16) {
+				cal.set(Calendar.YEAR, cal.get(Calendar.YEAR)+1);
+				cal.set(Calendar.DAY_OF_YEAR, doy);
+			}
+			else if ((cal.get(Calendar.DAY_OF_YEAR) - doy) < -16) {
+				cal.set(Calendar.YEAR, cal.get(Calendar.YEAR)-1);
+				cal.set(Calendar.DAY_OF_YEAR, doy);
+			} else {
+				cal.set(Calendar.DAY_OF_YEAR, doy);
+			}
+			double t;
+			if (date0 == null) {
+				// use the first date as the reference point
+				System.err.println("WARNING: No zero time reference for the time series!");
+				t = diffDays(imageList.get(0).cal, cal);
+			} else {
+				t = diffDays(date0, cal);
+			}
+			// check the input
+			if (doy < 0 || doy > 366) { // undefined
+				t = Double.NaN;
+			}
+			// check if this is a duplicate data point
+			// can happen at the annual boundary of composites
+			if (out.size() > 0) {
+				if (out.lastT() == t) {
+					return; // already have this data point.
+				}
+			}
+			double data = _image_data.value(i, x, y, pixelXY);
+			// write the time offset and the image data
+			out.add(t, data);
+			
+		} catch (Exception e1) {
+			e1.printStackTrace();
+		} 
+	}
+
 
 	/**
 	 * 
 	 */
 	public void close() {
-		for (int i=0; i<imageList.size(); i++) {
-			_image_data[i].deleteDataSet();
-			_qc_image_data[i].deleteDataSet();
-		}
+		_image_data.close();
+		_qc_image_data.close();
+		_doy_image_data.close();
 	}
 
 	@Override
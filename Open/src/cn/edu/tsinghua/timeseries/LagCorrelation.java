@@ -0,0 +1,363 @@
+/**
+ *
+ */
+package cn.edu.tsinghua.timeseries;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.math3.stat.correlation.StorelessCovariance;
+
+/**
+ * @author Nicholas Clinton
+ *
+ * The search of Correlatr3: the correlation of a response with the sum of a daily covariate
+ * over a window (sum) ending some days (lag) before each response, maximized over sums and lags.
+ *
+ * The window sums come from running sums over each run of consecutive covariate days, so
+ * each one is a subtraction instead of a loop over the window, and the moments are kept in
+ * primitive locals instead of a StorelessCovariance per (sum, lag).  The scratch arrays are
+ * reused from pixel to pixel, so one instance per thread.  Not thread safe.
+ */
+public class LagCorrelation {
+
+	/**
+	 * Step, in days, of the sums and lags that are searched.
+	 */
+	public static final int STEP = 8;
+
+	// daily lookups, indexed by t
+	private double[] rDoub = new double[0];
+	private double[] cDoub = new double[0];
+	private boolean[] cHas = new boolean[0];
+	// length of the run of consecutive covariate days ending at t, zero if t is missing
+	private int[] run = new int[0];
+	// sum of the run up to and including t, NaNs excluded
+	private double[] runSum = new double[0];
+	// number of NaN covariate values at or before t
+	private int[] nans = new int[0];
+	// the responses that are used, t and value
+	private int[] rt = new int[0];
+	private double[] rv = new double[0];
+	// for the reference implementation
+	private double[] rc = new double[2];
+
+	/**
+	 * The covariate is summed backwards from t-lag over at most sum+1 consecutive days,
+	 * stopping at the first missing day.  Responses less than zero, and responses with no
+	 * covariate at t-lag, are skipped.  Combinations with fewer than five pairs or no variance
+	 * are skipped.
+	 * @param response
+	 * @param covariate
+	 * @param longestLag
+	 * @param longestSum
+	 * @return {correlation, lag, sum, n} of the largest correlation, or of the smallest
+	 * if the largest is negative
+	 */
+	public double[] maxCorrelation(TimeSeries response, TimeSeries covariate, int longestLag, int longestSum) {
+		int cLength = lookups(response, covariate);
+		if (run.length < cLength) {
+			run = new int[cLength];
+			runSum = new double[cLength];
+			nans = new int[cLength];
+		}
+		int nanCount = 0;
+		for (int j=0; j<cLength; j++) {
+			if (!cHas[j]) {
+				run[j] = 0;
+				runSum[j] = 0;
+			} else {
+				double c = cDoub[j];
+				boolean nan = Double.isNaN(c);
+				if (nan) {
+					nanCount++;
+				}
+				if (j > 0 && run[j-1] > 0) {
+					run[j] = run[j-1] + 1;
+					runSum[j] = runSum[j-1] + (nan ? 0 : c);
+				} else {
+					run[j] = 1;
+					runSum[j] = nan ? 0 : c;
+				}
+			}
+			nans[j] = nanCount;
+		}
+		// responses that can be used
+		if (rt.length < response.size()) {
+			rt = new int[response.size()];
+			rv = new double[response.size()];
+		}
+		int nr = 0;
+		for (int i=0; i<response.size(); i++) {
+			double t = response.t(i);
+			if (Double.isNaN(t)) {
+				continue;
+			}
+			double r = rDoub[(int)t];
+			if (r < 0) { // want only EVI greater than zero
+				continue;
+			}
+			rt[nr] = (int)t;
+			rv[nr] = r;
+			nr++;
+		}
+
+		double minCorr = 1.0;
+		double maxCorr = -1.0;
+		int minLag = 0;
+		int maxLag = 0;
+		int minSum = 0;
+		int maxSum = 0;
+		int minN = 0;
+		int maxN = 0;
+		for (int sum=0; sum<=longestSum; sum+=STEP) {
+			for (int l=0; l<=longestLag; l+=STEP) {
+				// moments about the first pair, so a constant variable has exactly zero variance
+				double r0 = 0, c0 = 0;
+				double sr = 0, sc = 0, srr = 0, scc = 0, src = 0;
+				int n = 0;
+				for (int k=0; k<nr; k++) {
+					int t = rt[k];
+					if (t - l - sum < 0) {
+						continue; // don't go out of bounds
+					}
+					int j = t - l;
+					int m = run[j];
+					if (m == 0) {
+						continue; // no covariate at t-l
+					}
+					double c;
+					int start; // first day in the window
+					if (m > sum + 1) {
+						c = runSum[j] - runSum[j-sum-1];
+						start = j - sum;
+					} else {
+						c = runSum[j];
+						start = j - m + 1;
+					}
+					if (nans[j] != (start > 0 ? nans[start-1] : 0)) {
+						c = Double.NaN;
+					}
+					double r = rv[k];
+					if (n == 0) {
+						r0 = r;
+						c0 = c;
+					}
+					double dr = r - r0;
+					double dc = c - c0;
+					sr += dr;
+					sc += dc;
+					srr += dr*dr;
+					scc += dc*dc;
+					src += dr*dc;
+					n++;
+				}
+				// if not enough data (arbitrary number)
+				if (n < 5) {
+					continue;
+				}
+				double covRR = srr - sr*sr/n;
+				double covCC = scc - sc*sc/n;
+				// if either variable is constant...
+				if (covRR <= 0 || covCC <= 0) {
+					continue;
+				}
+				double correlation = (src - sr*sc/n) / Math.sqrt(covRR * covCC);
+				if (correlation < minCorr) {
+					minCorr = correlation;
+					minLag = l;
+					minSum = sum;
+					minN = n;
+				}
+				if (correlation > maxCorr) {
+					maxCorr = correlation;
+					maxLag = l;
+					maxSum = sum;
+					maxN = n;
+				}
+			} // end lags
+		} // end summations
+
+		if (maxCorr < 0) {
+			return new double[] {minCorr, minLag, minSum, minN};
+		}
+		return new double[] {maxCorr, maxLag, maxSum, maxN};
+	}
+
+	/**
+	 * The original search, which sums each window day by day.  For checking.
+	 * @see #maxCorrelation(TimeSeries, TimeSeries, int, int)
+	 */
+	public double[] maxCorrelationDirect(TimeSeries response, TimeSeries covariate, int longestLag, int longestSum) {
+		lookups(response, covariate);
+
+		double minCorr = 1.0;
+		double maxCorr = -1.0;
+		int minLag = 0;
+		int maxLag = 0;
+		int minSum = 0;
+		int maxSum = 0;
+		int minN = 0;
+		int maxN = 0;
+		for (int sum=0; sum<=longestSum; sum+=STEP) {
+			for (int l=0; l<=longestLag; l+=STEP) {
+				StorelessCovariance cov = new StorelessCovariance(2, false);
+				int n = 0;
+				for (int i=0; i<response.size(); i++) { // iterate over every t for the response
+					double t = response.t(i);
+					if (t - l - sum < 0) {
+						continue; // don't go out of bounds
+					}
+					try {
+						// response---------------
+						double r = rDoub[(int)t];
+						if (r < 0) { // want only EVI greater than zero
+							continue;
+						}
+						// summation
+						double cSum = 0;
+						int index = (int) t - l;
+						for (int s=0; s<=sum; s++) { // DAILY time step on the covariate
+							if (!cHas[index]) { // index was a no data point
+								continue;
+							}
+							cSum += cDoub[index];
+							index--;
+						}
+						if (index < (t - l)) { // don't increment a false zero (all no-data)
+							rc[0] = r;
+							rc[1] = cSum;
+							cov.increment(rc);
+							n++;
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				} // end responses
+
+				// if not enough data (arbitrary number)
+				if (n < 5) {
+					continue;
+				}
+				// if either variable is constant...
+				if (cov.getCovariance(0, 0) == 0 || cov.getCovariance(1, 1) == 0) {
+					continue;
+				}
+				// normalize by SD
+				double correlation = cov.getCovariance(0, 1)
+						/ Math.sqrt(cov.getCovariance(0, 0) * cov.getCovariance(1, 1));
+				if (correlation < minCorr) {
+					minCorr = correlation;
+					minLag = l;
+					minSum = sum;
+					minN = n;
+				}
+				if (correlation > maxCorr) {
+					maxCorr = correlation;
+					maxLag = l;
+					maxSum = sum;
+					maxN = n;
+				}
+			} // end lags
+		} // end summations
+
+		if (maxCorr < 0) {
+			return new double[] {minCorr, minLag, minSum, minN};
+		}
+		return new double[] {maxCorr, maxLag, maxSum, maxN};
+	}
+
+	/**
+	 * Fill the daily lookups of the series.
+	 * @return the length of the covariate lookup
+	 */
+	private int lookups(TimeSeries response, TimeSeries covariate) {
+		int rLength = (int)response.lastT()+1;
+		if (rDoub.length < rLength) {
+			rDoub = new double[rLength];
+		}
+		for (int i=0; i<response.size(); i++) {
+			rDoub[(int)response.t(i)] = response.v(i);
+		}
+		int cLength = Math.max((int)covariate.lastT()+1, rLength);
+		if (cDoub.length < cLength) {
+			cDoub = new double[cLength];
+			cHas = new boolean[cLength];
+		} else {
+			Arrays.fill(cHas, false);
+		}
+		for (int i=0; i<covariate.size(); i++) {
+			int tc = (int)covariate.t(i);
+			cDoub[tc] = covariate.v(i);
+			cHas[tc] = true;
+		}
+		return cLength;
+	}
+
+	/**
+	 * Compare to the direct search on synthetic pixels: four years of a daily covariate
+	 * with gaps and a 16-day response that follows it.
+	 * @param args optionally, the number of pixels
+	 */
+	public static void main(String[] args) {
+		int pixels = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int longestLag = 168;
+		int longestSum = 84;
+		Random random = new Random(20140520);
+		TimeSeries[] responses = new TimeSeries[pixels];
+		TimeSeries[] covariates = new TimeSeries[pixels];
+		for (int p=0; p<pixels; p++) {
+			covariates[p] = new TimeSeries();
+			double[] daily = new double[4*365];
+			for (int d=0; d<daily.length; d++) {
+				daily[d] = 10.0 + 10.0*Math.sin(2.0*Math.PI*d/365.0) + 3.0*random.nextGaussian();
+				if (random.nextDouble() < 0.15) {
+					continue; // cloudy
+				}
+				covariates[p].add(d, daily[d]);
+			}
+			responses[p] = new TimeSeries();
+			int lag = random.nextInt(longestLag);
+			for (int d=0; d<daily.length; d+=16) {
+				int t = d + random.nextInt(16);
+				if (t >= daily.length || random.nextDouble() < 0.1) {
+					continue;
+				}
+				double r = 0.3 + 0.02*daily[Math.max(t-lag, 0)] + 0.05*random.nextGaussian();
+				responses[p].add(t, r);
+			}
+		}
+		LagCorrelation kernel = new LagCorrelation();
+		double[][] direct = new double[pixels][];
+		double[][] prefix = new double[pixels][];
+		// warm up
+		for (int p=0; p<Math.min(pixels, 100); p++) {
+			kernel.maxCorrelationDirect(responses[p], covariates[p], longestLag, longestSum);
+			kernel.maxCorrelation(responses[p], covariates[p], longestLag, longestSum);
+		}
+		long start = System.nanoTime();
+		for (int p=0; p<pixels; p++) {
+			direct[p] = kernel.maxCorrelationDirect(responses[p], covariates[p], longestLag, longestSum);
+		}
+		long directTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int p=0; p<pixels; p++) {
+			prefix[p] = kernel.maxCorrelation(responses[p], covariates[p], longestLag, longestSum);
+		}
+		long prefixTime = System.nanoTime() - start;
+
+		double maxDiff = 0;
+		int mismatches = 0;
+		for (int p=0; p<pixels; p++) {
+			maxDiff = Math.max(maxDiff, Math.abs(direct[p][0] - prefix[p][0]));
+			if (direct[p][1] != prefix[p][1] || direct[p][2] != prefix[p][2] || direct[p][3] != prefix[p][3]) {
+				mismatches++;
+				System.out.println("\t Mismatch: "+Arrays.toString(direct[p])+" vs. "+Arrays.toString(prefix[p]));
+			}
+		}
+		System.out.println("Pixels: "+pixels+", lag/sum/n mismatches: "+mismatches+", max |correlation difference|: "+maxDiff);
+		System.out.println("Direct: "+(directTime/1000.0/pixels)+" us/pixel");
+		System.out.println("Prefix: "+(prefixTime/1000.0/pixels)+" us/pixel");
+		System.out.println("Speedup: "+((double)directTime/prefixTime));
+	}
+}
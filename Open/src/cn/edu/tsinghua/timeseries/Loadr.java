@@ -35,6 +35,25 @@ public interface Loadr {
 	 */
 	public List<double[]> getSeries(double x, double y);
 	
+	/**
+	 * Fill a TimeSeries with the series, rather than allocating a new List.  
+	 * Reuse one TimeSeries per thread for repeated calls.
+	 * @param x is georeferenced
+	 * @param y is georeferenced
+	 * @param series is cleared, then filled with {t, value} in chronological order
+	 */
+	public void getSeries(double x, double y, TimeSeries series);
+	
+	/**
+	 * Get the series of many points at once.  The points are read in an order that 
+	 * is local in the images (by block and row), not in the order given, so that 
+	 * large overlays read each part of each image once instead of seeking at random.
+	 * @param xs are georeferenced
+	 * @param ys are georeferenced
+	 * @return the series of each point, in the order of xs and ys
+	 */
+	public List<List<double[]>> getSeries(double[] xs, double[] ys);
+	
 	/**
 	 * Get an interpolated series, where missing data is filled in, but not extrapolated.
 	 * @param pt is a georeferenced point.
@@ -0,0 +1,381 @@
+/**
+ *
+ */
+package cn.edu.tsinghua.timeseries;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import com.berkenviro.gis.GISUtils;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.util.AffineTransformation;
+
+/**
+ * @author Nicholas Clinton
+ *
+ * A pixel-major archive of PERSIANN daily rainfall, transposed from the daily
+ * rgccs1dYYDDD.bin files (see {@link PERSIANNFile}) by a one-time ingest.
+ *
+ * Layout:
+ *   dir/archive.hdr is a properties file with the tile size.
+ *   dir/YYYY/tile_R_C.bin is the chunk of tile row R, tile column C for year YYYY.
+ *   A chunk holds tileSize x tileSize pixels in row-major order (edge tiles are padded).
+ *   Each pixel holds 366 little-endian floats, one per day of the year, so a pixel's
+ *   year is one contiguous read.  Days that have not been ingested, and day 366 of
+ *   non-leap years, are NODATA.
+ *
+ * New days can be appended at any time with append(), e.g. as PERSIANN releases them.
+ * Chunks are mapped for reading from a bounded pool, like PERSIANNFile.
+ */
+public class PERSIANNArchive {
+
+	public static final int WIDTH = 9000;
+	public static final int HEIGHT = 3000;
+	public static final int DAYS = 366;
+	public static final float NODATA = -9999.f;
+
+	private static final String HEADER = "archive.hdr";
+
+	private File dir;
+	private int tileSize, tilesAcross, tilesDown;
+	private AffineTransformation inv;
+
+	// read mappings of the chunks, in access order
+	private int maxMappings = 512;
+	private final LinkedHashMap<File, FloatBuffer> mappings =
+			new LinkedHashMap<File, FloatBuffer>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<File, FloatBuffer> eldest) {
+			return size() > maxMappings;
+		}
+	};
+
+	/**
+	 * Open an existing archive.
+	 * @param dirName
+	 * @throws IOException
+	 */
+	public PERSIANNArchive(String dirName) throws IOException {
+		dir = new File(dirName);
+		Properties header = new Properties();
+		FileInputStream in = new FileInputStream(new File(dir, HEADER));
+		try {
+			header.load(in);
+		} finally {
+			in.close();
+		}
+		init(Integer.parseInt(header.getProperty("tileSize")));
+	}
+
+	/**
+	 * Create a new, empty archive.
+	 * @param dirName
+	 * @param tileSize is the width and height of a tile, in pixels.  A tile row of
+	 * 	chunks is tileSize*9000*366*4 bytes, which is mapped at once while ingesting.
+	 * @throws IOException
+	 */
+	public PERSIANNArchive(String dirName, int tileSize) throws IOException {
+		dir = new File(dirName);
+		if (new File(dir, HEADER).exists()) {
+			throw new IOException("Archive already exists: "+dir);
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't make "+dir);
+		}
+		Properties header = new Properties();
+		header.setProperty("tileSize", String.valueOf(tileSize));
+		header.setProperty("width", String.valueOf(WIDTH));
+		header.setProperty("height", String.valueOf(HEIGHT));
+		header.setProperty("days", String.valueOf(DAYS));
+		FileOutputStream out = new FileOutputStream(new File(dir, HEADER));
+		try {
+			header.store(out, "PERSIANN pixel-major archive");
+		} finally {
+			out.close();
+		}
+		init(tileSize);
+	}
+
+	private void init(int tileSize) {
+		this.tileSize = tileSize;
+		tilesAcross = (WIDTH + tileSize - 1) / tileSize;
+		tilesDown = (HEIGHT + tileSize - 1) / tileSize;
+		// same georeferencing as PERSIANNFile
+		inv = GISUtils.proj2raster(new AffineTransformation(0.04, 0.0, 0.0, 0.0, -0.04, 60.0));
+	}
+
+	/**
+	 *
+	 * @return the width and height of a tile
+	 */
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * Set the maximum number of chunks mapped for reading at once.
+	 * @param max
+	 */
+	public void setMaxMappings(int max) {
+		synchronized (mappings) {
+			maxMappings = max;
+			while (mappings.size() > maxMappings) {
+				mappings.remove(mappings.keySet().iterator().next());
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return the years in the archive, in order
+	 */
+	public int[] getYears() {
+		List<Integer> years = new ArrayList<Integer>();
+		File[] subdirs = dir.listFiles();
+		if (subdirs != null) {
+			for (File f : subdirs) {
+				if (f.isDirectory() && f.getName().matches("\\d{4}")) {
+					years.add(Integer.parseInt(f.getName()));
+				}
+			}
+		}
+		Collections.sort(years);
+		int[] out = new int[years.size()];
+		for (int i=0; i<out.length; i++) {
+			out[i] = years.get(i);
+		}
+		return out;
+	}
+
+	/**
+	 *
+	 * @param projXY in geographic coordinates, longitude in [-180, 360)
+	 * @return zero-referenced pixel coordinates
+	 * @throws Exception
+	 */
+	public int[] getPixelXY(double[] projXY) throws Exception {
+		Coordinate pix = new Coordinate();
+		// correct for -180:180 geographic coordinates
+		inv.transform(new Coordinate((projXY[0] < 0 ? projXY[0] + 360.0 : projXY[0]),
+				projXY[1]), pix);
+		if ((int)pix.x < 0 || (int)pix.x >= WIDTH || (int)pix.y < 0 || (int)pix.y >= HEIGHT) {
+			throw new Exception("Impossible coordinates: "+pix);
+		}
+		return new int[] {(int)pix.x, (int)pix.y};
+	}
+
+	private File chunkFile(int year, int tileRow, int tileCol) {
+		return new File(dir, year + File.separator + "tile_" + tileRow + "_" + tileCol + ".bin");
+	}
+
+	private long chunkBytes() {
+		return 4L * tileSize * tileSize * DAYS;
+	}
+
+	/**
+	 * Read one year of a pixel.
+	 * @param px is the zero-referenced pixel
+	 * @param py is the zero-referenced line
+	 * @param year
+	 * @param out holds DAYS values, indexed by day of year - 1.  All NODATA if the
+	 * 	year has not been ingested.
+	 * @throws IOException
+	 */
+	public void readYear(int px, int py, int year, float[] out) throws IOException {
+		FloatBuffer chunk = getChunk(chunkFile(year, py / tileSize, px / tileSize));
+		if (chunk == null) {
+			Arrays.fill(out, 0, DAYS, NODATA);
+			return;
+		}
+		int record = (py % tileSize) * tileSize + (px % tileSize);
+		chunk = chunk.duplicate();
+		chunk.position(record * DAYS);
+		chunk.get(out, 0, DAYS);
+	}
+
+	/**
+	 * Get the read mapping of a chunk from the pool.
+	 * @return null if the chunk doesn't exist
+	 */
+	private FloatBuffer getChunk(File file) throws IOException {
+		synchronized (mappings) {
+			FloatBuffer floats = mappings.get(file);
+			if (floats == null) {
+				if (!file.exists()) {
+					return null;
+				}
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					FileChannel channel = raf.getChannel();
+					floats = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+							.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+				} finally {
+					raf.close(); // the mapping stays valid
+				}
+				mappings.put(file, floats);
+			}
+			return floats;
+		}
+	}
+
+	/**
+	 * Map a chunk for writing, creating it filled with NODATA if it doesn't exist.
+	 */
+	private MappedByteBuffer mapForWrite(File file) throws IOException {
+		if (!file.exists()) {
+			createChunk(file);
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			MappedByteBuffer bytes = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, chunkBytes());
+			bytes.order(ByteOrder.LITTLE_ENDIAN);
+			return bytes;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Create a chunk filled with NODATA.  The chunk is filled in a temporary file and
+	 * renamed into place once it is on disk, so a crash part way through never leaves
+	 * a chunk of zeros that would later be read as 0 mm.  A stale temporary file from
+	 * such a crash is simply refilled.
+	 */
+	private void createChunk(File file) throws IOException {
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Can't make "+parent);
+		}
+		File tmp = new File(parent, file.getName() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(chunkBytes());
+			MappedByteBuffer bytes = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, chunkBytes());
+			FloatBuffer floats = bytes.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			while (floats.hasRemaining()) {
+				floats.put(NODATA);
+			}
+			bytes.force();
+		} finally {
+			raf.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Ingest daily files, new or replacing days already in the archive.  Each tile row of
+	 * a year is written by scattering the matching lines of every day into the mapped chunks,
+	 * so each daily file is read once, in bulk.
+	 * @param days are PERSIANNFiles, in any order
+	 * @throws IOException
+	 */
+	public void append(List<PERSIANNFile> days) throws IOException {
+		// group by year
+		TreeMap<Integer, List<PERSIANNFile>> years = new TreeMap<Integer, List<PERSIANNFile>>();
+		for (PERSIANNFile pf : days) {
+			int year = pf.cal.get(Calendar.YEAR);
+			if (!years.containsKey(year)) {
+				years.put(year, new ArrayList<PERSIANNFile>());
+			}
+			years.get(year).add(pf);
+		}
+
+		float[] lines = new float[tileSize * WIDTH];
+		for (int year : years.keySet()) {
+			List<PERSIANNFile> yearDays = years.get(year);
+			Collections.sort(yearDays);
+			System.out.println("Ingesting "+yearDays.size()+" days of "+year+"...");
+			for (int tr=0; tr<tilesDown; tr++) {
+				int y0 = tr * tileSize;
+				int rows = Math.min(tileSize, HEIGHT - y0);
+				MappedByteBuffer[] chunks = new MappedByteBuffer[tilesAcross];
+				FloatBuffer[] floats = new FloatBuffer[tilesAcross];
+				for (int tc=0; tc<tilesAcross; tc++) {
+					chunks[tc] = mapForWrite(chunkFile(year, tr, tc));
+					floats[tc] = chunks[tc].asFloatBuffer();
+				}
+				for (PERSIANNFile pf : yearDays) {
+					int d = pf.cal.get(Calendar.DAY_OF_YEAR) - 1;
+					pf.readLines(y0, rows, lines);
+					for (int r=0; r<rows; r++) {
+						for (int x=0; x<WIDTH; x++) {
+							int record = r * tileSize + (x % tileSize);
+							floats[x / tileSize].put(record * DAYS + d, lines[r * WIDTH + x]);
+						}
+					}
+				}
+				for (MappedByteBuffer chunk : chunks) {
+					chunk.force();
+				}
+				// readers see the new days through their own mappings of the same files
+				System.out.println("\t Wrote tile row "+(tr+1)+" of "+tilesDown);
+			}
+		}
+	}
+
+	/**
+	 * List the daily files in the directories, like PERSIANNLoadr.
+	 * @param directories
+	 * @return the PERSIANNFiles, in chronological order
+	 * @throws Exception
+	 */
+	public static List<PERSIANNFile> listFiles(String[] directories) throws Exception {
+		List<PERSIANNFile> files = new ArrayList<PERSIANNFile>();
+		for (int d=0; d<directories.length; d++) {
+			File dir = new File(directories[d]);
+			if (!dir.isDirectory()) {
+				throw new Exception("Jackass!  Invalid directory assigned.");
+			}
+			for (File f : dir.listFiles()) {
+				if (f.isDirectory() || !f.getName().endsWith(".bin")) { continue; }
+				files.add(new PERSIANNFile(f.getAbsolutePath()));
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String[] persiann = new String[] {"/data/PERSIANN/8km_daily/2008/", "/data/PERSIANN/8km_daily/2009/",
+				"/data/PERSIANN/8km_daily/2010/", "/data/PERSIANN/8km_daily/2011/"};
+		List<PERSIANNFile> files = null;
+		try {
+			files = listFiles(persiann);
+			PERSIANNArchive archive = new PERSIANNArchive("/data/PERSIANN/8km_daily_archive", 100);
+			archive.append(files);
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			if (files != null) {
+				for (PERSIANNFile pf : files) {
+					try {
+						pf.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+}
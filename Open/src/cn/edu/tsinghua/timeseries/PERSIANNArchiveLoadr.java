@@ -0,0 +1,249 @@
+/**
+ *
+ */
+package cn.edu.tsinghua.timeseries;
+
+import java.util.Calendar;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * @author Nicholas Clinton
+ *
+ * A Loadr of PERSIANN daily rainfall from a {@link PERSIANNArchive}.  A pixel's series
+ * is one contiguous read per year, instead of one read from each of ~365 files per year
+ * with PERSIANNLoadr.  The series are the same as PERSIANNLoadr's: NODATA days are skipped
+ * and t is days from the zero reference.  Not synchronized.
+ */
+public class PERSIANNArchiveLoadr implements Loadr {
+
+	private PERSIANNArchive archive;
+	private int[] years;
+	private double[][] tYear; // t of each day of each year, NaN if the day doesn't exist
+	private double[] t;
+	private Calendar date0;
+
+	// scratch for a year of a pixel, one per thread
+	private static final ThreadLocal<float[]> yearBuffer = new ThreadLocal<float[]>() {
+		@Override
+		protected float[] initialValue() {
+			return new float[PERSIANNArchive.DAYS];
+		}
+	};
+
+	/**
+	 *
+	 * @param archiveDir is the directory of a PERSIANNArchive
+	 * @throws Exception
+	 */
+	public PERSIANNArchiveLoadr(String archiveDir) throws Exception {
+		archive = new PERSIANNArchive(archiveDir);
+		years = archive.getYears();
+		if (years.length == 0) {
+			throw new Exception("Empty archive: "+archiveDir);
+		}
+		// enough read mappings for every year of a tile
+		archive.setMaxMappings(Math.max(512, 4*years.length));
+		// zero reference is the first day of the archive
+		Calendar cal = Calendar.getInstance();
+		cal.set(Calendar.YEAR, years[0]);
+		cal.set(Calendar.DAY_OF_YEAR, 1);
+		setDateZero(cal);
+	}
+
+	/**
+	 * Set the zero reference for the time series.
+	 * @param cal
+	 */
+	public void setDateZero(Calendar cal) {
+		date0 = cal;
+		tYear = new double[years.length][PERSIANNArchive.DAYS];
+		int n = 0;
+		for (int y=0; y<years.length; y++) {
+			Calendar day = Calendar.getInstance();
+			day.set(Calendar.YEAR, years[y]);
+			int days = day.getActualMaximum(Calendar.DAY_OF_YEAR);
+			for (int d=0; d<PERSIANNArchive.DAYS; d++) {
+				if (d >= days) {
+					tYear[y][d] = Double.NaN;
+					continue;
+				}
+				day.set(Calendar.DAY_OF_YEAR, d+1);
+				tYear[y][d] = ImageLoadr4.diffDays(date0, day);
+				n++;
+			}
+		}
+		// rebuild X
+		t = new double[n];
+		int i = 0;
+		for (int y=0; y<years.length; y++) {
+			for (int d=0; d<PERSIANNArchive.DAYS; d++) {
+				if (!Double.isNaN(tYear[y][d])) {
+					t[i++] = tYear[y][d];
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param pt
+	 * @return
+	 */
+	public List<double[]> getSeries(Point pt) {
+		return getSeries(pt.getX(), pt.getY());
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public List<double[]> getSeries(double x, double y) {
+		TimeSeries out = new TimeSeries(t.length);
+		getSeries(x, y, out);
+		return out.toList();
+	}
+
+	/**
+	 * Fill the series under the point, without allocating a List.
+	 * @param x
+	 * @param y
+	 * @param series is cleared, then filled with the series
+	 */
+	public void getSeries(double x, double y, TimeSeries series) {
+		series.clear();
+		try {
+			int[] pixelXY = archive.getPixelXY(new double[] {x, y});
+			getSeries(pixelXY[0], pixelXY[1], series);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 *
+	 * @param px is the zero-referenced pixel
+	 * @param py is the zero-referenced line
+	 * @param series is cleared, then filled with the series
+	 * @throws IllegalArgumentException if the pixel is outside the archive
+	 */
+	public void getSeries(int px, int py, TimeSeries series) {
+		if (px < 0 || px >= PERSIANNArchive.WIDTH || py < 0 || py >= PERSIANNArchive.HEIGHT) {
+			throw new IllegalArgumentException("Pixel outside the archive: "+px+", "+py);
+		}
+		series.clear();
+		float[] buffer = yearBuffer.get();
+		for (int y=0; y<years.length; y++) {
+			try {
+				archive.readYear(px, py, years[y], buffer);
+			} catch (Exception e) {
+				e.printStackTrace();
+				continue;
+			}
+			for (int d=0; d<PERSIANNArchive.DAYS; d++) {
+				if (buffer[d] == PERSIANNArchive.NODATA || Double.isNaN(tYear[y][d])) {
+					continue;
+				}
+				series.add(tYear[y][d], buffer[d]);
+			}
+		}
+	}
+
+	/**
+	 * The points are read in tile order, so each chunk is used together.
+	 * @param xs are georeferenced coordinates
+	 * @param ys are georeferenced coordinates
+	 * @return the series of each point, in the order of xs and ys
+	 */
+	public List<List<double[]>> getSeries(double[] xs, double[] ys) {
+		// order on the 0:360 grid of the archive
+		double[] xs360 = new double[xs.length];
+		for (int i=0; i<xs.length; i++) {
+			xs360[i] = xs[i] < 0 ? xs[i] + 360.0 : xs[i];
+		}
+		int tileSize = archive.getTileSize();
+		int[] order = TSUtils.localOrder(xs360, ys, new double[] {0.0, 0.04, 0.0, 60.0, 0.0, -0.04}, tileSize, tileSize);
+		return TSUtils.getSeries(this, xs, ys, order);
+	}
+
+	/**
+	 * Get a complete X vector for the time series.
+	 * @return
+	 */
+	public double[] getX() {
+		return t;
+	}
+
+	/**
+	 * Fit a thin plate spline to the series and interpolate missing values.
+	 * This will fail if first and/or last values are missing, i.e. there is no extrapolation.
+	 * @param pt is a georeferenced point with the same coordinate system as the images.
+	 * @return a vector of Y values where missing values are interpolated
+	 */
+	public double[] getY(Point pt) throws Exception {
+		// get the time series under the point
+		TimeSeries series = new TimeSeries(t.length);
+		getSeries(pt.getX(), pt.getY(), series);
+		if (series.size() == t.length) {
+			double[] y = new double[series.size()];
+			for (int i=0; i<series.size(); i++) {
+				y[i] = series.v(i);
+			}
+			return y;
+		}
+		else if (series.size() < 4) {  // not enough points to do an interpolation, 4 is arbitrary
+			throw new Exception("Not enough data!  n="+series.size());
+		}
+		else if (series.t(0) > t[0]) { // do not extrapolate in the beginning
+			throw new Exception("Start of series out of range: "+series.t(0));
+		}
+		else if (series.lastT() < t[t.length-1]) { // do not extrapolate at the end
+			throw new Exception("End of series out of range: "+series.lastT());
+		}
+		// fit a spline to interpolate
+		DuchonSplineFunction spline = new DuchonSplineFunction(series);
+		return TSUtils.evaluateSpline(spline, t);
+	}
+
+	/**
+	 * Nothing to release but the mappings, which are released when garbage collected.
+	 */
+	public void close() {
+		archive.setMaxMappings(0);
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		// compare to the daily files
+		String[] persiann = new String[] {"/data/PERSIANN/8km_daily/2010/", "/data/PERSIANN/8km_daily/2011/"};
+		try {
+			PERSIANNLoadr files = new PERSIANNLoadr(persiann);
+			PERSIANNArchiveLoadr archive = new PERSIANNArchiveLoadr("/data/PERSIANN/8km_daily_archive");
+			Calendar cal = Calendar.getInstance();
+			cal.set(Calendar.YEAR, 2010);
+			cal.set(Calendar.DAY_OF_YEAR, 1);
+			files.setDateZero(cal);
+			archive.setDateZero(cal);
+			double x = 133.1;
+			double y = -19.0;
+			List<double[]> fromFiles = files.getSeries(x, y);
+			List<double[]> fromArchive = archive.getSeries(x, y);
+			System.out.println("Files: "+fromFiles.size()+", archive: "+fromArchive.size());
+			for (int i=0; i<Math.min(fromFiles.size(), fromArchive.size()); i++) {
+				double[] f = fromFiles.get(i);
+				double[] a = fromArchive.get(i);
+				if (f[0] != a[0] || f[1] != a[1]) {
+					System.out.println("\t Mismatch at "+i+": "+f[0]+","+f[1]+" vs. "+a[0]+","+a[1]);
+				}
+			}
+			files.close();
+			archive.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
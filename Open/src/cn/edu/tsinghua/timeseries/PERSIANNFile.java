@@ -9,7 +9,10 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Calendar;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 
 import org.gdal.gdal.Band;
 import org.gdal.gdal.Dataset;
@@ -47,6 +50,12 @@ import com.vividsolutions.jts.geom.util.AffineTransformation;
  *	next value is N most lat + .04 lon at .06 lon  and so on.
  *	last value is SE corner     
  *
+ * Reads are from a memory mapping of the file, so reading a pixel is an array access, 
+ * not a system call.  Each file keeps its mapping in a field, so a read takes no lock.
+ * The mapped files are kept in a bounded pool (see setMaxMappings()), first mapped first
+ * out, which is locked only to map or evict.  An evicted mapping is released when it is
+ * garbage collected.
+ *
  */
 public class PERSIANNFile extends RandomAccessFile implements Comparable {
 
@@ -58,6 +67,13 @@ public class PERSIANNFile extends RandomAccessFile implements Comparable {
 	private long previous_offset = -1;
 	private float previous_value = 0;
 	public static long READ_TIMES = 0;
+	
+	// the pool of mapped files, in the order they were mapped
+	private static int maxMappings = 1024;
+	private static final LinkedHashSet<PERSIANNFile> mappings = new LinkedHashSet<PERSIANNFile>();
+	// null if not mapped, set and cleared with the pool locked
+	private volatile FloatBuffer mapping;
+	
 	/**
 	 * 
 	 * @param name
@@ -119,13 +135,107 @@ public class PERSIANNFile extends RandomAccessFile implements Comparable {
 		return new int[] {(int)pix.x, (int)pix.y};
 	}
 	
+	/**
+	 * Set the maximum number of files mapped at once.  Each mapping is about 108 MB 
+	 * of address space.  For a time series read, this should be at least the number 
+	 * of files in the series, or every read will re-map.
+	 * @param max
+	 */
+	public static void setMaxMappings(int max) {
+		synchronized (mappings) {
+			maxMappings = max;
+			trim();
+		}
+	}
+	
+	/**
+	 * Evict the eldest mappings, with the pool locked, until there are at most maxMappings.
+	 */
+	private static void trim() {
+		Iterator<PERSIANNFile> eldest = mappings.iterator();
+		while (mappings.size() > maxMappings) {
+			eldest.next().mapping = null;
+			eldest.remove();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the maximum number of files mapped at once
+	 */
+	public static int getMaxMappings() {
+		synchronized (mappings) {
+			return maxMappings;
+		}
+	}
+	
+	/**
+	 * Get the mapping of this file, mapping it if necessary.  Only mapping locks the pool.
+	 * @return a big-endian view of the whole file
+	 * @throws IOException
+	 */
+	private FloatBuffer getMapping() throws IOException {
+		FloatBuffer floats = mapping;
+		if (floats != null) {
+			return floats;
+		}
+		synchronized (mappings) {
+			floats = mapping;
+			if (floats == null) {
+				FileChannel channel = getChannel();
+				ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				bytes.order(ByteOrder.BIG_ENDIAN);
+				floats = bytes.asFloatBuffer();
+				mapping = floats;
+				mappings.add(this);
+				trim();
+			}
+			return floats;
+		}
+	}
+	
+	/**
+	 * Remove this file from the pool of mappings.
+	 */
+	public void unmap() {
+		synchronized (mappings) {
+			mapping = null;
+			mappings.remove(this);
+		}
+	}
+	
+	/**
+	 * Bulk read of whole lines into an array.
+	 * @param line is the first line
+	 * @param lines is the number of lines
+	 * @param out holds at least lines*width values
+	 * @throws IOException
+	 */
+	public void readLines(int line, int lines, float[] out) throws IOException {
+		FloatBuffer floats = getMapping().duplicate();
+		floats.position(line*width);
+		floats.get(out, 0, lines*width);
+	}
+	
 	/**
 	 * Read the pixel value at the specified location.
+	 * Reads from the mapping with an absolute get, so the file pointer is not used and
+	 * multiple threads can read the same file concurrently.
 	 * @param pixel
 	 * @param line
 	 * @return
 	 */
 	public float readPixel(int pixel, int line) throws Exception {
+		return getMapping().get(line*width + pixel);
+	}
+	
+	/**
+	 * The original, seek and read.  Not thread safe.
+	 * @param pixel
+	 * @param line
+	 * @return
+	 */
+	public float seekReadPixel(int pixel, int line) throws Exception {
 		long offset = line*width*4 + pixel*4;
 //		System.out.println(offset);
 //		System.err.println(Thread.currentThread().getId());
@@ -220,15 +330,22 @@ public class PERSIANNFile extends RandomAccessFile implements Comparable {
         ByteBuffer byteBuffer = ByteBuffer.allocateDirect(4 * width);
         byteBuffer.order(ByteOrder.nativeOrder());
         FloatBuffer floatBuffer = byteBuffer.asFloatBuffer();
+        
+        FloatBuffer row = null;
+        try {
+        	row = getMapping().duplicate();
+        } catch (IOException e) {
+        	e.printStackTrace();
+        	dataset.delete();
+        	return;
+        }
 	    
         for( int i = 0; i < height; i++) {
-            for( int j = 0; j < width; j++) {
-                try {
-					floatBuffer.put(j, readPixel(j,i));
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-            }
+        	// bulk copy of a line, big-endian to native
+        	row.limit((i+1)*width);
+        	row.position(i*width);
+        	floatBuffer.clear();
+        	floatBuffer.put(row);
             band.WriteRaster_Direct(0, i, width, 1, gdalconst.GDT_Float32, byteBuffer);
         }
         // the following replaced unlink, but not tested 20121123
@@ -236,6 +353,15 @@ public class PERSIANNFile extends RandomAccessFile implements Comparable {
         dataset.delete();
 	}
 	
+	/**
+	 * Also removes this file from the pool of mappings.
+	 */
+	@Override
+	public void close() throws IOException {
+		unmap();
+		super.close();
+	}
+	
 	/**
 	 * 
 	 */
@@ -52,6 +52,8 @@ public class PERSIANNLoadr implements Loadr {
 		// Keep the list in chronological order
 		Collections.sort(imageList);
 		System.out.println("The PERSIANN image list are sorted!");
+		// map every file in the series, so reading a pixel's series doesn't re-map
+		PERSIANNFile.setMaxMappings(Math.max(PERSIANNFile.getMaxMappings(), imageList.size()));
 		// zero reference image
 		date0 = imageList.get(0).cal;
 		
@@ -98,11 +100,11 @@ public class PERSIANNLoadr implements Loadr {
 	
 	
 	/**
-	 * 
+	 * Not synchronized.  PERSIANNFile reads are from memory mappings, so threads don't share a file pointer.
 	 * @param pt
 	 * @return
 	 */
-	public synchronized List<double[]> getSeries(Point pt) {		
+	public List<double[]> getSeries(Point pt) {		
 		return getSeries(pt.getX(), pt.getY());
 	}
 	
@@ -112,29 +114,63 @@ public class PERSIANNLoadr implements Loadr {
 	 * @param y
 	 * @return
 	 */
-	public synchronized List<double[]> getSeries(double x, double y) {		
-		LinkedList<double[]> out = new LinkedList<double[]>();
+	public List<double[]> getSeries(double x, double y) {		
+		TimeSeries out = new TimeSeries(imageList.size());
+		getSeries(x, y, out);
+		return out.toList();
+	}
+	
+	/**
+	 * Fill the series under the point, without allocating a List.
+	 * @param x
+	 * @param y
+	 * @param series is cleared, then filled with the series
+	 */
+	public void getSeries(double x, double y, TimeSeries series) {
+		series.clear();
 		// iterate over images
 //		System.out.println("DEBUG_INFO: imageList.size(): " + imageList.size());
 		
-		long start = System.nanoTime();
 		for (int i=0; i<imageList.size(); i++) {
 			PERSIANNFile pf = imageList.get(i);
 			try {
 				
 				float val = pf.imageValue(x, y);
 				if (val == -9999.f) { continue; }
-				out.add(new double[] {t[i], val});
+				series.add(t[i], val);
 			} catch (Exception e1) {
 				e1.printStackTrace();
 			}
 		}
-		
-		long stop = System.nanoTime(); 
-		double elapsed = (double)(stop - start) / 1000.0;
-//		System.err.println("time: " + elapsed);
-		
-		return out;
+	}
+	
+	/**
+	 * The files are read one at a time, with the points north to south, then 
+	 * west to east, so each file is read in one pass.
+	 * @param xs are georeferenced coordinates
+	 * @param ys are georeferenced coordinates
+	 * @return the series of each point, in the order of xs and ys
+	 */
+	@SuppressWarnings("unchecked")
+	public List<List<double[]>> getSeries(double[] xs, double[] ys) {
+		int[] order = TSUtils.localOrder(xs, ys, null, 0, 0);
+		LinkedList<double[]>[] out = new LinkedList[xs.length];
+		for (int p=0; p<out.length; p++) {
+			out[p] = new LinkedList<double[]>();
+		}
+		for (int i=0; i<imageList.size(); i++) {
+			PERSIANNFile pf = imageList.get(i);
+			for (int p : order) {
+				try {
+					float val = pf.imageValue(xs[p], ys[p]);
+					if (val == -9999.f) { continue; }
+					out[p].add(new double[] {t[i], val});
+				} catch (Exception e1) {
+					e1.printStackTrace();
+				}
+			}
+		}
+		return Arrays.<List<double[]>>asList(out);
 	}
 	
 	/**
@@ -166,7 +202,7 @@ public class PERSIANNLoadr implements Loadr {
 	 * @param pt is a georeferenced point with the same coordinate system as the images.
 	 * @return a vector of Y values where missing values are interpolated
 	 */
-	public synchronized double[] getY(Point pt) throws Exception {
+	public double[] getY(Point pt) throws Exception {
 		// get the time series under the point
 		List<double[]> series = getSeries(pt);
 		if (series.size() == imageList.size()) {
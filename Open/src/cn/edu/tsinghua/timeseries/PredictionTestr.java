@@ -4,9 +4,9 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Random;
 
 import cn.edu.tsinghua.timeseries.TrainingProcessr;
+import com.berkenviro.imageprocessing.CrossValidation;
 import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
 import weka.classifiers.evaluation.NominalPrediction;
@@ -58,12 +58,10 @@ public class PredictionTestr {
 		filter.setAttributeIndicesArray(idIndex);
 		fc.setFilter(filter);
 		
-		// make a new evaluation and write the results
+		// leave-one-out, the folds in parallel
 		Evaluation evaluation = null;
-		int folds = instances.numInstances();
 		try {
-			evaluation = new Evaluation(instances);
-			evaluation.crossValidateModel(fc, instances, folds, new Random(1));
+			evaluation = CrossValidation.leaveOneOut(fc, instances);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
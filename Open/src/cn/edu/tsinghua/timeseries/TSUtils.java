@@ -5,6 +5,7 @@ package cn.edu.tsinghua.timeseries;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -198,6 +199,93 @@ public class TSUtils {
 		return xy;
 	}
 	
+	/**
+	 * Read out a TimeSeries into an array, like getSeriesAsArray(List).
+	 * @param series
+	 * @return a double[2][series.size()]
+	 */
+	public static double[][] getSeriesAsArray(TimeSeries series) {
+		return series.toArray();
+	}
+	
+	/**
+	 * Get an order in which to read points that is local in an image: by block row, 
+	 * block column, then row and column within the block.  
+	 * @param xs are georeferenced
+	 * @param ys are georeferenced
+	 * @param geoTransform is the GDAL geotransform of the image.  If null, the points are 
+	 * 	ordered north to south, then west to east, which is row order for a north-up image.
+	 * @param blockXSize is the width of a block, in pixels
+	 * @param blockYSize is the height of a block, in pixels
+	 * @return indices into xs and ys
+	 */
+	public static int[] localOrder(double[] xs, double[] ys, double[] geoTransform, int blockXSize, int blockYSize) {
+		int n = xs.length;
+		// sort keys: block row, block column, row, column
+		final double[][] keys = new double[4][n];
+		if (geoTransform == null) {
+			for (int i=0; i<n; i++) {
+				keys[2][i] = -ys[i];
+				keys[3][i] = xs[i];
+			}
+		} else {
+			double[] g = geoTransform;
+			double det = g[1]*g[5] - g[2]*g[4];
+			for (int i=0; i<n; i++) {
+				double dx = xs[i] - g[0];
+				double dy = ys[i] - g[3];
+				double col = Math.floor((g[5]*dx - g[2]*dy) / det);
+				double row = Math.floor((g[1]*dy - g[4]*dx) / det);
+				keys[0][i] = Math.floor(row / blockYSize);
+				keys[1][i] = Math.floor(col / blockXSize);
+				keys[2][i] = row;
+				keys[3][i] = col;
+			}
+		}
+		Integer[] order = new Integer[n];
+		for (int i=0; i<n; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				for (double[] key : keys) {
+					int c = Double.compare(key[i1], key[i2]);
+					if (c != 0) {
+						return c;
+					}
+				}
+				return 0;
+			}
+		});
+		int[] out = new int[n];
+		for (int i=0; i<n; i++) {
+			out[i] = order[i];
+		}
+		return out;
+	}
+	
+	/**
+	 * Get the series of the points from the Loadr in the given order, scattered back 
+	 * to the order of xs and ys.
+	 * @param loadr
+	 * @param xs are georeferenced
+	 * @param ys are georeferenced
+	 * @param order is the order in which to read, e.g. from localOrder()
+	 * @return the series of each point, in the order of xs and ys
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<List<double[]>> getSeries(Loadr loadr, double[] xs, double[] ys, int[] order) {
+		if (xs.length != ys.length) {
+			throw new IllegalArgumentException("Coordinate arrays of different length: "+xs.length+", "+ys.length);
+		}
+		List<double[]>[] series = new List[xs.length];
+		for (int i : order) {
+			series[i] = loadr.getSeries(xs[i], ys[i]);
+		}
+		return Arrays.asList(series);
+	}
+	
 	/**
 	 * Get a thin-plate, or Duchon spline as created by JSpline.
 	 * @param series as a list of double[] where each double[] is {x,y}
@@ -208,6 +296,16 @@ public class TSUtils {
 		return duchonSpline(xy[0], xy[1]);
 	}
 	
+	/**
+	 * Get a thin-plate, or Duchon spline as created by JSpline.
+	 * @param series
+	 * @return the spline
+	 */
+	public static Spline getThinPlateSpline(TimeSeries series) {
+		double[][] xy = series.toArray();
+		return duchonSpline(xy[0], xy[1]);
+	}
+	
 	/**
 	 * Get a third-order polynomial spline as implemented by Commons Math.
 	 * @param series as a list of double[] where each double[] is {x,y}
@@ -217,6 +315,15 @@ public class TSUtils {
 		return new SplineFunction(getSeriesAsArray(series));
 	}
 	
+	/**
+	 * Get a third-order polynomial spline as implemented by Commons Math.
+	 * @param series
+	 * @return the spline
+	 */
+	public static SplineFunction getPolySpline(TimeSeries series) {
+		return new SplineFunction(series.toArray());
+	}
+	
 	/*
 	 * Like gis.Utils.pixelValue(), except takes image coords and returns an
 	 * array of data from each band.
@@ -0,0 +1,172 @@
+/**
+ *
+ */
+package cn.edu.tsinghua.timeseries;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Nicholas Clinton
+ *
+ * A time series as parallel primitive arrays of times and values, in the order added.
+ * Unlike a List of {t, value} double[]s, one instance can be cleared and refilled
+ * for every pixel (see {@link Loadr#getSeries(double, double, TimeSeries)}) without
+ * allocating, once the arrays have grown to the length of the longest series.
+ * Not thread safe.
+ */
+public class TimeSeries {
+
+	private double[] t;
+	private double[] v;
+	private int size;
+
+	/**
+	 *
+	 */
+	public TimeSeries() {
+		this(64);
+	}
+
+	/**
+	 * @param capacity is the initial length of the arrays
+	 */
+	public TimeSeries(int capacity) {
+		t = new double[capacity];
+		v = new double[capacity];
+	}
+
+	/**
+	 * Copy a series from a list.
+	 * @param series is a List of {t, value} double[]s
+	 */
+	public TimeSeries(List<double[]> series) {
+		this(Math.max(series.size(), 1));
+		for (double[] tv : series) {
+			add(tv[0], tv[1]);
+		}
+	}
+
+	/**
+	 * Append an observation.
+	 * @param time
+	 * @param value
+	 */
+	public void add(double time, double value) {
+		if (size == t.length) {
+			ensureCapacity(2*size + 1);
+		}
+		t[size] = time;
+		v[size] = value;
+		size++;
+	}
+
+	/**
+	 * Make room for at least capacity observations.
+	 * @param capacity
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity > t.length) {
+			t = Arrays.copyOf(t, capacity);
+			v = Arrays.copyOf(v, capacity);
+		}
+	}
+
+	/**
+	 * Empty the series, keeping the arrays.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Replace the contents of this series with a copy of another.
+	 * @param other
+	 */
+	public void set(TimeSeries other) {
+		ensureCapacity(other.size);
+		System.arraycopy(other.t, 0, t, 0, other.size);
+		System.arraycopy(other.v, 0, v, 0, other.size);
+		size = other.size;
+	}
+
+	/**
+	 *
+	 * @return the number of observations
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @param i
+	 * @return the time of the i'th observation
+	 */
+	public double t(int i) {
+		return t[i];
+	}
+
+	/**
+	 *
+	 * @param i
+	 * @return the value of the i'th observation
+	 */
+	public double v(int i) {
+		return v[i];
+	}
+
+	/**
+	 *
+	 * @return the time of the last observation.  Not defined if empty.
+	 */
+	public double lastT() {
+		return t[size-1];
+	}
+
+	/**
+	 * The backing array of times, valid up to size().  Not a copy.
+	 * @return
+	 */
+	public double[] times() {
+		return t;
+	}
+
+	/**
+	 * The backing array of values, valid up to size().  Not a copy.
+	 * @return
+	 */
+	public double[] values() {
+		return v;
+	}
+
+	/**
+	 * Same layout as TSUtils.getSeriesAsArray(List).
+	 * @return a double[2][size()] copy, {t, values}
+	 */
+	public double[][] toArray() {
+		return new double[][] {Arrays.copyOf(t, size), Arrays.copyOf(v, size)};
+	}
+
+	/**
+	 * For code that still uses the List form.
+	 * @return a new List of {t, value} double[]s
+	 */
+	public List<double[]> toList() {
+		List<double[]> list = new ArrayList<double[]>(size);
+		for (int i=0; i<size; i++) {
+			list.add(new double[] {t[i], v[i]});
+		}
+		return list;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		for (int i=0; i<size; i++) {
+			out.append("[").append(t[i]).append(", ").append(v[i]).append("],");
+		}
+		return out.toString();
+	}
+}
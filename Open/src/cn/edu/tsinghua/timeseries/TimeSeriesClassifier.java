@@ -27,6 +27,7 @@ import ru.sscc.spline.Spline;
 import ru.sscc.spline.polynomial.PSpline;
 
 import com.berkenviro.gis.GISUtils;
+import com.berkenviro.imageprocessing.CompiledTrees;
 import com.berkenviro.imageprocessing.JAIUtils;
 import com.berkenviro.imageprocessing.SplineFunction;
 import com.vividsolutions.jts.geom.Geometry;
@@ -84,6 +85,8 @@ public class TimeSeriesClassifier {
 		// This will be the classified instance, simply get the first, clear everything
 		Instance toClassify = (Instance) attributeRef.firstInstance().copy();
 		clearInstance(toClassify);
+		// the classifier as arrays, if it can be compiled
+		CompiledTrees compiled = CompiledTrees.compileOrNull(c, attributeRef);
 
 		// iterate over the pixels 
 		for (int y=0; y<height; y++) {
@@ -195,7 +198,8 @@ public class TimeSeriesClassifier {
 				String prediction;
 				try {
 					// the following is from the Weka book
-					int classIndex = (int) c.classifyInstance(toClassify);
+					int classIndex = (int) (compiled != null ? 
+							compiled.classify(toClassify.toDoubleArray()) : c.classifyInstance(toClassify));
 					prediction = attributeRef.classAttribute().value(classIndex);
 					
 					/*
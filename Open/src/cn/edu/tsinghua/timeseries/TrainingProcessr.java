@@ -7,10 +7,10 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Random;
+
+import com.berkenviro.imageprocessing.ParameterSweep;
 
 import weka.classifiers.Classifier;
-import weka.classifiers.Evaluation;
 import weka.classifiers.functions.LibSVM;
 import weka.classifiers.functions.MultilayerPerceptron;
 import weka.classifiers.functions.RBFNetwork;
@@ -187,18 +187,8 @@ public class TrainingProcessr {
 	public static void testSMO(String shortRep, Instances instances) {
 		
 		System.out.println("Testing "+instances.toSummaryString());
-		// set up the FileWriter.
-		BufferedWriter shortWriter = null;
-		try {
-			System.out.println("Initializing file writer for "+shortRep);
-			shortWriter = new BufferedWriter(new FileWriter(shortRep));
-			// set up the header
-			shortWriter.write("c"+"\t"+"gamma"+"\t"+"kappa"+"\t"+"pctCorr");
-			shortWriter.newLine();
-			shortWriter.flush();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
+		// the report, leave-one-out with a seed of 1
+		ParameterSweep sweep = new ParameterSweep(shortRep, "c", "gamma");
 		
 		// make a default support vector machine
 		SMO svm = new SMO();
@@ -208,13 +198,8 @@ public class TrainingProcessr {
 		svm.setBuildLogisticModels(true);
 		RBFKernel rbfKernel = new RBFKernel();
 		
-		Evaluation evaluation = null;
-		// set the folds to be the number of instances: leave-one-out
-		int folds = instances.numInstances();	
 		try {
 			
-			String line = "";
-			
 			for (double i = -7; i <= 13; i++) {
 			// local:
 			//for (double c = 4.0; c <= 16.0; c++) {
@@ -233,31 +218,15 @@ public class TrainingProcessr {
 					// the classifier should initialize this kernel????
 					svm.setKernel(rbfKernel);
 					
-					// make a new evaluation and write the results
-					evaluation = new Evaluation(instances);
-					// always use a seed of 1
-					evaluation.crossValidateModel(svm, instances, folds, new Random(1));
-					// write the parameter values, skip the polynomial stuff
-					line = c+"\t"+gamma+"\t";
-					line += evaluation.kappa() + "\t" + evaluation.pctCorrect();
-					shortWriter.write(line);
-					shortWriter.newLine();
-					shortWriter.flush();
-					System.out.println(line);
+					// the parameter values, skip the polynomial stuff
+					sweep.add(c+"\t"+gamma, svm);
 				}
 						
 			}
+			sweep.run(instances);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		finally {
-			try {
-				shortWriter.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			
-		}
 	}
 	
 	/*
@@ -265,17 +234,8 @@ public class TrainingProcessr {
 	 */
 	public static void testNN(String shortRep, Instances instances) {
 		
-		// set up the FileWriter.
-		BufferedWriter shortWriter = null;
-		try {
-			shortWriter = new BufferedWriter(new FileWriter(shortRep));
-			// set up the header
-			shortWriter.write("iterations"+"\t"+"rate"+"\t"+"momentum"+"\t"+"kappa"+"\t"+"pctCorr");
-			shortWriter.newLine();
-			shortWriter.flush();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
+		// the report, leave-one-out with a seed of 1
+		ParameterSweep sweep = new ParameterSweep(shortRep, "iterations", "rate", "momentum");
 		
 		// the classifier
 		MultilayerPerceptron net = new MultilayerPerceptron();
@@ -290,17 +250,9 @@ public class TrainingProcessr {
 		net.setGUI(false);
 		net.setHiddenLayers("t"); // nodes = number attributes+number of classes
 		
-		// parameters to adjust
-		double rate;
-		double momentum;
-		
-		Evaluation evaluation = null;
-		// set the folds to be the number of instances: leave-one-out
-		int folds = instances.numInstances();	
 		try {
 			
 			// loop over many combinations of parameters
-			String line = "";
 			for (double i=2; i<=12; i++) {
 			// local
 			//for (int iterations = 34; iterations<128; iterations++) {
@@ -314,32 +266,15 @@ public class TrainingProcessr {
 					net.setLearningRate(r);
 					for (double m=0.05; m<1.0; m+=0.05) {
 						net.setMomentum(m);
-						// make a new evaluation and write the results
-						evaluation = new Evaluation(instances);
-						evaluation.crossValidateModel(net, instances, folds, new Random(1));
-
-						// write the parameter values
-						line = iterations+"\t"+r+"\t"+m+"\t";
-						line += evaluation.kappa() + "\t" + evaluation.pctCorrect();
-						shortWriter.write(line);
-						shortWriter.newLine();
-						shortWriter.flush();
-						System.out.println(line);
+						sweep.add(iterations+"\t"+r+"\t"+m, net);
 					}
 				}
 				
 			}
+			sweep.run(instances);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		finally {
-			try {
-				shortWriter.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			
-		}
 	}
 		
 	
@@ -348,17 +283,8 @@ public class TrainingProcessr {
 	 */
 	public static void testJ48(String shortRep, Instances instances) {
 		
-		// set up the FileWriter.
-		BufferedWriter shortWriter = null;
-		try {
-			shortWriter = new BufferedWriter(new FileWriter(shortRep));
-			// set up the header
-			shortWriter.write("conf"+"\t"+"minNum"+"\t"+"pruning"+"\t"+"bagging"+"\t"+"boosting"+"\t"+"kappa"+"\t"+"pctCorr");
-			shortWriter.newLine();
-			shortWriter.flush();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
+		// the report, leave-one-out with a seed of 1
+		ParameterSweep sweep = new ParameterSweep(shortRep, "conf", "minNum", "pruning", "bagging", "boosting");
 		
 		// the classifier
 		J48 tree = new J48();
@@ -369,13 +295,9 @@ public class TrainingProcessr {
 		String bagString = "";
 		String boostString = "";
 		
-		Evaluation evaluation = null;
-		// set the folds to be the number of instances: leave-one-out
-		int folds = instances.numInstances();	
 		try {
 			
 			// loop over many combinations of parameters
-			String line = "";
 			for (double conf=0.05; conf<0.8; conf+=0.05) {
 				tree.setConfidenceFactor((float)conf);
 				for (int minNum=1; minNum<11; minNum++) {
@@ -397,17 +319,7 @@ public class TrainingProcessr {
 									else { // no enhancement
 										c = tree;
 									}
-									// make a new evaluation and write the results
-									evaluation = new Evaluation(instances);
-									evaluation.crossValidateModel(c, instances, folds, new Random(1));
-
-									// write the parameter values
-									line = conf+"\t"+minNum+"\t"+pruneString+"\t"+bagString+"\t"+boostString+"\t";
-									line += evaluation.kappa() + "\t" + evaluation.pctCorrect();
-									shortWriter.write(line);
-									shortWriter.newLine();
-									shortWriter.flush();
-									System.out.println(line);
+									sweep.add(conf+"\t"+minNum+"\t"+pruneString+"\t"+bagString+"\t"+boostString, c);
 								}
 							}
 							else { // bagging
@@ -415,35 +327,18 @@ public class TrainingProcessr {
 								bag.setNumIterations(100);
 								bag.setClassifier(tree);
 								c = bag;
-								// make a new evaluation and write the results
-								evaluation = new Evaluation(instances);
-								evaluation.crossValidateModel(c, instances, folds, new Random(1));
-
-								// write the parameter values
-								line = conf+"\t"+minNum+"\t"+pruneString+"\t"+bagString+"\t"+boostString+"\t";
-								line += evaluation.kappa() + "\t" + evaluation.pctCorrect();
-								shortWriter.write(line);
-								shortWriter.newLine();
-								shortWriter.flush();
-								System.out.println(line);
+								sweep.add(conf+"\t"+minNum+"\t"+pruneString+"\t"+bagString+"\t"+boostString, c);
 							}
 						}
 						
 					}
 				}
 			}
+			sweep.run(instances);
 			
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		finally {
-			try {
-				shortWriter.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			
-		}
 	}
 	
 	
@@ -451,58 +346,28 @@ public class TrainingProcessr {
 	 * Test a Random Forest
 	 */
 	public static void testRandomForest (String shortRep, Instances instances) {
-		// set up the FileWriter.
-		BufferedWriter shortWriter = null;
-		try {
-			shortWriter = new BufferedWriter(new FileWriter(shortRep));
-			// set up the header
-			shortWriter.write("trees"+"\t"+"features"+"\t"+"kappa"+"\t"+"pctCorr");
-			shortWriter.newLine();
-			shortWriter.flush();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
+		// the report, leave-one-out with a seed of 1
+		ParameterSweep sweep = new ParameterSweep(shortRep, "trees", "features");
 		
 		// the classifier
 		RandomForest forest = new RandomForest();
 		
-		Evaluation evaluation = null;
-		// set the folds to be the number of instances: leave-one-out
-		int folds = instances.numInstances();	
 		try {
 			
 			// loop over many combinations of parameters
-			String line = "";
 			for (int trees=10; trees<=200; trees+=10) {
 				forest.setNumTrees(trees);
 				for (int features=2; features<=instances.numAttributes(); features++) {
 					forest.setNumFeatures(features);
-					// make a new evaluation and write the results
-					evaluation = new Evaluation(instances);
-					evaluation.crossValidateModel(forest, instances, folds, new Random(1));
-
-					// write the parameter values
-					line = trees+"\t"+features+"\t";
-					line += evaluation.kappa() + "\t" + evaluation.pctCorrect();
-					shortWriter.write(line);
-					shortWriter.newLine();
-					shortWriter.flush();
-					System.out.println(line);
+					sweep.add(trees+"\t"+features, forest);
 				}
 
 			}
+			sweep.run(instances);
 			
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		finally {
-			try {
-				shortWriter.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			
-		}
 	}
 	
 	
@@ -510,17 +375,8 @@ public class TrainingProcessr {
 	 * Test LibSVM according to Hsu et al.
 	 */
 	public static void testLibSVM (String shortRep, Instances instances) {
-		// set up the FileWriter.
-		BufferedWriter shortWriter = null;
-		try {
-			shortWriter = new BufferedWriter(new FileWriter(shortRep));
-			// set up the header
-			shortWriter.write("c"+"\t"+"kernel"+"\t"+"prob"+"\t"+"gamma"+"\t"+"kappa"+"\t"+"pctCorr");
-			shortWriter.newLine();
-			shortWriter.flush();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
+		// the report, leave-one-out with a seed of 1
+		ParameterSweep sweep = new ParameterSweep(shortRep, "c", "kernel", "prob", "gamma");
 		
 		// the classifier
 		LibSVM svm = new LibSVM();
@@ -538,13 +394,9 @@ public class TrainingProcessr {
 		boolean[] trueFalse = {true, false};
 		boolean[] justTrue = {true};
 		
-		Evaluation evaluation = null;
-		// set the folds to be the number of instances: leave-one-out
-		int folds = instances.numInstances();	
 		try {
 			
 			// Grid search a la Hsu et al.  
-			String line = "";
 			for (double j = -7; j <= 13; j++) {
 			// local search:
 			//for (double c = 4050; c <= 4150; c++) {
@@ -572,48 +424,21 @@ public class TrainingProcessr {
 								// the gamma for an RBF kernel
 								double gamma = Math.pow(2, k);
 								svm.setGamma(gamma);
-								// make a new evaluation and write the results
-								evaluation = new Evaluation(instances);
-								// set the random seed to 1, ALWAYS!!
-								evaluation.crossValidateModel(svm, instances, folds, new Random(1));
-								// write the parameter values
-								line = c+"\t"+st.getSelectedTag().getIDStr()+"\t"+probStr+"\t"+gamma+"\t";
-								line += evaluation.kappa() + "\t" + evaluation.pctCorrect();
-								shortWriter.write(line);
-								shortWriter.newLine();
-								shortWriter.flush();
-								System.out.println(line);		
+								sweep.add(c+"\t"+st.getSelectedTag().getIDStr()+"\t"+probStr+"\t"+gamma, svm);
 							} // end gamma
 						}
 						else {
-							// make a new evaluation and write the results
-							evaluation = new Evaluation(instances);
-							// set the random seed to 1, ALWAYS!!
-							evaluation.crossValidateModel(svm, instances, folds, new Random(1));
-							// write the parameter values
-							line = c+"\t"+st.getSelectedTag().getIDStr()+"\t"+probStr+"\t"+""+"\t";
-							line += evaluation.kappa() + "\t" + evaluation.pctCorrect();
-							shortWriter.write(line);
-							shortWriter.newLine();
-							shortWriter.flush();
-							System.out.println(line);	
+							sweep.add(c+"\t"+st.getSelectedTag().getIDStr()+"\t"+probStr+"\t"+"", svm);
 						}
 						
 					} // end probability estimation toggle
 				} // end kernel type
 			} // end cost parameter
+			sweep.run(instances);
 			
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		finally {
-			try {
-				shortWriter.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			
-		}
 	}
 	
 	/*
@@ -623,18 +448,8 @@ public class TrainingProcessr {
 	public static void testRBFNet(String shortRep, Instances instances) {
 		
 		System.out.println("Testing "+instances.toSummaryString());
-		// set up the FileWriter.
-		BufferedWriter shortWriter = null;
-		try {
-			System.out.println("Initializing file writer for "+shortRep);
-			shortWriter = new BufferedWriter(new FileWriter(shortRep));
-			// set up the header
-			shortWriter.write("numClusters"+"\t"+"minStdDev"+"\t"+"kappa"+"\t"+"pctCorr");
-			shortWriter.newLine();
-			shortWriter.flush();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
+		// the report, leave-one-out with a seed of 1
+		ParameterSweep sweep = new ParameterSweep(shortRep, "numClusters", "minStdDev");
 		
 		// make a default RBFNetwork
 		RBFNetwork rbfNet = new RBFNetwork();
@@ -642,12 +457,8 @@ public class TrainingProcessr {
 		rbfNet.setClusteringSeed(1);
 		rbfNet.setMaxIts(-1);
 		
-		Evaluation evaluation = null;
-		// set the folds to be the number of instances: leave-one-out
-		int folds = instances.numInstances();	
 		try {
 			
-			String line = "";
 			// adjust number of clusters
 			for (int numClusters = 1; numClusters <= 10; numClusters++) {
 				
@@ -657,33 +468,16 @@ public class TrainingProcessr {
 				for (double minStdDev = 0.05; minStdDev <= 1.0; minStdDev=minStdDev+0.05) {
 
 					rbfNet.setMinStdDev(minStdDev);
-					
-					// make a new evaluation and write the results
-					evaluation = new Evaluation(instances);
-					// always use a seed of 1
-					evaluation.crossValidateModel(rbfNet, instances, folds, new Random(1));
-					// write the parameter values, skip the polynomial stuff
-					line = numClusters + "\t" + minStdDev + "\t";
-					line += evaluation.kappa() + "\t" + evaluation.pctCorrect();
-					shortWriter.write(line);
-					shortWriter.newLine();
-					shortWriter.flush();
-					System.out.println(line);
+					sweep.add(numClusters + "\t" + minStdDev, rbfNet);
 				}
 						
 			}
+			sweep.run(instances);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		finally {
-			try {
-				shortWriter.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			
-		}
 	}
+
 	
 	
 	/**
@@ -0,0 +1,116 @@
+package com.berkenviro.gis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * An index of image footprints, e.g. a SPOT catalog, by space and time.
+ *
+ * The footprints are sorted by date, prepared, and put in an STR-tree by envelope.  A query
+ * tests only the footprints whose envelopes contain the geometry, and returns them in date
+ * order, without sorting the matches each time.  Footprints with the same date stay in the
+ * order of the catalog.  After the constructor it's read-only, so points can be queried from
+ * many threads.
+ *
+ * @author Nicholas Clinton
+ */
+public class FootprintIndex {
+
+	/**
+	 * Which footprints to return, e.g. by cloud cover, resolution and mode.
+	 */
+	public interface Filter {
+		boolean accept(SimpleFeature footprint);
+	}
+
+	private final List<SimpleFeature> footprints = new ArrayList<SimpleFeature>();
+	private final List<Date> dates = new ArrayList<Date>();
+	private final List<PreparedGeometry> prepared = new ArrayList<PreparedGeometry>();
+	private final STRtree tree = new STRtree();
+
+	/**
+	 * @param catalog the footprint polygons
+	 * @param dateAttribute the name of the Date attribute of the footprints, e.g. "date_".
+	 * Footprints without a date are skipped.
+	 */
+	public FootprintIndex(FeatureCollection<SimpleFeatureType, SimpleFeature> catalog, final String dateAttribute) {
+		List<SimpleFeature> dated = new ArrayList<SimpleFeature>();
+		FeatureIterator<SimpleFeature> iter = catalog.features();
+		try {
+			while (iter.hasNext()) {
+				SimpleFeature f = iter.next();
+				if (f.getAttribute(dateAttribute) == null) {
+					System.err.println("No "+dateAttribute+", skipping footprint "+f.getID());
+					continue;
+				}
+				dated.add(f);
+			}
+		} finally {
+			iter.close();
+		}
+		// stable, so the same dates stay in catalog order
+		Collections.sort(dated, new Comparator<SimpleFeature>() {
+			@Override
+			public int compare(SimpleFeature a, SimpleFeature b) {
+				return ((Date) a.getAttribute(dateAttribute)).compareTo((Date) b.getAttribute(dateAttribute));
+			}
+		});
+		for (SimpleFeature f : dated) {
+			Geometry g = (Geometry) f.getDefaultGeometry();
+			// the position in date order is the item
+			tree.insert(g.getEnvelopeInternal(), footprints.size());
+			footprints.add(f);
+			dates.add((Date) f.getAttribute(dateAttribute));
+			prepared.add(PreparedGeometryFactory.prepare(g));
+		}
+		tree.build();
+	}
+
+	/**
+	 * @param g usually a point
+	 * @param from the first date, inclusive, or null for no limit
+	 * @param to the last date, inclusive, or null for no limit
+	 * @param filter or null for all
+	 * @return the footprints that contain g (g.within(footprint)), in the window and accepted
+	 * by the filter, in date order
+	 */
+	public List<SimpleFeature> query(Geometry g, Date from, Date to, Filter filter) {
+		List<?> items = tree.query(g.getEnvelopeInternal());
+		List<Integer> positions = new ArrayList<Integer>(items.size());
+		for (Object item : items) {
+			positions.add((Integer) item);
+		}
+		Collections.sort(positions);
+		List<SimpleFeature> found = new ArrayList<SimpleFeature>();
+		for (int i : positions) {
+			Date d = dates.get(i);
+			if ((from != null && d.before(from)) || (to != null && d.after(to))) {
+				continue;
+			}
+			if (prepared.get(i).contains(g) && (filter == null || filter.accept(footprints.get(i)))) {
+				found.add(footprints.get(i));
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the number of footprints indexed
+	 */
+	public int size() {
+		return footprints.size();
+	}
+}
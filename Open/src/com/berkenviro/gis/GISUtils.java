@@ -32,6 +32,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -121,33 +122,55 @@ public class GISUtils {
 	}
 	
 	/**
-	 * Tested OK for geographic 20120402.
-	 * @param fc
+	 * The mean of polygonStats() for every polygon, from one pass over the image.
+	 * A polygon that isn't inside the image is NaN.
+	 * @param collection
 	 * @param outName
 	 * @param image
 	 * @param band
-	 * @param mask
-	 * @param maskValue
 	 */
 	public static void polygonStatsTable(FeatureCollection<SimpleFeatureType, SimpleFeature> collection, 
 										 String outName, 
-										 PlanarImage image, 
-										 int band) throws Exception {
-		
-		BufferedWriter writer = new BufferedWriter(new FileWriter(outName));
-		writer.write("id,avg"+"\n");
+										 final PlanarImage image, 
+										 final int band) throws Exception {
 		
+		// the zones, in the order of the features
+		List<String> ids = new ArrayList<String>();
+		List<Geometry> zones = new ArrayList<Geometry>();
 		FeatureIterator<SimpleFeature> iter=collection.features();
 		while (iter.hasNext()) {
-			String line = "";
 			SimpleFeature feature = iter.next();
 			// Id = FID ?= feature.getID()-1
-			line+=feature.getAttribute("Id");
-			Geometry p = (Geometry) feature.getDefaultGeometry();
-			SummaryStatistics stats = polygonStats(p, image, band);
-			line+=","+stats.getMean();
-			//System.out.println(line);
-			writer.write(line);
+			ids.add(String.valueOf(feature.getAttribute("Id")));
+			zones.add((Geometry) feature.getDefaultGeometry());
+		}
+		iter.close();
+		
+		ZonalStatistics zonal = new ZonalStatistics(zones, raster2proj(image), image.getWidth(), image.getHeight());
+		ZonalStatistics.Accumulator[] stats = zonal.run(new ZonalStatistics.Source() {
+			@Override
+			public ZonalStatistics.Reader open() {
+				// an iterator per thread
+				final RandomIter pixels = RandomIterFactory.create(image, null);
+				return new ZonalStatistics.Reader() {
+					@Override
+					public void read(int y, int x0, int n, double[] values) {
+						for (int i=0; i<n; i++) {
+							values[i] = pixels.getSampleDouble(x0+i, y, band);
+						}
+					}
+					@Override
+					public void close() {
+						pixels.done();
+					}
+				};
+			}
+		}, Runtime.getRuntime().availableProcessors());
+		
+		BufferedWriter writer = new BufferedWriter(new FileWriter(outName));
+		writer.write("id,avg"+"\n");
+		for (int z=0; z<stats.length; z++) {
+			writer.write(ids.get(z)+","+stats[z].getMean());
 			writer.newLine();
 		}
 		writer.close();
@@ -175,15 +198,12 @@ public class GISUtils {
 		int maxY = Math.min(lr[1]+1, image.getHeight()-1);
 		Rectangle bounds = new Rectangle(minX, minY, maxX-minX+1, maxY-minY+1);
 		RandomIter iter = RandomIterFactory.create(image, bounds);
-		GeometryFactory ptMakr = new GeometryFactory();
-		for (int x=minX; x<=maxX; x++) {
-			for (int y=minY; y<=maxY; y++) {
-				// pixel centroid in projected coords
-				double[] coords = JAIUtils.getProjectedXY(new int[] {x, y}, image);
-				Point check = ptMakr.createPoint(new Coordinate(coords[0], coords[1]));
-				//System.out.println("\t "+check);
-				// if the pixel centroid is in the polygon, count it
-				if (p.intersects(check)) {
+		// the pixels whose centroids are in the polygon, row by row
+		int[][] spans = PolygonRasterizer.spans(p, raster2proj(image), minX, minY, maxX, maxY);
+		for (int y=minY; y<=maxY; y++) {
+			int[] row = spans[y-minY];
+			for (int s=0; s<row.length; s+=2) {
+				for (int x=row[s]; x<=row[s+1]; x++) {
 					stats.addValue(iter.getSampleDouble(x, y, band));
 				}
 			}
@@ -27,18 +27,20 @@ package com.berkenviro.gis;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.GregorianCalendar;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.geotools.feature.FeatureCollection;
-import org.geotools.feature.FeatureComparators;
 import org.geotools.feature.FeatureIterator;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -54,7 +56,9 @@ import com.vividsolutions.jts.geom.Geometry;
 public class ImageFinder {
 
 	/**
-	 * 
+	 * The images that cover each point, if there are images both before and after it.
+	 * The catalog is indexed once, and the points are searched on a thread per processor.
+	 * The lines are written in the order of the points, the images of each in date order.
 	 * @param pts
 	 * @param imgs
 	 * @param outTable
@@ -68,111 +72,103 @@ public class ImageFinder {
 		File imgsFile = new File(imgs);
 		FeatureCollection<SimpleFeatureType, SimpleFeature> ptsFeatures = GISUtils.getFeatureCollection(ptsFile);
 		FeatureCollection<SimpleFeatureType, SimpleFeature> imgsFeatures = GISUtils.getFeatureCollection(imgsFile);
+		final FootprintIndex index = new FootprintIndex(imgsFeatures, "date_");
+		System.out.println("Indexed "+index.size()+" footprints.");
 		
 		BufferedWriter writer = new BufferedWriter(new FileWriter(outTable));
 		String header = "pointID, pointDate, type, id, date, clouds, resol, mode";
 		writer.write(header);
 		writer.newLine();
 		
+		ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
 		FeatureIterator<SimpleFeature> ptsIter = ptsFeatures.features();
-		
-		// reference date
-		Date jan2007 = new GregorianCalendar(2007, 1, 1).getTime();
-		// iterate over the points
-		while (ptsIter.hasNext()) {
-			SimpleFeature ptFeature = ptsIter.next();
-			Date ptDate = (Date)ptFeature.getAttribute("date_");
-			// skip older points, for now
-			if (ptDate.before(jan2007)) { continue; }
-			
-			// Make a list of dates, including the point date
-			LinkedList<SimpleFeature> list = new LinkedList<SimpleFeature>();
-			list.add(ptFeature);
-
-			// now check the intercepts
-			System.out.println();
-			System.out.println("Intersecting point "+ptFeature.getID());
-			Geometry ptGeo = (Geometry)ptFeature.getDefaultGeometry();
-			FeatureIterator<SimpleFeature> imgIter = imgsFeatures.features();
-			while (imgIter.hasNext()) {
-				SimpleFeature poly = imgIter.next();
-				Geometry imgGeo = (Geometry)poly.getDefaultGeometry();
-				if (ptGeo.within(imgGeo)) {
-					//System.out.println(poly.getAttribute("DATE_ACQ")); // original field SPOT
-					//Date polyDate = (Date)poly.getAttribute("date_"); // added manually
-					list.add(poly);
-				}
-			}
-			
-			// Make a comparator for the features
-			Comparator c = FeatureComparators.byAttributeName("date_");
-			// searched the images, filled the list, sort it
-			Collections.sort(list, c);
-			// search for the position of the point
-			int ptIndex = Collections.binarySearch(list, ptFeature, c);
-			System.out.println("pt is "+ptIndex+" of "+list.size());
-			
-			System.out.println("Searching imagery...");
-			SimpleFeature ft;
-			int pre = 0; 
-			int post = 0;
-			// list of possible lines to write
-			LinkedList<String> lineList = new LinkedList<String>();
-			for (int i=0; i<list.size(); i++) {
-				//if (i == ptIndex) { continue; }
-				ft = (SimpleFeature)list.get(i);
-				if (ft.equals(ptFeature)) { continue; }
-				String line = "";
-				
-				double cloudper = (Double)ft.getAttribute("CLOUD_PER");
-				double resol = (Double)ft.getAttribute("RESOL");
-				String mode = (String)ft.getAttribute("MODE");
-				// image selection logic
-				if (cloudper < 11.0) {
-					if (resol < 5.0) {
-						if (mode.trim().equals("COLOR")) {
-							Date d = (Date)ft.getAttribute("date_");
-							String prepost;
-							if (d.compareTo(ptDate) < 0) {
-								prepost = "pre";
-								pre++;
-							}
-							else {
-								prepost = "post";
-								post++;
-							}
-							//String prepost = (d.compareTo(ptDate) < 0) ? "pre" : "post";
-							line+=ptFeature.getID()+",";
-							line+=ptDate+",";
-							line+=prepost+",";
-							line+=ft.getID()+",";
-							line+=d+",";
-							line+=ft.getAttribute("CLOUD_PER")+",";
-							line+=ft.getAttribute("RESOL")+",";
-							line+=ft.getAttribute("MODE");
-//							writer.write(line);
-//							writer.newLine();
-//							writer.flush();
-							System.out.println(line);
-							lineList.add(line);
-						}
+		try {
+			// reference date
+			Date jan2007 = new GregorianCalendar(2007, 1, 1).getTime();
+			// iterate over the points
+			while (ptsIter.hasNext()) {
+				final SimpleFeature ptFeature = ptsIter.next();
+				Date ptDate = (Date)ptFeature.getAttribute("date_");
+				// skip older points, for now
+				if (ptDate.before(jan2007)) { continue; }
+				futures.add(service.submit(new Callable<List<String>>() {
+					@Override
+					public List<String> call() {
+						return imageLines(index, ptFeature);
 					}
-				}
-			} // end list
-			if (pre > 0 && post > 0) {
-				Iterator iter = lineList.iterator();
-				while (iter.hasNext()) {
-					writer.write((String)iter.next());
+				}));
+			}
+			// in the order of the points
+			for (Future<List<String>> f : futures) {
+				for (String line : f.get()) {
+					writer.write(line);
 					writer.newLine();
 				}
 				writer.flush();
-			} 
+			} // end point
+		} finally {
+			ptsIter.close();
+			service.shutdown();
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Image selection logic.
+	 */
+	public static final FootprintIndex.Filter COLOR = new FootprintIndex.Filter() {
+		@Override
+		public boolean accept(SimpleFeature ft) {
+			double cloudper = (Double)ft.getAttribute("CLOUD_PER");
+			double resol = (Double)ft.getAttribute("RESOL");
+			String mode = (String)ft.getAttribute("MODE");
+			return cloudper < 11.0 && resol < 5.0 && mode.trim().equals("COLOR");
+		}
+	};
+	
+	/**
+	 * The lines of makeIntersectionTable() for one point.
+	 * @param index
+	 * @param ptFeature
+	 * @return the images that cover the point, in date order, or none if there aren't
+	 * images both before and after the point
+	 */
+	private static List<String> imageLines(FootprintIndex index, SimpleFeature ptFeature) {
+		Date ptDate = (Date)ptFeature.getAttribute("date_");
+		Geometry ptGeo = (Geometry)ptFeature.getDefaultGeometry();
+		int pre = 0; 
+		int post = 0;
+		// list of possible lines to write
+		List<String> lineList = new LinkedList<String>();
+		for (SimpleFeature ft : index.query(ptGeo, null, null, COLOR)) {
+			String line = "";
+			Date d = (Date)ft.getAttribute("date_");
+			String prepost;
+			if (d.compareTo(ptDate) < 0) {
+				prepost = "pre";
+				pre++;
+			}
 			else {
-				System.out.println("No pre or post. Skipping this point...");
+				prepost = "post";
+				post++;
 			}
-			
-		} // end point
-		writer.close();
+			line+=ptFeature.getID()+",";
+			line+=ptDate+",";
+			line+=prepost+",";
+			line+=ft.getID()+",";
+			line+=d+",";
+			line+=ft.getAttribute("CLOUD_PER")+",";
+			line+=ft.getAttribute("RESOL")+",";
+			line+=ft.getAttribute("MODE");
+			lineList.add(line);
+		} // end list
+		if (pre > 0 && post > 0) {
+			System.out.println("Point "+ptFeature.getID()+": "+pre+" pre, "+post+" post");
+			return lineList;
+		}
+		System.out.println("Point "+ptFeature.getID()+": no pre or post. Skipping this point...");
+		return Collections.emptyList();
 	}
 	
 	/**
@@ -0,0 +1,211 @@
+package com.berkenviro.gis;
+
+import java.util.Arrays;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.util.AffineTransformation;
+
+/**
+ * The pixels of a raster grid whose centers intersect a polygon, as spans of columns on each row.
+ *
+ * This is the set of pixels that testing each pixel centroid in the bounding box with
+ * Geometry.intersects() gives, but each row is a scanline: the crossings of the row of centers
+ * with the edges of the rings, sorted, and paired even-odd.  The edges are put in the rows they
+ * cross, so the cost is the number of edges plus the number of crossings, instead of a
+ * point-in-polygon test, over every edge, for every pixel.  Centers within a millionth of a pixel
+ * of a crossing, and rows of centers through a vertex, are decided by intersects() itself.
+ * Geometries other than polygons, and rotated grids, are tested pixel by pixel.
+ *
+ * @author Nicholas Clinton
+ */
+public class PolygonRasterizer {
+
+	// in pixels, closer than this to an edge is checked with intersects()
+	private static final double TOLERANCE = 1e-6;
+
+	/**
+	 * @param g the polygon or multipolygon, in the coordinates of the grid
+	 * @param raster2proj the transform from pixel to projected coordinates of the grid, e.g.
+	 * from GDALUtils.raster2proj() or GISUtils.raster2proj()
+	 * @param minX first column of the window to rasterize
+	 * @param minY first row of the window
+	 * @param maxX last column, inclusive
+	 * @param maxY last row, inclusive
+	 * @return for each row of the window (y-minY), the first and last columns (inclusive) of
+	 * each span, in order, {x0, x1, x0, x1, ...}.  Empty if the row misses the polygon.
+	 */
+	public static int[][] spans(Geometry g, AffineTransformation raster2proj, int minX, int minY, int maxX, int maxY) {
+		double[] m = raster2proj.getMatrixEntries();
+		int height = Math.max(maxY - minY + 1, 0);
+		int[][] spans = new int[height][];
+		boolean[] exact = new boolean[height];
+		double[][] crossings = new double[height][];
+		int[] nCrossings = new int[height];
+		Polygon[] polygons = polygons(g);
+		if (polygons == null || m[1] != 0 || m[3] != 0 || m[0] == 0 || m[4] == 0) {
+			Arrays.fill(exact, true);
+		} else {
+			for (Polygon p : polygons) {
+				addRing(p.getExteriorRing(), m, minY, maxY, exact, crossings, nCrossings);
+				for (int r = 0; r < p.getNumInteriorRing(); r++) {
+					addRing(p.getInteriorRingN(r), m, minY, maxY, exact, crossings, nCrossings);
+				}
+			}
+		}
+
+		GeometryFactory factory = new GeometryFactory();
+		int[] row = new int[16];
+		for (int i = 0; i < height; i++) {
+			int y = minY + i;
+			int n = 0;
+			if (exact[i]) {
+				int start = -1;
+				for (int x = minX; x <= maxX; x++) {
+					boolean in = intersects(g, factory, m, x, y);
+					if (in && start < 0) {
+						start = x;
+					}
+					if ((!in || x == maxX) && start >= 0) {
+						row = grow(row, n + 2);
+						row[n++] = start;
+						row[n++] = in ? x : x - 1;
+						start = -1;
+					}
+				}
+			} else {
+				double[] c = crossings[i];
+				int k = nCrossings[i];
+				if (k > 0) {
+					Arrays.sort(c, 0, k);
+				}
+				for (int j = 0; j + 1 < k; j += 2) {
+					// the columns whose centers are in [c[j], c[j+1]]
+					double ua = (c[j] - m[2]) / m[0] - 0.5;
+					double ub = (c[j+1] - m[2]) / m[0] - 0.5;
+					// clamped, off the centers, to the window
+					int x0 = first(Math.max(Math.min(ua, ub), minX - 1.5), g, factory, m, y);
+					int x1 = last(Math.min(Math.max(ua, ub), maxX + 1.5), g, factory, m, y);
+					x0 = Math.max(x0, minX);
+					x1 = Math.min(x1, maxX);
+					if (x0 > x1) {
+						continue;
+					}
+					if (n > 0 && x0 <= row[n-1] + 1) { // touches the last span
+						row[n-1] = Math.max(row[n-1], x1);
+					} else {
+						row = grow(row, n + 2);
+						row[n++] = x0;
+						row[n++] = x1;
+					}
+				}
+			}
+			spans[i] = Arrays.copyOf(row, n);
+		}
+		return spans;
+	}
+
+	/**
+	 * @return the polygons of g, or null if it's something else
+	 */
+	private static Polygon[] polygons(Geometry g) {
+		if (g instanceof Polygon) {
+			return new Polygon[] {(Polygon) g};
+		}
+		if (g instanceof MultiPolygon) {
+			Polygon[] polygons = new Polygon[g.getNumGeometries()];
+			for (int i = 0; i < polygons.length; i++) {
+				polygons[i] = (Polygon) g.getGeometryN(i);
+			}
+			return polygons;
+		}
+		return null;
+	}
+
+	/**
+	 * Put the crossings of each edge of the ring in the rows it crosses.  An edge crosses a row
+	 * if one end is above the row of centers and the other isn't, so a vertex on the row is
+	 * counted once, or not at all, as it should be.  But then a center on the boundary might
+	 * be missed, so those rows are done exactly.
+	 */
+	private static void addRing(LineString ring, double[] m, int minY, int maxY,
+			boolean[] exact, double[][] crossings, int[] nCrossings) {
+		Coordinate[] coords = ring.getCoordinates();
+		for (int v = 0; v < coords.length; v++) {
+			double row = (coords[v].y - m[5]) / m[4] - 0.5;
+			long k = Math.round(row);
+			if (Math.abs(row - k) < TOLERANCE && k >= minY && k <= maxY) {
+				exact[(int) (k - minY)] = true;
+			}
+		}
+		for (int v = 0; v + 1 < coords.length; v++) {
+			double x1 = coords[v].x;
+			double y1 = coords[v].y;
+			double x2 = coords[v+1].x;
+			double y2 = coords[v+1].y;
+			if (y1 == y2) {
+				continue;
+			}
+			double r1 = (y1 - m[5]) / m[4] - 0.5;
+			double r2 = (y2 - m[5]) / m[4] - 0.5;
+			long from = Math.max((long) Math.floor(Math.min(r1, r2)) - 1, minY);
+			long to = Math.min((long) Math.ceil(Math.max(r1, r2)) + 1, maxY);
+			for (long y = from; y <= to; y++) {
+				// the row of centers, as the transform computes it when m[3] is zero
+				double cy = m[4] * (y + 0.5) + m[5];
+				if ((y1 > cy) != (y2 > cy)) {
+					int i = (int) (y - minY);
+					if (crossings[i] == null) {
+						crossings[i] = new double[4];
+					} else if (nCrossings[i] == crossings[i].length) {
+						crossings[i] = Arrays.copyOf(crossings[i], 2 * nCrossings[i]);
+					}
+					crossings[i][nCrossings[i]++] = x1 + (cy - y1) * (x2 - x1) / (y2 - y1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param u a crossing, in columns of pixel centers
+	 * @return the first column at or after the crossing
+	 */
+	private static int first(double u, Geometry g, GeometryFactory factory, double[] m, int y) {
+		long k = Math.round(u);
+		if (Math.abs(u - k) < TOLERANCE) {
+			return (int) (intersects(g, factory, m, (int) k, y) ? k : k + 1);
+		}
+		return (int) Math.ceil(u);
+	}
+
+	/**
+	 * @param u a crossing, in columns of pixel centers
+	 * @return the last column at or before the crossing
+	 */
+	private static int last(double u, Geometry g, GeometryFactory factory, double[] m, int y) {
+		long k = Math.round(u);
+		if (Math.abs(u - k) < TOLERANCE) {
+			return (int) (intersects(g, factory, m, (int) k, y) ? k : k - 1);
+		}
+		return (int) Math.floor(u);
+	}
+
+	/**
+	 * The test of the pixel by pixel loops, with the center computed as
+	 * AffineTransformation.transform() does.
+	 */
+	private static boolean intersects(Geometry g, GeometryFactory factory, double[] m, int x, int y) {
+		double px = x + 0.5;
+		double py = y + 0.5;
+		Coordinate center = new Coordinate(m[0] * px + m[1] * py + m[2], m[3] * px + m[4] * py + m[5]);
+		return g.intersects(factory.createPoint(center));
+	}
+
+	private static int[] grow(int[] row, int length) {
+		return length <= row.length ? row : Arrays.copyOf(row, Math.max(length, 2 * row.length));
+	}
+}
@@ -0,0 +1,352 @@
+package com.berkenviro.gis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.util.AffineTransformation;
+
+/**
+ * Statistics of the pixels in each of a collection of polygons (zones), from one pass over a raster.
+ *
+ * The row spans of every zone (see PolygonRasterizer) are indexed by row when the zones are set,
+ * then the rows that any zone touches are read once, in order, and each span is added to its
+ * zone.  Overlapping and neighbouring zones share the reads.  The rows are read in chunks by
+ * a pool of threads, each with its own reader and accumulators, which are merged at the end.
+ *
+ * As in GISUtils.polygonStats(), the pixels of a zone are those whose centroids intersect it,
+ * and a zone whose bounding box isn't inside the raster is skipped, so it has no pixels.
+ *
+ * @author Nicholas Clinton
+ */
+public class ZonalStatistics {
+
+	// rows per task
+	private static final int CHUNK = 32;
+
+	/**
+	 * Makes a Reader for each thread.
+	 */
+	public interface Source {
+		/**
+		 * @return a reader that is used by one thread only
+		 * @throws Exception if the raster can't be opened
+		 */
+		Reader open() throws Exception;
+	}
+
+	/**
+	 * Reads the values of pixels, e.g. a band with a mask applied.
+	 */
+	public interface Reader {
+		/**
+		 * @param y the row
+		 * @param x0 the first column
+		 * @param n the number of columns
+		 * @param values the value of each pixel, NaN if it isn't counted
+		 * @throws Exception if the row can't be read
+		 */
+		void read(int y, int x0, int n, double[] values) throws Exception;
+
+		/**
+		 * Release whatever was opened.
+		 */
+		void close();
+	}
+
+	/**
+	 * Count, sum, sum of squares, min, max and optionally a histogram of the values in a zone.
+	 */
+	public static class Accumulator {
+		private long n;
+		private double sum;
+		private double sumSq;
+		private double min = Double.POSITIVE_INFINITY;
+		private double max = Double.NEGATIVE_INFINITY;
+		private final long[] histogram;
+		private final double histMin;
+		private final double binWidth;
+
+		Accumulator(double histMin, double histMax, int bins) {
+			histogram = bins > 0 ? new long[bins] : null;
+			this.histMin = histMin;
+			binWidth = bins > 0 ? (histMax - histMin) / bins : 0;
+		}
+
+		void add(double v) {
+			n++;
+			sum += v;
+			sumSq += v * v;
+			if (v < min) {
+				min = v;
+			}
+			if (v > max) {
+				max = v;
+			}
+			if (histogram != null) {
+				int bin = (int) Math.floor((v - histMin) / binWidth);
+				if (bin >= 0 && bin < histogram.length) {
+					histogram[bin]++;
+				}
+			}
+		}
+
+		void merge(Accumulator other) {
+			n += other.n;
+			sum += other.sum;
+			sumSq += other.sumSq;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+			if (histogram != null) {
+				for (int b = 0; b < histogram.length; b++) {
+					histogram[b] += other.histogram[b];
+				}
+			}
+		}
+
+		public long getN() {
+			return n;
+		}
+
+		public double getSum() {
+			return sum;
+		}
+
+		public double getSumSq() {
+			return sumSq;
+		}
+
+		/**
+		 * @return NaN if there are no values, as SummaryStatistics
+		 */
+		public double getMean() {
+			return n > 0 ? sum / n : Double.NaN;
+		}
+
+		/**
+		 * @return the sample variance, NaN if there are no values, 0 if one
+		 */
+		public double getVariance() {
+			if (n == 0) {
+				return Double.NaN;
+			}
+			if (n == 1) {
+				return 0;
+			}
+			return Math.max(0, (sumSq - sum * sum / n) / (n - 1));
+		}
+
+		/**
+		 * @return NaN if there are no values
+		 */
+		public double getMin() {
+			return n > 0 ? min : Double.NaN;
+		}
+
+		/**
+		 * @return NaN if there are no values
+		 */
+		public double getMax() {
+			return n > 0 ? max : Double.NaN;
+		}
+
+		/**
+		 * @return the counts of the bins, values outside the range not counted, or null
+		 */
+		public long[] getHistogram() {
+			return histogram;
+		}
+	}
+
+	private final int numZones;
+	private final int height;
+	// the spans of each row: zone, first and last column, from rowStart[y] to rowStart[y+1]
+	private final int[] rowStart;
+	private final int[] spanZone;
+	private final int[] spanX0;
+	private final int[] spanX1;
+	// columns of each row that are read
+	private final int[] rowMinX;
+	private final int[] rowMaxX;
+	private double histMin;
+	private double histMax;
+	private int bins;
+
+	/**
+	 * Rasterize and index the zones.
+	 * @param zones polygons in the coordinates of the raster
+	 * @param raster2proj the transform from pixel to projected coordinates of the raster
+	 * @param width of the raster
+	 * @param height of the raster
+	 */
+	public ZonalStatistics(List<Geometry> zones, AffineTransformation raster2proj, int width, int height) {
+		this.numZones = zones.size();
+		this.height = height;
+		AffineTransformation proj2raster = GISUtils.proj2raster(raster2proj);
+		int[][][] spans = new int[numZones][][];
+		int[] zoneMinY = new int[numZones];
+		int[] counts = new int[height + 1];
+		for (int z = 0; z < numZones; z++) {
+			Envelope bb = zones.get(z).getEnvelopeInternal();
+			int[] ul = pixel(proj2raster, bb.getMinX(), bb.getMaxY(), width, height);
+			int[] lr = pixel(proj2raster, bb.getMaxX(), bb.getMinY(), width, height);
+			if (ul == null || lr == null) {
+				System.err.println("Zone " + z + " is not inside the raster, skipping.");
+				spans[z] = new int[0][];
+				continue;
+			}
+			int minX = Math.max(ul[0]-1, 0);
+			int minY = Math.max(ul[1]-1, 0);
+			int maxX = Math.min(lr[0]+1, width-1);
+			int maxY = Math.min(lr[1]+1, height-1);
+			spans[z] = PolygonRasterizer.spans(zones.get(z), raster2proj, minX, minY, maxX, maxY);
+			zoneMinY[z] = minY;
+			for (int i = 0; i < spans[z].length; i++) {
+				counts[minY + i] += spans[z][i].length / 2;
+			}
+		}
+		rowStart = new int[height + 1];
+		for (int y = 0; y < height; y++) {
+			rowStart[y+1] = rowStart[y] + counts[y];
+		}
+		spanZone = new int[rowStart[height]];
+		spanX0 = new int[rowStart[height]];
+		spanX1 = new int[rowStart[height]];
+		rowMinX = new int[height];
+		rowMaxX = new int[height];
+		Arrays.fill(rowMinX, Integer.MAX_VALUE);
+		Arrays.fill(rowMaxX, -1);
+		int[] next = Arrays.copyOf(rowStart, height);
+		for (int z = 0; z < numZones; z++) {
+			for (int i = 0; i < spans[z].length; i++) {
+				int y = zoneMinY[z] + i;
+				int[] row = spans[z][i];
+				for (int s = 0; s < row.length; s += 2) {
+					int k = next[y]++;
+					spanZone[k] = z;
+					spanX0[k] = row[s];
+					spanX1[k] = row[s+1];
+					rowMinX[y] = Math.min(rowMinX[y], row[s]);
+					rowMaxX[y] = Math.max(rowMaxX[y], row[s+1]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * As getPixelXY() does it.
+	 * @return the pixel containing the point, or null if it's outside the raster
+	 */
+	private static int[] pixel(AffineTransformation proj2raster, double x, double y, int width, int height) {
+		Coordinate pix = new Coordinate();
+		proj2raster.transform(new Coordinate(x, y), pix);
+		if ((int)pix.x < 0 || (int)pix.x >= width || (int)pix.y < 0 || (int)pix.y >= height) {
+			return null;
+		}
+		return new int[] {(int)pix.x, (int)pix.y};
+	}
+
+	/**
+	 * Also count the values of each zone in bins of equal width.
+	 * @param min the lower edge of the first bin
+	 * @param max the upper edge of the last bin
+	 * @param bins the number of bins, 0 for none
+	 */
+	public void setHistogram(double min, double max, int bins) {
+		this.histMin = min;
+		this.histMax = max;
+		this.bins = bins;
+	}
+
+	/**
+	 * @return the number of spans, over all the zones and rows
+	 */
+	public int getNumSpans() {
+		return spanZone.length;
+	}
+
+	/**
+	 * Read every row that any zone touches, once.
+	 * @param source of the values
+	 * @param nThreads the number of rows read at once
+	 * @return an accumulator per zone, in the order of the zones
+	 * @throws Exception if a row can't be read
+	 */
+	public Accumulator[] run(final Source source, int nThreads) throws Exception {
+		final AtomicInteger nextChunk = new AtomicInteger();
+		final int chunks = (height + CHUNK - 1) / CHUNK;
+		ExecutorService service = Executors.newFixedThreadPool(nThreads);
+		List<Future<Accumulator[]>> futures = new ArrayList<Future<Accumulator[]>>(nThreads);
+		try {
+			for (int t = 0; t < nThreads; t++) {
+				futures.add(service.submit(new Callable<Accumulator[]>() {
+					@Override
+					public Accumulator[] call() throws Exception {
+						Accumulator[] acc = new Accumulator[numZones];
+						Reader reader = source.open();
+						try {
+							double[] values = new double[0];
+							for (int c = nextChunk.getAndIncrement(); c < chunks; c = nextChunk.getAndIncrement()) {
+								for (int y = c * CHUNK; y < Math.min((c + 1) * CHUNK, height); y++) {
+									if (rowStart[y] == rowStart[y+1]) {
+										continue;
+									}
+									int x0 = rowMinX[y];
+									int n = rowMaxX[y] - x0 + 1;
+									if (values.length < n) {
+										values = new double[n];
+									}
+									reader.read(y, x0, n, values);
+									for (int k = rowStart[y]; k < rowStart[y+1]; k++) {
+										int z = spanZone[k];
+										if (acc[z] == null) {
+											acc[z] = new Accumulator(histMin, histMax, bins);
+										}
+										for (int x = spanX0[k]; x <= spanX1[k]; x++) {
+											double v = values[x - x0];
+											if (!Double.isNaN(v)) {
+												acc[z].add(v);
+											}
+										}
+									}
+								}
+							}
+						} finally {
+							reader.close();
+						}
+						return acc;
+					}
+				}));
+			}
+			Accumulator[] result = new Accumulator[numZones];
+			for (int z = 0; z < numZones; z++) {
+				result[z] = new Accumulator(histMin, histMax, bins);
+			}
+			for (Future<Accumulator[]> f : futures) {
+				Accumulator[] acc;
+				try {
+					acc = f.get();
+				} catch (ExecutionException e) {
+					throw new Exception("Zonal statistics failed.", e.getCause());
+				}
+				for (int z = 0; z < numZones; z++) {
+					if (acc[z] != null) {
+						result[z].merge(acc[z]);
+					}
+				}
+			}
+			return result;
+		} finally {
+			service.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package com.berkenviro.imageprocessing;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of raster blocks shared by every ImageData in the process.
+ *
+ * Blocks are aligned to the GDAL block size of the band they come from and are
+ * keyed by file, band and block index.  When the total size of the cached blocks
+ * exceeds the budget, the least recently used blocks are evicted.  Unlike the old
+ * one-line buffer in ImageData, a block survives until it is evicted, so access
+ * patterns other than left-to-right, top-to-bottom (polygon scans, point overlays)
+ * don't re-read from disk.
+ *
+ * @author Nicholas Clinton
+ * @author Cong Hui He
+ */
+public class BlockCache {
+
+	/**
+	 * Default budget, bytes.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+	private static BlockCache shared;
+
+	private final LinkedHashMap<Key, Block> blocks;
+	private long maxBytes;
+	private long bytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 *
+	 * @param maxBytes is the memory budget
+	 */
+	public BlockCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		// access order, for LRU
+		blocks = new LinkedHashMap<Key, Block>(1024, 0.75f, true);
+	}
+
+	/**
+	 * The process-wide cache used by ImageData.
+	 * @return
+	 */
+	public static synchronized BlockCache getShared() {
+		if (shared == null) {
+			shared = new BlockCache(DEFAULT_MAX_BYTES);
+		}
+		return shared;
+	}
+
+	/**
+	 * Set the memory budget of the process-wide cache.
+	 * @param maxBytes
+	 */
+	public static void setSharedMaxBytes(long maxBytes) {
+		getShared().setMaxBytes(maxBytes);
+	}
+
+	/**
+	 *
+	 * @param maxBytes
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return the cached block or null
+	 */
+	public Block get(Key key) {
+		Block block;
+		synchronized (this) {
+			block = blocks.get(key);
+		}
+		if (block == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return block;
+	}
+
+	/**
+	 * Add a block, evicting least recently used blocks if over budget.
+	 * @param key
+	 * @param block
+	 */
+	public synchronized void put(Key key, Block block) {
+		Block old = blocks.put(key, block);
+		if (old != null) {
+			bytes -= old.size();
+		}
+		bytes += block.size();
+		evict();
+	}
+
+	/**
+	 * Remove every block of a file, e.g. when the file has been rewritten.  Scans the
+	 * whole cache, so call it once per file written, not per handle closed.
+	 * @param file
+	 */
+	public synchronized void remove(String file) {
+		Iterator<Map.Entry<Key, Block>> iter = blocks.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Key, Block> entry = iter.next();
+			if (entry.getKey().file.equals(file)) {
+				bytes -= entry.getValue().size();
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Empty the cache.
+	 */
+	public synchronized void clear() {
+		blocks.clear();
+		bytes = 0;
+	}
+
+	private void evict() {
+		Iterator<Block> iter = blocks.values().iterator();
+		while (bytes > maxBytes && iter.hasNext()) {
+			bytes -= iter.next().size();
+			iter.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		long h = getHits();
+		long m = getMisses();
+		return "BlockCache: "+getBytes()+" of "+maxBytes+" bytes, hits="+h+", misses="+m
+				+", hit rate="+(h+m == 0 ? 0 : (double)h/(h+m))+", evictions="+getEvictions();
+	}
+
+	/**
+	 * Identifies a block: file, one-indexed band, block column and row.
+	 */
+	public static final class Key {
+		final String file;
+		final int band;
+		final int blockX;
+		final int blockY;
+
+		public Key(String file, int band, int blockX, int blockY) {
+			this.file = file;
+			this.band = band;
+			this.blockX = blockX;
+			this.blockY = blockY;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key)o;
+			return blockX == k.blockX && blockY == k.blockY && band == k.band && file.equals(k.file);
+		}
+
+		@Override
+		public int hashCode() {
+			int h = file.hashCode();
+			h = 31*h + band;
+			h = 31*h + blockX;
+			h = 31*h + blockY;
+			return h;
+		}
+	}
+
+	/**
+	 * The raw data of a block, as read by GDAL in native byte order.
+	 * Width and height may be less than the GDAL block size at the image edges.
+	 */
+	public static final class Block {
+		final ByteBuffer data;
+		final int width;
+		final int height;
+
+		public Block(ByteBuffer data, int width, int height) {
+			this.data = data;
+			this.width = width;
+			this.height = height;
+		}
+
+		long size() {
+			return data.capacity();
+		}
+	}
+}
@@ -0,0 +1,673 @@
+package com.berkenviro.imageprocessing;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.meta.AdaBoostM1;
+import weka.classifiers.meta.Bagging;
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+import weka.classifiers.trees.j48.BinC45Split;
+import weka.classifiers.trees.j48.C45Split;
+import weka.classifiers.trees.j48.ClassifierSplitModel;
+import weka.classifiers.trees.j48.ClassifierTree;
+import weka.classifiers.trees.j48.Distribution;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A trained J48, RandomForest, Bagging of J48 or RandomTree, or AdaBoostM1 of J48,
+ * flattened into arrays, for classifying pixels without Weka.
+ *
+ * Every node of every tree is a slot in the same arrays: the attribute tested, the kind
+ * of test, the threshold, the offset and number of its children (which are contiguous),
+ * and the class probabilities of leaves.  A pixel is a double[] of attribute values,
+ * coded as in a Weka Instance (index of the value for nominal attributes, NaN for missing).
+ * Without missing values, a tree is a walk down the arrays to a leaf.
+ *
+ * The predictions are the same as Weka's: the tests, the weighting of branches for
+ * missing values, the tolerances of Utils.gr() and Utils.smOrEq(), and the order of the
+ * sums are Weka 3.6's.  The internals are read by reflection, so compile() checks the
+ * result against the classifier on some instances and refuses to return a model that
+ * disagrees on any of them.
+ *
+ * Thread safe.
+ *
+ * @author Nicholas Clinton
+ */
+public class CompiledTrees implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Utils.SMALL */
+	private static final double SMALL = 1e-6;
+
+	// models
+	private static final int SINGLE_J48 = 0;
+	private static final int BAGGING = 1;
+	private static final int ADABOOST = 2;
+
+	// flavors of tree
+	private static final byte J48_TREE = 0;
+	private static final byte RANDOM_TREE = 1;
+
+	// tests
+	/** left if v - threshold < SMALL, C45Split */
+	private static final byte LESS_OR_EQUAL = 0;
+	/** left if v < threshold, RandomTree */
+	private static final byte LESS = 1;
+	/** child (int)v */
+	private static final byte NOMINAL = 2;
+	/** left if (int)v == (int)threshold, BinC45Split */
+	private static final byte NOMINAL_EQUAL = 3;
+
+	private final int model;
+	private final int numClasses;
+	private final int numAttributes;
+	private final int[] roots;
+	private final byte[] flavor;
+	private final double[] betas;
+
+	// nodes
+	private final int[] attribute;		// -1 for a leaf
+	private final byte[] test;
+	private final double[] threshold;
+	private final int[] firstChild;
+	private final int[] numChildren;
+	private final boolean[] empty;		// J48 subtree with no training data
+	private final double[] weight;		// of the node, in its parent, when the parent's attribute is missing
+	private final int[] probs;			// offset in classProbs, -1 if the node has none
+	private final int[] resolved;		// RandomTree: probs of the node, or of its nearest ancestor that has some
+	private final int[] leafClass;		// J48: the class of a leaf
+	private final double[] classProbs;
+
+	private transient volatile ThreadLocal<double[][]> scratch;
+
+	/**
+	 * A node while the trees are read.
+	 */
+	private static class Node {
+		int attribute = -1;
+		byte test;
+		double threshold;
+		boolean empty;
+		double weight;
+		double[] probs;
+		Node[] children = new Node[0];
+	}
+
+	/**
+	 * Flatten the classifier.
+	 * @param c a trained J48, RandomForest, Bagging or AdaBoostM1, see the class comment
+	 * @param check instances to compare the predictions with the classifier's, e.g. the training data
+	 * @return
+	 * @throws IllegalArgumentException if the classifier isn't supported
+	 * @throws IllegalStateException if a prediction differs from the classifier's
+	 */
+	public static CompiledTrees compile(Classifier c, Instances check) {
+		CompiledTrees compiled = new CompiledTrees(c, check);
+		int mismatches = compiled.mismatches(c, check);
+		if (mismatches > 0) {
+			throw new IllegalStateException(mismatches+" of "+check.numInstances()+" predictions differ from "+c.getClass().getName());
+		}
+		return compiled;
+	}
+
+	/**
+	 * Same as compile(), but returns null, with a message, if the classifier can't be compiled.
+	 * @param c
+	 * @param check
+	 * @return
+	 */
+	public static CompiledTrees compileOrNull(Classifier c, Instances check) {
+		try {
+			CompiledTrees compiled = compile(c, check);
+			System.out.println("Compiled "+c.getClass().getSimpleName()+": "+compiled);
+			return compiled;
+		} catch (RuntimeException e) {
+			System.out.println("Classifying with Weka, can't compile "+c.getClass().getSimpleName()+": "+e.getMessage());
+			return null;
+		}
+	}
+
+	private CompiledTrees(Classifier c, Instances header) {
+		if (!header.classAttribute().isNominal()) {
+			throw new IllegalArgumentException("Not a nominal class.");
+		}
+		numClasses = header.numClasses();
+		numAttributes = header.numAttributes();
+		List<Node> trees = new ArrayList<Node>();
+		List<Byte> flavors = new ArrayList<Byte>();
+		double[] b = null;
+		if (c.getClass() == J48.class) {
+			model = SINGLE_J48;
+			trees.add(j48((J48) c, header, flavors));
+		} else if (c.getClass() == RandomForest.class || c.getClass() == Bagging.class) {
+			model = BAGGING;
+			Bagging bagger = c.getClass() == RandomForest.class ? (Bagging) field(c, "m_bagger") : (Bagging) c;
+			Classifier[] classifiers = (Classifier[]) field(bagger, "m_Classifiers");
+			int n = (Integer) field(bagger, "m_NumIterations");
+			for (int i = 0; i < n; i++) {
+				if (classifiers[i].getClass() == J48.class) {
+					trees.add(j48((J48) classifiers[i], header, flavors));
+				} else if (classifiers[i].getClass() == RandomTree.class) {
+					trees.add(randomTree((RandomTree) classifiers[i], header));
+					flavors.add(RANDOM_TREE);
+				} else {
+					throw new IllegalArgumentException("Can't compile bagged "+classifiers[i].getClass().getName());
+				}
+			}
+		} else if (c.getClass() == AdaBoostM1.class) {
+			model = ADABOOST;
+			if (hasField(c, "m_ZeroR") && field(c, "m_ZeroR") != null) {
+				throw new IllegalArgumentException("The AdaBoostM1 model is ZeroR.");
+			}
+			Classifier[] classifiers = (Classifier[]) field(c, "m_Classifiers");
+			int n = (Integer) field(c, "m_NumIterationsPerformed");
+			b = ((double[]) field(c, "m_Betas")).clone();
+			for (int i = 0; i < n; i++) {
+				if (classifiers[i].getClass() != J48.class) {
+					throw new IllegalArgumentException("Can't compile boosted "+classifiers[i].getClass().getName());
+				}
+				trees.add(j48((J48) classifiers[i], header, flavors));
+			}
+		} else {
+			throw new IllegalArgumentException("Can't compile "+c.getClass().getName());
+		}
+		if (trees.isEmpty()) {
+			throw new IllegalArgumentException("No trees.");
+		}
+		betas = b;
+		flavor = new byte[flavors.size()];
+		for (int t = 0; t < flavor.length; t++) {
+			flavor[t] = flavors.get(t);
+		}
+
+		// breadth first, so that the children of a node are contiguous
+		List<Node> nodes = new ArrayList<Node>();
+		List<Integer> parents = new ArrayList<Integer>();
+		roots = new int[trees.size()];
+		for (int t = 0; t < trees.size(); t++) {
+			roots[t] = nodes.size();
+			nodes.add(trees.get(t));
+			parents.add(-1);
+			for (int i = roots[t]; i < nodes.size(); i++) {
+				for (Node child : nodes.get(i).children) {
+					nodes.add(child);
+					parents.add(i);
+				}
+			}
+		}
+		int n = nodes.size();
+		attribute = new int[n];
+		test = new byte[n];
+		threshold = new double[n];
+		firstChild = new int[n];
+		numChildren = new int[n];
+		empty = new boolean[n];
+		weight = new double[n];
+		probs = new int[n];
+		resolved = new int[n];
+		leafClass = new int[n];
+		int withProbs = 0;
+		for (Node node : nodes) {
+			if (node.probs != null) {
+				withProbs++;
+			}
+		}
+		classProbs = new double[withProbs * numClasses];
+		int next = 0; // next child
+		int offset = 0;
+		for (int i = 0; i < n; i++) {
+			Node node = nodes.get(i);
+			attribute[i] = node.attribute;
+			test[i] = node.test;
+			threshold[i] = node.threshold;
+			empty[i] = node.empty;
+			weight[i] = node.weight;
+			numChildren[i] = node.children.length;
+			if (i == next) {
+				next++; // a root
+			}
+			firstChild[i] = next;
+			next += node.children.length;
+			if (node.probs != null) {
+				probs[i] = offset;
+				System.arraycopy(node.probs, 0, classProbs, offset, numClasses);
+				offset += numClasses;
+			} else {
+				probs[i] = -1;
+			}
+			int parent = parents.get(i);
+			resolved[i] = probs[i] >= 0 || parent < 0 ? probs[i] : resolved[parent];
+			leafClass[i] = probs[i] >= 0 ? greatest(classProbs, probs[i]) : 0;
+		}
+	}
+
+	/**
+	 * Read the tree of a J48.
+	 */
+	private static Node j48(J48 j48, Instances header, List<Byte> flavors) {
+		if ((Boolean) field(j48, "m_useLaplace")) {
+			throw new IllegalArgumentException("Can't compile a J48 with the Laplace correction.");
+		}
+		flavors.add(J48_TREE);
+		return j48((ClassifierTree) field(j48, "m_root"), header, null, -1);
+	}
+
+	/**
+	 * @param tree
+	 * @param header
+	 * @param parent split of the parent, null for the root
+	 * @param subset of the tree in its parent
+	 */
+	private static Node j48(ClassifierTree tree, Instances header, ClassifierSplitModel parent, int subset) {
+		Node node = new Node();
+		ClassifierSplitModel split = (ClassifierSplitModel) field(tree, "m_localModel");
+		int numClasses = header.numClasses();
+		node.probs = new double[numClasses];
+		if (parent != null) {
+			Distribution d = parent.distribution();
+			node.weight = d.perBag(subset)/d.total();
+		}
+		if ((Boolean) field(tree, "m_isEmpty") && parent != null) {
+			// no training data, so the class probabilities of the subset of the parent
+			node.empty = true;
+			for (int j = 0; j < numClasses; j++) {
+				node.probs[j] = parent.distribution().prob(j, subset);
+			}
+			return node;
+		}
+		if ((Boolean) field(tree, "m_isLeaf")) {
+			for (int j = 0; j < numClasses; j++) {
+				node.probs[j] = split.distribution().prob(j);
+			}
+			return node;
+		}
+		node.probs = null;
+		if (split.getClass() == C45Split.class) {
+			node.attribute = (Integer) field(split, "m_attIndex");
+			node.threshold = (Double) field(split, "m_splitPoint");
+			node.test = header.attribute(node.attribute).isNominal() ? NOMINAL : LESS_OR_EQUAL;
+		} else if (split.getClass() == BinC45Split.class) {
+			node.attribute = (Integer) field(split, "m_attIndex");
+			node.threshold = (Double) field(split, "m_splitPoint");
+			node.test = header.attribute(node.attribute).isNominal() ? NOMINAL_EQUAL : LESS_OR_EQUAL;
+		} else {
+			throw new IllegalArgumentException("Can't compile a "+split.getClass().getName());
+		}
+		ClassifierTree[] sons = (ClassifierTree[]) field(tree, "m_sons");
+		node.children = new Node[sons.length];
+		for (int i = 0; i < sons.length; i++) {
+			node.children[i] = j48(sons[i], header, split, i);
+		}
+		return node;
+	}
+
+	/**
+	 * Read a RandomTree.
+	 */
+	private static Node randomTree(RandomTree tree, Instances header) {
+		Node node = new Node();
+		node.attribute = (Integer) field(tree, "m_Attribute");
+		double[] p = (double[]) field(tree, "m_ClassProbs");
+		node.probs = p == null ? null : p.clone();
+		if (node.probs != null && node.probs.length != header.numClasses()) {
+			throw new IllegalArgumentException("Class probabilities of "+node.probs.length+" classes.");
+		}
+		if (node.attribute < 0) {
+			return node;
+		}
+		node.threshold = (Double) field(tree, "m_SplitPoint");
+		node.test = header.attribute(node.attribute).isNominal() ? NOMINAL : LESS;
+		RandomTree[] successors = (RandomTree[]) field(tree, "m_Successors");
+		double[] prop = (double[]) field(tree, "m_Prop");
+		node.children = new Node[successors.length];
+		for (int i = 0; i < successors.length; i++) {
+			node.children[i] = randomTree(successors[i], header);
+			node.children[i].weight = prop[i];
+		}
+		return node;
+	}
+
+	/**
+	 * A field of a Weka object, which may be declared by a superclass.
+	 */
+	private static Object field(Object o, String name) {
+		for (Class<?> c = o.getClass(); c != null; c = c.getSuperclass()) {
+			try {
+				Field f = c.getDeclaredField(name);
+				f.setAccessible(true);
+				return f.get(o);
+			} catch (NoSuchFieldException e) {
+				continue;
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+		throw new IllegalArgumentException("No "+name+" in "+o.getClass().getName()+", another version of Weka?");
+	}
+
+	private static boolean hasField(Object o, String name) {
+		for (Class<?> c = o.getClass(); c != null; c = c.getSuperclass()) {
+			try {
+				c.getDeclaredField(name);
+				return true;
+			} catch (NoSuchFieldException e) {
+				continue;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Evaluation
+	 */
+
+	/**
+	 * Classify a pixel.
+	 * @param x attribute values, as in an Instance.  The class attribute is ignored.
+	 * @return the index of the class, as Classifier.classifyInstance(), NaN if that would be missing
+	 * @throws IllegalArgumentException if a nominal value is out of range
+	 */
+	public double classify(double[] x) {
+		if (model == SINGLE_J48) {
+			int leaf = leaf(roots[0], x);
+			if (leaf >= 0) {
+				return leafClass[leaf];
+			}
+			double[] p = scratch()[0];
+			j48Probs(~leaf, 1.0, x, p);
+			return greatest(p, 0);
+		}
+		double[] dist = scratch()[0];
+		distribution(x, dist);
+		return maxOrMissing(dist);
+	}
+
+	/**
+	 * Classify a row of pixels.
+	 * @param columns attribute values of the pixels, columns[a][i] for attribute a of pixel i.
+	 * A null column is missing.
+	 * @param n number of pixels
+	 * @param out the index of the class of each pixel, NaN if missing
+	 */
+	public void classify(double[][] columns, int n, double[] out) {
+		double[] x = scratch()[2];
+		for (int i = 0; i < n; i++) {
+			for (int a = 0; a < numAttributes; a++) {
+				x[a] = columns[a] == null ? Double.NaN : columns[a][i];
+			}
+			out[i] = classify(x);
+		}
+	}
+
+	/**
+	 * The class distribution, as Classifier.distributionForInstance().
+	 * @param x
+	 * @param dist numClasses long
+	 */
+	public void distribution(double[] x, double[] dist) {
+		if (model == SINGLE_J48) {
+			treeDistribution(0, x, dist);
+		} else if (model == BAGGING) {
+			double[] tree = scratch()[1];
+			for (int j = 0; j < numClasses; j++) {
+				dist[j] = 0;
+			}
+			for (int t = 0; t < roots.length; t++) {
+				treeDistribution(t, x, tree);
+				for (int j = 0; j < numClasses; j++) {
+					dist[j] += tree[j];
+				}
+			}
+			double sum = 0;
+			for (int j = 0; j < numClasses; j++) {
+				sum += dist[j];
+			}
+			// Utils.eq(sum, 0), otherwise Utils.normalize()
+			if (!(sum < SMALL && -sum < SMALL)) {
+				if (Double.isNaN(sum)) {
+					throw new IllegalArgumentException("Can't normalize array. Sum is NaN.");
+				}
+				for (int j = 0; j < numClasses; j++) {
+					dist[j] /= sum;
+				}
+			}
+		} else {
+			if (roots.length == 1) {
+				treeDistribution(0, x, dist);
+				return;
+			}
+			for (int j = 0; j < numClasses; j++) {
+				dist[j] = 0;
+			}
+			double[] tree = scratch()[1];
+			for (int t = 0; t < roots.length; t++) {
+				int leaf = leaf(roots[t], x);
+				int k;
+				if (leaf >= 0) {
+					k = leafClass[leaf];
+				} else {
+					j48Probs(~leaf, 1.0, x, tree);
+					k = greatest(tree, 0);
+				}
+				dist[k] += betas[t];
+			}
+			// Utils.logs2probs()
+			double max = dist[0];
+			for (int j = 1; j < numClasses; j++) {
+				if (dist[j] > max) {
+					max = dist[j];
+				}
+			}
+			double sum = 0;
+			for (int j = 0; j < numClasses; j++) {
+				dist[j] = Math.exp(dist[j] - max);
+				sum += dist[j];
+			}
+			for (int j = 0; j < numClasses; j++) {
+				dist[j] /= sum;
+			}
+		}
+	}
+
+	/**
+	 * Distribution of a tree: ClassifierTree.getProbs() for every class, or RandomTree.distributionForInstance().
+	 */
+	private void treeDistribution(int t, double[] x, double[] out) {
+		int leaf = leaf(roots[t], x);
+		if (flavor[t] == J48_TREE) {
+			if (leaf >= 0) {
+				System.arraycopy(classProbs, probs[leaf], out, 0, numClasses);
+			} else {
+				j48Probs(~leaf, 1.0, x, out);
+			}
+		} else {
+			if (leaf >= 0) {
+				if (resolved[leaf] < 0) {
+					throw new IllegalArgumentException("Tree "+t+" has no distribution.");
+				}
+				System.arraycopy(classProbs, resolved[leaf], out, 0, numClasses);
+			} else {
+				// not null at a missing value
+				randomTreeDistribution(~leaf, x, out);
+			}
+		}
+	}
+
+	/**
+	 * Walk down to a leaf.
+	 * @return the leaf, or ~node if the attribute of node is missing
+	 */
+	private int leaf(int node, double[] x) {
+		while (attribute[node] >= 0) {
+			double v = x[attribute[node]];
+			if (Double.isNaN(v)) {
+				return ~node;
+			}
+			node = firstChild[node] + child(node, v);
+		}
+		return node;
+	}
+
+	private int child(int node, double v) {
+		switch (test[node]) {
+		case LESS_OR_EQUAL:
+			return v - threshold[node] < SMALL ? 0 : 1;
+		case LESS:
+			return v < threshold[node] ? 0 : 1;
+		case NOMINAL_EQUAL:
+			return (int) threshold[node] == (int) v ? 0 : 1;
+		default:
+			int i = (int) v;
+			if (i < 0 || i >= numChildren[node]) {
+				throw new IllegalArgumentException("Value "+v+" of attribute "+attribute[node]+" is out of range.");
+			}
+			return i;
+		}
+	}
+
+	/**
+	 * ClassifierTree.getProbs(), for every class.  Missing values are weighted down the branches.
+	 */
+	private void j48Probs(int node, double w, double[] x, double[] out) {
+		if (attribute[node] < 0) {
+			int p = probs[node];
+			for (int j = 0; j < numClasses; j++) {
+				out[j] = w * classProbs[p + j];
+			}
+			return;
+		}
+		double v = x[attribute[node]];
+		if (!Double.isNaN(v)) {
+			// an empty child is a leaf of the probabilities of its subset
+			j48Probs(firstChild[node] + child(node, v), w, x, out);
+			return;
+		}
+		for (int j = 0; j < numClasses; j++) {
+			out[j] = 0;
+		}
+		double[] son = new double[numClasses];
+		for (int c = firstChild[node]; c < firstChild[node] + numChildren[node]; c++) {
+			if (!empty[c]) {
+				j48Probs(c, weight[c] * w, x, son);
+				for (int j = 0; j < numClasses; j++) {
+					out[j] += son[j];
+				}
+			}
+		}
+	}
+
+	/**
+	 * RandomTree.distributionForInstance().
+	 * @return false if that would be null
+	 */
+	private boolean randomTreeDistribution(int node, double[] x, double[] out) {
+		if (attribute[node] >= 0) {
+			double v = x[attribute[node]];
+			if (Double.isNaN(v)) {
+				for (int j = 0; j < numClasses; j++) {
+					out[j] = 0;
+				}
+				double[] help = new double[numClasses];
+				for (int c = firstChild[node]; c < firstChild[node] + numChildren[node]; c++) {
+					if (randomTreeDistribution(c, x, help)) {
+						for (int j = 0; j < numClasses; j++) {
+							out[j] += weight[c] * help[j];
+						}
+					}
+				}
+				return true;
+			}
+			if (randomTreeDistribution(firstChild[node] + child(node, v), x, out)) {
+				return true;
+			}
+		}
+		if (probs[node] < 0) {
+			return false;
+		}
+		System.arraycopy(classProbs, probs[node], out, 0, numClasses);
+		return true;
+	}
+
+	/**
+	 * ClassifierTree.classifyInstance(): the first class that is greater by Utils.gr().
+	 */
+	private int greatest(double[] p, int offset) {
+		double max = -1;
+		int maxIndex = 0;
+		for (int j = 0; j < numClasses; j++) {
+			if (p[offset + j] - max > SMALL) {
+				maxIndex = j;
+				max = p[offset + j];
+			}
+		}
+		return maxIndex;
+	}
+
+	/**
+	 * Classifier.classifyInstance() of a nominal class.
+	 */
+	private double maxOrMissing(double[] dist) {
+		double max = 0;
+		int maxIndex = 0;
+		for (int j = 0; j < numClasses; j++) {
+			if (dist[j] > max) {
+				maxIndex = j;
+				max = dist[j];
+			}
+		}
+		return max > 0 ? maxIndex : Instance.missingValue();
+	}
+
+	private double[][] scratch() {
+		if (scratch == null) {
+			scratch = new ThreadLocal<double[][]>() {
+				@Override
+				protected double[][] initialValue() {
+					return new double[][] {new double[numClasses], new double[numClasses], new double[numAttributes]};
+				}
+			};
+		}
+		return scratch.get();
+	}
+
+	/**
+	 * Compare the predictions with the classifier's.
+	 * @param c
+	 * @param data
+	 * @return the number of instances that are classified differently
+	 */
+	public int mismatches(Classifier c, Instances data) {
+		int mismatches = 0;
+		for (int i = 0; i < data.numInstances(); i++) {
+			Instance instance = data.instance(i);
+			double expected;
+			try {
+				expected = c.classifyInstance(instance);
+			} catch (Exception e) {
+				expected = Double.POSITIVE_INFINITY; // must fail too
+			}
+			double actual;
+			try {
+				actual = classify(instance.toDoubleArray());
+			} catch (IllegalArgumentException e) {
+				actual = Double.POSITIVE_INFINITY;
+			}
+			if (Double.compare(expected, actual) != 0) {
+				mismatches++;
+			}
+		}
+		return mismatches;
+	}
+
+	@Override
+	public String toString() {
+		return roots.length+" trees, "+attribute.length+" nodes, "+numClasses+" classes";
+	}
+}
@@ -0,0 +1,304 @@
+package com.berkenviro.imageprocessing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.classifiers.UpdateableClassifier;
+import weka.classifiers.lazy.IBk;
+import weka.classifiers.trees.J48;
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializedObject;
+
+/**
+ * Cross-validation with the folds on separate threads.
+ *
+ * The result is the Evaluation that Evaluation.crossValidateModel() would give with the same
+ * classifier, data, folds and Random: the data are shuffled and stratified the same way, each
+ * fold trains a copy of the classifier on the same instances in the same order, and the
+ * predictions are recorded in fold order.  Each thread has its own copy of the classifier
+ * and of the training data of its fold.
+ *
+ * For leave-one-out with an UpdateableClassifier, the models can also be built incrementally,
+ * see leaveOneOutIncremental().
+ *
+ * @author Nicholas Clinton
+ */
+public class CrossValidation {
+
+	/**
+	 * Leave-one-out with a seed of 1, as in TrainingProcessr, on a thread per processor.
+	 * @param c is copied for each fold, not trained
+	 * @param data with the class set
+	 * @return the evaluation of every fold
+	 * @throws Exception if a fold fails
+	 */
+	public static Evaluation leaveOneOut(Classifier c, Instances data) throws Exception {
+		return crossValidateModel(c, data, data.numInstances(), new Random(1),
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Same as Evaluation.crossValidateModel(), with the folds on nThreads threads.
+	 * @param c is copied for each fold, not trained
+	 * @param data with the class set.  Not changed.
+	 * @param folds the number of folds, numInstances() for leave-one-out
+	 * @param random is used as crossValidateModel() would, so it's in the same state afterwards
+	 * @param nThreads is the number of folds trained at once
+	 * @return the evaluation of every fold
+	 * @throws Exception if a fold fails
+	 */
+	public static Evaluation crossValidateModel(final Classifier c, Instances data, final int folds,
+			Random random, int nThreads) throws Exception {
+		Evaluation evaluation = new Evaluation(data);
+		final Instances shuffled = new Instances(data);
+		shuffled.randomize(random);
+		if (shuffled.classAttribute().isNominal()) {
+			shuffled.stratify(folds);
+		}
+		final boolean nominal = shuffled.classAttribute().isNominal();
+
+		ExecutorService service = Executors.newFixedThreadPool(nThreads);
+		List<Future<double[][]>> futures = new ArrayList<Future<double[][]>>(folds);
+		try {
+			for (int i = 0; i < folds; i++) {
+				final int fold = i;
+				// trainCV() shuffles each training set with the random, in fold order
+				final Random foldRandom = (Random) new SerializedObject(random).getObject();
+				int trainSize = shuffled.numInstances() - foldSize(shuffled.numInstances(), folds, fold);
+				for (int j = trainSize - 1; j > 0; j--) {
+					random.nextInt(j + 1);
+				}
+				futures.add(service.submit(new Callable<double[][]>() {
+					@Override
+					public double[][] call() throws Exception {
+						Instances train = shuffled.trainCV(folds, fold);
+						train.randomize(foldRandom);
+						Classifier copy = Classifier.makeCopy(c);
+						copy.buildClassifier(train);
+						Instances test = shuffled.testCV(folds, fold);
+						double[][] dists = new double[test.numInstances()][];
+						for (int j = 0; j < test.numInstances(); j++) {
+							dists[j] = distribution(copy, test.instance(j), nominal);
+						}
+						return dists;
+					}
+				}));
+			}
+			for (int i = 0; i < folds; i++) {
+				double[][] dists;
+				try {
+					dists = futures.get(i).get();
+				} catch (ExecutionException e) {
+					throw new Exception("Fold " + i + " failed.", e.getCause());
+				}
+				record(evaluation, shuffled, folds, i, dists);
+			}
+		} finally {
+			service.shutdownNow();
+		}
+		return evaluation;
+	}
+
+	/**
+	 * Leave-one-out of an UpdateableClassifier, with models built by updateClassifier() instead
+	 * of buildClassifier().  The folds are split in half recursively: a model of everything but
+	 * one half is copied, and each copy is updated with the other half before the halves are
+	 * split again.  That's about n*log2(n) updates and 2n copies instead of n models of n-1
+	 * instances each.  The halves are evaluated in parallel.
+	 *
+	 * The predictions are the same as leaveOneOut() if an update leaves the classifier as
+	 * buildClassifier() with the instance would, regardless of order, e.g. IBk.  They are not
+	 * for NaiveBayesUpdateable, which sets the precision of numeric attributes from the data it's
+	 * built with, which here is none.
+	 * @param c is copied, not trained.  Must implement UpdateableClassifier.
+	 * @param data with the class set.  Not changed.
+	 * @param nThreads is the parallelism of the recursion
+	 * @return the evaluation of every instance
+	 * @throws Exception if the classifier can't be built or updated
+	 */
+	public static Evaluation leaveOneOutIncremental(Classifier c, Instances data, int nThreads) throws Exception {
+		if (!(c instanceof UpdateableClassifier)) {
+			throw new IllegalArgumentException(c.getClass().getName() + " is not an UpdateableClassifier.");
+		}
+		Evaluation evaluation = new Evaluation(data);
+		final Instances shuffled = new Instances(data);
+		shuffled.randomize(new Random(1));
+		if (shuffled.classAttribute().isNominal()) {
+			shuffled.stratify(shuffled.numInstances());
+		}
+		int n = shuffled.numInstances();
+		Classifier root = Classifier.makeCopy(c);
+		root.buildClassifier(new Instances(shuffled, 0));
+		double[][][] dists = new double[n][][];
+		ForkJoinPool pool = new ForkJoinPool(nThreads);
+		try {
+			pool.invoke(new LeaveOut(root, shuffled, 0, n, dists));
+		} catch (RuntimeException e) {
+			throw new Exception("Leave-one-out failed.", e.getCause() != null ? e.getCause() : e);
+		} finally {
+			pool.shutdown();
+		}
+		for (int i = 0; i < n; i++) {
+			record(evaluation, shuffled, n, i, dists[i]);
+		}
+		return evaluation;
+	}
+
+	/**
+	 * Evaluates the instances in [from, to) with a model of every other instance.
+	 */
+	private static class LeaveOut extends RecursiveAction {
+
+		private final Classifier model;
+		private final Instances data;
+		private final int from;
+		private final int to;
+		private final double[][][] dists;
+
+		LeaveOut(Classifier model, Instances data, int from, int to, double[][][] dists) {
+			this.model = model;
+			this.data = data;
+			this.from = from;
+			this.to = to;
+			this.dists = dists;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				boolean nominal = data.classAttribute().isNominal();
+				if (to - from < 1) {
+					return;
+				}
+				if (to - from == 1) {
+					dists[from] = new double[][] {distribution(model, data.instance(from), nominal)};
+					return;
+				}
+				int mid = (from + to) >>> 1;
+				Classifier left = Classifier.makeCopy(model);
+				for (int i = mid; i < to; i++) {
+					((UpdateableClassifier) left).updateClassifier(data.instance(i));
+				}
+				for (int i = from; i < mid; i++) {
+					((UpdateableClassifier) model).updateClassifier(data.instance(i));
+				}
+				invokeAll(new LeaveOut(left, data, from, mid, dists), new LeaveOut(model, data, mid, to, dists));
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * The number of test instances in a fold, as in Instances.testCV().
+	 */
+	private static int foldSize(int n, int folds, int fold) {
+		return n / folds + (fold < n % folds ? 1 : 0);
+	}
+
+	/**
+	 * What Evaluation.evaluateModelOnce() gives the classifier: the distribution of a nominal
+	 * class, or the prediction of a numeric class, of a copy of the instance without its class.
+	 */
+	private static double[] distribution(Classifier c, Instance instance, boolean nominal) throws Exception {
+		Instance classMissing = (Instance) instance.copy();
+		classMissing.setDataset(instance.dataset());
+		classMissing.setClassMissing();
+		if (nominal) {
+			return c.distributionForInstance(classMissing);
+		}
+		return new double[] {c.classifyInstance(classMissing)};
+	}
+
+	/**
+	 * Record a fold as crossValidateModel() does: priors of the training instances, then
+	 * the predictions of the test instances.
+	 */
+	private static void record(Evaluation evaluation, Instances shuffled, int folds, int fold, double[][] dists)
+			throws Exception {
+		int n = shuffled.numInstances();
+		int first = fold * (n / folds) + Math.min(fold, n % folds);
+		int last = first + foldSize(n, folds, fold);
+		evaluation.setPriors(new Instances(shuffled, 0));
+		for (int i = 0; i < n; i++) {
+			if (i < first || i >= last) {
+				evaluation.updatePriors(shuffled.instance(i));
+			}
+		}
+		for (int i = first; i < last; i++) {
+			evaluation.evaluateModelOnceAndRecordPrediction(dists[i - first], shuffled.instance(i));
+		}
+	}
+
+	/**
+	 * Compare to Evaluation.crossValidateModel() on random data.
+	 * @param args optionally, the number of instances
+	 */
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		Random random = new Random(20140520);
+		FastVector atts = new FastVector();
+		for (int a = 0; a < 4; a++) {
+			atts.addElement(new Attribute("x" + a));
+		}
+		FastVector classes = new FastVector();
+		classes.addElement("a");
+		classes.addElement("b");
+		classes.addElement("c");
+		atts.addElement(new Attribute("class", classes));
+		Instances data = new Instances("random", atts, n);
+		data.setClassIndex(4);
+		for (int i = 0; i < n; i++) {
+			Instance instance = new Instance(5);
+			instance.setDataset(data);
+			double sum = 0;
+			for (int a = 0; a < 4; a++) {
+				double x = random.nextGaussian();
+				instance.setValue(a, x);
+				sum += x;
+			}
+			instance.setValue(4, Math.min(2, Math.max(0, (int) Math.round(sum / 2 + random.nextGaussian() / 2 + 1))));
+			data.add(instance);
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		try {
+			Classifier[] classifiers = {new J48(), new IBk(5)};
+			for (Classifier c : classifiers) {
+				long start = System.currentTimeMillis();
+				Evaluation weka = new Evaluation(data);
+				weka.crossValidateModel(c, data, n, new Random(1));
+				long wekaTime = System.currentTimeMillis() - start;
+				start = System.currentTimeMillis();
+				Evaluation parallel = crossValidateModel(c, data, n, new Random(1), threads);
+				long parallelTime = System.currentTimeMillis() - start;
+				System.out.println(c.getClass().getSimpleName() + ": kappa " + weka.kappa() + " vs. " + parallel.kappa()
+						+ ", pctCorrect " + weka.pctCorrect() + " vs. " + parallel.pctCorrect()
+						+ ", " + wekaTime + " vs. " + parallelTime + " milliseconds");
+				if (c instanceof UpdateableClassifier) {
+					start = System.currentTimeMillis();
+					Evaluation incremental = leaveOneOutIncremental(c, data, threads);
+					System.out.println("\t incremental: kappa " + incremental.kappa()
+							+ ", pctCorrect " + incremental.pctCorrect()
+							+ ", " + (System.currentTimeMillis() - start) + " milliseconds");
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -328,39 +328,20 @@ public class GDALUtils {
 	}
 
 	/**
-	 * Return image value from pixel coordinates.
+	 * Return image value from pixel coordinates.  Reads into a per-thread scratch 
+	 * array, GDAL converting to double, so there's nothing allocated per pixel.
 	 * @param data is the Dataset
 	 * @param x is pixel
 	 * @param y is line
 	 * @param b is one-indexed band
-	 * @return
+	 * @return the value, zero if it can't be read
 	 */
 	public static double pixelValue(Dataset data, int x, int y, int b) {
-		Band band = data.GetRasterBand(b);
-		int buf_type = band.getDataType();
-		int buf_size = gdal.GetDataTypeSize(buf_type) / 8;
-		ByteBuffer pixel = ByteBuffer.allocateDirect(buf_size);
-		//ByteBuffer pixel = ByteBuffer.allocate(buf_size);
-		pixel.order(ByteOrder.nativeOrder());
-		// offset by pixel-1 to start reading at pixel
-		band.ReadRaster_Direct(x, y, 1, 1, 1, 1, buf_type, pixel); 
-		//band.ReadRaster(x, y, 1, 1, 1, 1, buf_type, pixel.array());
-
-		if (buf_type == gdalconstConstants.GDT_Byte) {
-			return ((int)pixel.get()) & 0xff;
-		} else if(buf_type == gdalconstConstants.GDT_Int16) {
-			return pixel.getShort();
-		} else if(buf_type == gdalconstConstants.GDT_Int32) {
-			return pixel.getInt();
-		} else if(buf_type == gdalconstConstants.GDT_Float32) {
-			return pixel.getFloat();
-		} else if(buf_type == gdalconstConstants.GDT_Float64) {
-			return pixel.getDouble();
-		} else if(buf_type == gdalconstConstants.GDT_UInt16) {
-			return pixel.getChar(); // ?????????????
+		double[] pixel = scratch(PIXEL_SLOT, 1);
+		if (data.GetRasterBand(b).ReadRaster(x, y, 1, 1, 1, 1, gdalconst.GDT_Float64, pixel) != gdalconst.CE_None) {
+			return 0;
 		}
-		
-		return Double.NaN;
+		return pixel[0];
 	}
 	
 	/**
@@ -373,34 +354,157 @@ public class GDALUtils {
 	 * @return
 	 */
 	public static double[] xPixelsValue(Dataset data, int x, int y, int b, int length) {
-		Band band = data.GetRasterBand(b);
-		int buf_type = band.getDataType();
-		int buf_size = length * gdal.GetDataTypeSize(buf_type) / 8;
-		//ByteBuffer pixel = ByteBuffer.allocateDirect(buf_size);
-		ByteBuffer pixels = ByteBuffer.allocate(buf_size);
-		pixels.order(ByteOrder.nativeOrder());
-		// offset by pixel-1 to start reading at pixel
-		//band.ReadRaster_Direct(x, y, 1, 1, 1, 1, buf_type, pixel); 
-		band.ReadRaster(x, y, length, 1, length, 1, buf_type, pixels.array());
-		 double[] ret = new double[length];
-		 for (int r=0; r<ret.length; r++) {
-			 if (buf_type == gdalconstConstants.GDT_Byte) {
-					ret[r] = ((int)pixels.get()) & 0xff;
-				} else if(buf_type == gdalconstConstants.GDT_Int16) {
-					ret[r] = pixels.getShort();
-				} else if(buf_type == gdalconstConstants.GDT_Int32) {
-					ret[r] = pixels.getInt();
-				} else if(buf_type == gdalconstConstants.GDT_Float32) {
-					ret[r] = pixels.getFloat();
-				} else if(buf_type == gdalconstConstants.GDT_Float64) {
-					ret[r] = pixels.getDouble();
-				} else if(buf_type == gdalconstConstants.GDT_UInt16) {
-					ret[r] = pixels.getChar(); // ?????????????
-				}
-		 }
+		double[] ret = new double[length];
+		xPixelsValue(data, x, y, b, length, ret);
 		return ret;
 	}
 	
+	/**
+	 * Read a line of data into out.
+	 * @param data
+	 * @param x
+	 * @param y
+	 * @param b
+	 * @param length
+	 * @param out at least length
+	 */
+	public static void xPixelsValue(Dataset data, int x, int y, int b, int length, double[] out) {
+		data.GetRasterBand(b).ReadRaster(x, y, length, 1, length, 1, gdalconst.GDT_Float64, out);
+	}
+	
+	/*
+	 * Bulk reads.  GDAL converts from the type of the band to the type of the array 
+	 * in one loop per block, so there's no switch on the data type per pixel.  
+	 */
+	
+	/**
+	 * Read a window into out, row-major.
+	 * @param band
+	 * @param x0 first pixel
+	 * @param y0 first line
+	 * @param width
+	 * @param height
+	 * @param out at least width*height
+	 * @throws IOException if the window isn't in the image or the read fails
+	 */
+	public static void readWindow(Band band, int x0, int y0, int width, int height, double[] out) throws IOException {
+		checkWindow(band, x0, y0, width, height, out.length);
+		checkRead(band.ReadRaster(x0, y0, width, height, width, height, gdalconst.GDT_Float64, out), x0, y0);
+	}
+	
+	/**
+	 * @see #readWindow(Band, int, int, int, int, double[])
+	 */
+	public static void readWindow(Band band, int x0, int y0, int width, int height, float[] out) throws IOException {
+		checkWindow(band, x0, y0, width, height, out.length);
+		checkRead(band.ReadRaster(x0, y0, width, height, width, height, gdalconst.GDT_Float32, out), x0, y0);
+	}
+	
+	/**
+	 * Values outside [-32768, 32767] are clamped.
+	 * @see #readWindow(Band, int, int, int, int, double[])
+	 */
+	public static void readWindow(Band band, int x0, int y0, int width, int height, short[] out) throws IOException {
+		checkWindow(band, x0, y0, width, height, out.length);
+		checkRead(band.ReadRaster(x0, y0, width, height, width, height, gdalconst.GDT_Int16, out), x0, y0);
+	}
+	
+	/**
+	 * Read a whole block of the band, as laid out in the file, into out.
+	 * Blocks at the right and bottom edges are truncated to the image.
+	 * @param band
+	 * @param blockX column of the block
+	 * @param blockY row of the block
+	 * @param out at least GetBlockXSize()*GetBlockYSize()
+	 * @return {x0, y0, width, height} of the block that was read
+	 * @throws IOException
+	 */
+	public static int[] readBlock(Band band, int blockX, int blockY, double[] out) throws IOException {
+		int[] window = blockWindow(band, blockX, blockY);
+		readWindow(band, window[0], window[1], window[2], window[3], out);
+		return window;
+	}
+	
+	/**
+	 * @see #readBlock(Band, int, int, double[])
+	 */
+	public static int[] readBlock(Band band, int blockX, int blockY, float[] out) throws IOException {
+		int[] window = blockWindow(band, blockX, blockY);
+		readWindow(band, window[0], window[1], window[2], window[3], out);
+		return window;
+	}
+	
+	/**
+	 * @see #readBlock(Band, int, int, double[])
+	 */
+	public static int[] readBlock(Band band, int blockX, int blockY, short[] out) throws IOException {
+		int[] window = blockWindow(band, blockX, blockY);
+		readWindow(band, window[0], window[1], window[2], window[3], out);
+		return window;
+	}
+	
+	/**
+	 * 
+	 * @param band
+	 * @param blockX
+	 * @param blockY
+	 * @return {x0, y0, width, height} of the block, truncated to the image
+	 */
+	public static int[] blockWindow(Band band, int blockX, int blockY) {
+		int x0 = blockX * band.GetBlockXSize();
+		int y0 = blockY * band.GetBlockYSize();
+		return new int[] {x0, y0, 
+				Math.min(band.GetBlockXSize(), band.getXSize() - x0), 
+				Math.min(band.GetBlockYSize(), band.getYSize() - y0)};
+	}
+	
+	/**
+	 * An array of this thread that is reused from call to call, so don't keep it.  
+	 * The contents are undefined.  Slots are independent arrays, for callers that 
+	 * need more than one at a time.
+	 * @param slot 0 to SCRATCH_SLOTS-1
+	 * @param length minimum length
+	 * @return
+	 */
+	public static double[] scratch(int slot, int length) {
+		double[][] arrays = SCRATCH.get();
+		if (arrays[slot].length < length) {
+			arrays[slot] = new double[length];
+		}
+		return arrays[slot];
+	}
+	
+	/**
+	 * Number of scratch arrays per thread.  The last one is used by pixelValue().
+	 */
+	public static final int SCRATCH_SLOTS = 4;
+	private static final int PIXEL_SLOT = SCRATCH_SLOTS - 1;
+	private static final ThreadLocal<double[][]> SCRATCH = new ThreadLocal<double[][]>() {
+		@Override
+		protected double[][] initialValue() {
+			double[][] arrays = new double[SCRATCH_SLOTS][];
+			for (int s = 0; s < SCRATCH_SLOTS; s++) {
+				arrays[s] = new double[0];
+			}
+			return arrays;
+		}
+	};
+	
+	private static void checkWindow(Band band, int x0, int y0, int width, int height, int length) throws IOException {
+		if (x0 < 0 || y0 < 0 || x0 + width > band.getXSize() || y0 + height > band.getYSize()) {
+			throw new IOException("Window ("+x0+","+y0+","+width+","+height+") is outside the image.");
+		}
+		if (length < width * height) {
+			throw new IllegalArgumentException("Array of "+length+" is too short for "+width+"x"+height);
+		}
+	}
+	
+	private static void checkRead(int err, int x0, int y0) throws IOException {
+		if (err != gdalconst.CE_None) {
+			throw new IOException("Read failed at ("+x0+","+y0+"): "+gdal.GetLastErrorMsg());
+		}
+	}
+	
 	/**
 	 * Get a pixel vector (spectrum).
 	 * @param data
@@ -563,8 +667,8 @@ public class GDALUtils {
 				}
 			}
 		}
-		JAIUtils.writeTiff(xOut, referenceName.replace(".tif", "_long.tif"));
-		JAIUtils.writeTiff(yOut, referenceName.replace(".tif", "_lat.tif"));
+		JAIUtils.writeTiff(xOut, referenceName.replace(".tif", "_long.tif"), ref.GetGeoTransform(), ref.GetProjectionRef());
+		JAIUtils.writeTiff(yOut, referenceName.replace(".tif", "_lat.tif"), ref.GetGeoTransform(), ref.GetProjectionRef());
 	}
 	
 	/**
@@ -0,0 +1,415 @@
+package com.berkenviro.imageprocessing;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.gdal.gdal.Band;
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.Driver;
+import org.gdal.gdal.gdal;
+import org.gdal.gdalconst.gdalconst;
+
+/**
+ * Writes a GeoTIFF as the data are produced, a block of rows or a tile at a time,
+ * instead of encoding a whole WritableRaster at the end like JAIUtils.writeTiff() used to.
+ *
+ * The file is internally tiled and, by default, DEFLATE compressed (with a predictor for bytes),
+ * with the georeferencing set at creation, so there's no need for GDALUtils.transferGeo()
+ * afterwards.  BigTIFF is used when the output might exceed 4 GB.  GDAL compresses with
+ * Options.compressionThreads threads, and if Options.queueDepth > 0, the writes are
+ * done by a background thread so that the caller can go on computing.
+ *
+ * Not thread safe: one producer per writer.
+ *
+ * @author Nicholas Clinton
+ */
+public class GeoTiffWriter {
+
+	public static final String NONE = "NONE";
+	public static final String LZW = "LZW";
+	public static final String DEFLATE = "DEFLATE";
+
+	/**
+	 * No predictor.
+	 */
+	public static final int PREDICTOR_NONE = 1;
+	/**
+	 * Horizontal differencing, for integer types.  The JAI TIFF codec only reads it for 8-bit samples.
+	 */
+	public static final int PREDICTOR_HORIZONTAL = 2;
+	/**
+	 * Floating point predictor, for float types.  Not readable by the JAI TIFF codec.
+	 */
+	public static final int PREDICTOR_FLOATING_POINT = 3;
+
+	static {
+		gdal.AllRegister();
+	}
+
+	/**
+	 * How to write the file.
+	 */
+	public static class Options {
+		/** NONE, LZW or DEFLATE */
+		public String compression = DEFLATE;
+		/** PREDICTOR_*, or 0 for the default of the data type */
+		public int predictor = 0;
+		/** 1-9, for DEFLATE */
+		public int zLevel = 6;
+		/** width and height of the TIFF tiles, a multiple of 16 */
+		public int tileSize = 256;
+		/** YES, NO, IF_NEEDED or IF_SAFER */
+		public String bigTiff = "IF_SAFER";
+		/** threads GDAL compresses with, 0 for the calling thread (needs GDAL 2.1) */
+		public int compressionThreads = 0;
+		/** writes waiting for the background thread, 0 to write in the calling thread */
+		public int queueDepth = 0;
+
+		/**
+		 * @param gdalType the data type of the file
+		 * @return GTiff creation options
+		 */
+		public String[] creationOptions(int gdalType) {
+			List<String> options = new ArrayList<String>();
+			options.add("TILED=YES");
+			options.add("BLOCKXSIZE=" + tileSize);
+			options.add("BLOCKYSIZE=" + tileSize);
+			options.add("COMPRESS=" + compression);
+			if (!NONE.equals(compression)) {
+				int p = predictor;
+				if (p == 0) {
+					// the JAI codec reads horizontal differencing only for 8-bit samples, and never the floating
+					// point predictor, so files read back by JAIUtils.readImage() only difference bytes
+					p = gdalType == gdalconst.GDT_Byte ? PREDICTOR_HORIZONTAL : PREDICTOR_NONE;
+				}
+				options.add("PREDICTOR=" + p);
+				if (DEFLATE.equals(compression)) {
+					options.add("ZLEVEL=" + zLevel);
+				}
+			}
+			options.add("BIGTIFF=" + bigTiff);
+			if (compressionThreads > 0) {
+				options.add("NUM_THREADS=" + compressionThreads);
+			}
+			return options.toArray(new String[options.size()]);
+		}
+	}
+
+	private final String file;
+	private final Dataset dataset;
+	private final int width;
+	private final int height;
+	private final int tileSize;
+	private ExecutorService writer;
+	private Semaphore queued;
+	private volatile Throwable error;
+
+	/**
+	 * Create a new file.
+	 * @param file
+	 * @param width
+	 * @param height
+	 * @param bands
+	 * @param gdalType e.g. gdalconst.GDT_Int16
+	 * @param options
+	 * @throws IOException if the file can't be created
+	 */
+	public GeoTiffWriter(String file, int width, int height, int bands, int gdalType, Options options) throws IOException {
+		this.file = file;
+		this.width = width;
+		this.height = height;
+		this.tileSize = options.tileSize;
+		Driver driver = gdal.GetDriverByName("GTiff");
+		dataset = driver.Create(file, width, height, bands, gdalType, options.creationOptions(gdalType));
+		if (dataset == null) {
+			throw new IOException("Can't create " + file + ": " + gdal.GetLastErrorMsg());
+		}
+		startWriter(options);
+	}
+
+	/**
+	 * Open an existing file to write more of it, e.g. to resume.
+	 * @param file
+	 * @param options only the queueDepth is used, the rest was set when the file was created
+	 * @throws IOException if the file can't be opened
+	 */
+	public GeoTiffWriter(String file, Options options) throws IOException {
+		this.file = file;
+		dataset = gdal.Open(new File(file).getAbsolutePath(), gdalconst.GA_Update);
+		if (dataset == null) {
+			throw new IOException("Can't open " + file + ": " + gdal.GetLastErrorMsg());
+		}
+		width = dataset.getRasterXSize();
+		height = dataset.getRasterYSize();
+		tileSize = options.tileSize;
+		startWriter(options);
+	}
+
+	private void startWriter(Options options) {
+		if (options.queueDepth > 0) {
+			writer = Executors.newSingleThreadExecutor();
+			queued = new Semaphore(options.queueDepth);
+		}
+	}
+
+	/**
+	 * @param geoTransform GDAL geotransform
+	 * @param projection WKT, or null
+	 */
+	public void setGeoreference(double[] geoTransform, String projection) {
+		dataset.SetGeoTransform(geoTransform);
+		if (projection != null && projection.length() > 0) {
+			dataset.SetProjection(projection);
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Write a rectangle of one band.  The types of the array and the file may differ;
+	 * GDAL converts, clamping to the range of the file's type.
+	 * @param x0 first column
+	 * @param y0 first row
+	 * @param w width of the rectangle
+	 * @param h height of the rectangle
+	 * @param band one-indexed
+	 * @param data row-major, w*h
+	 * @throws IOException if this or an earlier background write failed
+	 */
+	public void write(int x0, int y0, int w, int h, int band, byte[] data) throws IOException {
+		submit(x0, y0, w, h, band, data);
+	}
+
+	/** @see #write(int, int, int, int, int, byte[]) */
+	public void write(int x0, int y0, int w, int h, int band, short[] data) throws IOException {
+		submit(x0, y0, w, h, band, data);
+	}
+
+	/** @see #write(int, int, int, int, int, byte[]) */
+	public void write(int x0, int y0, int w, int h, int band, int[] data) throws IOException {
+		submit(x0, y0, w, h, band, data);
+	}
+
+	/** @see #write(int, int, int, int, int, byte[]) */
+	public void write(int x0, int y0, int w, int h, int band, float[] data) throws IOException {
+		submit(x0, y0, w, h, band, data);
+	}
+
+	/** @see #write(int, int, int, int, int, byte[]) */
+	public void write(int x0, int y0, int w, int h, int band, double[] data) throws IOException {
+		submit(x0, y0, w, h, band, data);
+	}
+
+	/**
+	 * Write whole rows of one band.
+	 * @param y0 first row
+	 * @param band one-indexed
+	 * @param data row-major, a multiple of the width
+	 * @throws IOException
+	 */
+	public void writeRows(int y0, int band, int[] data) throws IOException {
+		submit(0, y0, width, data.length / width, band, data);
+	}
+
+	/** @see #writeRows(int, int, int[]) */
+	public void writeRows(int y0, int band, float[] data) throws IOException {
+		submit(0, y0, width, data.length / width, band, data);
+	}
+
+	/** @see #writeRows(int, int, int[]) */
+	public void writeRows(int y0, int band, double[] data) throws IOException {
+		submit(0, y0, width, data.length / width, band, data);
+	}
+
+	/**
+	 * Write every band of a raster, a row of tiles at a time.
+	 * @param raster with the same size as the file
+	 * @throws IOException
+	 */
+	public void writeRaster(Raster raster) throws IOException {
+		int type = raster.getSampleModel().getDataType();
+		boolean floating = type == DataBuffer.TYPE_FLOAT || type == DataBuffer.TYPE_DOUBLE;
+		for (int y = 0; y < height; y += tileSize) {
+			int h = Math.min(tileSize, height - y);
+			for (int b = 0; b < raster.getNumBands(); b++) {
+				if (type == DataBuffer.TYPE_DOUBLE) {
+					writeRows(y, b + 1, raster.getSamples(raster.getMinX(), raster.getMinY() + y, width, h, b, (double[]) null));
+				} else if (floating) {
+					writeRows(y, b + 1, raster.getSamples(raster.getMinX(), raster.getMinY() + y, width, h, b, (float[]) null));
+				} else {
+					int[] samples = raster.getSamples(raster.getMinX(), raster.getMinY() + y, width, h, b, (int[]) null);
+					// as stored, so that GDAL doesn't clamp
+					if (type == DataBuffer.TYPE_BYTE) {
+						for (int i = 0; i < samples.length; i++) {
+							samples[i] &= 0xff;
+						}
+					}
+					writeRows(y, b + 1, samples);
+				}
+			}
+		}
+	}
+
+	private void submit(final int x0, final int y0, final int w, final int h, final int band, Object data) throws IOException {
+		checkError();
+		if (writer == null) {
+			bandWrite(x0, y0, w, h, band, data);
+			return;
+		}
+		// the caller may reuse its array
+		final Object copy = copy(data);
+		try {
+			queued.acquire();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		writer.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (error == null) {
+						bandWrite(x0, y0, w, h, band, copy);
+					}
+				} catch (Throwable t) {
+					error = t;
+				} finally {
+					queued.release();
+				}
+			}
+		});
+	}
+
+	private void bandWrite(int x0, int y0, int w, int h, int b, Object data) throws IOException {
+		Band band = dataset.GetRasterBand(b);
+		int err;
+		if (data instanceof byte[]) {
+			err = band.WriteRaster(x0, y0, w, h, (byte[]) data);
+		} else if (data instanceof short[]) {
+			err = band.WriteRaster(x0, y0, w, h, (short[]) data);
+		} else if (data instanceof int[]) {
+			err = band.WriteRaster(x0, y0, w, h, (int[]) data);
+		} else if (data instanceof float[]) {
+			err = band.WriteRaster(x0, y0, w, h, (float[]) data);
+		} else {
+			err = band.WriteRaster(x0, y0, w, h, (double[]) data);
+		}
+		if (err != gdalconst.CE_None) {
+			throw new IOException("Write failed at (" + x0 + "," + y0 + ") of " + file + ": " + gdal.GetLastErrorMsg());
+		}
+	}
+
+	private static Object copy(Object data) {
+		if (data instanceof byte[]) {
+			return ((byte[]) data).clone();
+		} else if (data instanceof short[]) {
+			return ((short[]) data).clone();
+		} else if (data instanceof int[]) {
+			return ((int[]) data).clone();
+		} else if (data instanceof float[]) {
+			return ((float[]) data).clone();
+		}
+		return ((double[]) data).clone();
+	}
+
+	private void checkError() throws IOException {
+		if (error != null) {
+			throw new IOException("Background write to " + file + " failed.", error);
+		}
+	}
+
+	/**
+	 * Wait for the queued writes, then flush them to the file.
+	 * @throws IOException if a write failed
+	 */
+	public void flush() throws IOException {
+		if (writer != null) {
+			Future<?> done = writer.submit(new Runnable() {
+				@Override
+				public void run() {
+					dataset.FlushCache();
+				}
+			});
+			try {
+				done.get();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+		} else {
+			dataset.FlushCache();
+		}
+		checkError();
+	}
+
+	/**
+	 * Finish the writes and close the file.
+	 * @throws IOException if a write failed
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			if (writer != null) {
+				writer.shutdown();
+			}
+			dataset.delete();
+			// readers must not see the blocks of the file as it was
+			BlockCache.getShared().remove(new File(file).getAbsolutePath());
+		}
+	}
+
+	/**
+	 * GDAL type of a DataBuffer type.
+	 * @param dataBufferType e.g. DataBuffer.TYPE_SHORT
+	 * @return
+	 */
+	public static int gdalType(int dataBufferType) {
+		switch (dataBufferType) {
+		case DataBuffer.TYPE_BYTE: return gdalconst.GDT_Byte;
+		case DataBuffer.TYPE_SHORT: return gdalconst.GDT_Int16;
+		case DataBuffer.TYPE_USHORT: return gdalconst.GDT_UInt16;
+		case DataBuffer.TYPE_INT: return gdalconst.GDT_Int32;
+		case DataBuffer.TYPE_FLOAT: return gdalconst.GDT_Float32;
+		case DataBuffer.TYPE_DOUBLE: return gdalconst.GDT_Float64;
+		default: throw new IllegalArgumentException("Unsupported type: " + dataBufferType);
+		}
+	}
+
+	/**
+	 * Write a raster as a compressed, tiled GeoTIFF.
+	 * @param raster
+	 * @param outFile
+	 * @param geoTransform GDAL geotransform, or null
+	 * @param projection WKT, or null
+	 * @param options
+	 * @throws IOException
+	 */
+	public static void write(Raster raster, String outFile, double[] geoTransform, String projection, Options options) throws IOException {
+		GeoTiffWriter writer = new GeoTiffWriter(outFile, raster.getWidth(), raster.getHeight(),
+				raster.getNumBands(), gdalType(raster.getSampleModel().getDataType()), options);
+		try {
+			if (geoTransform != null) {
+				writer.setGeoreference(geoTransform, projection);
+			}
+			writer.writeRaster(raster);
+		} finally {
+			writer.close();
+		}
+	}
+}
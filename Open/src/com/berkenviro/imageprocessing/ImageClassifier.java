@@ -64,6 +64,8 @@ public class ImageClassifier {
 	Hashtable images;
 	// the Classifier must have been trained with the same attributes as images
 	Classifier myP;
+	// myP as arrays, null if it can't be compiled
+	CompiledTrees compiled;
 	boolean readyToClassify;
 	
 	/**
@@ -86,6 +88,7 @@ public class ImageClassifier {
 		try {
 			c.buildClassifier(training);
 			myP = c;
+			compiled = CompiledTrees.compileOrNull(c, training);
 		}
 		catch (Exception e) {
 			e.printStackTrace();
@@ -121,6 +124,19 @@ public class ImageClassifier {
 		readyToClassify = true;
 	}
 	
+	/**
+	 * Classify with the compiled trees if the classifier could be compiled, otherwise with Weka.
+	 * @param instance
+	 * @return
+	 * @throws Exception
+	 */
+	private double classifyInstance(Instance instance) throws Exception {
+		if (compiled != null) {
+			return compiled.classify(instance.toDoubleArray());
+		}
+		return myP.classifyInstance(instance);
+	}
+	
 	/**
 	 * Make a prediction map, based on the images in the hashtable and the supplied training.
 	 * 
@@ -212,7 +228,7 @@ public class ImageClassifier {
 						if (c == training.numAttributes()-1 || 
 						   (c == training.numAttributes()-2 && training.classAttribute().index() == training.numAttributes()-1)) {
 							// the instance should now have all the data in it, classify
-							prediction = myP.classifyInstance(slice[x]);
+							prediction = classifyInstance(slice[x]);
 							classifiedOut.setSample(x,y,0,(float) prediction);
 						}
 					} catch (Exception e) {
@@ -338,7 +354,7 @@ public class ImageClassifier {
 							
 							// the instance should now have all the data in it, classify
 							// the following is from the Weka book
-							classIndex = (int) myP.classifyInstance(slice[x]);
+							classIndex = (int) classifyInstance(slice[x]);
 							// named predictor
 							predictor = training.classAttribute().value(classIndex);
 							classifiedOut.setSample(x,y,0,(int)classIndex);
@@ -27,25 +27,14 @@ package com.berkenviro.imageprocessing;
 import java.awt.Point;
 import java.awt.image.DataBuffer;
 import java.awt.image.WritableRaster;
-import java.util.Calendar;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Hashtable;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import javax.media.jai.RasterFactory;
 
 import org.gdal.gdal.Dataset;
-
-import com.berkenviro.imageprocessing.ImageClassifier2.Pixel;
+import org.gdal.gdalconst.gdalconst;
 
 import weka.classifiers.Classifier;
 import weka.classifiers.trees.J48;
@@ -61,16 +50,17 @@ public class ImageClassifier2 {
 	
 	// Hashtable with attributes as keys, PlanarImages as values
 	Hashtable<Attribute, Dataset> images;
+	Hashtable<Attribute, String> imageFileNames;
 	// the Classifier must have been trained with the same attributes as images
 	Classifier classifier;
+	// the classifier as arrays, null if it can't be compiled
+	CompiledTrees compiled;
+	// the output of each class index
+	byte[] predictions;
 	Instances training;
 	Attribute reference;
 	boolean readyToClassify;
 	boolean meta;
-
-	BlockingQueue<Pixel> queue; // read, but not processed
-	ThreadPoolExecutor service;
-	ExecutorCompletionService<Pixel> ecs; // processing
 	
 	
 	/**
@@ -87,12 +77,14 @@ public class ImageClassifier2 {
 		try {
 			c.buildClassifier(training);
 			classifier = c;
+			compiled = CompiledTrees.compileOrNull(c, training);
 		}
 		catch (Exception e) {
 			e.printStackTrace();
 		}
 		
 		images = new Hashtable<Attribute, Dataset>(); 
+		this.imageFileNames = imageFileNames;
 
 		for (Attribute a : imageFileNames.keySet()) {
 			if (a.equals(training.classAttribute())) {
@@ -215,293 +207,278 @@ public class ImageClassifier2 {
 	
 	
 	/**
-	 * New-school, asynchronous.
-	 * @param base
+	 * New-school, parallel.  The output is committed a tile at a time and journaled, so 
+	 * if this is stopped, running it again with the same outFileName resumes where it stopped.
 	 * @param reference
-	 * @param lags
+	 * @param outFileName
+	 * @param meta
+	 * @param nThreads
+	 * @throws IOException if the output can't be written, in which case it is incomplete
 	 */
-	public void classifyParallel(Attribute reference, String outFileName, boolean meta, int nThreads) {
+	public void classifyParallel(Attribute reference, String outFileName, boolean meta, int nThreads) throws IOException {
 		if (!readyToClassify) {
 			System.err.println("Not ready to classify!  System will exit.");
 			System.exit(-1);
 		}
 		this.meta = meta;
 		this.reference = reference;
-		queue = new ArrayBlockingQueue<Pixel>(nThreads);
-
-		//service = (ThreadPoolExecutor)Executors.newFixedThreadPool(nThreads);  // memory leak!!
-		//System.out.println(service);
-		service = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(nThreads), new ThreadPoolExecutor.DiscardPolicy());
-		ecs = new ExecutorCompletionService<Pixel>(service);
-
-		// read thread
-		PixelEnumeration enumerator = new PixelEnumeration();
-		Thread enumThread = new Thread(enumerator);
-		enumThread.start();
-		// compute thread
-		PixelCompute computer = new PixelCompute();
-		Thread compThread = new Thread(computer);
-		compThread.start();
-		// write thread
-		PixelWrite write = new PixelWrite(outFileName);
-		Thread writeThread = new Thread(write);
-		writeThread.start();
-		while (true) {
-			if (!enumThread.isAlive() && !compThread.isAlive() && !writeThread.isAlive()) {
-				System.exit(0);
-			}
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+		predictions = predictions();
+
+		Dataset ref = images.get(reference);
+		TiledRasterJob job = new TiledRasterJob(new String[] {outFileName}, new int[] {gdalconst.GDT_Byte}, 
+				ref.getRasterXSize(), ref.getRasterYSize(), TiledRasterJob.DEFAULT_TILE_SIZE);
+		job.setGeoreference(ref.GetGeoTransform(), ref.GetProjectionRef());
+		ClassifyTiles tiles = new ClassifyTiles();
+		try {
+			job.run(tiles, nThreads);
+		} finally {
+			// the handles every worker thread opened
+			tiles.stack.close();
+		}
+	}
+	
+	/**
+	 * Classify a pixel.
+	 * @param instance
+	 * @return the prediction, -1 if it fails
+	 */
+	byte classify(Instance instance) {
+		// classification, so int (rather than a numeric response, this is an index)
+		int classIndex = -1;
+		try {
+			classIndex = (int) classifier.classifyInstance(instance);
+			//System.out.println(instance);
+			String prediction = "-1.0";
+			if (meta) {
+				String predictedAtt = training.classAttribute().value(classIndex);
+				Attribute a = training.attribute(predictedAtt);
+				prediction = instance.attribute(a.index()).value(classIndex);
+			} else {
+				prediction = training.classAttribute().value(classIndex);
 			}
+			//System.out.println("\t prediction: "+prediction);
+			return Byte.parseByte(prediction);
+		} catch (Exception e) {
+			//e.printStackTrace();
+			return -1;
 		}
 	}
 	
 	
 	/**
-	 * 
-	 * @author Nicholas
-	 *
+	 * Classify a pixel with the compiled classifier.  Same as classify(Instance).
+	 * @param attValues
+	 * @return the prediction, -1 if it fails
 	 */
-	class Pixel implements Callable<Pixel> {
-		
-		Instance instance;
-		int x, y;
-		byte result;
-		boolean dummy;
-		
-		public Pixel(int x, int y, Instance instance) {
-			this.x = x;
-			this.y = y;
-			this.instance = instance;
-			dummy = false;
-		}
-		
-		public Pixel() {
-			dummy = true;
+	byte classify(double[] attValues) {
+		try {
+			// a missing class is index 0, as when classify(Instance) casts it
+			return predictions[(int) compiled.classify(attValues)];
+		} catch (Exception e) {
+			return -1;
 		}
-		
-		@Override
-		public Pixel call() {
-			if (dummy) { return this; }
-			// classification, so int (rather than a numeric response, this is an index)
-			int classIndex = -1;
+	}
+	
+	/**
+	 * The prediction of each class index, as classify(Instance) makes it.
+	 * @return
+	 */
+	byte[] predictions() {
+		byte[] p = new byte[training.numClasses()];
+		for (int k=0; k<p.length; k++) {
 			try {
-				classIndex = (int) classifier.classifyInstance(instance);
-				//System.out.println(instance);
-				String prediction = "-1.0";
+				String prediction;
 				if (meta) {
-					String predictedAtt = training.classAttribute().value(classIndex);
-					Attribute a = training.attribute(predictedAtt);
-					prediction = instance.attribute(a.index()).value(classIndex);
+					Attribute a = training.attribute(training.classAttribute().value(k));
+					prediction = training.attribute(a.index()).value(k);
 				} else {
-					prediction = training.classAttribute().value(classIndex);
+					prediction = training.classAttribute().value(k);
 				}
-				//System.out.println("\t prediction: "+prediction);
-				result = Byte.parseByte(prediction);
+				p[k] = Byte.parseByte(prediction);
 			} catch (Exception e) {
-				//e.printStackTrace();
-				result = -1;
+				p[k] = -1;
 			}
-			return this;
 		}
-		
-		@Override
-		public String toString() {
-			return "("+x+","+y+") : "+instance+" : "+result;
-		}	
+		return p;
 	}
 	
-	
 	/**
-	 * 
+	 * Reads and classifies a tile.  The Datasets can't be shared between threads, 
+	 * so the images are read through an ImageDataStack.  If every image is on the grid 
+	 * of the reference, each one is read for the whole tile in one call, and the tile is
+	 * classified from those arrays through one reused attribute vector per thread.
 	 * @author Nicholas
 	 *
 	 */
-	class PixelEnumeration implements Runnable {
+	class ClassifyTiles implements TiledRasterJob.TileProcessor {
 		
-		@Override
-		public void run() {
-			try {
-				ennumerate();
-				System.out.println("Inserting dummy to queue...");
-				queue.put(new Pixel()); // DUMMY
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			} catch (Exception e) {
-				e.printStackTrace();
+		ImageDataStack stack;
+		int[] stackIndex; // of each attribute, -1 if there's no image
+		int refIndex;
+		boolean sameGrid;
+		// nominal attributes: the index of the value of pixel value v is nominal[a][v - nominalMin[a]]
+		int[][] nominal;
+		int[] nominalMin;
+		ThreadLocal<Batch> batches;
+		
+		public ClassifyTiles() {
+			stackIndex = new int[training.numAttributes()];
+			String[] names = new String[training.numAttributes()];
+			int n = 0;
+			for (int a=0; a<training.numAttributes(); a++) {
+				Attribute att = training.attribute(a);
+				if (att.equals(training.classAttribute()) || imageFileNames.get(att) == null) {
+					stackIndex[a] = -1;
+					continue;
+				}
+				stackIndex[a] = n;
+				names[n++] = imageFileNames.get(att);
+			}
+			String[] stackNames = new String[n];
+			System.arraycopy(names, 0, stackNames, 0, n);
+			stack = new ImageDataStack(stackNames, 1);
+			refIndex = stackIndex[reference.index()];
+			// if so, a pixel of the reference is the same pixel of every image
+			sameGrid = stack.sameGrid();
+			
+			nominal = new int[training.numAttributes()][];
+			nominalMin = new int[training.numAttributes()];
+			for (int a=0; a<training.numAttributes(); a++) {
+				if (stackIndex[a] >= 0 && training.attribute(a).isNominal()) {
+					nominalLookup(a);
+				}
 			}
+			batches = new ThreadLocal<Batch>() {
+				@Override
+				protected Batch initialValue() {
+					return new Batch();
+				}
+			};
 		}
 		
 		/**
-		 * 
-		 * @throws InterruptedException
+		 * Pixels are matched to the values of a nominal attribute as String.valueOf((int)v), 
+		 * so only values that are integers can match.  Tabulate them.
 		 */
-		public void ennumerate() throws InterruptedException, Exception {
-			
-			// use the reference to set up
-			Dataset ref = images.get(reference);
-			int width = ref.getRasterXSize();
-			int height = ref.getRasterYSize();
-			System.out.println("width= "+width);
-			System.out.println("height= "+height);
-		
-			// this is just a dummy dataset to identify the Instance(s)
-			Instances imagePixels = new Instances(training, 1);
-
-			double[] projXY = null;
-			for (int y=0; y<height; y++) { // each line
-				System.out.println("processing line: "+y);
-				for (int x=0; x<width; x++){	// each pixel
-//			for (int y=3500; y<3600; y++) { // each line
-//				System.out.println("processing line: "+y);
-//				for (int x=3500; x<3600; x++){	// each pixel
-					try {
-						projXY = GDALUtils.getProjectedXY(new int[] {x, y}, ref);
-					} catch (Exception e1) {
-						e1.printStackTrace();
-					}
-					Instance instance = new Instance(training.numAttributes());
-					instance.setDataset(imagePixels);
-					instance.classIsMissing();
-					for (int a=0; a<training.numAttributes(); a++) {
-						try {
-							// Exception on class attribute
-							double pixelValue = GDALUtils.imageValue(
-									images.get(training.attribute(a)), projXY[0], projXY[1], 1
-									);
-							//System.out.println(pixelValue);	
-							if (training.attribute(a).isNumeric()) {
-								instance.setValue(training.attribute(a), pixelValue);
-							} else {
-								instance.setValue(training.attribute(a), String.valueOf((int)pixelValue));
-							}
-						} catch (Exception e) {
-							instance.setMissing(training.attribute(a));
-							//e.printStackTrace();
-						}
-					}
-					queue.put(new Pixel(x, y, instance));
+		void nominalLookup(int a) {
+			Attribute att = training.attribute(a);
+			int[] parsed = new int[att.numValues()];
+			boolean[] isInt = new boolean[att.numValues()];
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			for (int v=0; v<att.numValues(); v++) {
+				try {
+					parsed[v] = Integer.parseInt(att.value(v));
+					isInt[v] = String.valueOf(parsed[v]).equals(att.value(v));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				if (isInt[v]) {
+					min = Math.min(min, parsed[v]);
+					max = Math.max(max, parsed[v]);
 				}
 			}
-		}
-		
-	}
-	
-	/**
-	 * 
-	 * @author Nicholas
-	 *
-	 */
-	class PixelCompute implements Runnable {
-		
-		@Override
-		public void run() {
-			try {
-				compute();
-				System.out.println("Submitting dummy to completion service...");
-				ecs.submit(new Pixel()); // DUMMY
-				service.shutdown();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			} catch (ExecutionException e) {
-				e.printStackTrace();
-			} catch (Exception e) {
-				e.printStackTrace();
+			if (min > max || (long)max - min > 65535) {
+				return; // nothing to tabulate, or too many: match the strings
+			}
+			int[] lookup = new int[max - min + 1];
+			Arrays.fill(lookup, -1);
+			for (int v=0; v<att.numValues(); v++) {
+				if (isInt[v]) {
+					lookup[parsed[v] - min] = v;
+				}
 			}
+			nominal[a] = lookup;
+			nominalMin[a] = min;
 		}
 		
 		/**
-		 * Simply move the pixels from the read queue to the completion service.
-		 * @throws InterruptedException
-		 * @throws Exception
+		 * The Weka value of pixel value v of attribute a.
 		 */
-		public void compute() throws InterruptedException, ExecutionException {
-			Pixel pix;
-			while (true) {
-				// take off the first queue, read, but unprocessed
-				pix = queue.take();
-				//System.out.println("\t queue size: "+queue.size());
-
-				if (pix.dummy) {
-					System.out.println("Found read dummy...");
-					break; // done, don't move the dummy over
+		double attValue(int a, double v) {
+			if (Double.isNaN(v)) {
+				return Instance.missingValue();
+			}
+			Attribute att = training.attribute(a);
+			if (att.isNumeric()) {
+				return v;
+			}
+			int index;
+			if (nominal[a] != null) {
+				int i = (int)v - nominalMin[a];
+				index = i >= 0 && i < nominal[a].length ? nominal[a][i] : -1;
+			} else {
+				index = att.indexOfValue(String.valueOf((int)v));
+			}
+			return index < 0 ? Instance.missingValue() : index;
+		}
+		
+		@Override
+		public void process(int x0, int y0, int w, int h, int[][] out) {
+			Batch batch = batches.get();
+			double[][] values = batch.values(w*h);
+			if (sameGrid) {
+				for (int a=0; a<training.numAttributes(); a++) {
+					if (stackIndex[a] >= 0) {
+						stack.get(stackIndex[a]).pixelValues(x0, y0, w, h, 1, values[a]);
+					}
+				}
+			} else {
+				ImageData ref = stack.get(refIndex);
+				for (int y=y0; y<y0+h; y++) { // each line
+					for (int x=x0; x<x0+w; x++){	// each pixel
+						double[] projXY = ref.getProjectedXY(x, y);
+						int i = (y-y0)*w + (x-x0);
+						for (int a=0; a<training.numAttributes(); a++) {
+							if (stackIndex[a] < 0) {
+								continue;
+							}
+							try {
+								ImageData data = stack.get(stackIndex[a]);
+								int[] pixelXY = data.getPixelXY(projXY[0], projXY[1]);
+								values[a][i] = data.pixelValue(pixelXY[0], pixelXY[1], 1);
+							} catch (Exception e) {
+								values[a][i] = Double.NaN;
+							}
+						}
+					}
+				}
+			}
+			double[] attValues = batch.attValues;
+			for (int i=0; i<w*h; i++) {
+				for (int a=0; a<attValues.length; a++) {
+					attValues[a] = stackIndex[a] < 0 ? Instance.missingValue() : attValue(a, values[a][i]);
 				}
-				ecs.submit(pix);
+				out[0][i] = compiled != null ? classify(attValues) : classify(batch.instance);
 			}
 		}
-	} // end compute class
-	
+	}
 	
 	/**
-	 * 
-	 * @author Nicholas
-	 *
+	 * Scratch of a thread.  The Instance is backed by attValues, which is overwritten 
+	 * for each pixel instead of allocating an Instance and copying its values on every set.
 	 */
-	class PixelWrite implements Runnable {
-		
-		WritableRaster classifiedOut;
-		String outFileName;
+	class Batch {
+		double[] attValues;
+		Instance instance;
+		double[][] values; // of each attribute, for a tile
 		
-		/**
-		 * 
-		 * @param base is the base name of the output images
-		 */
-		public PixelWrite(String outFileName) {
-			this.outFileName = outFileName;
-			classifiedOut = RasterFactory.createBandedRaster(
-	    						DataBuffer.TYPE_BYTE,
-	    						images.get(reference).getRasterXSize(),
-	    						images.get(reference).getRasterYSize(),
-	    						1,
-	    						new Point(0,0)
-	    					);
-		}
-
-		/**
-		 * 
-		 */
-		@Override
-		public void run() {
-			try {
-				write();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			} catch (ExecutionException e) {
-				e.printStackTrace();
-			}
+		Batch() {
+			attValues = new double[training.numAttributes()];
+			instance = new Instance(1.0, attValues);
+			// this is just a dummy dataset to identify the Instance(s)
+			instance.setDataset(new Instances(training, 0));
+			values = new double[training.numAttributes()][0];
 		}
 		
-		/**
-		 * 
-		 * @throws InterruptedException
-		 * @throws ExecutionException
-		 */
-		public void write() throws InterruptedException, ExecutionException {
-
-			while (true) {
-				//System.out.println("queue: "+queue.size());
-
-				Pixel finishedPix = ecs.take().get();
-				
-				if (finishedPix.dummy) { // DUMMY
-					System.out.println("Found compute dummy...");
-					break;
+		double[][] values(int n) {
+			if (values[0].length < n) {
+				for (int a=0; a<values.length; a++) {
+					values[a] = new double[n];
 				}
-				classifiedOut.setSample(finishedPix.x, finishedPix.y, 0, finishedPix.result);
-				//System.out.println(finishedPix);
 			}
-			diskWrite();
+			return values;
 		}
-		
-		/**
-		 * 
-		 */
-		private void diskWrite() {
-			JAIUtils.writeTiff(classifiedOut, outFileName);
-		}
-		
 	}
 	
 	
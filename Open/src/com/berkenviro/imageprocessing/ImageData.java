@@ -3,22 +3,31 @@ package com.berkenviro.imageprocessing;
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
+
 import org.gdal.gdal.Band;
 import org.gdal.gdal.Dataset;
 import org.gdal.gdal.gdal;
 import org.gdal.gdalconst.gdalconst;
 import org.gdal.gdalconst.gdalconstConstants;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.util.AffineTransformation;
+
 /**
  * This class is used to access/get the pixel values from image file. 
  *
- * A instance of the class should be created to represent each file. Thus, 
- * there is a pixel buffer/dataset that is private to each file, so that 
- * the buffer can reduce the number of read operation while reading the 
- * image,  which will boost the program.
- * 
- * On the other hand, it requires a large amount of memory as each file 
- * should be equipped with a buffer/dataset.  
+ * A instance of the class should be created to represent each file.  The 
+ * dataset is private to each instance, but the pixels are read a GDAL block 
+ * at a time into a {@link BlockCache} that is shared by every instance in the 
+ * process, so the memory used for buffering is bounded by the budget of the 
+ * cache, not by the number of files, and blocks read by one instance (or 
+ * thread) are reused by the others.  Each instance also keeps a reference to 
+ * the last block it read, so that block stays in memory outside the budget 
+ * until the instance reads another block or is deleted: allow one block per 
+ * open instance on top of the cache.  Blocks of a file outlive its instances, 
+ * so a writer that rewrites a file must drop them with BlockCache.remove() 
+ * (GeoTiffWriter and JAIUtils.writeImage() do, for the shared cache).
  *
  * @author Cong Hui He
  * 
@@ -26,16 +35,28 @@ import org.gdal.gdalconst.gdalconstConstants;
  * 20131007. Added comments, formatted, made GDAL init static. nc.  Cong Hui 
  * 20131012. Make the code clean and more readable. CongHui
  * 20140120. Changed _block_xsize to be the number of pixels in a line, per the variable declaration
+ * 20261017. Read GDAL blocks through the shared BlockCache instead of a line buffer.  Fixed the 
+ * 			 offsets of 32 and 64 bit types, which were not scaled by the size of the type.
+ * 20261017. Keep the geotransform and its inverse instead of rebuilding them for every pixel.
+ * 20261017. Added pixelValues(), to read a window a block at a time.
  */
 public class ImageData {
-	private int        _block_xsize; 	// the length of a row of the image
-	private int        _buffer_size; 	// size of the buffer allocated for holding the image
+	private int        _block_xsize; 	// the width of a GDAL block of the band
+	private int        _block_ysize; 	// the height of a GDAL block of the band
+	private int        _x_size;			// the length of a row of the image
+	private int        _y_size;			// the number of rows of the image
+	private String     _filename;		// absolute path, identifies the blocks in the cache
 	private Dataset    _image;			// a dataset holding the information of image
 	private int        _band_index;
-	private ByteBuffer _pixel_buffer;	// buffer containing the data read from image file
 	private int        _data_type;
-	private int        _y_index      = -1;
+	private int        _type_size;		// bytes per pixel
 	private Band       _band;
+	private BlockCache _cache;
+	private BlockCache.Block _block;		// the last block read, checked before the cache
+	private int        _block_x      = -1;
+	private int        _block_y      = -1;
+	private double[]   _geo_transform;	// GDAL geotransform, read once
+	private AffineTransformation _proj2raster; // inverse of the geotransform
 
 	/**
 	 * Initialize GDAL.
@@ -48,25 +69,36 @@ public class ImageData {
 	}
 
 	/**
-	 * Just do the initialization, such as initialize the data member and  
-	 * allocate memory for the buffer
+	 * Just do the initialization, reading through the process-wide BlockCache.
 	 * 
 	 * @param filename the file where the dataset is related to
 	 * @param band_index the index of the band the dataset will cover
 	 */
 	public ImageData(String filename, int band_index) {
+		this(filename, band_index, BlockCache.getShared());
+	}
+
+	/**
+	 * 
+	 * @param filename the file where the dataset is related to
+	 * @param band_index the index of the band the dataset will cover
+	 * @param cache the cache of blocks to read through
+	 */
+	public ImageData(String filename, int band_index, BlockCache cache) {
 		File image_file = new File(filename);
-		_image = gdal.Open(image_file.getAbsolutePath(), gdalconst.GA_ReadOnly);
+		_filename = image_file.getAbsolutePath();
+		_image = gdal.Open(_filename, gdalconst.GA_ReadOnly);
+		_x_size = _image.GetRasterXSize();
+		_y_size = _image.GetRasterYSize();
+		_geo_transform = _image.GetGeoTransform();
+		_proj2raster = com.berkenviro.gis.GISUtils.proj2raster(GDALUtils.raster2proj(_image));
+		_cache = cache;
 		reconfigBand(band_index);
-		_buffer_size = gdal.GetDataTypeSize(_data_type) / 8 * _block_xsize;
-		//_pixel_buffer = ByteBuffer.allocate(_buffer_size);
-		_pixel_buffer = ByteBuffer.allocateDirect(_buffer_size);
-		_pixel_buffer.order(ByteOrder.nativeOrder());
 	}
 
 	@Override
 	public String toString() {
-		return _pixel_buffer.toString();
+		return _filename+" band "+_band_index+", block "+_block_xsize+"x"+_block_ysize+", "+_cache;
 	}
  	
 	/***
@@ -76,16 +108,14 @@ public class ImageData {
 	private void reconfigBand(int band_index) {
 		_band_index = band_index;
 		_band = _image.GetRasterBand(_band_index);
-		/*
-		 * In the class variable declaration, it says that _block_xsize is
-		 * "the length of a row of the image".  While it may coincidentally
-		 * correspond to the line length, it is not necessarily true.
-		 */
-		//System.out.println("\t BlockXSize: "+_band.GetBlockXSize());
-		//System.out.println("\t New BlockXSize: "+_image.GetRasterXSize());
-		//_block_xsize = _band.GetBlockXSize();
-		_block_xsize = _image.GetRasterXSize();
+		// the natural block of the band: a strip of lines for striped files, a tile for tiled files
+		_block_xsize = _band.GetBlockXSize();
+		_block_ysize = _band.GetBlockYSize();
 		_data_type = _band.getDataType();
+		_type_size = gdal.GetDataTypeSize(_data_type) / 8;
+		_block = null;
+		_block_x = -1;
+		_block_y = -1;
 	}
 
 
@@ -104,7 +134,7 @@ public class ImageData {
 		int[] pixelXY = null; // pixel in image coordinate
 		try {
 			// do the coordinate transformation from GEO to image
-			pixelXY = GDALUtils.getPixelXY(new double[] {x_index, y_index}, _image);
+			pixelXY = getPixelXY(x_index, y_index);
 		} catch (Exception e) {
 			e.printStackTrace();
 			return 0;
@@ -115,17 +145,43 @@ public class ImageData {
 	}
 
 	/**
-	 * Get the value of the pixel index at (x_index, y_index) from the 
-	 * buffer.  
+	 * Same as GDALUtils.getPixelXY(), with the cached inverse transform.
+	 * @param x georeferenced
+	 * @param y georeferenced
+	 * @return the zero-indexed {x,y} of the pixel containing the point
+	 * @throws Exception if the point is outside the image
+	 */
+	public int[] getPixelXY(double x, double y) throws Exception {
+		Coordinate pix = new Coordinate();
+		_proj2raster.transform(new Coordinate(x, y), pix);
+		if ((int)pix.x < 0 || (int)pix.x >= _x_size 
+		 || (int)pix.y < 0 || (int)pix.y >= _y_size) {
+			throw new Exception("Impossible coordinates: "+pix);
+		}
+		return new int[] {(int)(pix.x), (int)(pix.y)};
+	}
+
+	/**
+	 * Same as GDALUtils.getProjectedXY(), from the cached geotransform.
+	 * @param x_index zero-indexed pixel
+	 * @param y_index zero-indexed line
+	 * @return the {x,y} georeferenced coordinates of the center of the pixel
+	 */
+	public double[] getProjectedXY(int x_index, int y_index) {
+		double px = x_index + 0.5;
+		double py = y_index + 0.5;
+		return new double[] {
+				_geo_transform[0] + px*_geo_transform[1] + py*_geo_transform[2],
+				_geo_transform[3] + px*_geo_transform[4] + py*_geo_transform[5]};
+	}
+
+	/**
+	 * Get the value of the pixel index at (x_index, y_index).  
 	 *
-	 * Implementation: A whole line of the image will be read into the 
-	 * buffer. Thus, if you the pixel you are reading stays at the same 
-	 * line as the last pixel you read, the pixel will be get directly from 
-	 * the buffer. However, if the pixel you are about to read jumps to a 
-	 * different line, that line will be read into the buffer, which will 
-	 * replace the previous line.  Therefore, to gain a better performance, 
-	 * it is a good idea to read the pixels line by line, from left to 
-	 * right and then top to bottom.
+	 * Implementation: The GDAL block containing the pixel is looked up in 
+	 * the shared cache and read from the file only if it isn't there.  The 
+	 * last block used is kept, so reading neighboring pixels doesn't touch 
+	 * the cache at all.  Pixels outside the image are NaN.
 	 *
 	 * @param x_index X-coordinate of the pixel
 	 * @param y_index Y-coordinate of the pixel
@@ -133,67 +189,220 @@ public class ImageData {
 	 * @return the value of the pixel
 	 */
 	public double pixelValue(int x_index, int y_index, int band_index) {
-		if (band_index != _band_index || y_index != _y_index) {
-			// if the |band_index| or |y_index| are not the same as the previous 
-			// ones, we need to read a new line.
-
-			// 1. do some configuration
+		if (band_index != _band_index) {
 			reconfigBand(band_index);
-			_y_index = y_index;
-//			_pixel_buffer = ByteBuffer.allocateDirect(_buffer_size);
-//			_pixel_buffer.order(ByteOrder.nativeOrder());
-			_pixel_buffer.clear(); // I don't see why this buffer would need to be allocated again
-
-			// 2. perform a read operation
-//			_band.ReadRaster(
-//					0, y_index,       // (x_begin, y_begin), it reads from begining of the line
-//					_block_xsize, 1,  // (x size; y size), |_block_size| is the length of a line
-//					_block_xsize, 1,  // buffer x size; buffer y size
-//					_data_type, 
-//					_pixel_buffer.array()); 
-			_band.ReadRaster_Direct(
-					0, y_index,       // (x_begin, y_begin), it reads from begining of the line
-					_block_xsize, 1,  // (x size; y size), |_block_size| is the length of a line
-					_block_xsize, 1,  // buffer x size; buffer y size
-					_data_type, 
-					_pixel_buffer);
 		}
-
-		return getValueFromRightDataType(x_index);
+		if (x_index < 0 || x_index >= _x_size || y_index < 0 || y_index >= _y_size) {
+			return Double.NaN;
+		}
+		int block_x = x_index / _block_xsize;
+		int block_y = y_index / _block_ysize;
+		BlockCache.Block block = block(block_x, block_y);
+		int offset = (y_index - block_y * _block_ysize) * block.width + (x_index - block_x * _block_xsize);
+		return getValueFromRightDataType(block.data, offset * _type_size);
+	}
+	
+	/**
+	 * Read a window of pixels, row-major, into out.  Each block is looked up once, and 
+	 * each row of a block is converted by one loop for the data type, instead of a 
+	 * lookup and a switch per pixel.  Pixels outside the image are NaN.
+	 * 
+	 * @param x0 first column
+	 * @param y0 first row
+	 * @param width of the window
+	 * @param height of the window
+	 * @param band_index band number
+	 * @param out at least width*height
+	 */
+	public void pixelValues(int x0, int y0, int width, int height, int band_index, double[] out) {
+		if (band_index != _band_index) {
+			reconfigBand(band_index);
+		}
+		int xStart = Math.max(x0, 0);
+		int xEnd = Math.min(x0 + width, _x_size);
+		int yStart = Math.max(y0, 0);
+		int yEnd = Math.min(y0 + height, _y_size);
+		if (xStart >= xEnd || yStart >= yEnd) {
+			Arrays.fill(out, 0, width * height, Double.NaN);
+			return;
+		}
+		if (xStart > x0 || xEnd < x0 + width || yStart > y0 || yEnd < y0 + height) {
+			Arrays.fill(out, 0, width * height, Double.NaN);
+		}
+		for (int block_y = yStart / _block_ysize; block_y * _block_ysize < yEnd; block_y++) {
+			int by0 = block_y * _block_ysize;
+			int rowStart = Math.max(yStart, by0);
+			int rowEnd = Math.min(yEnd, by0 + _block_ysize);
+			for (int block_x = xStart / _block_xsize; block_x * _block_xsize < xEnd; block_x++) {
+				int bx0 = block_x * _block_xsize;
+				int colStart = Math.max(xStart, bx0);
+				int n = Math.min(xEnd, bx0 + _block_xsize) - colStart;
+				BlockCache.Block block = block(block_x, block_y);
+				for (int y = rowStart; y < rowEnd; y++) {
+					copyRow(block.data, (y - by0) * block.width + (colStart - bx0), n, 
+							out, (y - y0) * width + (colStart - x0));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The block, from the last one used, the cache, or the file.
+	 */
+	private BlockCache.Block block(int block_x, int block_y) {
+		if (block_x != _block_x || block_y != _block_y) {
+			BlockCache.Key key = new BlockCache.Key(_filename, _band_index, block_x, block_y);
+			BlockCache.Block block = _cache.get(key);
+			if (block == null) {
+				block = readBlock(block_x, block_y);
+				_cache.put(key, block);
+			}
+			_block = block;
+			_block_x = block_x;
+			_block_y = block_y;
+		}
+		return _block;
+	}
+	
+	/**
+	 * Convert n pixels of a block, starting at pixel offset, to out[outOffset...].
+	 */
+	private void copyRow(ByteBuffer buffer, int offset, int n, double[] out, int outOffset) {
+		// Absolute gets, so the buffer can be shared between threads.
+		int end = outOffset + n;
+		if (_data_type == gdalconstConstants.GDT_Byte) {
+			for (int i = outOffset; i < end; i++, offset++) {
+				out[i] = buffer.get(offset) & 0xff;
+			}
+		} else if (_data_type == gdalconstConstants.GDT_Int16) {
+			for (int i = outOffset, b = offset * 2; i < end; i++, b += 2) {
+				out[i] = buffer.getShort(b);
+			}
+		} else if (_data_type == gdalconstConstants.GDT_UInt16) {
+			for (int i = outOffset, b = offset * 2; i < end; i++, b += 2) {
+				out[i] = buffer.getChar(b);
+			}
+		} else if (_data_type == gdalconstConstants.GDT_Int32) {
+			for (int i = outOffset, b = offset * 4; i < end; i++, b += 4) {
+				out[i] = buffer.getInt(b);
+			}
+		} else if (_data_type == gdalconstConstants.GDT_Float32) {
+			for (int i = outOffset, b = offset * 4; i < end; i++, b += 4) {
+				out[i] = buffer.getFloat(b);
+			}
+		} else if (_data_type == gdalconstConstants.GDT_Float64) {
+			for (int i = outOffset, b = offset * 8; i < end; i++, b += 8) {
+				out[i] = buffer.getDouble(b);
+			}
+		} else {
+			Arrays.fill(out, outOffset, end, Double.NaN);
+		}
 	}
 
+	/**
+	 * Read a block from the file.  Edge blocks are truncated to the image.
+	 * @param block_x block column
+	 * @param block_y block row
+	 * @return
+	 */
+	private BlockCache.Block readBlock(int block_x, int block_y) {
+		int x0 = block_x * _block_xsize;
+		int y0 = block_y * _block_ysize;
+		int width = Math.min(_block_xsize, _x_size - x0);
+		int height = Math.min(_block_ysize, _y_size - y0);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * _type_size);
+		buffer.order(ByteOrder.nativeOrder());
+		_band.ReadRaster_Direct(
+				x0, y0,           // (x_begin, y_begin)
+				width, height,    // (x size; y size)
+				width, height,    // buffer x size; buffer y size
+				_data_type, 
+				buffer);
+		return new BlockCache.Block(buffer, width, height);
+	}
 
 	/***
 	 * 
-	 * @param offset
+	 * @param buffer the block
+	 * @param offset in bytes
 	 * @return
 	 */
-	private double getValueFromRightDataType(int offset) {
-		// the offset is a magic number. I have no idea why the |offset| 
-		// should be doubled for type |GDT_UInt16| and |GDT_Int16|, but 
-		// it does result in correct value by several experiments.
-		
+	private double getValueFromRightDataType(ByteBuffer buffer, int offset) {
+		// Absolute gets, so the buffer can be shared between threads.
 		if (_data_type == gdalconstConstants.GDT_Byte) {
-			return ((int)_pixel_buffer.get(offset)) & 0xff; // verified
+			return ((int)buffer.get(offset)) & 0xff; // verified
 		} else if(_data_type == gdalconstConstants.GDT_Int16) {
-			return _pixel_buffer.getShort(offset * 2);    	// verified
+			return buffer.getShort(offset);    	// verified
 		} else if(_data_type == gdalconstConstants.GDT_Int32) {
-			return _pixel_buffer.getInt(offset);
+			return buffer.getInt(offset);
 		} else if(_data_type == gdalconstConstants.GDT_Float32) {
-			return _pixel_buffer.getFloat(offset);
+			return buffer.getFloat(offset);
 		} else if(_data_type == gdalconstConstants.GDT_Float64) {
-			return _pixel_buffer.getDouble(offset);
+			return buffer.getDouble(offset);
 		} else if(_data_type == gdalconstConstants.GDT_UInt16) {
-			return _pixel_buffer.getChar(offset * 2);		// verified
+			return buffer.getChar(offset);		// verified
 		}
 		return Double.NaN;
 	}
 
+	/**
+	 * 
+	 * @return the GDAL geotransform of the image
+	 */
+	public double[] getGeoTransform() {
+		return _geo_transform.clone();
+	}
+
+	/**
+	 * 
+	 * @return the number of pixels in a row
+	 */
+	public int getXSize() {
+		return _x_size;
+	}
+
+	/**
+	 * 
+	 * @return the number of rows
+	 */
+	public int getYSize() {
+		return _y_size;
+	}
+
+	/**
+	 * Pixel (x,y) of this image is pixel (x,y) of the other: same size and geotransform.
+	 * @param other
+	 * @return
+	 */
+	public boolean sameGrid(ImageData other) {
+		return _x_size == other._x_size && _y_size == other._y_size 
+				&& Arrays.equals(_geo_transform, other._geo_transform);
+	}
+
+	/**
+	 * 
+	 * @return the width of a GDAL block of the current band
+	 */
+	public int getBlockXSize() {
+		return _block_xsize;
+	}
+
+	/**
+	 * 
+	 * @return the height of a GDAL block of the current band
+	 */
+	public int getBlockYSize() {
+		return _block_ysize;
+	}
+
 	/***
-	 * reclaim the resources
+	 * reclaim the resources.  The cached blocks of the file stay, for the other instances.
 	 */
 	public void deleteDataSet() {
 		_image.delete();
+		_block = null;
+		_block_x = -1;
+		_block_y = -1;
 	}
 
 	/**
@@ -0,0 +1,160 @@
+package com.berkenviro.imageprocessing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A stack of ImageData, one set of handles per thread.
+ *
+ * ImageData keeps a GDAL Dataset, which can't be shared between threads.
+ * Rather than synchronizing every read on one lock, each thread that reads
+ * from the stack lazily opens its own ImageData for every file, so concurrent
+ * reads scale with the number of threads.  The pixel blocks are shared by all
+ * threads through the process-wide {@link BlockCache}, so the cost is one set
+ * of file handles per reading thread.  Use a bounded thread pool.
+ *
+ * @author Nicholas Clinton
+ * @author Cong Hui He
+ */
+public class ImageDataStack {
+
+	private final String[] _filenames;
+	private final int _band_index;
+	private final ThreadLocal<ImageData[]> _thread_data;
+	private final List<ImageData[]> _all_data; // every set that was opened, for close()
+	private volatile boolean _closed;
+
+	/**
+	 *
+	 * @param filenames the files in the stack, in order
+	 * @param band_index the (one-indexed) band to read
+	 */
+	public ImageDataStack(String[] filenames, int band_index) {
+		_filenames = filenames;
+		_band_index = band_index;
+		_all_data = new ArrayList<ImageData[]>();
+		_thread_data = new ThreadLocal<ImageData[]>() {
+			@Override
+			protected ImageData[] initialValue() {
+				ImageData[] data = new ImageData[_filenames.length];
+				synchronized (_all_data) {
+					_all_data.add(data);
+				}
+				return data;
+			}
+		};
+	}
+
+	/**
+	 * Get the calling thread's ImageData for the i'th file.
+	 * @param i is the index of the file in the stack
+	 * @return
+	 * @throws IllegalStateException if the stack has been closed
+	 */
+	public ImageData get(int i) {
+		if (_closed) {
+			throw new IllegalStateException("ImageDataStack is closed");
+		}
+		ImageData[] data = _thread_data.get();
+		if (data[i] == null) {
+			// open under the lock, so close() can't miss a handle
+			synchronized (_all_data) {
+				if (_closed) {
+					throw new IllegalStateException("ImageDataStack is closed");
+				}
+				data[i] = new ImageData(_filenames[i], _band_index);
+			}
+		}
+		return data[i];
+	}
+
+	/**
+	 * The value of the i'th file at a georeferenced point, or at its pixel if that is 
+	 * already known.  Read with the calling thread's handles.
+	 * @param i is the index of the file in the stack
+	 * @param x georeferenced, ignored if pixelXY is not null
+	 * @param y georeferenced, ignored if pixelXY is not null
+	 * @param pixelXY the pixel of the point on the grid of the stack (see sameGrid()), or null
+	 * @return
+	 */
+	public double value(int i, double x, double y, int[] pixelXY) {
+		ImageData data = get(i);
+		if (pixelXY == null) {
+			return data.imageValue(x, y, _band_index);
+		}
+		return data.pixelValue(pixelXY[0], pixelXY[1], _band_index);
+	}
+
+	/**
+	 *
+	 * @return the number of files in the stack
+	 */
+	public int size() {
+		return _filenames.length;
+	}
+
+	/**
+	 * Check whether every file of this stack, and of the others, is on the grid of the 
+	 * first file of this stack.  If so, a pixel index computed once from the first file 
+	 * is valid for all of them.  Each file is opened and closed once, so call this at 
+	 * construction, not per point.
+	 * @param others stacks to compare, e.g. the QC images of a data stack
+	 * @return true if the sizes and geotransforms are all equal
+	 */
+	public boolean sameGrid(ImageDataStack... others) {
+		return _filenames.length > 0 && offGrid(others) == null;
+	}
+
+	/**
+	 * As sameGrid(), but says which file is off the grid.
+	 * @param others stacks to compare, e.g. the QC images of a data stack
+	 * @return the first file, of this stack then the others, not on the grid of the first 
+	 * 	file of this stack, or null if they all are
+	 */
+	public String offGrid(ImageDataStack... others) {
+		if (_filenames.length == 0) {
+			return null;
+		}
+		ImageData ref = new ImageData(_filenames[0], _band_index);
+		try {
+			String off = firstOffGrid(ref);
+			for (int s=0; off == null && s<others.length; s++) {
+				off = others[s].firstOffGrid(ref);
+			}
+			return off;
+		} finally {
+			ref.deleteDataSet();
+		}
+	}
+
+	private String firstOffGrid(ImageData ref) {
+		for (String filename : _filenames) {
+			ImageData data = new ImageData(filename, _band_index);
+			boolean same = ref.sameGrid(data);
+			data.deleteDataSet();
+			if (!same) {
+				return filename;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Release the handles of every thread.  Not safe to call while reading.  The stack
+	 * can't be read after it is closed.
+	 */
+	public void close() {
+		synchronized (_all_data) {
+			_closed = true;
+			for (ImageData[] data : _all_data) {
+				for (int i=0; i<data.length; i++) {
+					if (data[i] != null) {
+						data[i].deleteDataSet();
+						data[i] = null;
+					}
+				}
+			}
+			_all_data.clear();
+		}
+	}
+}
@@ -34,12 +34,10 @@ import java.awt.image.RenderedImage;
 import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
 import java.awt.image.renderable.ParameterBlock;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -48,7 +46,10 @@ import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 import java.util.SortedSet;
+import java.util.WeakHashMap;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
@@ -83,12 +84,10 @@ import com.sun.media.imageio.stream.RawImageInputStream;
 import com.sun.media.jai.codec.FileSeekableStream;
 import com.sun.media.jai.codec.ImageCodec;
 import com.sun.media.jai.codec.ImageDecoder;
-import com.sun.media.jai.codec.ImageEncoder;
 import com.sun.media.jai.codec.SeekableOutputStream;
 import com.sun.media.jai.codec.SeekableStream;
 import com.sun.media.jai.codec.TIFFDecodeParam;
 import com.sun.media.jai.codec.TIFFDirectory;
-import com.sun.media.jai.codec.TIFFEncodeParam;
 import com.sun.media.jai.codec.TIFFField;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.util.AffineTransformation;
@@ -107,6 +106,46 @@ public class JAIUtils {
 		System.setProperty("com.sun.media.jai.disableMediaLib", "true");
 	}
 	
+	// inverse transform of each image, for getPixelXY()
+	private static final Map<PlanarImage, Proj2Raster> proj2raster = 
+			Collections.synchronizedMap(new WeakHashMap<PlanarImage, Proj2Raster>());
+	
+	/**
+	 * An inverse transform and the georeferencing properties it was computed from.
+	 */
+	private static final class Proj2Raster {
+		final Object ulX, ulY, deltaX, deltaY;
+		final AffineTransformation inv;
+		
+		Proj2Raster(PlanarImage pImage) {
+			ulX = pImage.getProperty("ulX");
+			ulY = pImage.getProperty("ulY");
+			deltaX = pImage.getProperty("deltaX");
+			deltaY = pImage.getProperty("deltaY");
+			inv = GISUtils.proj2raster(GISUtils.raster2proj(pImage));
+		}
+		
+		boolean isCurrent(PlanarImage pImage) {
+			return ulX.equals(pImage.getProperty("ulX")) && ulY.equals(pImage.getProperty("ulY"))
+					&& deltaX.equals(pImage.getProperty("deltaX")) && deltaY.equals(pImage.getProperty("deltaY"));
+		}
+	}
+	
+	/**
+	 * The inverse of GISUtils.raster2proj(), computed once per image and 
+	 * recomputed only if the georeferencing properties change.
+	 * @param pImage is a registered image
+	 * @return
+	 */
+	public static AffineTransformation proj2raster(PlanarImage pImage) {
+		Proj2Raster cached = proj2raster.get(pImage);
+		if (cached == null || !cached.isCurrent(pImage)) {
+			cached = new Proj2Raster(pImage);
+			proj2raster.put(pImage, cached);
+		}
+		return cached.inv;
+	}
+	
 	
 	/**
 	 * Write a PlanarImage (or TiledImage) to a tiff.
@@ -116,32 +155,31 @@ public class JAIUtils {
 	public static void writeImage(PlanarImage image, String outFile) {
 		System.out.println("Writing image file: "+outFile);
 		JAI.create("filestore", image, outFile, "TIFF");
+		BlockCache.getShared().remove(new File(outFile).getAbsolutePath());
 	}
 	
 	/**
-	 * 
+	 * Write a tiled, DEFLATE compressed tiff, with no georeferencing.
 	 * @param data
 	 * @param outFile
+	 * @see GeoTiffWriter
 	 */
 	public static void writeTiff(WritableRaster data, String outFile) {
-		//writeTiff(data, outFile, data.getDataBuffer().getDataType());
+		writeTiff(data, outFile, null, null);
+	}
+	
+	/**
+	 * Write a tiled, DEFLATE compressed GeoTIFF.
+	 * @param data
+	 * @param outFile
+	 * @param geoTransform GDAL geotransform, or null
+	 * @param projection WKT, or null
+	 * @see GeoTiffWriter
+	 */
+	public static void writeTiff(WritableRaster data, String outFile, double[] geoTransform, String projection) {
 		System.out.println("writing image file: "+outFile);
 		try {
-			File file = new File(outFile);
-			FileOutputStream stream = new FileOutputStream(file);
-			BufferedOutputStream buffered = new BufferedOutputStream(stream);
-			TIFFEncodeParam param = new TIFFEncodeParam();
-			param.setCompression(TIFFEncodeParam.COMPRESSION_NONE);
-			// geo fields?
-			//param.setExtraFields(extraFields);
-			
-			ColorModel cm = PlanarImage.createColorModel(data.getSampleModel());
-			ImageEncoder enc = ImageCodec.createImageEncoder("TIFF", buffered, param);
-			enc.encode(data, cm);
-			buffered.close();
-			
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+			GeoTiffWriter.write(data, outFile, geoTransform, projection, new GeoTiffWriter.Options());
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -473,9 +511,7 @@ public class JAIUtils {
 		// check to make sure the tiff is registered
 		if (!isRegistered(pImage)) { register(pImage); }
 		
-		AffineTransformation at = GISUtils.raster2proj(pImage);
-		//System.out.println("JAI affine: "+at);
-		AffineTransformation inv = GISUtils.proj2raster(at);
+		AffineTransformation inv = proj2raster(pImage);
 		Coordinate pix = new Coordinate();
 		inv.transform(new Coordinate(ImageProjXY[0], ImageProjXY[1]), pix);
 		if ((int)pix.x < 0 || (int)pix.x >= pImage.getWidth() || 
@@ -0,0 +1,256 @@
+package com.berkenviro.imageprocessing;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.core.Instances;
+
+/**
+ * A grid search over the parameters of a classifier, cross-validated concurrently and
+ * written to a tab delimited report as it goes.
+ *
+ * Each configuration is the values of the parameters and a copy of the classifier that
+ * was added with them, so a grid can be built by setting the parameters of one classifier
+ * in nested loops.  The configurations are cross-validated on a fixed pool of threads, each
+ * with its own copies of the classifier and the training data, and each row is appended to
+ * the report, and flushed, as soon as it's done.  The rows are in the order they finish, not
+ * the order of the grid.  If there are fewer configurations than threads, the folds of each
+ * configuration are split among the spare threads (see CrossValidation).  If the sweep is
+ * killed, running it again with the same report skips the configurations that are already
+ * in it.  A report of a different sweep is never overwritten: run() refuses to start.
+ *
+ * @author Nicholas Clinton
+ */
+public class ParameterSweep {
+
+	private final String report;
+	private final String[] columns;
+	private final List<String> parameters = new ArrayList<String>();
+	private final List<Classifier> classifiers = new ArrayList<Classifier>();
+	private int folds;
+	private int seed = 1;
+
+	/**
+	 * @param report the tab delimited output, one row per configuration
+	 * @param columns the names of the parameters.  The metrics are added to these.
+	 */
+	public ParameterSweep(String report, String... columns) {
+		this.report = report;
+		this.columns = columns;
+	}
+
+	/**
+	 * Add a configuration to the grid.
+	 * @param parameters the values of the parameters, tab delimited, one per column.
+	 * Identifies the configuration in the report, so must be unique.
+	 * @param c is copied, so it can be changed for the next configuration
+	 * @throws Exception if the classifier can't be copied
+	 */
+	public void add(String parameters, Classifier c) throws Exception {
+		if (parameters.split("\t", -1).length != columns.length) {
+			throw new IllegalArgumentException("One value per column: "+parameters);
+		}
+		this.parameters.add(parameters);
+		classifiers.add(Classifier.makeCopy(c));
+	}
+
+	/**
+	 * @return the number of configurations in the grid
+	 */
+	public int size() {
+		return parameters.size();
+	}
+
+	/**
+	 * @param folds of the cross-validation.  Zero or less is leave-one-out, the default.
+	 */
+	public void setFolds(int folds) {
+		this.folds = folds;
+	}
+
+	/**
+	 * @param seed of the cross-validation, 1 by default
+	 */
+	public void setSeed(int seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Evaluate with a thread per processor.
+	 * @see #run(Instances, int)
+	 */
+	public boolean run(Instances instances) throws IOException {
+		return run(instances, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Evaluate every configuration that isn't in the report.  Returns when they are all done.
+	 * The metrics are kappa and percent correct for a nominal class, RMSE and correlation
+	 * for a numeric class.
+	 * @param instances with the class set
+	 * @param nThreads is the number of configurations evaluated at once
+	 * @return true if every configuration of the grid is in the report
+	 * @throws IOException if the report can't be written, or is of a different sweep
+	 */
+	public boolean run(final Instances instances, int nThreads) throws IOException {
+		long start = System.currentTimeMillis();
+		final boolean nominal = instances.classAttribute().isNominal();
+		String header = join(columns, columns.length) + (nominal ? "\tkappa\tpctCorr" : "\trmse\tcorr");
+		Set<String> done = readReport(header);
+		BufferedWriter writer;
+		if (done == null) {
+			done = new HashSet<String>();
+			writer = new BufferedWriter(new FileWriter(report, false));
+			writer.write(header);
+			writer.newLine();
+			writer.flush();
+		} else {
+			System.out.println("Resuming from " + report + ", " + done.size() + " configurations done.");
+			writer = new BufferedWriter(new FileWriter(report, true));
+		}
+
+		List<Integer> toDo = new ArrayList<Integer>();
+		for (int i = 0; i < parameters.size(); i++) {
+			if (!done.contains(parameters.get(i))) {
+				toDo.add(i);
+			}
+		}
+		// spare threads go to the folds of each configuration
+		final int foldThreads = Math.max(1, nThreads / Math.max(1, toDo.size()));
+		ExecutorService service = Executors.newFixedThreadPool(Math.min(nThreads, Math.max(1, toDo.size())));
+		CompletionService<String> ecs = new ExecutorCompletionService<String>(service);
+		for (int i : toDo) {
+			final String key = parameters.get(i);
+			final Classifier c = classifiers.get(i);
+			ecs.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					try {
+						return key + "\t" + evaluate(c, instances, nominal, foldThreads);
+					} catch (Exception e) {
+						throw new Exception("Configuration " + key.replace('\t', ' ') + " failed.", e);
+					}
+				}
+			});
+		}
+		int submitted = toDo.size();
+		System.out.println("Configurations: " + submitted + " to do, " + (parameters.size() - submitted)
+				+ " already in " + report);
+
+		int failed = 0;
+		try {
+			for (int i = 0; i < submitted; i++) {
+				try {
+					String line = ecs.take().get();
+					writer.write(line);
+					writer.newLine();
+					writer.flush();
+					System.out.println(line);
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					failed++;
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+					failed += submitted - i;
+					break;
+				}
+			}
+		} finally {
+			service.shutdownNow();
+			writer.close();
+		}
+		System.out.println("Time used: " + (System.currentTimeMillis() - start) + " milliseconds");
+		if (failed > 0) {
+			System.err.println(failed + " configurations failed.  Run again to retry them.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Cross-validate, with the same result as crossValidateModel().
+	 * @see CrossValidation#crossValidateModel(Classifier, Instances, int, Random, int)
+	 * @return the tab delimited metrics
+	 */
+	private String evaluate(Classifier c, Instances instances, boolean nominal, int foldThreads) throws Exception {
+		int k = folds > 0 ? folds : instances.numInstances();
+		Evaluation evaluation = CrossValidation.crossValidateModel(c, instances, k, new Random(seed), foldThreads);
+		if (nominal) {
+			return evaluation.kappa() + "\t" + evaluation.pctCorrect();
+		}
+		return evaluation.rootMeanSquaredError() + "\t" + evaluation.correlationCoefficient();
+	}
+
+	/**
+	 * Read the configurations that are done, and rewrite the report without any row that was
+	 * cut off when the sweep stopped.  The report is rewritten to a sibling file that is then
+	 * renamed over it, so a crash during the rewrite leaves the old report intact.
+	 * @return the parameters of the rows in the report, or null if there is no report yet
+	 * @throws IOException if the report is of a different sweep, which is not overwritten
+	 */
+	private Set<String> readReport(String header) throws IOException {
+		File file = new File(report);
+		if (!file.exists() || file.length() == 0) {
+			return null;
+		}
+		String[] lines = new String(Files.readAllBytes(file.toPath()), "UTF-8").split("\n", -1);
+		if (!trim(lines[0]).equals(header)) {
+			throw new IOException("Report " + report + " is for a different sweep.  Move it, or choose another report.");
+		}
+		Set<String> done = new HashSet<String>();
+		String separator = System.getProperty("line.separator");
+		StringBuilder kept = new StringBuilder(header).append(separator);
+		// the last element is empty, or a row that was cut off when the sweep stopped
+		for (int i = 1; i < lines.length - 1; i++) {
+			String row = trim(lines[i]);
+			String[] fields = row.split("\t", -1);
+			if (fields.length != columns.length + 2) {
+				continue;
+			}
+			done.add(join(fields, columns.length));
+			kept.append(row).append(separator);
+		}
+		File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		Files.write(tmp.toPath(), kept.toString().getBytes("UTF-8"));
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		return done;
+	}
+
+	/**
+	 * Without the carriage return of a report written on Windows.
+	 */
+	private static String trim(String line) {
+		return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+	}
+
+	/**
+	 * @return the first n fields, tab delimited
+	 */
+	private static String join(String[] fields, int n) {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			if (i > 0) {
+				s.append('\t');
+			}
+			s.append(fields[i]);
+		}
+		return s.toString();
+	}
+}
@@ -24,16 +24,7 @@
  */
 package com.berkenviro.imageprocessing;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.util.LinkedList;
-import java.util.concurrent.Callable;
-import java.util.concurrent.CompletionService;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import weka.classifiers.Classifier;
 import weka.classifiers.SingleClassifierEnhancer;
@@ -43,7 +34,7 @@ import weka.classifiers.trees.J48;
 import weka.core.Instances;
 
 /**
- * Experimental skeleton class.  Incomplete.
+ * Parameter grids for a ParameterSweep.
  * 
  * @author Nicholas Clinton
  */
@@ -118,7 +109,7 @@ public class ThreadUtils {
 	/**
 	 * Helper method for J48List().  Get info about the classifier.
 	 * @param c is a parameterized classifier
-	 * @return a string representation of the parameters
+	 * @return the enhancement, confidence, minimum number and pruning, tab delimited
 	 */
 	public static String getClassifierInfo(Classifier c) {
 		//
@@ -126,7 +117,7 @@ public class ThreadUtils {
 		J48 tree;
 		
 		if (c instanceof Bagging || c instanceof AdaBoostM1) {
-			s+=c.getClass().getSimpleName()+"\t";
+			s+=c.getClass().getSimpleName();
 			tree = (J48) ((SingleClassifierEnhancer)c).getClassifier();
 		}
 		else {
@@ -145,72 +136,21 @@ public class ThreadUtils {
 	public static void main(String[] args) {
 		
 		Instances metaTraining = WekaUtils.loadArff("F:\\cheatgrass2008_testing\\Makr_0506_cross_appended_id_meta.arff");
+		metaTraining.setClassIndex(metaTraining.numAttributes()-1);
 		
-		// Make an ExecutorService
-		int threads = Runtime.getRuntime().availableProcessors();
-		ExecutorService service = Executors.newFixedThreadPool(threads);
-		// Give it to a completion service
-		CompletionService ecs = new ExecutorCompletionService(service);
-
-		
-		// LinkedList of Classifiers, J48 based 
-		LinkedList list = J48List();
-		
-
-		// submit everything to the service, 
-		// o is a parameterized Classifier to be tested using the CallableCross
-		for (Object o : list) {
-			
-			System.out.println(getClassifierInfo((Classifier) o));
-			///*
-			Callable myTask = null;
-			ecs.submit(myTask);
-			//*/
-		}
-		// Done.  
-		///*
-		// set up the FileWriter.
+		// Every J48 based Classifier, leave-one-out on a thread per processor.
+		// Run again with the same report to finish an interrupted sweep.
 		String shortRep = "F:\\cheatgrass2008_testing\\060208_J48_report.txt";
-		BufferedWriter shortWriter = null;
+		ParameterSweep sweep = new ParameterSweep(shortRep, "enhance", "conf", "minNum", "pruning");
 		try {
-			shortWriter = new BufferedWriter(new FileWriter(shortRep));
-			// set up the header
-			shortWriter.write("enhance"+"\t"+"conf"+"\t"+"minNum"+"\t"+"pruning"+"\t"+"rmse"+"\t"+"corr");
-			shortWriter.newLine();
-			shortWriter.flush();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		
-		// Now, get all the results
-		for (int i=0; i < list.size(); i++) {
-			String line = "";
-			try {
-				// the CallableCross.CrossResult
-				Object result = null;
-				
-				if (result != null) {
-
-					try {
-						shortWriter.write(line);
-						shortWriter.newLine();
-						shortWriter.flush();
-						System.out.println(line);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-		        }
-				else {
-					System.out.println("Whoops!  result = null");
-				}
-				
-			} catch (Exception e) {
-				e.printStackTrace();
+			for (Object o : J48List()) {
+				Classifier c = (Classifier) o;
+				sweep.add(getClassifierInfo(c), c);
 			}
-			
-	    }
-
-//*/
+			sweep.run(metaTraining);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
 	}
 
 }
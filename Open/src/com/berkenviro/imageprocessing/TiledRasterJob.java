@@ -0,0 +1,324 @@
+package com.berkenviro.imageprocessing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.gdal.gdalconst.gdalconst;
+
+/**
+ * A raster job that is computed, and committed to its output files, one tile at a time.
+ *
+ * The outputs are tiled, compressed GeoTIFFs (see GeoTiffWriter), created at full size when the job starts.  Each tile
+ * is written to every output, flushed and synced to disk as soon as it is computed, then
+ * recorded in a journal next to the first output, which is synced too.  If the job is
+ * killed, or the machine goes down, running it again with
+ * the same outputs and grid opens the files for update and skips the tiles in the journal,
+ * so at most the tiles in flight are lost.  The heap holds only the tiles in flight,
+ * not the whole output grid as a WritableRaster did.
+ *
+ * @author Nicholas Clinton
+ */
+public class TiledRasterJob {
+
+	/**
+	 * Default width and height of a tile, in pixels.
+	 */
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	/**
+	 * Computes a tile of every output.  Called concurrently for different tiles.
+	 */
+	public interface TileProcessor {
+		/**
+		 * @param x0 is the first column of the tile
+		 * @param y0 is the first row of the tile
+		 * @param width of the tile, less than the tile size at the right edge
+		 * @param height of the tile, less than the tile size at the bottom edge
+		 * @param out is one row-major width*height array per output, all zero on entry.
+		 * Values are truncated to the type of the output, as by WritableRaster.setSample().
+		 * @throws Exception if the tile fails.  It isn't journaled, so it's redone on restart.
+		 */
+		void process(int x0, int y0, int width, int height, int[][] out) throws Exception;
+	}
+
+	private final String[] files;
+	private final int[] types;
+	private final int width;
+	private final int height;
+	private final int tileSize;
+	private double[] geoTransform;
+	private String projection;
+	private GeoTiffWriter.Options options = new GeoTiffWriter.Options();
+
+	private GeoTiffWriter[] outputs;
+	// to sync the outputs after GDAL has written them
+	private FileChannel[] channels;
+	private File journalFile;
+	private FileOutputStream journal;
+	private Set<Long> done;
+	private int committed;
+	private int toDo;
+
+	/**
+	 *
+	 * @param files the output GeoTIFFs, one band each
+	 * @param types the GDAL data type of each output, e.g. gdalconst.GDT_Byte
+	 * @param width of the output grid
+	 * @param height of the output grid
+	 * @param tileSize width and height of a tile.  Multiples of 16 are also the TIFF tile size.
+	 */
+	public TiledRasterJob(String[] files, int[] types, int width, int height, int tileSize) {
+		if (files.length != types.length) {
+			throw new IllegalArgumentException("One type per output file.");
+		}
+		this.files = files;
+		this.types = types;
+		this.width = width;
+		this.height = height;
+		this.tileSize = tileSize;
+		journalFile = new File(files[0] + ".journal");
+	}
+
+	/**
+	 * Georeference new outputs.
+	 * @param geoTransform GDAL geotransform of the output grid
+	 * @param projection WKT, or null
+	 */
+	public void setGeoreference(double[] geoTransform, String projection) {
+		this.geoTransform = geoTransform;
+		this.projection = projection;
+	}
+
+	/**
+	 * Compression etc. of new outputs.  The TIFF tile size is the job's tile size if that's a
+	 * multiple of 16.  Tiles are synced before they're journaled, so there's no write queue.
+	 * @param options
+	 */
+	public void setOptions(GeoTiffWriter.Options options) {
+		this.options = options;
+	}
+
+	/**
+	 * Compute every tile that isn't in the journal.  Returns when they are all done.
+	 * @param processor
+	 * @param nThreads is the number of compute threads
+	 * @return true if every tile of the grid has been committed
+	 * @throws IOException if the outputs or the journal can't be opened
+	 */
+	public boolean run(final TileProcessor processor, int nThreads) throws IOException {
+		long start = System.currentTimeMillis();
+		open();
+		List<int[]> tiles = new ArrayList<int[]>();
+		int skipped = 0;
+		for (int y = 0; y < height; y += tileSize) {
+			for (int x = 0; x < width; x += tileSize) {
+				if (done.contains(key(x, y))) {
+					skipped++;
+				} else {
+					tiles.add(new int[] {x, y});
+				}
+			}
+		}
+		toDo = tiles.size();
+		List<Future<?>> futures = new ArrayList<Future<?>>(toDo);
+		ForkJoinPool pool = new ForkJoinPool(nThreads);
+		for (int[] tile : tiles) {
+			final int x0 = tile[0];
+			final int y0 = tile[1];
+			final int w = Math.min(tileSize, width - x0);
+			final int h = Math.min(tileSize, height - y0);
+			futures.add(pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					int[][] out = new int[files.length][w * h];
+					try {
+						processor.process(x0, y0, w, h, out);
+						commit(x0, y0, w, h, out);
+					} catch (Exception e) {
+						throw new RuntimeException("Tile (" + x0 + "," + y0 + ") failed.", e);
+					}
+				}
+			}));
+		}
+		System.out.println("Tiles: " + toDo + " to do, " + skipped + " already in " + journalFile);
+		int failed = 0;
+		try {
+			for (Future<?> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					failed++;
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+					failed++;
+				}
+			}
+		} finally {
+			pool.shutdown();
+			close();
+		}
+		System.out.println("Time used: " + (System.currentTimeMillis() - start) + " milliseconds");
+		if (failed > 0) {
+			System.err.println(failed + " tiles failed.  Run again to retry them.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write a tile to every output, flush, then journal it.
+	 */
+	private synchronized void commit(int x0, int y0, int w, int h, int[][] out) throws IOException {
+		for (int i = 0; i < outputs.length; i++) {
+			truncate(out[i], types[i]);
+			outputs[i].write(x0, y0, w, h, 1, out[i]);
+			outputs[i].flush();
+			// the pixels are on disk before the journal says so
+			channels[i].force(true);
+		}
+		journal.write((x0 + " " + y0 + "\n").getBytes("US-ASCII"));
+		journal.flush();
+		journal.getFD().sync();
+		done.add(key(x0, y0));
+		committed++;
+		if (committed % 100 == 0 || committed == toDo) {
+			System.out.println("\t Committed tile (" + x0 + "," + y0 + "), " + committed + " of " + toDo);
+		}
+	}
+
+	/**
+	 * Same as storing in a raster of the type: GDAL would clamp instead.
+	 */
+	private static void truncate(int[] values, int type) {
+		if (type == gdalconst.GDT_Byte) {
+			for (int i = 0; i < values.length; i++) {
+				values[i] &= 0xff;
+			}
+		} else if (type == gdalconst.GDT_Int16) {
+			for (int i = 0; i < values.length; i++) {
+				values[i] = (short) values[i];
+			}
+		} else if (type == gdalconst.GDT_UInt16) {
+			for (int i = 0; i < values.length; i++) {
+				values[i] &= 0xffff;
+			}
+		}
+	}
+
+	private static long key(int x0, int y0) {
+		return ((long) y0 << 32) | x0;
+	}
+
+	private String header() {
+		return "TiledRasterJob " + width + " " + height + " " + tileSize + " " + files.length;
+	}
+
+	/**
+	 * Resume from the journal if it matches this job and every output exists,
+	 * otherwise start over.
+	 */
+	private void open() throws IOException {
+		done = new HashSet<Long>();
+		committed = 0;
+		boolean resume = readJournal();
+		for (String file : files) {
+			resume &= new File(file).exists();
+		}
+		outputs = new GeoTiffWriter[files.length];
+		GeoTiffWriter.Options tiffOptions = new GeoTiffWriter.Options();
+		tiffOptions.compression = options.compression;
+		tiffOptions.predictor = options.predictor;
+		tiffOptions.zLevel = options.zLevel;
+		tiffOptions.tileSize = tileSize % 16 == 0 ? tileSize : options.tileSize;
+		tiffOptions.bigTiff = options.bigTiff;
+		tiffOptions.compressionThreads = options.compressionThreads;
+		if (resume) {
+			System.out.println("Resuming from " + journalFile + ", " + done.size() + " tiles done.");
+			for (int i = 0; i < files.length; i++) {
+				try {
+					outputs[i] = new GeoTiffWriter(files[i], tiffOptions);
+				} catch (IOException e) {
+					throw new IOException("Can't resume " + files[i] + ", delete " + journalFile + " to start over.", e);
+				}
+				if (outputs[i].getWidth() != width || outputs[i].getHeight() != height) {
+					throw new IOException("Can't resume " + files[i] + ", delete " + journalFile + " to start over.");
+				}
+			}
+			openChannels();
+			journal = new FileOutputStream(journalFile, true);
+			return;
+		}
+		done.clear();
+		for (int i = 0; i < files.length; i++) {
+			System.out.println("Creating " + files[i]);
+			outputs[i] = new GeoTiffWriter(files[i], width, height, 1, types[i], tiffOptions);
+			if (geoTransform != null) {
+				outputs[i].setGeoreference(geoTransform, projection);
+			}
+		}
+		openChannels();
+		journal = new FileOutputStream(journalFile, false);
+		journal.write((header() + "\n").getBytes("US-ASCII"));
+		journal.flush();
+	}
+
+	private void openChannels() throws IOException {
+		channels = new FileChannel[files.length];
+		for (int i = 0; i < files.length; i++) {
+			channels[i] = new RandomAccessFile(files[i], "rw").getChannel();
+		}
+	}
+
+	/**
+	 * @return true if there is a journal of this job.  Fills done.
+	 */
+	private boolean readJournal() throws IOException {
+		if (!journalFile.exists()) {
+			return false;
+		}
+		String[] lines = new String(Files.readAllBytes(journalFile.toPath()), "US-ASCII").split("\n", -1);
+		if (!lines[0].equals(header())) {
+			System.out.println("Journal " + journalFile + " is for a different job, starting over.");
+			return false;
+		}
+		// the last element is empty, or a line that was cut off when the job stopped
+		for (int i = 1; i < lines.length - 1; i++) {
+			String[] xy = lines[i].split(" ");
+			if (xy.length != 2) {
+				continue;
+			}
+			try {
+				done.add(key(Integer.parseInt(xy[0]), Integer.parseInt(xy[1])));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+		}
+		return true;
+	}
+
+	private void close() throws IOException {
+		for (GeoTiffWriter output : outputs) {
+			if (output != null) {
+				output.close();
+			}
+		}
+		for (FileChannel channel : channels) {
+			if (channel != null) {
+				channel.close();
+			}
+		}
+		journal.close();
+	}
+}
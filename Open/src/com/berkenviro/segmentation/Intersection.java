@@ -25,6 +25,12 @@
 package com.berkenviro.segmentation;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math.stat.StatUtils;
 import org.geotools.feature.FeatureCollection;
@@ -51,9 +57,7 @@ public class Intersection {
 	 * @param segs
 	 */
 	public Intersection(File training, File segmentation) {
-		FeatureCollection<SimpleFeatureType, SimpleFeature> trainingObjects = GISUtils.getFeatureCollection(training);
-		FeatureCollection<SimpleFeatureType, SimpleFeature> segments = GISUtils.getFeatureCollection(segmentation);
-		makeArray(trainingObjects, segments);
+		this(readTraining(training), segmentation, Runtime.getRuntime().availableProcessors());
 	}
 	
 	/**
@@ -63,34 +67,80 @@ public class Intersection {
 	 */
 	public Intersection(FeatureCollection<SimpleFeatureType, SimpleFeature> training, 
 					    FeatureCollection<SimpleFeatureType, SimpleFeature> segmentation) {
-		makeArray(training, segmentation);
+		makeArray(features(training), segmentation, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * For scoring many segmentations with the same training objects, which are only read.
+	 * @param training from readTraining()
+	 * @param segmentation
+	 * @param nThreads the number of training objects built at once
+	 */
+	public Intersection(List<SimpleFeature> training, File segmentation, int nThreads) {
+		makeArray(training, GISUtils.getFeatureCollection(segmentation), nThreads);
+	}
+	
+	/**
+	 * Read the training objects into memory, so they can be shared.
+	 * @param training
+	 * @return the features, in order
+	 */
+	public static List<SimpleFeature> readTraining(File training) {
+		return features(GISUtils.getFeatureCollection(training));
+	}
+	
+	/*
+	 * The features of the collection, in order.
+	 */
+	private static List<SimpleFeature> features(FeatureCollection<SimpleFeatureType, SimpleFeature> collection) {
+		List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+		FeatureIterator<SimpleFeature> iterator = collection.features();
+		try {
+			while (iterator.hasNext()) {
+				features.add(iterator.next());
+			}
+		} finally {
+			collection.close(iterator);
+		}
+		return features;
 	}
 	
 	
 	/*
 	 * This method to do the iteration over all the objects, intitialize everything.
 	 * Updated to GeoTools 2.7, 20100615  
+	 * The segmentation is read once into an index, then the training objects are built 
+	 * on nThreads threads.
 	 */
-	private void makeArray(FeatureCollection<SimpleFeatureType, SimpleFeature> trainingObjects, 
-						   FeatureCollection<SimpleFeatureType, SimpleFeature> segmentation) {
+	private void makeArray(List<SimpleFeature> trainingObjects, 
+						   FeatureCollection<SimpleFeatureType, SimpleFeature> segmentation,
+						   int nThreads) {
 		
 		// instance variable initialization
 		ta = new TrainingObject[trainingObjects.size()];
 		totalSegs = 0;
+		final SegmentIndex index = new SegmentIndex(segmentation);
+		ExecutorService service = Executors.newFixedThreadPool(nThreads);
+		List<Future<TrainingObject>> futures = new ArrayList<Future<TrainingObject>>(ta.length);
 		// iterate over the training objects
-		FeatureIterator<SimpleFeature> iterator = trainingObjects.features();
 		try {
-			int i = 0;
-			while (iterator.hasNext()) {
-				SimpleFeature feature = iterator.next();
-				ta[i] = new TrainingObject(feature, segmentation);
+			for (final SimpleFeature feature : trainingObjects) {
+				futures.add(service.submit(new Callable<TrainingObject>() {
+					@Override
+					public TrainingObject call() {
+						return new TrainingObject(feature, index);
+					}
+				}));
+			}
+			// in the order of the training features
+			for (int i=0; i<futures.size(); i++) {
+				ta[i] = futures.get(i).get();
 				totalSegs += ta[i].getNumIntersected();
-				i++;
 			}
 		} catch (Exception e) {
 				e.printStackTrace();
 		} finally {
-			trainingObjects.close(iterator);
+			service.shutdown();
 		}
 	}
 		
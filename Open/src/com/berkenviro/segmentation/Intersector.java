@@ -28,6 +28,15 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.opengis.feature.simple.SimpleFeature;
 
 
 /**
@@ -45,6 +54,20 @@ public class Intersector {
      * @param trainFile
      */
 	public static void processDir2(File dir, String tableName, File trainFile) {
+		processDir2(dir, tableName, trainFile, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Batch scoring.  The training shapefile is read once and shared, the segmentations are
+	 * scored concurrently, and each row is written as soon as its segmentation is done, so the
+	 * rows are in the order they finish.  If there are fewer segmentations than threads, the
+	 * spare threads build the training objects of each one.
+	 * @param dir a directory of segmentation shapefiles, or one shapefile
+	 * @param tableName
+	 * @param trainFile
+	 * @param nThreads
+	 */
+	public static void processDir2(File dir, String tableName, File trainFile, int nThreads) {
 
 		File[] f = null;
 		if (dir.isDirectory()) {
@@ -53,10 +76,20 @@ public class Intersector {
 		else {
 			f = new File[] {dir};
 		}
+		final List<SimpleFeature> training = Intersection.readTraining(trainFile);
+		final int objectThreads = Math.max(1, nThreads / Math.max(1, f.length));
+		ExecutorService service = Executors.newFixedThreadPool(Math.min(nThreads, Math.max(1, f.length)));
+		CompletionService<String> ecs = new ExecutorCompletionService<String>(service);
+		for (final File segs : f) {
+			ecs.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return score(segs, training, objectThreads);
+				}
+			});
+		}
 //		 set up the output file and iterate
 		BufferedWriter writer = null;
-		double[] wStats = null;
-		double[] stats = null;
 		try {
 			writer = new BufferedWriter(new FileWriter(tableName));
 			writer.write("Filename"+"\t"
@@ -93,66 +126,21 @@ public class Intersector {
 							);
 			writer.newLine();
 			writer.flush();
-			for (File segs : f) {
-				// after build, ready to report stats
-				Intersection iSector = new Intersection(trainFile, segs);
-				
-				writer.write(segs.toString()+"\t");
-				// Clinton stats.
-				stats = iSector.averageSegStats();
-				wStats = iSector.segStats();
-				writer.write(stats[0]+"\t");
-				writer.write(wStats[0]+"\t");
-				writer.write(stats[1]+"\t");
-				writer.write(wStats[1]+"\t");
-				// Other metrics
-				double[] lsStats = iSector.averageLucieerSteinStats();
-				//{Average ModDb, Average AFI, countOver, countUnder}
-				// write the Lucieer and Stein stats
-				writer.write(lsStats[0]+"\t");
-				writer.write(lsStats[1]+"\t");
-				writer.write(lsStats[2]+"\t");
-				writer.write(lsStats[3]+"\t");
-				double[] mStats = iSector.averageMollerStats();
-				//Average of {AvgRPso, AvgRPsub, AvgRAsuper, AvgRAsub}
-				double[] zStats = iSector.averageZhanStats();
-				//Average of {AvgSimSize, SDSimSize, AvgQLoq, SDQLoc}
-				double[] wStats2 = iSector.segStats2();
-//				{meanRAsub, meanRAsuper, meanRPsub, meanRPso, meanQLoq, sdQLoq, meanSimSize, sdSimSize, qr}
-				//{0		, 1			 , 2		, 3		  , 4		, 5		, 6			 , 7	  , 8	}
-				// Moller
-				writer.write(mStats[0]+"\t");
-				writer.write(wStats2[3]+"\t");
-				writer.write(mStats[1]+"\t");
-				writer.write(wStats2[2]+"\t");
-				writer.write(mStats[2]+"\t");
-				writer.write(wStats2[1]+"\t");
-				writer.write(mStats[3]+"\t");
-				writer.write(wStats2[0]+"\t");
-				// Zhan
-				writer.write(zStats[0]+"\t");
-				writer.write(wStats2[6]+"\t");
-				writer.write(zStats[1]+"\t");
-				writer.write(wStats2[7]+"\t");
-				writer.write(zStats[2]+"\t");
-				writer.write(wStats2[4]+"\t");
-				writer.write(zStats[3]+"\t");
-				writer.write(wStats2[5]+"\t");
-				// added 4/14
-				double[] yStats = iSector.sumYang();
-				writer.write(yStats[0]+"\t");
-				writer.write(yStats[1]+"\t");
-				// 071308
-				double wStat = iSector.avgWeidner();
-				writer.write(wStat+"\t");
-				writer.write(wStats2[8]+"\t");
-				
-				writer.newLine();
-				writer.flush();
+			for (int i=0; i<f.length; i++) {
+				try {
+					writer.write(ecs.take().get());
+					writer.newLine();
+					writer.flush();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+				}
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
 		} finally {
+			service.shutdownNow();
 			try {
 				writer.close();
 			} catch (IOException e) {
@@ -161,6 +149,72 @@ public class Intersector {
 		}
 		
 	}
+	
+	/**
+	 * One row of the processDir2() table.
+	 * @param segs
+	 * @param training from Intersection.readTraining()
+	 * @param nThreads for the training objects
+	 * @return the tab delimited stats, without the line separator
+	 */
+	private static String score(File segs, List<SimpleFeature> training, int nThreads) {
+		// after build, ready to report stats
+		Intersection iSector = new Intersection(training, segs, nThreads);
+		double[] wStats = null;
+		double[] stats = null;
+		StringBuilder row = new StringBuilder();
+		row.append(segs.toString()+"\t");
+		// Clinton stats.
+		stats = iSector.averageSegStats();
+		wStats = iSector.segStats();
+		row.append(stats[0]+"\t");
+		row.append(wStats[0]+"\t");
+		row.append(stats[1]+"\t");
+		row.append(wStats[1]+"\t");
+		// Other metrics
+		double[] lsStats = iSector.averageLucieerSteinStats();
+		//{Average ModDb, Average AFI, countOver, countUnder}
+		// write the Lucieer and Stein stats
+		row.append(lsStats[0]+"\t");
+		row.append(lsStats[1]+"\t");
+		row.append(lsStats[2]+"\t");
+		row.append(lsStats[3]+"\t");
+		double[] mStats = iSector.averageMollerStats();
+		//Average of {AvgRPso, AvgRPsub, AvgRAsuper, AvgRAsub}
+		double[] zStats = iSector.averageZhanStats();
+		//Average of {AvgSimSize, SDSimSize, AvgQLoq, SDQLoc}
+		double[] wStats2 = iSector.segStats2();
+//				{meanRAsub, meanRAsuper, meanRPsub, meanRPso, meanQLoq, sdQLoq, meanSimSize, sdSimSize, qr}
+		//{0		, 1			 , 2		, 3		  , 4		, 5		, 6			 , 7	  , 8	}
+		// Moller
+		row.append(mStats[0]+"\t");
+		row.append(wStats2[3]+"\t");
+		row.append(mStats[1]+"\t");
+		row.append(wStats2[2]+"\t");
+		row.append(mStats[2]+"\t");
+		row.append(wStats2[1]+"\t");
+		row.append(mStats[3]+"\t");
+		row.append(wStats2[0]+"\t");
+		// Zhan
+		row.append(zStats[0]+"\t");
+		row.append(wStats2[6]+"\t");
+		row.append(zStats[1]+"\t");
+		row.append(wStats2[7]+"\t");
+		row.append(zStats[2]+"\t");
+		row.append(wStats2[4]+"\t");
+		row.append(zStats[3]+"\t");
+		row.append(wStats2[5]+"\t");
+		// added 4/14
+		double[] yStats = iSector.sumYang();
+		row.append(yStats[0]+"\t");
+		row.append(yStats[1]+"\t");
+		// 071308
+		double wStat = iSector.avgWeidner();
+		row.append(wStat+"\t");
+		row.append(wStats2[8]+"\t");
+		
+		return row.toString();
+	}
     
     
 	/**
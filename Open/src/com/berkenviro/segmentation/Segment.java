@@ -55,6 +55,16 @@ public class Segment {
 	 */
 	private double qr;
 	
+	/*
+	 * Area of the intersection with the reference, computed once
+	 */
+	private double isectA;
+	
+	/*
+	 * Lucieer and Stein, built when first needed
+	 */
+	private VertexIndex vertexIndex;
+	
 	/*
 	 * Constructor.  Simply set the Geometry variable.
 	 */
@@ -62,7 +72,7 @@ public class Segment {
 		segShape = p;
 		//overSegmentation = 1.0 - intersectionArea(ref)/ref.getArea();
 		//underSegmentation = 1.0 - intersectionArea(ref)/p.getArea();
-		double isectA = intersectionArea(ref);
+		isectA = intersectionArea(ref);
 		
 		// Moller et al.
 		RAsub = isectA/ref.getArea();
@@ -117,6 +127,13 @@ public class Segment {
 		return (segShape.intersection(p)).getArea();
 	}
 	
+	/*
+	 * The intersection area with the reference of the constructor.
+	 */
+	public double getIntersectionArea() {
+		return isectA;
+	}
+	
 	/*
 	 * 
 	 */
@@ -143,6 +160,16 @@ public class Segment {
 		return segShape.getCoordinates().clone();
 	}
 	
+	/*
+	 * The vertices of getCoords(), for nearest vertex distances.
+	 */
+	public VertexIndex getVertexIndex() {
+		if (vertexIndex == null) {
+			vertexIndex = new VertexIndex(segShape.getCoordinates());
+		}
+		return vertexIndex;
+	}
+	
 	// Moller et al.
 	/*
 	 * 
@@ -0,0 +1,77 @@
+package com.berkenviro.segmentation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * The polygons of a segmentation in an STR-tree, read once and shared by the TrainingObjects
+ * of an Intersection.  Queries return the segments in the order of the segmentation, so a
+ * TrainingObject sees them in the same order as it did iterating over the collection.
+ * Built in the constructor, after which it is read-only and safe to query from many threads.
+ *
+ * @author Nicholas Clinton
+ */
+public class SegmentIndex {
+
+	private final List<Geometry> segments = new ArrayList<Geometry>();
+	private final STRtree tree = new STRtree();
+
+	/**
+	 * @param segmentation polygons or multipolygons.  Anything else is skipped.
+	 */
+	public SegmentIndex(FeatureCollection<SimpleFeatureType, SimpleFeature> segmentation) {
+		FeatureIterator<SimpleFeature> iterator = segmentation.features();
+		try {
+			while (iterator.hasNext()) {
+				Geometry geo = (Geometry) iterator.next().getDefaultGeometry();
+				if ((geo instanceof Polygon) || (geo instanceof MultiPolygon)) {
+					// the position in the segmentation is the item
+					tree.insert(geo.getEnvelopeInternal(), segments.size());
+					segments.add(geo);
+				}
+				else {
+					System.err.println("The segment is not a polygon!!");
+				}
+			}
+		} finally {
+			segmentation.close(iterator);
+		}
+		tree.build();
+	}
+
+	/**
+	 * @param g
+	 * @return the segments whose envelopes intersect the envelope of g, in the order of the segmentation
+	 */
+	public List<Geometry> query(Geometry g) {
+		List<?> items = tree.query(g.getEnvelopeInternal());
+		List<Integer> positions = new ArrayList<Integer>(items.size());
+		for (Object item : items) {
+			positions.add((Integer) item);
+		}
+		Collections.sort(positions);
+		List<Geometry> candidates = new ArrayList<Geometry>(positions.size());
+		for (int i : positions) {
+			candidates.add(segments.get(i));
+		}
+		return candidates;
+	}
+
+	/**
+	 * @return the number of polygons in the segmentation
+	 */
+	public int size() {
+		return segments.size();
+	}
+}
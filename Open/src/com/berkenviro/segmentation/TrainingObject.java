@@ -25,20 +25,20 @@
 package com.berkenviro.segmentation;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Iterator;
 
 //import org.geotools.feature.Feature;
 import org.apache.commons.math.stat.StatUtils;
 import org.geotools.feature.FeatureCollection;
-import org.geotools.feature.FeatureIterator;
 import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 /**
  *	@author Nicholas Clinton
@@ -70,10 +70,17 @@ public class TrainingObject {
 	
 	/*
 	 * Updated to GeoTools 2.7, 20100615
-	 * 
+	 * Builds an index of the segmentation for this one object.  Use SegmentIndex for many.
+	 */
+	public TrainingObject(SimpleFeature feature, FeatureCollection<SimpleFeatureType, SimpleFeature> segmentation) {
+		this(feature, new SegmentIndex(segmentation));
+	}
+	
+	/*
+	 * Intersect with the candidates from the index, prepared for the repeated intersects().
+	 * The index is read-only, so TrainingObjects can be built on many threads.
 	 */
-	public TrainingObject(SimpleFeature feature, FeatureCollection segmentation) {
-	//public TrainingObject(Feature feature, FeatureCollection segmentation) {
+	public TrainingObject(SimpleFeature feature, SegmentIndex segmentation) {
 		
 		// set up instance variables
 		String idString = feature.getID();
@@ -89,65 +96,37 @@ public class TrainingObject {
 		lrgstIntrsctr = null;
 		lrgstArea = 0;
 		
-		//Iterator iter = segmentation.iterator();
-		FeatureIterator<SimpleFeature> iterator =  segmentation.features();
 		try {
-			
-			//Feature f;
-			Geometry geo;
+			PreparedGeometry prepared = PreparedGeometryFactory.prepare(myPoly);
 			Segment s;
-			// iteration overy feature in the segmentation shapefile
-			while (iterator.hasNext()) {
-
-				//f = (Feature)iter.next();
-				SimpleFeature f = iterator.next();
-				geo = (Geometry)f.getDefaultGeometry();
+			// the segments whose envelopes intersect, in the order of the segmentation shapefile
+			for (Geometry geo : segmentation.query(myPoly)) {
 				
-				// 05/06/08 debug
-				/*
-				if (!geo.isValid()) {
-					System.out.println("Invalid Geometry from a "+geo.getClass().getName());
-					System.out.println(geo.toText());
-					if (geo instanceof MultiPolygon) {
-						MultiPolygon mp = (MultiPolygon) geo;
-						for (int g=0; g<mp.getNumGeometries(); g++) {
-							System.out.println("Geometry "+g+": "+mp.getGeometryN(g).toString());
-						}
+				if (prepared.intersects(geo)) {
+					
+					// instantiate a segment relative to this training object
+					s = new Segment(geo, myPoly);
+					intersectedSegments.add(s);
+					
+					/*
+					 * logical tests for yStar membership and stats calculated
+					 */ 
+					if  (isYstar(s)){
+						yStarSegments.add(s);
+						// compute the instance variable stats from these segments (divide later)
+						avgOverSeg += s.getOverSegmentation();
+						avgUnderSeg += s.getUnderSegmentation();
 					}
-				}
-				*/
-				
-				
-				if ((geo instanceof Polygon) || (geo instanceof MultiPolygon)) {
-					if (myPoly.intersects(geo)) {
-						
-						// instantiate a segment relative to this training object
-						s = new Segment(geo, myPoly);
-						intersectedSegments.add(s);
-						
-						/*
-						 * logical tests for yStar membership and stats calculated
-						 */ 
-						if  (isYstar(s)){
-							yStarSegments.add(s);
-							// compute the instance variable stats from these segments (divide later)
-							avgOverSeg += s.getOverSegmentation();
-							avgUnderSeg += s.getUnderSegmentation();
-						}
-						
-						/*
-						 * Lucieer and Stein
-						 */
-						double intrsctdA = myPoly.intersection(geo).getArea();
-						if (intrsctdA > lrgstArea) {
-							lrgstIntrsctr = s;
-							lrgstArea = intrsctdA;
-						}
-						
+					
+					/*
+					 * Lucieer and Stein
+					 */
+					double intrsctdA = s.getIntersectionArea();
+					if (intrsctdA > lrgstArea) {
+						lrgstIntrsctr = s;
+						lrgstArea = intrsctdA;
 					}
-				}
-				else {
-					System.err.println("The segment is not a polygon!!");
+					
 				}
 			}
 			// finish off the instance variables
@@ -156,8 +135,6 @@ public class TrainingObject {
 			
 		} catch (Exception e) {
 			e.printStackTrace();
-		} finally {
-			segmentation.close(iterator);
 		}
 		
 	}
@@ -180,6 +157,7 @@ public class TrainingObject {
 	 * between the vertices of the training shape and the vertices of the 
 	 * yStar segments only.  This mod intended to eliminate the disproportionate
 	 * effect of a very large segment intersecting with a small intersection (e.g. sliver).
+	 * The nearest vertex of each segment is found in its VertexIndex.
 	 */
 	public double getModDb() {
 		int numVerts = myPoly.getNumPoints();
@@ -198,16 +176,8 @@ public class TrainingObject {
 			Iterator iter = yStarSegments.iterator();
 			while (iter.hasNext()) {
 				Segment seg = (Segment) iter.next();
-				Coordinate[] segVerts = seg.getCoords();
-				double[] dist = new double[segVerts.length];
-				// iterate over the coordinates of the intersected shape
-				for (int s=0; s<segVerts.length; s++) {
-					dist[s] = segVerts[s].distance(vertices[v]);
-				} // end seg verts
-				//System.out.println("weka.core.Utils.kthSmallestValue(dist, 1)"+weka.core.Utils.kthSmallestValue(dist, 1));
-				//cumDist+=weka.core.Utils.kthSmallestValue(dist, 1);
-				Arrays.sort(dist);
-				cumDist+=dist[0];
+				// distance to the nearest vertex of the intersected shape
+				cumDist+=seg.getVertexIndex().nearestDistance(vertices[v]);
 				count++;
 			} // end segs
 		} // end myPoly verts
@@ -335,8 +305,8 @@ public class TrainingObject {
 		Iterator iter = yStarSegments.iterator();
 		while (iter.hasNext()) {
 			Segment s = (Segment) iter.next();
-			underMerge+=(s.getArea() - s.intersectionArea(myPoly))/myPoly.getArea();
-			overMerge+=(myPoly.getArea() - s.intersectionArea(myPoly))/myPoly.getArea();
+			underMerge+=(s.getArea() - s.getIntersectionArea())/myPoly.getArea();
+			overMerge+=(myPoly.getArea() - s.getIntersectionArea())/myPoly.getArea();
 		}
 		return new double[] {underMerge, overMerge};
 	}
@@ -359,12 +329,13 @@ public class TrainingObject {
 	
 	/*
 	 * Does the segment meet the yStar criteria?
+	 * The segment is relative to this training object, so its intersection area is this one's.
 	 */
 	public boolean isYstar(Segment s) {
 		return (this.isPointIn(s.getCenter()) || 
 				s.centerIsIn(myPoly.getCentroid()) ||
-				s.intersectionArea(myPoly)/this.getArea() > 0.5 ||
-				s.getProportionIntersected(myPoly) > 0.5);
+				s.getIntersectionArea()/this.getArea() > 0.5 ||
+				s.getIntersectionArea()/s.getArea() > 0.5);
 	}
 	
 	/*
@@ -0,0 +1,153 @@
+package com.berkenviro.segmentation;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * A 2-d tree of the vertices of a segment, for nearest vertex distances.
+ *
+ * The tree is implicit: the vertices are ordered so that the median of each range, on
+ * alternating axes, is its root.  A query is about log(n) instead of a distance to every vertex.
+ * The distance returned is Coordinate.distance() from the nearest vertex, so it's the same
+ * value as the minimum over all of them.
+ *
+ * @author Nicholas Clinton
+ */
+public class VertexIndex {
+
+	private final Coordinate[] vertices;
+
+	/**
+	 * @param vertices are copied
+	 */
+	public VertexIndex(Coordinate[] vertices) {
+		this.vertices = vertices.clone();
+		build(0, this.vertices.length, 0);
+	}
+
+	private void build(int lo, int hi, final int axis) {
+		if (hi - lo < 2) {
+			return;
+		}
+		Arrays.sort(vertices, lo, hi, new Comparator<Coordinate>() {
+			@Override
+			public int compare(Coordinate a, Coordinate b) {
+				return axis == 0 ? Double.compare(a.x, b.x) : Double.compare(a.y, b.y);
+			}
+		});
+		int mid = (lo + hi) >>> 1;
+		build(lo, mid, 1 - axis);
+		build(mid + 1, hi, 1 - axis);
+	}
+
+	/**
+	 * @return the number of vertices
+	 */
+	public int size() {
+		return vertices.length;
+	}
+
+	/**
+	 * @param c
+	 * @return the distance from the nearest vertex to c
+	 * @throws ArrayIndexOutOfBoundsException if there are no vertices, as the minimum of none
+	 */
+	public double nearestDistance(Coordinate c) {
+		if (vertices.length == 0) {
+			throw new ArrayIndexOutOfBoundsException(0);
+		}
+		// {squared distance, index} of the nearest so far
+		double[] best = {Double.POSITIVE_INFINITY, 0};
+		search(c.x, c.y, 0, vertices.length, 0, best);
+		return vertices[(int) best[1]].distance(c);
+	}
+
+	private void search(double x, double y, int lo, int hi, int axis, double[] best) {
+		if (lo >= hi) {
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		Coordinate v = vertices[mid];
+		double dx = v.x - x;
+		double dy = v.y - y;
+		double d2 = dx * dx + dy * dy;
+		if (d2 < best[0]) {
+			best[0] = d2;
+			best[1] = mid;
+		}
+		// the side of the split with c first, the other if it could be closer
+		double diff = axis == 0 ? x - v.x : y - v.y;
+		if (diff < 0) {
+			search(x, y, lo, mid, 1 - axis, best);
+			if (diff * diff < best[0]) {
+				search(x, y, mid + 1, hi, 1 - axis, best);
+			}
+		} else {
+			search(x, y, mid + 1, hi, 1 - axis, best);
+			if (diff * diff < best[0]) {
+				search(x, y, lo, mid, 1 - axis, best);
+			}
+		}
+	}
+
+	/**
+	 * Compare to the minimum of all the distances, as getModDb() did, on random polygons.
+	 * @param args optionally, the number of vertices of each
+	 */
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		Random random = new Random(20080325);
+		Coordinate[] training = ring(random, n, 0, 0);
+		Coordinate[][] segments = new Coordinate[10][];
+		for (int s = 0; s < segments.length; s++) {
+			segments[s] = ring(random, n, random.nextDouble() * 50, random.nextDouble() * 50);
+		}
+
+		long start = System.currentTimeMillis();
+		double bruteSum = 0;
+		for (Coordinate v : training) {
+			for (Coordinate[] segVerts : segments) {
+				double[] dist = new double[segVerts.length];
+				for (int s = 0; s < segVerts.length; s++) {
+					dist[s] = segVerts[s].distance(v);
+				}
+				Arrays.sort(dist);
+				bruteSum += dist[0];
+			}
+		}
+		long bruteTime = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+		VertexIndex[] indexes = new VertexIndex[segments.length];
+		for (int s = 0; s < segments.length; s++) {
+			indexes[s] = new VertexIndex(segments[s]);
+		}
+		double indexSum = 0;
+		for (Coordinate v : training) {
+			for (VertexIndex index : indexes) {
+				indexSum += index.nearestDistance(v);
+			}
+		}
+		long indexTime = System.currentTimeMillis() - start;
+		System.out.println(n + " vertices, 10 segments: " + bruteSum + " vs. " + indexSum
+				+ (bruteSum == indexSum ? " (same)" : " (DIFFERENT)")
+				+ ", " + bruteTime + " vs. " + indexTime + " milliseconds");
+	}
+
+	/**
+	 * A closed, star shaped ring of n vertices.
+	 */
+	private static Coordinate[] ring(Random random, int n, double cx, double cy) {
+		Coordinate[] ring = new Coordinate[n + 1];
+		for (int i = 0; i < n; i++) {
+			double a = 2 * Math.PI * i / n;
+			double r = 100 * (0.5 + 0.5 * random.nextDouble());
+			ring[i] = new Coordinate(cx + r * Math.cos(a), cy + r * Math.sin(a));
+		}
+		ring[n] = ring[0];
+		return ring;
+	}
+}